@@ -1,19 +1,36 @@
 package controller;
 
 import model.*;
+import repository.CachedFormulaEvaluator;
 import repository.ExcelRepository;
+import repository.ResultStore;
+import repository.ResultsWorkbookWriter;
+import service.CeBudgetService;
+import service.ChartExportService;
+import service.ElasticityService;
+import service.FormatService;
+import service.FlightRecorderService;
+import service.FxService;
+import service.JfrEvents;
+import service.MetricsService;
+import service.Tracing;
+import service.MonteCarloService;
+import service.PeriodBudgetService;
+import service.SensitivityService;
+import service.RicaviCsvService;
 import service.RicaviExcelService;
+import service.SimulationKernel;
 import view.*;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
 
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.util.CellReference;
 
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
-import org.jfree.chart.labels.StandardCategoryItemLabelGenerator;
-import org.jfree.chart.plot.CategoryPlot;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.renderer.category.LineAndShapeRenderer;
 import org.jfree.data.category.DefaultCategoryDataset;
@@ -23,18 +40,14 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 
 import java.awt.Desktop;
 import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
-import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
 import java.util.*;
-import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Font;
 
-import org.jfree.chart.axis.CategoryAxis;
 import org.jfree.chart.axis.CategoryLabelPositions;
 import org.jfree.chart.axis.NumberAxis;
-import org.jfree.chart.renderer.category.BarRenderer;
-import org.jfree.chart.renderer.category.StandardBarPainter;
 
 public class MainController {
 
@@ -46,29 +59,103 @@ public class MainController {
     private PremioCompController premioController;
 
     private RicaviExcelService ricaviService;
+    private final CeBudgetService ceService = new CeBudgetService();
     private List<ArticleRow> cachedArticles = new ArrayList<>();
 
-    private static final DecimalFormat DF_INT = new DecimalFormat("#,##0");
-    private static final DecimalFormat DF_3   = new DecimalFormat("#,##0.000");
-    private static final DecimalFormat DF_2   = new DecimalFormat("#,##0.00");
+    /** Valori base in memoria (null = da rileggere: cambia a ogni load/reset/simulazione). Solo EDT. */
+    private RicaviSnapshot cachedSnapshot;
+    /** Incrementata a ogni cambio di cachedSnapshot: uno snapshot letto in background prima non va in cache. */
+    private int snapshotGeneration;
+    private final MonteCarloService monteCarloService = new MonteCarloService();
+    private final SensitivityService sensitivityService = new SensitivityService();
+    private final ElasticityService elasticityService = new ElasticityService();
+    private ElasticityTable cachedElasticities;
+    private final FxService fxService = new FxService();
+    private final PeriodBudgetService periodService = new PeriodBudgetService();
+    /** Valori base per periodo (null = da rileggere, stessa vita di cachedSnapshot). */
+    private List<PeriodBudgetService.PeriodBase> cachedPeriods;
+    private final ChartExportService chartExportService = new ChartExportService();
+    /** Grafici dell'ultima simulazione per l'export su file (factory su copie dei dataset, fatte sull'EDT). */
+    private final List<ChartExportService.Job> lastChartJobs = new ArrayList<>();
+
+    /**
+     * Grafici di un articolo: dataset e grafici riusati tra simulazioni (aggiornati sul posto, EDT).
+     * Ogni grafico è costruito una volta, alla prima apertura della tab; ChartsPanel crea e rilascia
+     * solo il ChartPanel attorno.
+     */
+    private static final class ArticleCharts {
+        final String art;
+        final DefaultCategoryDataset pos = new DefaultCategoryDataset();
+        final DefaultCategoryDataset comp = new DefaultCategoryDataset();
+        String compTitle;
+        private JFreeChart posChart;
+        private JFreeChart compChart;
+
+        ArticleCharts(String art) {
+            this.art = art;
+        }
+
+        JFreeChart posChart() {
+            if (posChart == null) posChart = ChartStyles.articleChart("POS – " + art, "POS", pos, true);
+            return posChart;
+        }
+
+        JFreeChart compChart() {
+            if (compChart == null) compChart = ChartStyles.articleChart(compTitle, "Valori (Q e P)", comp, false);
+            return compChart;
+        }
+
+        void setCompTitle(String title) {
+            compTitle = title;
+            if (compChart == null) return;
+            if (compChart.getTitle() == null || !title.equals(compChart.getTitle().getText())) compChart.setTitle(title);
+        }
+    }
+
+    /** Chiave articolo (CAT||ARTICOLO) -> grafici; svuotata a ogni load/reset. */
+    private final Map<String, ArticleCharts> articleCharts = new HashMap<>();
+
+    // ===========================
+    // Anteprima live (solo in memoria)
+    // ===========================
+
+    /** Attesa dopo l'ultima modifica prima di ricalcolare (raffiche di tasti = un solo ricalcolo). */
+    private static final int LIVE_DEBOUNCE_MS = 120;
+
+    /** Modifiche non ancora ricalcolate: chiave articolo -> ultima richiesta (le precedenti sono superate). */
+    private final Map<String, SimulationControlsPanel.SimRequest> livePending = new LinkedHashMap<>();
+    /** Anteprime calcolate dall'ultima simulazione salvata (mostrate nei dettagli). */
+    private final Map<String, DetailSection> liveDetails = new LinkedHashMap<>();
+    private final javax.swing.Timer liveTimer = new javax.swing.Timer(LIVE_DEBOUNCE_MS, e -> flushLive());
+    /** true mentre lo snapshot viene letto in background per l'anteprima. */
+    private boolean liveLoading;
+    private boolean originalCheckRunning;
+
 
     /**
      * Riga HTML standard per la sezione "Dettagli".
      * Mantiene un look pulito senza cambiare la logica dei calcoli.
      */
     private static String rowHtml(String k, String v) {
-        String key = (k == null) ? "" : k;
-        String val = (v == null) ? "" : v;
-        return "<tr>" +
-                "<td style='padding:4px 8px;border-top:1px solid #eee;color:#333;white-space:nowrap;'><b>" + key + "</b></td>" +
-                "<td style='padding:4px 8px;border-top:1px solid #eee;color:#111;text-align:right;'>" + val + "</td>" +
-                "</tr>";
+        return DetailsHtml.row(k, v);
     }
 
+    // ===========================
+    // Metriche (vedi Diagnostica)
+    // ===========================
+    private final MetricsService metrics = new MetricsService();
+    private MetricsDialog metricsDialog;
+    private ResultStore resultStore;
+    private final FlightRecorderService flightRecorder = new FlightRecorderService();
+
+    private static final String C_CELLS_WRITTEN = "celle scritte";
+    private static final String C_EVALUATE_ALL = "evaluateAll";
+    private static final String C_FORMULAS = "formule valutate";
+
     // ==========================================================
     // ✅ FIX EXCEL: helper per aggiornare celle senza rompere formule
     // ==========================================================
-    private void writeNumericIfNotFormula(Sheet sheet, int rowIdx, int colIdx, double value) {
+    private void writeNumericIfNotFormula(MetricsService.Action act, Sheet sheet, int rowIdx, int colIdx, double value) {
         Row row = sheet.getRow(rowIdx);
         if (row == null) row = sheet.createRow(rowIdx);
 
@@ -78,13 +165,35 @@ public class MainController {
         if (cell.getCellType() == CellType.FORMULA) return;
 
         cell.setCellValue(value);
+        excelRepo.recordCellWrite(cell, false);
+        act.increment(C_CELLS_WRITTEN);
+    }
+
+    private void writeNumeric(MetricsService.Action act, Sheet sheet, int rowIdx, int colIdx, double value) {
+        excelRepo.recordCellWrite(ricaviService.writeNumeric(sheet, rowIdx, colIdx, value), false);
+        act.increment(C_CELLS_WRITTEN);
+        if (log.isTraceEnabled(Tracing.ROW)) {
+            log.trace(Tracing.ROW, "scrivo {}!R{}C{} = {}", sheet.getSheetName(),
+                    Unbox.box(rowIdx + 1), Unbox.box(colIdx + 1), Unbox.box(value));
+        }
+    }
+
+    /**
+     * evaluateAll con conteggio: ogni chiamata ricalcola tutte le formulaCells del workbook.
+     * eval è del workbook aperto con openWorkingCopy: dopo il salvataggio le formule nel file sono aggiornate.
+     */
+    private void evaluateAll(MetricsService.Action act, FormulaEvaluator eval, int formulaCells) {
+        eval.evaluateAll();
+        excelRepo.markFullyCalculated();
+        act.increment(C_EVALUATE_ALL);
+        act.count(C_FORMULAS, formulaCells);
     }
 
     /**
      * Se la cella è una formula, valuta e aggiorna il cached result
      * (serve per vedere valori aggiornati aprendo la copia in Excel).
      */
-    private void evaluateFormulaCellIfPresent(Sheet sheet, FormulaEvaluator eval, int rowIdx, Integer colIdx) {
+    private void evaluateFormulaCellIfPresent(MetricsService.Action act, Sheet sheet, FormulaEvaluator eval, int rowIdx, Integer colIdx) {
         if (colIdx == null) return;
 
         Row row = sheet.getRow(rowIdx);
@@ -95,6 +204,7 @@ public class MainController {
 
         if (cell.getCellType() == CellType.FORMULA) {
             eval.evaluateFormulaCell(cell);
+            act.increment(C_FORMULAS);
         }
     }
 
@@ -112,8 +222,6 @@ public class MainController {
     // CE Budget 2022: mapping righe/colonna
     // (valori in colonna J: J5..J13)
     // ===========================
-    private static final int CE_COL_J = 9; // J = index 9 (0-based)
-
     private static final int CE_ROW_RICAVI_PF      = 4;  // J5
     private static final int CE_ROW_RICAVI_MP      = 5;  // J6
     private static final int CE_ROW_RICAVI_CLAV    = 6;  // J7
@@ -137,17 +245,29 @@ public class MainController {
 
         log.info("MainController inizializzato.");
         initListeners();
+        SwingUtilities.invokeLater(this::offerSessionRecovery); // dopo che la finestra è visibile
     }
 
     private void initListeners() {
         view.getBtnResetExcel().addActionListener(e -> onResetExcel());
         view.getBtnLoadExcel().addActionListener(e -> onLoadExcel());
+        view.getBtnImportCsv().addActionListener(e -> onImportCsv());
         view.getBtnExit().addActionListener(e -> onExit());
         view.getBtnOpenWorkingCopy().addActionListener(e -> onOpenWorkingCopy());
         view.getControlsPanel().getBtnSimulate().addActionListener(e -> onSimulate());
+        view.getControlsPanel().getBtnMonteCarlo().addActionListener(e -> onMonteCarlo());
+        view.getControlsPanel().getBtnSensitivity().addActionListener(e -> onSensitivity());
+        view.getControlsPanel().getBtnFx().addActionListener(e -> onFxSimulation());
+        view.getControlsPanel().getBtnPeriods().addActionListener(e -> onSimulatePeriods());
+        view.getControlsPanel().getBtnExportCharts().addActionListener(e -> onExportCharts());
+        view.getControlsPanel().getBtnResults().addActionListener(e -> onShowResults());
+        view.getControlsPanel().getChkLive().addActionListener(e -> onToggleLive());
+        view.getControlsPanel().addLiveEditListener(this::onLiveEdit);
+        liveTimer.setRepeats(false);
 
         // ✅ nuovo listener: CE Budget 2022 (base fisso)
         view.getBtnShowCeBudget().addActionListener(e -> onShowCeBudgetBase());
+        view.getBtnDiagnostics().addActionListener(e -> onShowDiagnostics());
 
         log.debug("Listener UI registrati.");
     }
@@ -158,7 +278,7 @@ public class MainController {
             return;
         }
         if (premioController == null) {
-            premioController = new PremioCompController(model, view, excelRepo);
+            premioController = new PremioCompController(model, view, excelRepo, metrics, this::results);
         }
         premioController.open();
     }
@@ -179,14 +299,21 @@ public class MainController {
         );
         if (ok != JOptionPane.YES_OPTION) return;
 
-        try {
+        try (MetricsService.Action act = metrics.begin("Reset Excel")) {
             // ✅ reset working copy dal base snapshot
             File wc = excelRepo.resetWorkingCopyToBase();
             model.setWorkingExcelCopy(wc);
+            act.mark("copia di lavoro");
 
             // ✅ ricreo service e ricarico articoli (così riparti da base)
             ricaviService = new RicaviExcelService(wc);
-            cachedArticles = ricaviService.loadArticles();
+            loadBaseData(act);
+            discardResults();
+            cachedPeriods = null;
+            cachedElasticities = null;
+            articleCharts.clear();
+            lastChartJobs.clear();
+            clearLive();
             view.getControlsPanel().setArticles(cachedArticles);
 
             // ✅ pulisco output (dettagli + grafici)
@@ -224,16 +351,14 @@ public class MainController {
         File original = chooser.getSelectedFile();
         log.info("File selezionato: {}", original.getAbsolutePath());
 
+        MetricsService.Action act = metrics.begin("Carica Excel");
         try {
             File workingCopy = excelRepo.createWorkingCopy(original);
+            act.count("bytes file", workingCopy.length());
+            act.mark("copia di lavoro");
 
-            model.setOriginalExcel(original);
-            model.setWorkingExcelCopy(workingCopy);
-            view.setExcelLoaded(original.getName());
-
-            ricaviService = new RicaviExcelService(workingCopy);
-            cachedArticles = ricaviService.loadArticles();
-            view.getControlsPanel().setArticles(cachedArticles);
+            showWorkingCopy(act, original, workingCopy);
+            act.close();
 
             JOptionPane.showMessageDialog(
                     view,
@@ -243,12 +368,257 @@ public class MainController {
             );
 
         } catch (Exception ex) {
+            act.close();
             log.error("Errore nel caricamento Excel", ex);
             JOptionPane.showMessageDialog(view, "Errore: " + ex.getMessage(), "Errore", JOptionPane.ERROR_MESSAGE);
             view.setExcelNotLoaded();
         }
     }
 
+    /**
+     * Articoli e valori base da un estratto CSV, senza Excel: bastano per Monte Carlo, sensitività,
+     * cambio e anteprima live. Simulazione, periodi, reset e CE restano legati a un file Excel.
+     */
+    private void onImportCsv() {
+        log.info("Click: Importa CSV");
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Seleziona l'estratto Ricavi (.csv)");
+        chooser.setFileFilter(new FileNameExtensionFilter("CSV (*.csv, *.txt, *.tsv)", "csv", "txt", "tsv"));
+        if (chooser.showOpenDialog(view) != JFileChooser.APPROVE_OPTION) return;
+
+        File csv = chooser.getSelectedFile();
+        log.info("File CSV selezionato: {}", csv.getAbsolutePath());
+        view.getBtnImportCsv().setEnabled(false);
+
+        new SwingWorker<RicaviSnapshot, Void>() {
+            @Override
+            protected RicaviSnapshot doInBackground() throws Exception {
+                try (MetricsService.Action act = metrics.begin("Importa CSV")) {
+                    act.count("bytes file", csv.length());
+                    RicaviSnapshot snap = new RicaviCsvService().load(csv);
+                    act.count("articoli", snap.size());
+                    act.mark("lettura CSV");
+                    return snap;
+                }
+            }
+
+            @Override
+            protected void done() {
+                view.getBtnImportCsv().setEnabled(true);
+                try {
+                    RicaviSnapshot snap = get();
+                    model.setOriginalExcel(null);
+                    model.setWorkingExcelCopy(null);
+                    ricaviService = null;
+                    excelRepo.stopWatchingOriginal();
+                    cachedArticles = new ArrayList<>(snap.getArticles());
+                    setCachedSnapshot(snap);
+                    discardResults();
+                    cachedPeriods = null;
+                    cachedElasticities = null;
+                    articleCharts.clear();
+                    lastChartJobs.clear();
+                    clearLive();
+                    view.setCsvImported(csv.getName());
+                    view.getControlsPanel().setArticles(cachedArticles);
+
+                    JOptionPane.showMessageDialog(view,
+                            "CSV importato.\nArticoli trovati: " + cachedArticles.size() + "\n\n" +
+                                    "Disponibili: Monte Carlo, sensitività, cambio €/$ e anteprima live.\n" +
+                                    "Per simulare sul file e aggiornare il CE carica l'Excel.",
+                            "OK", JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception ex) {
+                    Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                    log.error("Errore import CSV", cause);
+                    JOptionPane.showMessageDialog(view, "Errore import CSV: " + cause.getMessage(), "Errore",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    /** Valori base disponibili in memoria o leggibili: Excel caricato oppure CSV importato. */
+    private boolean hasBaseData() {
+        return ricaviService != null || cachedSnapshot != null;
+    }
+
+    /** Working copy appena creata o ripristinata: modello, articoli e vista da zero. */
+    private void showWorkingCopy(MetricsService.Action act, File original, File workingCopy) throws Exception {
+        model.setOriginalExcel(original);
+        model.setWorkingExcelCopy(workingCopy);
+        view.setExcelLoaded(original.getName());
+
+        ricaviService = new RicaviExcelService(workingCopy);
+        loadBaseData(act);
+        discardResults();
+        cachedPeriods = null;
+        cachedElasticities = null;
+        articleCharts.clear();
+        clearLive();
+        view.getControlsPanel().setArticles(cachedArticles);
+        act.mark("aggiornamento vista");
+        excelRepo.watchOriginal(() -> SwingUtilities.invokeLater(this::onOriginalChanged));
+    }
+
+    /**
+     * L'originale è stato risalvato (es. aggiornamento della finanza): solo le celle cambiate passano
+     * nella working copy, sopra i valori delle simulazioni, e si rileggono solo gli articoli toccati.
+     */
+    private void onOriginalChanged() {
+        if (originalCheckRunning || ricaviService == null || model.getWorkingExcelCopy() == null) return;
+        originalCheckRunning = true;
+        ExcelRepository.OriginalChange ch = null;
+        try {
+            ch = excelRepo.checkOriginal();
+            if (ch == null) return;
+            String name = excelRepo.getOriginalFile().getName();
+
+            if (ch.isStructural()) {
+                excelRepo.discardOriginalChange(ch);
+                ch = null;
+                JOptionPane.showMessageDialog(view,
+                        "Il file originale " + name + " è stato modificato nella struttura\n" +
+                                "(fogli aggiunti, rimossi o rinominati).\n\nPer usarlo ricarica l'Excel.",
+                        "File originale modificato", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            int ok = JOptionPane.showConfirmDialog(view,
+                    "Il file originale " + name + " è stato modificato:\n" +
+                            ch.getCellCount() + " celle in " + String.join(", ", ch.getSheets()) + ".\n\n" +
+                            "Aggiornare la copia di lavoro?\nI valori scritti dalle simulazioni restano.",
+                    "File originale modificato", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+            if (ok != JOptionPane.YES_OPTION) {
+                excelRepo.discardOriginalChange(ch);
+                ch = null;
+                return;
+            }
+
+            boolean relisted;
+            try (MetricsService.Action act = metrics.begin("Aggiorna da originale");
+                 Workbook wb = excelRepo.openWorkingCopy()) {
+                act.mark("apertura");
+                excelRepo.applyOriginalChange(wb, ch);
+                act.count("celle aggiornate", ch.getApplied());
+                act.mark("aggiornamento e ricalcolo");
+                relisted = refreshBaseData(wb, ch);
+                act.mark("valori base");
+                excelRepo.safeSaveWorkbook(wb);
+                act.count("bytes salvati", model.getWorkingExcelCopy().length());
+                act.mark("salvataggio");
+            }
+            excelRepo.commitOriginalChange(ch);
+
+            cachedPeriods = null;
+            cachedElasticities = null;
+            clearLive();
+            if (relisted) view.getControlsPanel().setArticles(cachedArticles);
+
+            String msg = "Copia di lavoro aggiornata: " + ch.getApplied() + " celle.";
+            if (relisted) msg += "\nElenco articoli ricaricato: " + cachedArticles.size() + " articoli.";
+            if (ch.getConflicts() > 0) {
+                msg += "\n\n" + ch.getConflicts() + " celle erano già state modificate dalle simulazioni:\n" +
+                        "è stato mantenuto il valore simulato.";
+            }
+            ch = null;
+            JOptionPane.showMessageDialog(view, msg, "File originale modificato", JOptionPane.INFORMATION_MESSAGE);
+
+        } catch (Exception ex) {
+            log.error("Errore aggiornamento dal file originale", ex);
+            if (ch != null) excelRepo.discardOriginalChange(ch);
+            JOptionPane.showMessageDialog(view, "Aggiornamento dal file originale non riuscito: " + ex.getMessage() +
+                    "\n\nLa copia di lavoro non è cambiata.", "Errore", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            originalCheckRunning = false;
+        }
+    }
+
+    /**
+     * Articoli e valori base dopo l'aggiornamento dall'originale (wb = working copy aggiornata).
+     * Se sul foglio Ricavi sono cambiate celle diverse da Q / P / CMP / POS degli articoli noti
+     * (codici, righe nuove) si rilegge l'elenco; altrimenti solo gli articoli sulle righe toccate.
+     *
+     * @return true se l'elenco articoli è stato riletto
+     */
+    private boolean refreshBaseData(Workbook wb, ExcelRepository.OriginalChange ch) throws Exception {
+        if (articleListChanged(ch.getChangedCells("Ricavi"))) {
+            setCachedSnapshot(ricaviService.readBaseSnapshot(wb));
+            cachedArticles = new ArrayList<>(cachedSnapshot.getArticles());
+            return true;
+        }
+        if (cachedSnapshot == null || ch.getAffectedSheets().isEmpty()) return false; // riletto alla prossima analisi
+
+        FormulaEvaluator eval = wb.getCreationHelper().createFormulaEvaluator();
+        boolean otherSheets = ch.getAffectedSheets().size() > (ch.getAffectedRows("Ricavi").isEmpty() ? 0 : 1);
+        double mol0 = otherSheets ? ceService.readMol(wb, eval) : cachedSnapshot.getMol0();
+        setCachedSnapshot(ricaviService.refreshRows(wb.getSheet("Ricavi"), eval, cachedSnapshot,
+                ch.getAffectedRows("Ricavi"), mol0));
+        return false;
+    }
+
+    private boolean articleListChanged(List<CellReference> cells) {
+        if (cells.isEmpty()) return false;
+        Map<Integer, ArticleRow> byRow = new HashMap<>();
+        for (ArticleRow a : cachedArticles) byRow.put(a.getRowIndex(), a);
+        for (CellReference c : cells) {
+            ArticleRow a = byRow.get(c.getRow());
+            if (a == null) return true;
+            int col = c.getCol();
+            boolean value = col == a.getColQty() || col == a.getColPos()
+                    || col == a.getColPmedioEUR() || col == a.getColCMPmedioEUR()
+                    || Integer.valueOf(col).equals(a.getColPmedioUSD()) || Integer.valueOf(col).equals(a.getColCMPmedioUSD());
+            if (!value) return true;
+        }
+        return false;
+    }
+
+    /**
+     * All'avvio: se l'ultima sessione non è stata chiusa con "Esci" (crash, chiusura forzata)
+     * propone di ricostruirla da checkpoint + journal invece di ricaricare e rifare le simulazioni.
+     */
+    private void offerSessionRecovery() {
+        ExcelRepository.PendingSession pending = excelRepo.findRecoverableSession();
+        if (pending == null) return;
+
+        int ok = JOptionPane.showConfirmDialog(
+                view,
+                "L'ultima sessione non è stata chiusa correttamente.\n\n" +
+                        "File: " + pending.getOriginalFile().getName() + "\n" +
+                        "Aperto il: " + new SimpleDateFormat("dd/MM/yyyy HH:mm").format(new Date(pending.getCreated())) + "\n" +
+                        "Salvataggi da riapplicare: " + pending.getCommits() +
+                        (pending.hasCheckpoint() ? " (dopo l'ultimo checkpoint)" : "") + "\n\n" +
+                        "Vuoi ripristinarla?",
+                "Ripristino sessione",
+                JOptionPane.YES_NO_OPTION,
+                JOptionPane.QUESTION_MESSAGE
+        );
+        if (ok != JOptionPane.YES_OPTION) {
+            excelRepo.discardRecoverableSession();
+            return;
+        }
+
+        MetricsService.Action act = metrics.begin("Ripristino sessione");
+        try {
+            File workingCopy = excelRepo.recoverSession();
+            act.count("bytes file", workingCopy.length());
+            act.mark("journal");
+
+            showWorkingCopy(act, excelRepo.getOriginalFile(), workingCopy);
+            act.close();
+
+            JOptionPane.showMessageDialog(view,
+                    "Sessione ripristinata.\nArticoli modificabili trovati: " + cachedArticles.size(),
+                    "OK", JOptionPane.INFORMATION_MESSAGE);
+        } catch (Exception ex) {
+            act.close();
+            log.error("Errore nel ripristino della sessione", ex);
+            JOptionPane.showMessageDialog(view, "Ripristino non riuscito: " + ex.getMessage() +
+                    "\n\nRicarica il file Excel.", "Errore", JOptionPane.ERROR_MESSAGE);
+            view.setExcelNotLoaded();
+        }
+    }
+
     private void onOpenWorkingCopy() {
         try {
             File f = model.getWorkingExcelCopy();
@@ -269,6 +639,26 @@ public class MainController {
         }
     }
 
+    /**
+     * Articoli + snapshot base della working copy appena creata/ripristinata:
+     * dalla cache sessione se il file è già stato letto (stesso hash), altrimenti con POI (e poi in cache).
+     */
+    private void loadBaseData(MetricsService.Action act) throws Exception {
+        RicaviSnapshot snap = excelRepo.readSessionCache();
+        if (snap != null) {
+            act.increment("cache sessione");
+            act.mark("lettura cache");
+        } else {
+            snap = ricaviService.loadBaseSnapshot();
+            act.mark("lettura articoli");
+            excelRepo.writeSessionCache(snap);
+            act.mark("scrittura cache");
+        }
+        cachedArticles = new ArrayList<>(snap.getArticles());
+        setCachedSnapshot(snap);
+        act.count("articoli", cachedArticles.size());
+    }
+
     private Map<String, Integer> buildRowIndexMap(Sheet ricaviSheet, DataFormatter fmt, int headerRowIdx, int colCat, int colArt) {
         Map<String, Integer> map = new HashMap<>();
         for (int r = headerRowIdx + 1; r <= ricaviSheet.getLastRowNum(); r++) {
@@ -284,6 +674,7 @@ public class MainController {
         return map;
     }
 
+    @SuppressWarnings("try") // lo scope Tracing serve solo per la sua chiusura
     private void onSimulate() {
 
     if (model.getWorkingExcelCopy() == null || ricaviService == null) {
@@ -297,7 +688,10 @@ public class MainController {
         return;
     }
 
-    try (Workbook wb = WorkbookFactory.create(model.getWorkingExcelCopy())) {
+    try (Tracing.Scope trace = Tracing.begin("Simula");
+         MetricsService.Action act = metrics.begin("Simula");
+         Workbook wb = excelRepo.openWorkingCopy()) {
+        act.mark("apertura workbook");
 
         Sheet ricaviSheet = wb.getSheet("Ricavi");
         if (ricaviSheet == null) throw new IllegalStateException("Foglio 'Ricavi' non trovato.");
@@ -416,11 +810,15 @@ public class MainController {
         // 2) Mappa (Cat,Articolo) -> rowIndex (UNA VOLTA)
         // =========================================================
         Map<String, Integer> rowMap = buildRowIndexMap(ricaviSheet, fmt, headerRowIdx, colCat, colArt);
+        final int formulaCells = RicaviExcelService.countFormulaCells(wb);
+        act.mark("scansione layout");
 
         // =========================================================
         // 3) Pre-lettura valori base per ogni articolo (per grafici coerenti)
+        //    dai risultati salvati nel file: si valutano solo i fogli con scritture non ricalcolate
         // =========================================================
-        eval.evaluateAll();
+        CachedFormulaEvaluator baseEval = excelRepo.readEvaluator(wb, excelRepo.getWorkingCopyFile());
+        baseEval.evaluateAll();
 
         class Base {
             int rowIdx;
@@ -439,10 +837,10 @@ public class MainController {
                 throw new IllegalStateException("Non trovo la riga per Cat='" + cat + "' e Articolo='" + art + "'.");
             }
 
-            double q0 = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colQty);
-            double p0 = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colPeur);
-            double cmp0 = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colCMPeur);
-            double pos0Excel = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colPos);
+            double q0 = ricaviService.readNumeric(ricaviSheet, baseEval, rowIdx, colQty);
+            double p0 = ricaviService.readNumeric(ricaviSheet, baseEval, rowIdx, colPeur);
+            double cmp0 = ricaviService.readNumeric(ricaviSheet, baseEval, rowIdx, colCMPeur);
+            double pos0Excel = ricaviService.readNumeric(ricaviSheet, baseEval, rowIdx, colPos);
 
             if (!(q0 > 0)) throw new IllegalStateException("Q0 non valida letta da Excel: " + q0);
             if (!(p0 > 0)) throw new IllegalStateException("P0 (€/kg) non valido letto da Excel: " + p0);
@@ -467,20 +865,34 @@ public class MainController {
             baseByKey.put(key, b);
         }
 
-        // pulisco grafici multi
-        view.getChartsPanel().clearArticleCharts();
+        act.count("articoli", baseByKey.size());
+        act.count(C_FORMULAS, baseEval.getEvaluatedCells());
+        act.mark("lettura base");
 
-        // dettagli: sezioni multiple
-        StringBuilder html = new StringBuilder();
-        html.append("<html><body style='font-family:SansSerif;font-size:12px;'>");
-        html.append("<div style='font-size:13px;'><b>Simulazione multi-articolo</b></div>");
-        html.append("<div style='color:#666;'>Articoli selezionati: ").append(requests.size()).append("</div>");
-        html.append("<hr style='border:none;border-top:1px solid #ddd;margin:10px 0;' />");
+        ResultStore store = results();
+        int scenario = store.newScenario("Simula #" + (store.getScenarioCount() + 1));
+        double[] record = new double[ResultStore.Col.values().length];
+
+        // grafici: tengo (e aggiorno sul posto) solo quelli degli articoli di questa simulazione
+        articleCharts.keySet().retainAll(baseByKey.keySet());
+        view.getChartsPanel().retainArticleCharts(baseByKey.keySet());
+        lastChartJobs.clear();
+        // la simulazione salvata sostituisce le anteprime live
+        clearLive();
+
+        // dettagli: una sezione per articolo, aggiunta appena l'articolo è calcolato (vista a pagine)
+        view.getControlsPanel().beginDetails("Simulazione multi-articolo", "Articoli selezionati: " + requests.size());
+
+        // dashboard: POS0 / POS1 / POS* per articolo (un solo dataset, aggiornato a fine batch)
+        Map<String, double[]> dashboardValues = new LinkedHashMap<>();
 
         // =========================================================
         // 4) Applico modifiche una per una sulla STESSA working copy
         // =========================================================
         for (SimulationControlsPanel.SimRequest req : requests) {
+            JfrEvents.SimulationStep step = new JfrEvents.SimulationStep();
+            step.begin();
+            long evalBefore = act.getCount(C_EVALUATE_ALL);
 
             String cat = (req.article.getCat() == null) ? "" : req.article.getCat().trim().toUpperCase();
             String art = (req.article.getArticolo() == null) ? "" : req.article.getArticolo().trim().toUpperCase();
@@ -494,23 +906,32 @@ public class MainController {
             boolean doCompensate = req.compensate;
 
             // reset alla base per questo articolo (consistenza)
-            ricaviService.writeNumeric(ricaviSheet, rowIdx, colQty, b.q0);
-            ricaviService.writeNumeric(ricaviSheet, rowIdx, colPeur, b.p0);
-            eval.evaluateAll();
+            writeNumeric(act, ricaviSheet, rowIdx, colQty, b.q0);
+            writeNumeric(act, ricaviSheet, rowIdx, colPeur, b.p0);
+            evaluateAll(act, eval, formulaCells);
 
             // Step1 variazione
             double q1 = b.q0;
             double p1 = b.p0;
+            double eps = Double.NaN;
 
             if (mode == SimulationMode.QUANTITY) {
                 q1 = b.q0 * (1.0 + percent / 100.0);
-                ricaviService.writeNumeric(ricaviSheet, rowIdx, colQty, q1);
-            } else {
+                writeNumeric(act, ricaviSheet, rowIdx, colQty, q1);
+            } else if (mode == SimulationMode.PRICE) {
                 p1 = b.p0 * (1.0 + percent / 100.0);
-                ricaviService.writeNumeric(ricaviSheet, rowIdx, colPeur, p1);
+                writeNumeric(act, ricaviSheet, rowIdx, colPeur, p1);
+            } else {
+                // modalità elastica: si muovono entrambe le leve
+                eps = getOrLoadElasticities().get(req.article);
+                double[] qp = ElasticityService.applyLever(mode, b.q0, b.p0, percent, eps);
+                q1 = qp[0];
+                p1 = qp[1];
+                writeNumeric(act, ricaviSheet, rowIdx, colQty, q1);
+                writeNumeric(act, ricaviSheet, rowIdx, colPeur, p1);
             }
 
-            eval.evaluateAll();
+            evaluateAll(act, eval, formulaCells);
             double pos1Excel = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colPos);
 
             double fatt1 = q1 * p1;
@@ -518,15 +939,15 @@ public class MainController {
             double pos1Calc = fatt1 - cogs1;
 
             // aggiorna celle nella working copy (fatt/cogs) se presenti + cache formula + recalc
-            if (colFatt != null) writeNumericIfNotFormula(ricaviSheet, rowIdx, colFatt, fatt1);
-            if (colCogs != null) writeNumericIfNotFormula(ricaviSheet, rowIdx, colCogs, cogs1);
+            if (colFatt != null) writeNumericIfNotFormula(act, ricaviSheet, rowIdx, colFatt, fatt1);
+            if (colCogs != null) writeNumericIfNotFormula(act, ricaviSheet, rowIdx, colCogs, cogs1);
 
-            evaluateFormulaCellIfPresent(ricaviSheet, eval, rowIdx, colFatt);
-            evaluateFormulaCellIfPresent(ricaviSheet, eval, rowIdx, colCogs);
-            evaluateFormulaCellIfPresent(ricaviSheet, eval, rowIdx, colPos);
+            evaluateFormulaCellIfPresent(act, ricaviSheet, eval, rowIdx, colFatt);
+            evaluateFormulaCellIfPresent(act, ricaviSheet, eval, rowIdx, colCogs);
+            evaluateFormulaCellIfPresent(act, ricaviSheet, eval, rowIdx, colPos);
 
             forceExcelRecalcOnOpen(wb);
-            eval.evaluateAll();
+            evaluateAll(act, eval, formulaCells);
 
             // Step2 compensazione (opzionale): POS costante
             Double compValue = null;
@@ -540,69 +961,59 @@ public class MainController {
 
             if (doCompensate) {
 
-                if (mode == SimulationMode.QUANTITY) {
-                    compValue = b.cmp0 + (b.pos0Calc / q1);
+                if (mode.isQuantityDriven()) {
+                    compValue = SimulationKernel.compensatePrice(b.cmp0, b.pos0Calc, q1);
                     compensatedVarLabel = "P medio (€/kg)";
-                    ricaviService.writeNumeric(ricaviSheet, rowIdx, colPeur, compValue);
+                    writeNumeric(act, ricaviSheet, rowIdx, colPeur, compValue);
                     qStar = q1;
                     pStar = compValue;
                 } else {
-                    double denom = (p1 - b.cmp0);
-                    if (Math.abs(denom) < 1e-12) throw new IllegalStateException("Compensazione impossibile: P1 - CMP0 = 0.");
-                    compValue = b.pos0Calc / denom;
+                    compValue = SimulationKernel.compensateQuantity(b.cmp0, b.pos0Calc, p1);
                     if (compValue <= 0) throw new IllegalStateException("Compensazione impossibile: Q* <= 0 (" + compValue + ").");
                     compensatedVarLabel = "Quantità (kg)";
-                    ricaviService.writeNumeric(ricaviSheet, rowIdx, colQty, compValue);
+                    writeNumeric(act, ricaviSheet, rowIdx, colQty, compValue);
                     qStar = compValue;
                     pStar = p1;
                 }
 
-                eval.evaluateAll();
+                evaluateAll(act, eval, formulaCells);
                 pos2Excel = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colPos);
 
                 fattStar = qStar * pStar;
                 cogsStar = qStar * b.cmp0;
                 posStarCalc = fattStar - cogsStar;
 
-                if (colFatt != null) writeNumericIfNotFormula(ricaviSheet, rowIdx, colFatt, fattStar);
-                if (colCogs != null) writeNumericIfNotFormula(ricaviSheet, rowIdx, colCogs, cogsStar);
+                if (colFatt != null) writeNumericIfNotFormula(act, ricaviSheet, rowIdx, colFatt, fattStar);
+                if (colCogs != null) writeNumericIfNotFormula(act, ricaviSheet, rowIdx, colCogs, cogsStar);
 
-                evaluateFormulaCellIfPresent(ricaviSheet, eval, rowIdx, colFatt);
-                evaluateFormulaCellIfPresent(ricaviSheet, eval, rowIdx, colCogs);
-                evaluateFormulaCellIfPresent(ricaviSheet, eval, rowIdx, colPos);
+                evaluateFormulaCellIfPresent(act, ricaviSheet, eval, rowIdx, colFatt);
+                evaluateFormulaCellIfPresent(act, ricaviSheet, eval, rowIdx, colCogs);
+                evaluateFormulaCellIfPresent(act, ricaviSheet, eval, rowIdx, colPos);
 
                 forceExcelRecalcOnOpen(wb);
-                eval.evaluateAll();
+                evaluateAll(act, eval, formulaCells);
             }
 
             // ===== Dettagli sezione articolo =====
-            html.append("<div style='font-size:13px;'><b>")
-                    .append(art).append("</b> <span style='color:#666;'>[").append(cat).append("]</span></div>");
-            html.append("<div><b>Leva:</b> ").append(mode == SimulationMode.QUANTITY ? "Quantità" : "Prezzo")
-                    .append(" &nbsp; <b>%:</b> ").append(String.format(java.util.Locale.US, "%.2f", percent))
-                    .append("% &nbsp; <b>Compensa:</b> ")
-                    .append(doCompensate ? "<span style='color:#1b5e20;'><b>SI</b></span>" : "<span style='color:#b71c1c;'><b>NO</b></span>")
-                    .append("</div>");
-
-            html.append("<table style='border-collapse:collapse;width:100%;margin-top:6px;'>");
-            html.append(rowHtml("Q0", String.format(java.util.Locale.US, "%,.0f kg", b.q0)));
-            html.append(rowHtml("P0", String.format(java.util.Locale.US, "%,.3f €/kg", b.p0)));
-            html.append(rowHtml("CMP0", String.format(java.util.Locale.US, "%,.3f €/kg", b.cmp0)));
-            html.append(rowHtml("POS0 (calc)", String.format(java.util.Locale.US, "%,.0f", b.pos0Calc)));
-            html.append(rowHtml("Q1", String.format(java.util.Locale.US, "%,.0f kg", q1)));
-            html.append(rowHtml("P1", String.format(java.util.Locale.US, "%,.3f €/kg", p1)));
-            html.append(rowHtml("POS1 (calc)", String.format(java.util.Locale.US, "%,.0f", pos1Calc)));
+            DetailSection sec = leverSection(art, cat, mode, percent, doCompensate)
+                    .number("Q0", b.q0, DetailSection.Fmt.INT, "kg")
+                    .number("P0", b.p0, DetailSection.Fmt.DEC3, "€/kg")
+                    .number("CMP0", b.cmp0, DetailSection.Fmt.DEC3, "€/kg")
+                    .number("POS0 (calc)", b.pos0Calc, DetailSection.Fmt.INT);
+            if (mode.isElastic()) sec.number("Elasticità ε", eps, DetailSection.Fmt.DEC3);
+            sec.number("Q1", q1, DetailSection.Fmt.INT, "kg")
+                    .number("P1", p1, DetailSection.Fmt.DEC3, "€/kg")
+                    .number("POS1 (calc)", pos1Calc, DetailSection.Fmt.INT);
             if (doCompensate) {
-                html.append(rowHtml("Variabile compensata", compensatedVarLabel));
-                html.append(rowHtml("Valore compensazione", (mode == SimulationMode.QUANTITY)
-                        ? String.format(java.util.Locale.US, "%,.3f €/kg", compValue)
-                        : String.format(java.util.Locale.US, "%,.0f kg", compValue)));
-                html.append(rowHtml("POS* (calc)", String.format(java.util.Locale.US, "%,.0f", posStarCalc)));
+                sec.text("Variabile compensata", compensatedVarLabel);
+                if (mode.isQuantityDriven()) sec.number("Valore compensazione", compValue, DetailSection.Fmt.DEC3, "€/kg");
+                else sec.number("Valore compensazione", compValue, DetailSection.Fmt.INT, "kg");
+                sec.number("POS* (calc)", posStarCalc, DetailSection.Fmt.INT);
             }
-            html.append("</table>");
-            html.append("<hr style='border:none;border-top:1px solid #eee;margin:10px 0;' />");
+            view.getControlsPanel().appendDetails(sec);
 
             // ===== Grafici per articolo (tab) =====
+            // valori preparati su dataset "di appoggio" (senza listener), poi copiati in un solo batch
             DefaultCategoryDataset posDS = new DefaultCategoryDataset();
             DefaultCategoryDataset compDS = new DefaultCategoryDataset();
 
@@ -615,59 +1026,77 @@ public class MainController {
                 posDS.addValue(posStarCalc, "POS (calc)", "Dopo compensazione");
             }
 
-            if (mode == SimulationMode.QUANTITY) {
-                compDS.addValue(b.q0, "Quantità (kg)", "Originale");
-                compDS.addValue(q1, "Quantità (kg)", "Dopo variazione");
-                compDS.addValue(b.p0, "P medio (€/kg)", "Originale");
-                compDS.addValue(b.p0, "P medio (€/kg)", "Dopo variazione");
-                if (doCompensate) {
-                    compDS.addValue(q1, "Quantità (kg)", "Dopo compensazione");
-                    compDS.addValue(compValue, "P medio (€/kg)", "Dopo compensazione");
-                }
-            } else {
-                compDS.addValue(b.p0, "P medio (€/kg)", "Originale");
-                compDS.addValue(p1, "P medio (€/kg)", "Dopo variazione");
-                compDS.addValue(b.q0, "Quantità (kg)", "Originale");
-                compDS.addValue(b.q0, "Quantità (kg)", "Dopo variazione");
-                if (doCompensate) {
-                    compDS.addValue(p1, "P medio (€/kg)", "Dopo compensazione");
-                    compDS.addValue(compValue, "Quantità (kg)", "Dopo compensazione");
-                }
+            fillCompDataset(compDS, mode, doCompensate, b.q0, b.p0, q1, p1, doCompensate ? compValue : Double.NaN);
+
+            ArticleCharts ac = updateArticleCharts(key, art, posDS, compDS, doCompensate);
+            // export su file dai dataset di appoggio (non più modificati): il pool non tocca quelli dei grafici
+            final String posTitle = "POS – " + art;
+            final String compTitle = ac.compTitle;
+            lastChartJobs.add(new ChartExportService.Job("POS_" + cat + "_" + art,
+                    () -> ChartStyles.articleChart(posTitle, "POS", posDS, true)));
+            lastChartJobs.add(new ChartExportService.Job("VAR_" + cat + "_" + art,
+                    () -> ChartStyles.articleChart(compTitle, "Valori (Q e P)", compDS, false)));
+
+            dashboardValues.put(key, new double[]{b.pos0Calc, pos1Calc, posStarCalc});
+            fillRecord(record, percent, b.q0, b.p0, b.cmp0, b.pos0Calc, q1, p1, pos1Calc,
+                    (compValue == null) ? Double.NaN : compValue, qStar, pStar, posStarCalc);
+            store.append(scenario, req.article, mode, record);
+            if (log.isTraceEnabled(Tracing.ROW)) {
+                log.trace(Tracing.ROW, "{} riga {} {} {}%: Q1={} P1={} POS1 excel={} calc={} POS*={}",
+                        key, Unbox.box(rowIdx), mode, Unbox.box(percent), Unbox.box(q1), Unbox.box(p1),
+                        Unbox.box(pos1Excel), Unbox.box(pos1Calc), Unbox.box(posStarCalc));
+            }
+            act.mark("valutazione articolo");
+
+            step.end();
+            if (step.shouldCommit()) {
+                step.action = "Simula";
+                step.article = key;
+                step.mode = mode.name();
+                step.percent = percent;
+                step.compensate = doCompensate;
+                step.evaluateCount = (int) (act.getCount(C_EVALUATE_ALL) - evalBefore);
+                step.commit();
             }
-
-            JFreeChart posChart = ChartFactory.createBarChart(
-                    "POS – " + art,
-                    "Scenario",
-                    "POS",
-                    posDS
-            );
-
-            String compTitle = doCompensate ? ("Compensazione – " + art) : ("Variazione – " + art);
-            JFreeChart compChart = ChartFactory.createBarChart(
-                    compTitle,
-                    "Scenario",
-                    "Valori (Q e P)",
-                    compDS
-            );
-
-            configureCategoryChart(posChart, true);
-            applySeriesLabelFormatting(posChart);
-
-            configureCategoryChart(compChart, false);
-            applySeriesLabelFormatting(compChart);
-
-
-            // tabKey stabile: cat||art
-            view.getChartsPanel().addOrReplaceArticleCharts(key, art, posChart, compChart);
         }
 
-        html.append("</body></html>");
-        view.getControlsPanel().setDetails(html.toString());
+        view.getChartsPanel().updateDashboard(dashboardValues, requests.size() >= DASHBOARD_AUTO_SELECT);
+
+        // sweep elastico (forma chiusa sui valori base, solo articoli in modalità elastica)
+        Map<SimulationMode, RicaviSnapshot> elasticGroups = new EnumMap<>(SimulationMode.class);
+        for (SimulationMode m : new SimulationMode[]{SimulationMode.ELASTIC_PRICE, SimulationMode.ELASTIC_QUANTITY}) {
+            List<ArticleRow> arts = new ArrayList<>();
+            List<Base> bases = new ArrayList<>();
+            for (SimulationControlsPanel.SimRequest req : requests) {
+                if (req.mode != m) continue;
+                arts.add(req.article);
+                bases.add(baseByKey.get(ElasticityTable.articleId(req.article)));
+            }
+            if (arts.isEmpty()) continue;
+
+            int n = arts.size();
+            double[] q0 = new double[n], p0 = new double[n], cmp0 = new double[n], pos0 = new double[n];
+            for (int i = 0; i < n; i++) {
+                Base b = bases.get(i);
+                q0[i] = b.q0;
+                p0[i] = b.p0;
+                cmp0[i] = b.cmp0;
+                pos0[i] = b.pos0Excel;
+            }
+            elasticGroups.put(m, new RicaviSnapshot(arts, q0, p0, cmp0, pos0, Double.NaN));
+        }
+        if (!elasticGroups.isEmpty()) showElasticSweep(elasticGroups);
+        act.mark("grafici e sweep");
 
         // salva workbook finale batch
         forceExcelRecalcOnOpen(wb);
-        eval.evaluateAll();
+        evaluateAll(act, eval, formulaCells);
+        act.mark("ricalcolo finale");
         excelRepo.safeSaveWorkbook(wb);
+        act.count("bytes salvati", model.getWorkingExcelCopy().length());
+        act.mark("salvataggio");
+        setCachedSnapshot(null);
+        cachedPeriods = null;
 
     } catch (Exception ex) {
         log.error("Errore simulazione multi", ex);
@@ -676,232 +1105,807 @@ public class MainController {
     }
 }
 
+    /** Serie Q/P del grafico VAR (ordine delle serie: prima la leva mossa). */
+    private static void fillCompDataset(DefaultCategoryDataset ds, SimulationMode mode, boolean compensate,
+                                        double q0, double p0, double q1, double p1, double compValue) {
+        if (mode.isQuantityDriven()) {
+            ds.addValue(q0, "Quantità (kg)", "Originale");
+            ds.addValue(q1, "Quantità (kg)", "Dopo variazione");
+            ds.addValue(p0, "P medio (€/kg)", "Originale");
+            ds.addValue(p1, "P medio (€/kg)", "Dopo variazione");
+            if (compensate) {
+                ds.addValue(q1, "Quantità (kg)", "Dopo compensazione");
+                ds.addValue(compValue, "P medio (€/kg)", "Dopo compensazione");
+            }
+        } else {
+            ds.addValue(p0, "P medio (€/kg)", "Originale");
+            ds.addValue(p1, "P medio (€/kg)", "Dopo variazione");
+            ds.addValue(q0, "Quantità (kg)", "Originale");
+            ds.addValue(q1, "Quantità (kg)", "Dopo variazione");
+            if (compensate) {
+                ds.addValue(p1, "P medio (€/kg)", "Dopo compensazione");
+                ds.addValue(compValue, "Quantità (kg)", "Dopo compensazione");
+            }
+        }
+    }
+
+    /**
+     * Porta i valori nei grafici dell'articolo: la prima volta crea le tab (grafici costruiti solo
+     * all'apertura), poi aggiorna sul posto i dataset (un evento per dataset) e il titolo VAR.
+     */
+    private ArticleCharts updateArticleCharts(String key, String art, DefaultCategoryDataset posDS,
+                                              DefaultCategoryDataset compDS, boolean compensate) {
+        ArticleCharts ac = articleCharts.get(key);
+        boolean newCharts = (ac == null);
+        if (newCharts) {
+            ac = new ArticleCharts(art);
+            articleCharts.put(key, ac);
+        }
+        ac.setCompTitle(compensate ? ("Compensazione – " + art) : ("Variazione – " + art));
+
+        ChartDatasets.replaceValues(ac.pos, posDS);
+        ChartDatasets.replaceValues(ac.comp, compDS);
+
+        // tabKey stabile: cat||art
+        if (newCharts) {
+            view.getChartsPanel().setArticleCharts(key, ac::posChart, ac::compChart);
+        } else {
+            view.getChartsPanel().setActiveArticleTab(key);
+        }
+        return ac;
+    }
+
     // ===========================
-    // Chart config
+    // Anteprima live: modifica -> debounce -> ricalcolo in memoria del solo articolo modificato
     // ===========================
-   private void configureCategoryChart(JFreeChart chart, boolean integerValues) {
-    CategoryPlot plot = chart.getCategoryPlot();
-
-    // --- estetica base
-    chart.setBackgroundPaint(Color.WHITE);
-    plot.setBackgroundPaint(new Color(250, 250, 250));
-    plot.setOutlineVisible(false);
-    plot.setRangeGridlinePaint(new Color(220, 220, 220));
-    plot.setDomainGridlinePaint(new Color(220, 220, 220));
-    plot.setRangeGridlinesVisible(true);
-    plot.setDomainGridlinesVisible(true);
-
-    // --- font
-    Font axisFont = new Font("SansSerif", Font.PLAIN, 12);
-    Font tickFont = new Font("SansSerif", Font.PLAIN, 11);
-
-    CategoryAxis domain = plot.getDomainAxis();
-    domain.setLabelFont(axisFont);
-    domain.setTickLabelFont(tickFont);
-
-    int cols = (plot.getDataset() != null) ? plot.getDataset().getColumnCount() : 0;
-    if (cols > 4) {
-        domain.setCategoryLabelPositions(
-                CategoryLabelPositions.createUpRotationLabelPositions(Math.PI / 8.0)
-        );
-    } else {
-        domain.setCategoryLabelPositions(CategoryLabelPositions.STANDARD);
+
+    private void onToggleLive() {
+        if (view.getControlsPanel().isLiveEnabled()) {
+            if (!hasBaseData()) {
+                JOptionPane.showMessageDialog(view, "Carica prima un file Excel o un CSV.", "Attenzione", JOptionPane.WARNING_MESSAGE);
+                view.getControlsPanel().getChkLive().setSelected(false);
+                return;
+            }
+            log.info("Anteprima live attivata");
+            flushLive(); // precarica lo snapshot
+        } else {
+            log.info("Anteprima live disattivata");
+            livePending.clear();
+            liveTimer.stop();
+        }
     }
 
-    // ==========================================================
-    // ✅ FIX FORMATO: niente ".000" -> usa #,##0.###
-    // ==========================================================
-    NumberFormat fmt;
-    if (integerValues) {
-        DecimalFormat df = new DecimalFormat("#,##0");
-        df.setGroupingUsed(true);
-        fmt = df;
-    } else {
-        // max 3 decimali, min 0 => niente zeri finali
-        DecimalFormat df = new DecimalFormat("#,##0.###");
-        df.setGroupingUsed(true);
-        df.setMinimumFractionDigits(0);
-        df.setMaximumFractionDigits(3);
-        fmt = df;
+    private void onLiveEdit(SimulationControlsPanel.SimRequest req) {
+        if (!view.getControlsPanel().isLiveEnabled() || !hasBaseData()) return;
+        livePending.put(ElasticityTable.articleId(req.article), req);
+        liveTimer.restart();
     }
 
-    // --- asse Y
-    if (plot.getRangeAxis() instanceof NumberAxis) {
-        NumberAxis range = (NumberAxis) plot.getRangeAxis();
-        range.setLabelFont(axisFont);
-        range.setTickLabelFont(tickFont);
+    private void clearLive() {
+        livePending.clear();
+        liveDetails.clear();
+        liveTimer.stop();
+    }
 
-        range.setNumberFormatOverride(fmt);
-        range.setAutoRangeIncludesZero(true);
+    /** Ricalcola le modifiche in coda (EDT). Se lo snapshot non è in memoria lo legge prima in background. */
+    private void flushLive() {
+        if (cachedSnapshot == null) {
+            if (liveLoading || ricaviService == null) return;
+            liveLoading = true;
+            final SnapshotLoad load = new SnapshotLoad();
+            new SwingWorker<RicaviSnapshot, Void>() {
+                @Override
+                protected RicaviSnapshot doInBackground() throws Exception {
+                    return load.get();
+                }
 
-        if (integerValues) {
-            range.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
+                @Override
+                protected void done() {
+                    liveLoading = false;
+                    try {
+                        get();
+                        load.install(); // se la working copy è cambiata si rilegge al giro successivo
+                        flushLive();
+                    } catch (Exception ex) {
+                        Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                        log.error("Anteprima live: lettura valori base fallita", cause);
+                        view.getControlsPanel().getChkLive().setSelected(false);
+                        clearLive();
+                        JOptionPane.showMessageDialog(view, "Anteprima live non disponibile: " + cause.getMessage(),
+                                "Errore", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }.execute();
+            return;
+        }
+        if (livePending.isEmpty()) return;
+
+        long t0 = System.nanoTime();
+        RicaviSnapshot snap = cachedSnapshot;
+        Map<String, double[]> dashboardValues = new LinkedHashMap<>();
+        for (Map.Entry<String, SimulationControlsPanel.SimRequest> e : livePending.entrySet()) {
+            String key = e.getKey();
+            SimulationControlsPanel.SimRequest req = e.getValue();
+            try {
+                double[] pos = previewArticle(snap, key, req);
+                if (pos != null) dashboardValues.put(key, pos);
+            } catch (Exception ex) {
+                // valori non simulabili (es. compensazione impossibile): lo segnalo nei dettagli, niente popup
+                log.debug("Anteprima live {}: {}", key, ex.getMessage());
+                liveDetails.put(key, new DetailSection(req.article.getArticolo(), req.article.getCat())
+                        .line("<span style='color:#b71c1c;'>" + ex.getMessage() + "</span>"));
+            }
         }
+        int n = livePending.size();
+        livePending.clear();
 
-        range.setUpperMargin(0.15);
-        range.setLowerMargin(0.10);
+        if (!dashboardValues.isEmpty()) view.getChartsPanel().updateDashboard(dashboardValues, false);
+        showLiveDetails();
+        log.debug("Anteprima live: {} articoli in {} µs", Unbox.box(n), Unbox.box((System.nanoTime() - t0) / 1_000L));
     }
 
-    // --- renderer: Bar chart
-    if (plot.getRenderer() instanceof BarRenderer) {
-        BarRenderer r = (BarRenderer) plot.getRenderer();
-        r.setShadowVisible(false);
-        r.setBarPainter(new StandardBarPainter());
+    /** Anteprima di un articolo sul kernel in memoria; restituisce {POS0, POS1, POS*} per la dashboard. */
+    private double[] previewArticle(RicaviSnapshot snap, String key, SimulationControlsPanel.SimRequest req) throws Exception {
+        ArticleRow a = req.article;
+        int i = snap.indexOf(a.getCat(), a.getArticolo());
+        if (i < 0) throw new IllegalStateException("Articolo non presente nei valori base.");
+
+        double q0 = snap.getQ0()[i], p0 = snap.getP0()[i], cmp0 = snap.getCmp0()[i];
+        double eps = req.mode.isElastic() ? getOrLoadElasticities().get(a) : Double.NaN;
+        ElasticityService.Outcome o = elasticityService.evaluate(q0, p0, cmp0, req.mode, req.percent, eps, req.compensate);
+        double pos0 = SimulationKernel.pos(q0, p0, cmp0);
+
+        String cat = (a.getCat() == null) ? "" : a.getCat().trim().toUpperCase();
+        String art = (a.getArticolo() == null) ? "" : a.getArticolo().trim().toUpperCase();
+
+        DefaultCategoryDataset posDS = new DefaultCategoryDataset();
+        DefaultCategoryDataset compDS = new DefaultCategoryDataset();
+        posDS.addValue(pos0, "POS (calc)", "Originale");
+        posDS.addValue(o.pos1, "POS (calc)", "Dopo variazione");
+        if (req.compensate) posDS.addValue(o.posStar, "POS (calc)", "Dopo compensazione");
+        fillCompDataset(compDS, req.mode, req.compensate, q0, p0, o.q1, o.p1, o.compValue);
+        updateArticleCharts(key, art, posDS, compDS, req.compensate);
+
+        DetailSection sec = leverSection(art, cat, req.mode, req.percent, req.compensate)
+                .number("POS0 (calc)", pos0, DetailSection.Fmt.INT)
+                .number("Q1", o.q1, DetailSection.Fmt.INT, "kg")
+                .number("P1", o.p1, DetailSection.Fmt.DEC3, "€/kg")
+                .number("POS1 (calc)", o.pos1, DetailSection.Fmt.INT);
+        if (req.compensate) {
+            if (req.mode.isQuantityDriven()) sec.number("Valore compensazione", o.compValue, DetailSection.Fmt.DEC3, "€/kg");
+            else sec.number("Valore compensazione", o.compValue, DetailSection.Fmt.INT, "kg");
+            sec.number("POS* (calc)", o.posStar, DetailSection.Fmt.INT);
+        }
+        liveDetails.put(key, sec);
 
-        r.setDefaultItemLabelsVisible(true);
-        r.setDefaultItemLabelGenerator(new StandardCategoryItemLabelGenerator("{2}", fmt));
-        r.setDefaultItemLabelFont(new Font("SansSerif", Font.PLAIN, 11));
+        return new double[]{pos0, o.pos1, req.compensate ? o.posStar : Double.NaN};
     }
 
-    // --- renderer: Line chart
-    if (plot.getRenderer() instanceof LineAndShapeRenderer) {
-        LineAndShapeRenderer r = (LineAndShapeRenderer) plot.getRenderer();
-
-        r.setDefaultShapesVisible(true);
-        r.setDefaultItemLabelsVisible(true);
-        r.setDefaultItemLabelGenerator(new StandardCategoryItemLabelGenerator("{2}", fmt));
-        r.setDefaultStroke(new BasicStroke(2.0f));
+    private void showLiveDetails() {
+        view.getControlsPanel().beginDetails("Anteprima live",
+                "<span style='color:#b26a00;'>Valori calcolati in memoria, non salvati: premi <b>Simula</b> per scriverli nella copia di lavoro.</span>");
+        for (DetailSection sec : liveDetails.values()) view.getControlsPanel().appendDetails(sec);
     }
-}
 
-   private void applySeriesLabelFormatting(JFreeChart chart) {
-	    if (chart == null) return;
-	    if (chart.getPlot() == null) return;
-
-	    if (chart.getPlot() instanceof org.jfree.chart.plot.CategoryPlot) {
-	        org.jfree.chart.plot.CategoryPlot plot = (org.jfree.chart.plot.CategoryPlot) chart.getPlot();
-	        if (plot.getRenderer() == null) return;
-
-	        plot.getRenderer().setDefaultItemLabelsVisible(true);
-
-	        plot.getRenderer().setDefaultItemLabelGenerator(new org.jfree.chart.labels.CategoryItemLabelGenerator() {
-	            @Override
-	            public String generateLabel(org.jfree.data.category.CategoryDataset dataset, int row, int column) {
-	                if (dataset == null) return "";
-	                Comparable<?> rowKey = dataset.getRowKey(row);
-	                Number v = dataset.getValue(row, column);
-	                if (v == null) return "";
-
-	                String series = (rowKey == null) ? "" : rowKey.toString().toLowerCase();
-
-	                // Quantità -> intero (come nei dettagli)
-	                if (series.contains("quant") || series.contains("(kg)")) {
-	                    return DF_INT.format(v.doubleValue());
-	                }
-
-	                // Prezzi / CMP -> 3 decimali fissi (come nei dettagli: 1,640)
-	                if (series.contains("p medio") || series.contains("€/kg") || series.contains("cmp")) {
-	                    return DF_3.format(v.doubleValue());
-	                }
-
-	                // Tutto il resto (POS, fatturato, cogs, ecc.) -> intero
-	                return DF_INT.format(v.doubleValue());
-	            }
-
-	            @Override
-	            public String generateRowLabel(org.jfree.data.category.CategoryDataset dataset, int row) {
-	                return dataset.getRowKey(row).toString();
-	            }
-
-	            @Override
-	            public String generateColumnLabel(org.jfree.data.category.CategoryDataset dataset, int column) {
-	                return dataset.getColumnKey(column).toString();
-	            }
-	        });
-	    }
-	}
+    /** Sezione dettagli di un articolo con la riga Leva / % / Compensa. */
+    private static DetailSection leverSection(String art, String cat, SimulationMode mode, double percent, boolean compensate) {
+        return new DetailSection(art, cat).line("<b>Leva:</b> " + leverLabel(mode)
+                + " &nbsp; <b>%:</b> " + DetailsHtml.format(percent, DetailSection.Fmt.DEC2)
+                + "% &nbsp; <b>Compensa:</b> "
+                + (compensate ? "<span style='color:#1b5e20;'><b>SI</b></span>" : "<span style='color:#b71c1c;'><b>NO</b></span>"));
+    }
 
     // ===========================
-    // CE Budget 2022 reading: SOLO colonna J
+    // Export grafici su file (PNG/SVG)
     // ===========================
-    private Map<String, Double> readCeBudgetSnapshot(Workbook wb, FormulaEvaluator eval) {
-        Sheet ce = findCeBudgetSheet(wb);
-        if (ce == null) {
-            throw new IllegalStateException("Foglio CE Budget 2022 non trovato (nome contenente 'CE' e 'BUDGET').");
+
+    private void onExportCharts() {
+        File working = model.getWorkingExcelCopy();
+        if (working == null || lastChartJobs.isEmpty()) {
+            JOptionPane.showMessageDialog(view, "Esegui prima una simulazione.", "Attenzione", JOptionPane.WARNING_MESSAGE);
+            return;
         }
 
-        eval.evaluateAll();
+        Object choice = JOptionPane.showInputDialog(view, "Formato:", "Esporta grafici",
+                JOptionPane.QUESTION_MESSAGE, null, ChartExportService.Format.values(), ChartExportService.Format.PNG);
+        if (choice == null) return;
+        ChartExportService.Format format = (ChartExportService.Format) choice;
+
+        JFileChooser fc = new JFileChooser(working.getParentFile());
+        fc.setDialogTitle("Cartella di destinazione");
+        fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (fc.showSaveDialog(view) != JFileChooser.APPROVE_OPTION) return;
+        File dir = fc.getSelectedFile();
+
+        final List<ChartExportService.Job> jobs = new ArrayList<>(lastChartJobs);
+        view.getControlsPanel().getBtnExportCharts().setEnabled(false);
+
+        new SwingWorker<ChartExportService.Report, Void>() {
+            @Override
+            protected ChartExportService.Report doInBackground() throws Exception {
+                // CE Budget aggiornato: letto dalla working copy nel thread di export
+                try (MetricsService.Action act = metrics.begin("Esporta grafici")) {
+                    DefaultCategoryDataset ceDS = readCeBudgetDataset(working, act);
+                    jobs.add(new ChartExportService.Job("CE_Budget",
+                            () -> ChartStyles.ceBudgetChart("CE Budget 2022 – Aggiornato (Working copy)", ceDS)));
+                    ChartExportService.Report r = chartExportService.export(jobs, dir, format);
+                    act.count("file esportati", r.getFiles().size());
+                    act.mark("rendering");
+                    return r;
+                }
+            }
 
-        Map<String, Double> out = new HashMap<>();
-        out.put(K_RICAVI_PF,    readNumericCell(ce, eval, CE_ROW_RICAVI_PF,   CE_COL_J));
-        out.put(K_RICAVI_MP,    readNumericCell(ce, eval, CE_ROW_RICAVI_MP,   CE_COL_J));
-        out.put(K_RICAVI_CLAV,  readNumericCell(ce, eval, CE_ROW_RICAVI_CLAV, CE_COL_J));
-        out.put(K_ALTRI_RICAVI, readNumericCell(ce, eval, CE_ROW_ALTRI_RICAVI,CE_COL_J));
-        out.put(K_VAR_PF,       readNumericCell(ce, eval, CE_ROW_VAR_PF,      CE_COL_J));
-        out.put(K_ACQUISTO_MP,  readNumericCell(ce, eval, CE_ROW_ACQUISTO_MP, CE_COL_J));
-        out.put(K_VAR_SCORTE,   readNumericCell(ce, eval, CE_ROW_VAR_SCORTE,  CE_COL_J));
+            @Override
+            protected void done() {
+                view.getControlsPanel().getBtnExportCharts().setEnabled(true);
+                try {
+                    ChartExportService.Report r = get();
+                    String msg = "Esportati " + r.getFiles().size() + " grafici in " + r.getElapsedMs() + " ms.\n"
+                            + dir.getAbsolutePath();
+                    if (!r.getErrors().isEmpty()) msg += "\n\nErrori: " + r.getErrors().size() + " (vedi log).";
+                    JOptionPane.showMessageDialog(view, msg, "Export grafici",
+                            r.getErrors().isEmpty() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+                } catch (Exception ex) {
+                    Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                    log.error("Errore export grafici", cause);
+                    JOptionPane.showMessageDialog(view, "Errore export: " + cause.getMessage(), "Errore",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
 
-        return out;
+    /** Da quanti articoli in su la simulazione apre direttamente la dashboard. */
+    private static final int DASHBOARD_AUTO_SELECT = 10;
+
+    // ===========================
+    // Monte Carlo (in memoria, nessuna scrittura sul workbook)
+    // ===========================
+
+    /** Snapshot dei valori base (EDT): letto una volta da Excel e riusato finché la working copy non cambia. */
+    private RicaviSnapshot getOrLoadSnapshot() throws Exception {
+        if (cachedSnapshot == null) {
+            setCachedSnapshot(ricaviService.loadSnapshot(cachedArticles));
+        }
+        return cachedSnapshot;
     }
 
-    private double readNumericCell(Sheet sh, FormulaEvaluator eval, int rowIdx, int colIdx) {
-        Row row = sh.getRow(rowIdx);
-        if (row == null) return 0.0;
+    private void setCachedSnapshot(RicaviSnapshot snap) {
+        cachedSnapshot = snap;
+        snapshotGeneration++;
+    }
 
-        Cell c = row.getCell(colIdx, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
-        if (c == null) return 0.0;
+    /**
+     * Snapshot per un SwingWorker: creato sull'EDT (cattura cache, articoli e generazione),
+     * {@link #get()} in doInBackground, {@link #install()} in done(). Lo snapshot entra in cache
+     * solo se nel frattempo la working copy non è stata riscritta (es. Simula durante il Monte Carlo).
+     */
+    private final class SnapshotLoad {
+        private final int generation = snapshotGeneration;
+        private final RicaviSnapshot cached = cachedSnapshot;
+        private final RicaviExcelService service = ricaviService;
+        private final List<ArticleRow> articles = new ArrayList<>(cachedArticles);
+        private volatile RicaviSnapshot snap;
+
+        RicaviSnapshot get() throws Exception {
+            if (snap == null) snap = (cached != null) ? cached : service.loadSnapshot(articles);
+            return snap;
+        }
 
-        if (c.getCellType() == CellType.NUMERIC) return c.getNumericCellValue();
+        /** EDT: mette in cache lo snapshot letto, se la working copy non è cambiata nel frattempo. */
+        void install() {
+            if (snap != null && cachedSnapshot == null && generation == snapshotGeneration) cachedSnapshot = snap;
+        }
+    }
 
-        if (c.getCellType() == CellType.FORMULA) {
-            CellValue cv = eval.evaluate(c);
-            if (cv != null && cv.getCellType() == CellType.NUMERIC) return cv.getNumberValue();
-            return 0.0;
+    private void onMonteCarlo() {
+        if (!hasBaseData()) {
+            JOptionPane.showMessageDialog(view, "Carica prima un file Excel o un CSV.", "Attenzione", JOptionPane.WARNING_MESSAGE);
+            return;
         }
 
-        if (c.getCellType() == CellType.STRING) {
-            try {
-                return Double.parseDouble(c.getStringCellValue().trim().replace(".", "").replace(",", "."));
-            } catch (Exception ignore) {
-                return 0.0;
+        MonteCarloService.Config cfg = askMonteCarloConfig();
+        if (cfg == null) return;
+
+        log.info("Click: Monte Carlo draws={} seed={}", cfg.draws, cfg.seed);
+        view.getControlsPanel().getBtnMonteCarlo().setEnabled(false);
+
+        final SnapshotLoad load = new SnapshotLoad();
+        new SwingWorker<MonteCarloResult, Void>() {
+            private RicaviSnapshot snap;
+
+            @Override
+            protected MonteCarloResult doInBackground() throws Exception {
+                snap = load.get();
+                return monteCarloService.run(snap, cfg);
+            }
+
+            @Override
+            protected void done() {
+                view.getControlsPanel().getBtnMonteCarlo().setEnabled(true);
+                try {
+                    MonteCarloResult result = get();
+                    load.install();
+                    showMonteCarloResult(snap, result);
+                } catch (Exception ex) {
+                    Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                    log.error("Errore Monte Carlo", cause);
+                    JOptionPane.showMessageDialog(view, "Errore Monte Carlo: " + cause.getMessage(), "Errore",
+                            JOptionPane.ERROR_MESSAGE);
+                }
             }
+        }.execute();
+    }
+
+    private MonteCarloService.Config askMonteCarloConfig() {
+        MonteCarloService.Config cfg = new MonteCarloService.Config();
+
+        JTextField fDraws = new JTextField(String.valueOf(cfg.draws));
+        JTextField fSeed = new JTextField(String.valueOf(cfg.seed));
+        JTextField fSq = new JTextField(String.valueOf(cfg.sigmaQ));
+        JTextField fSp = new JTextField(String.valueOf(cfg.sigmaP));
+        JTextField fSc = new JTextField(String.valueOf(cfg.sigmaCmp));
+        JTextField fQP = new JTextField(String.valueOf(cfg.rhoQP));
+        JTextField fQC = new JTextField(String.valueOf(cfg.rhoQCmp));
+        JTextField fPC = new JTextField(String.valueOf(cfg.rhoPCmp));
+        JTextField fArt = new JTextField(String.valueOf(cfg.rhoArticles));
+
+        JPanel p = new JPanel(new java.awt.GridLayout(0, 2, 6, 4));
+        p.add(new JLabel("Estrazioni")); p.add(fDraws);
+        p.add(new JLabel("Seme")); p.add(fSeed);
+        p.add(new JLabel("σ Quantità (%)")); p.add(fSq);
+        p.add(new JLabel("σ P medio (%)")); p.add(fSp);
+        p.add(new JLabel("σ CMP medio (%)")); p.add(fSc);
+        p.add(new JLabel("ρ Q-P")); p.add(fQP);
+        p.add(new JLabel("ρ Q-CMP")); p.add(fQC);
+        p.add(new JLabel("ρ P-CMP")); p.add(fPC);
+        p.add(new JLabel("ρ tra articoli [0..1]")); p.add(fArt);
+
+        int ok = JOptionPane.showConfirmDialog(view, p, "Simulazione Monte Carlo",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION) return null;
+
+        try {
+            cfg.draws = Integer.parseInt(fDraws.getText().trim().replace(".", "").replace("_", ""));
+            cfg.seed = Long.parseLong(fSeed.getText().trim());
+            cfg.sigmaQ = parseDecimal(fSq.getText());
+            cfg.sigmaP = parseDecimal(fSp.getText());
+            cfg.sigmaCmp = parseDecimal(fSc.getText());
+            cfg.rhoQP = parseDecimal(fQP.getText());
+            cfg.rhoQCmp = parseDecimal(fQC.getText());
+            cfg.rhoPCmp = parseDecimal(fPC.getText());
+            cfg.rhoArticles = parseDecimal(fArt.getText());
+            return cfg;
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(view, "Parametri non validi: " + e.getMessage(), "Input non valido",
+                    JOptionPane.WARNING_MESSAGE);
+            return null;
         }
+    }
 
-        return 0.0;
+    private static double parseDecimal(String raw) {
+        return Double.parseDouble(raw.trim().replace(",", "."));
     }
 
-    private Sheet findCeBudgetSheet(Workbook wb) {
+    private void showMonteCarloResult(RicaviSnapshot snap, MonteCarloResult res) {
+        double[] pos = res.getPosTotSorted();
+        double[] mol = res.getMolSorted();
 
-        String[] candidates = {
-                "CE-Budget-2022",
-                "CE BUDGET 2022",
-                "CE_BUDGET_2022",
-                "CE Budget 2022",
-                "CE BUDGET2022",
-                "CEBudget2022"
-        };
-        for (String n : candidates) {
-            Sheet s = wb.getSheet(n);
-            if (s != null) return s;
+        // ===== Dettagli =====
+        StringBuilder html = new StringBuilder();
+        html.append("<html><body style='font-family:SansSerif;font-size:12px;'>");
+        html.append("<div style='font-size:13px;'><b>Monte Carlo</b></div>");
+        html.append("<div style='color:#666;'>Estrazioni: ").append(FormatService.integer(res.getDraws()))
+                .append(" &nbsp; Seme: ").append(res.getSeed())
+                .append(" &nbsp; Tempo: ").append(res.getElapsedMs()).append(" ms</div>");
+        html.append("<hr style='border:none;border-top:1px solid #ddd;margin:10px 0;' />");
+
+        html.append("<table style='border-collapse:collapse;width:100%;'>");
+        html.append(rowHtml("POS totale base", FormatService.integer(res.getPosTot0())));
+        html.append(rowHtml("POS totale medio", FormatService.integer(MonteCarloResult.mean(pos))));
+        html.append(rowHtml("POS totale dev. std", FormatService.integer(MonteCarloResult.std(pos))));
+        for (double pct : MonteCarloResult.PERCENTILES) {
+            html.append(rowHtml("POS totale P" + FormatService.integer(pct), FormatService.integer(MonteCarloResult.percentile(pos, pct))));
+        }
+        html.append(rowHtml("VaR 95% POS", FormatService.integer(MonteCarloResult.valueAtRisk(pos, res.getPosTot0(), 95))));
+        html.append(rowHtml("VaR 99% POS", FormatService.integer(MonteCarloResult.valueAtRisk(pos, res.getPosTot0(), 99))));
+        html.append(rowHtml("ES 95% POS", FormatService.integer(MonteCarloResult.expectedShortfall(pos, res.getPosTot0(), 95))));
+        if (res.hasMol()) {
+            html.append(rowHtml("MOL base", FormatService.integer(res.getMol0())));
+            html.append(rowHtml("MOL medio", FormatService.integer(MonteCarloResult.mean(mol))));
+            html.append(rowHtml("MOL P5 / P95", FormatService.integer(MonteCarloResult.percentile(mol, 5)) + " / "
+                    + FormatService.integer(MonteCarloResult.percentile(mol, 95))));
+            html.append(rowHtml("VaR 95% MOL", FormatService.integer(MonteCarloResult.valueAtRisk(mol, res.getMol0(), 95))));
+            html.append(rowHtml("ES 95% MOL", FormatService.integer(MonteCarloResult.expectedShortfall(mol, res.getMol0(), 95))));
         }
+        html.append("</table>");
+
+        html.append("<hr style='border:none;border-top:1px solid #eee;margin:10px 0;' />");
+        html.append("<div style='margin-bottom:6px;'><b>POS per articolo</b> <span style='color:#666;'>(media ± dev. std)</span></div>");
+        html.append("<table style='border-collapse:collapse;width:100%;'>");
+        double[] m = res.getArticleMeanPos();
+        double[] sd = res.getArticleStdPos();
+        for (int i = 0; i < snap.size(); i++) {
+            html.append(rowHtml(snap.getArticle(i).getArticolo(), FormatService.integer(m[i]) + " ± " + FormatService.integer(sd[i])));
+        }
+        html.append("</table>");
+        html.append("</body></html>");
+        view.getControlsPanel().setDetails(html.toString());
 
-        DataFormatter fmt = new DataFormatter();
-        for (int i = 0; i < wb.getNumberOfSheets(); i++) {
-            Sheet s = wb.getSheetAt(i);
-            if (sheetLooksLikeCeBudget2022(s, fmt)) return s;
+        // ===== Grafici =====
+        org.jfree.data.statistics.HistogramDataset hist = new org.jfree.data.statistics.HistogramDataset();
+        hist.addSeries("POS totale", pos, 50);
+        JFreeChart histChart = ChartFactory.createHistogram(
+                "Distribuzione POS totale", "POS totale", "Frequenza", hist,
+                PlotOrientation.VERTICAL, true, true, false);
+        histChart.setBackgroundPaint(Color.WHITE);
+        histChart.getXYPlot().setBackgroundPaint(new Color(250, 250, 250));
+        if (histChart.getXYPlot().getRenderer() instanceof org.jfree.chart.renderer.xy.XYBarRenderer) {
+            org.jfree.chart.renderer.xy.XYBarRenderer r =
+                    (org.jfree.chart.renderer.xy.XYBarRenderer) histChart.getXYPlot().getRenderer();
+            r.setShadowVisible(false);
+            r.setBarPainter(new org.jfree.chart.renderer.xy.StandardXYBarPainter());
+        }
+        ((NumberAxis) histChart.getXYPlot().getDomainAxis()).setNumberFormatOverride(new DecimalFormat("#,##0"));
+
+        DefaultCategoryDataset pctDS = new DefaultCategoryDataset();
+        for (double pct : MonteCarloResult.PERCENTILES) {
+            String col = "P" + FormatService.integer(pct);
+            pctDS.addValue(MonteCarloResult.percentile(pos, pct), "POS totale", col);
+            if (res.hasMol()) pctDS.addValue(MonteCarloResult.percentile(mol, pct), "MOL", col);
         }
+        JFreeChart pctChart = ChartFactory.createBarChart("Percentili (VaR)", "Percentile", "Valore", pctDS);
+        ChartStyles.configureCategoryChart(pctChart, true);
 
-        return null;
+        view.getChartsPanel().setNamedChart("Monte Carlo – Percentili", "Percentili POS totale / MOL", pctChart);
+        view.getChartsPanel().setNamedChart("Monte Carlo – Distribuzione", "Distribuzione POS totale", histChart);
     }
 
-    private boolean sheetLooksLikeCeBudget2022(Sheet s, DataFormatter fmt) {
-        int maxRows = Math.min(s.getLastRowNum(), 40);
-        int maxCols = 25;
+    // ===========================
+    // Sensitività / tornado (in memoria)
+    // ===========================
 
-        for (int r = 0; r <= maxRows; r++) {
-            Row row = s.getRow(r);
-            if (row == null) continue;
+    /** Numero massimo di barre nel tornado (le altre restano nella tabella dettagli). */
+    private static final int TORNADO_MAX_BARS = 20;
+
+    private void onSensitivity() {
+        if (!hasBaseData()) {
+            JOptionPane.showMessageDialog(view, "Carica prima un file Excel o un CSV.", "Attenzione", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        String raw = JOptionPane.showInputDialog(view, "Variazione ±x% da applicare a Q, P e CMP:", "10");
+        if (raw == null) return;
+
+        double percent;
+        try {
+            percent = parseDecimal(raw);
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(view, "Percentuale non valida.", "Input non valido", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        try {
+            RicaviSnapshot snap = getOrLoadSnapshot();
+            List<SensitivityEntry> entries = sensitivityService.run(snap, percent);
+            showSensitivityResult(snap, entries, percent);
+        } catch (Exception ex) {
+            log.error("Errore analisi sensitività", ex);
+            JOptionPane.showMessageDialog(view, "Errore sensitività: " + ex.getMessage(), "Errore",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void showSensitivityResult(RicaviSnapshot snap, List<SensitivityEntry> entries, double percent) {
+        String pct = FormatService.dec2(percent) + "%";
+
+        // ===== Dettagli: classifica completa =====
+        String th = "<th style='padding:4px 6px;border-bottom:1px solid #ccc;text-align:right;'>";
+        String td = "<td style='padding:3px 6px;border-top:1px solid #eee;text-align:right;'>";
+
+        StringBuilder html = new StringBuilder();
+        html.append("<html><body style='font-family:SansSerif;font-size:12px;'>");
+        html.append("<div style='font-size:13px;'><b>Sensitività ±").append(pct).append("</b></div>");
+        html.append("<div style='color:#666;'>Articoli: ").append(snap.size())
+                .append(" &nbsp; POS totale base: ").append(FormatService.integer(snap.getPosTot0())).append("</div>");
+        html.append("<hr style='border:none;border-top:1px solid #ddd;margin:10px 0;' />");
 
-            int last = Math.min(row.getLastCellNum(), maxCols);
-            for (int c = 0; c < last; c++) {
-                String txt = fmt.formatCellValue(row.getCell(c)).trim().toUpperCase();
-                if (txt.isEmpty()) continue;
+        html.append("<table style='border-collapse:collapse;width:100%;'><tr>")
+                .append(th).append("#</th>")
+                .append("<th style='padding:4px 6px;border-bottom:1px solid #ccc;text-align:left;'>Articolo</th>")
+                .append(th).append("Leva</th>")
+                .append(th).append("ΔPOS -").append(pct).append("</th>")
+                .append(th).append("ΔPOS +").append(pct).append("</th>")
+                .append(th).append("ΔMOL +").append(pct).append("</th></tr>");
+
+        int rank = 1;
+        for (SensitivityEntry e : entries) {
+            html.append("<tr>")
+                    .append(td).append(rank++).append("</td>")
+                    .append("<td style='padding:3px 6px;border-top:1px solid #eee;'><b>")
+                    .append(e.getArticle().getArticolo()).append("</b> <span style='color:#666;'>[")
+                    .append(e.getArticle().getCat()).append("]</span></td>")
+                    .append(td).append(e.getLever().getLabel()).append("</td>")
+                    .append(td).append(FormatService.integer(e.getDPosDown())).append("</td>")
+                    .append(td).append(FormatService.integer(e.getDPosUp())).append("</td>")
+                    .append(td).append(FormatService.integer(e.getDMolUp())).append("</td>")
+                    .append("</tr>");
+        }
+        html.append("</table></body></html>");
+        view.getControlsPanel().setDetails(html.toString());
+
+        // ===== Tornado: barre impilate (-x a sinistra / +x a destra) =====
+        DefaultCategoryDataset ds = new DefaultCategoryDataset();
+        int bars = Math.min(TORNADO_MAX_BARS, entries.size());
+        for (int i = 0; i < bars; i++) {
+            SensitivityEntry e = entries.get(i);
+            ds.addValue(e.getDPosDown(), "-" + pct, e.getLabel());
+            ds.addValue(e.getDPosUp(), "+" + pct, e.getLabel());
+        }
 
-                String norm = txt.replaceAll("\\s+", " ");
-                if (norm.contains("CE") && norm.contains("BUDGET") && norm.contains("2022")) return true;
+        JFreeChart tornado = ChartFactory.createStackedBarChart(
+                "Tornado ΔPOS totale (±" + pct + ")",
+                "Articolo – Leva",
+                "ΔPOS totale",
+                ds,
+                PlotOrientation.HORIZONTAL,
+                true, true, false
+        );
+        ChartStyles.configureCategoryChart(tornado, true);
+        tornado.getCategoryPlot().getDomainAxis().setCategoryLabelPositions(CategoryLabelPositions.STANDARD);
+        ((NumberAxis) tornado.getCategoryPlot().getRangeAxis()).setAutoRangeIncludesZero(true);
+
+        view.getChartsPanel().setNamedChart("Sensitività", "Tornado (top " + bars + ")", tornado);
+    }
+
+    // ===========================
+    // Elasticità
+    // ===========================
+
+    private static final double SWEEP_FROM = -20.0;
+    private static final double SWEEP_TO = 20.0;
+    private static final double SWEEP_STEP = 1.0;
+
+    private ElasticityTable getOrLoadElasticities() throws Exception {
+        if (cachedElasticities == null) {
+            cachedElasticities = elasticityService.loadTable(model.getWorkingExcelCopy(), model.getOriginalExcel());
+        }
+        return cachedElasticities;
+    }
+
+    private static String leverLabel(SimulationMode mode) {
+        switch (mode) {
+            case QUANTITY: return "Quantità";
+            case PRICE: return "Prezzo";
+            case ELASTIC_PRICE: return "Prezzo (Q elastica)";
+            case ELASTIC_QUANTITY: return "Quantità (P elastico)";
+            default: return mode.name();
+        }
+    }
+
+    /** Grafico POS (articoli elastici) al variare della leva da -20% a +20%. */
+    private void showElasticSweep(Map<SimulationMode, RicaviSnapshot> groups) throws Exception {
+        ElasticityTable table = getOrLoadElasticities();
+        DefaultCategoryDataset ds = new DefaultCategoryDataset();
+
+        for (Map.Entry<SimulationMode, RicaviSnapshot> e : groups.entrySet()) {
+            RicaviSnapshot snap = e.getValue();
+            int[] idx = new int[snap.size()];
+            for (int i = 0; i < idx.length; i++) idx[i] = i;
+
+            List<SimulationPoint> pts = elasticityService.sweep(snap, table, idx, e.getKey(), SWEEP_FROM, SWEEP_TO, SWEEP_STEP);
+            storeSweep(snap, table, e.getKey(), pts);
+            String series = "POS – " + leverLabel(e.getKey());
+            for (SimulationPoint pt : pts) {
+                ds.addValue(pt.getPosNoFix(), series, FormatService.integer(pt.getPercent()) + "%");
+            }
+            for (SimulationPoint pt : pts) {
+                ds.addValue(pt.getPosTarget(), "POS base – " + leverLabel(e.getKey()), FormatService.integer(pt.getPercent()) + "%");
             }
         }
-        return false;
+
+        JFreeChart chart = ChartFactory.createLineChart(
+                "Sweep elastico (articoli selezionati)",
+                "Variazione leva",
+                "POS",
+                ds,
+                PlotOrientation.VERTICAL,
+                true, true, false
+        );
+        ChartStyles.configureCategoryChart(chart, true);
+        if (chart.getCategoryPlot().getRenderer() instanceof LineAndShapeRenderer) {
+            chart.getCategoryPlot().getRenderer().setDefaultItemLabelsVisible(false);
+        }
+        view.getChartsPanel().setNamedChart("Elasticità – Sweep", "POS vs variazione leva", chart);
+    }
+
+    /** Sweep nell'archivio risultati: un record per articolo e punto (forma chiusa, niente POI). */
+    private void storeSweep(RicaviSnapshot snap, ElasticityTable table, SimulationMode mode, List<SimulationPoint> pts) throws Exception {
+        ResultStore store = results();
+        int scenario = store.newScenario("Sweep " + leverLabel(mode));
+        double[] record = new double[ResultStore.Col.values().length];
+        double[] eps = new double[snap.size()];
+        for (int i = 0; i < eps.length; i++) eps[i] = table.get(snap.getArticle(i));
+
+        for (SimulationPoint pt : pts) {
+            for (int i = 0; i < snap.size(); i++) {
+                double q0 = snap.getQ0()[i], p0 = snap.getP0()[i], cmp0 = snap.getCmp0()[i];
+                ElasticityService.Outcome o = elasticityService.evaluate(q0, p0, cmp0, mode, pt.getPercent(), eps[i], false);
+                fillRecord(record, pt.getPercent(), q0, p0, cmp0, SimulationKernel.pos(q0, p0, cmp0),
+                        o.q1, o.p1, o.pos1, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+                store.append(scenario, snap.getArticle(i), mode, record);
+            }
+        }
+    }
+
+    // ===========================
+    // Cambio EUR/USD (articoli in $)
+    // ===========================
+
+    /** Numero di punti di default per uno sweep "da-a" senza passo esplicito. */
+    private static final int FX_SWEEP_POINTS = 50;
+
+    private void onFxSimulation() {
+        if (!hasBaseData()) {
+            JOptionPane.showMessageDialog(view, "Carica prima un file Excel o un CSV.", "Attenzione", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        try {
+            RicaviSnapshot snap = getOrLoadSnapshot();
+            FxService.Bases bases = fxService.prepare(snap);
+            if (bases.getUsdCount() == 0) {
+                JOptionPane.showMessageDialog(view, "Nessun articolo con P medio / CMP medio inserito in $/kg.",
+                        "Cambio €/$", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+
+            String hint = Double.isNaN(bases.getImpliedRate()) ? "1.10" : FormatService.plain(bases.getImpliedRate(), 4);
+            String raw = JOptionPane.showInputDialog(view,
+                    "Cambio EUR/USD ($ per 1 €).\n" +
+                            "Valore singolo (es. 1.10) oppure intervallo \"da-a\" o \"da-a:passo\" (es. 1.00-1.30:0.01).\n" +
+                            "Cambio implicito nel file: " + hint,
+                    hint);
+            if (raw == null) return;
+
+            double[] rates = parseFxRates(raw);
+            if (rates.length == 1) showFxSingle(bases, rates[0]);
+            else showFxSweep(bases, rates);
+
+        } catch (Exception ex) {
+            log.error("Errore simulazione cambio", ex);
+            JOptionPane.showMessageDialog(view, "Errore cambio: " + ex.getMessage(), "Errore", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private static double[] parseFxRates(String raw) {
+        String s = raw.trim().replace(",", ".");
+        int dash = s.indexOf('-', 1);
+        if (dash < 0) return new double[]{Double.parseDouble(s)};
+
+        String to = s.substring(dash + 1);
+        double step = Double.NaN;
+        int colon = to.indexOf(':');
+        if (colon >= 0) {
+            step = Double.parseDouble(to.substring(colon + 1).trim());
+            to = to.substring(0, colon);
+        }
+        double a = Double.parseDouble(s.substring(0, dash).trim());
+        double b = Double.parseDouble(to.trim());
+        if (!(b > a)) throw new IllegalArgumentException("Intervallo cambio non valido: " + raw);
+        if (Double.isNaN(step)) step = (b - a) / (FX_SWEEP_POINTS - 1);
+        if (!(step > 0)) throw new IllegalArgumentException("Passo cambio non valido: " + step);
+
+        int n = (int) Math.floor((b - a) / step + 1e-9) + 1;
+        double[] out = new double[n];
+        for (int i = 0; i < n; i++) out[i] = a + i * step;
+        return out;
+    }
+
+    private void showFxSingle(FxService.Bases bases, double rate) {
+        RicaviSnapshot snap = bases.getSnapshot();
+        List<FxService.ArticleFx> rows = fxService.details(bases, rate);
+
+        StringBuilder html = new StringBuilder();
+        html.append("<html><body style='font-family:SansSerif;font-size:12px;'>");
+        html.append("<div style='font-size:13px;'><b>Cambio EUR/USD ").append(FormatService.plain(rate, 4)).append("</b></div>");
+        html.append("<div style='color:#666;'>Articoli in $: ").append(bases.getUsdCount()).append("</div>");
+        html.append("<hr style='border:none;border-top:1px solid #ddd;margin:10px 0;' />");
+
+        html.append("<table style='border-collapse:collapse;width:100%;'>");
+        html.append(rowHtml("POS totale base", FormatService.integer(snap.getPosTot0())));
+        html.append(rowHtml("POS totale al cambio", FormatService.integer(fxService.posTotal(bases, rate))));
+        if (snap.hasMol()) {
+            html.append(rowHtml("MOL base", FormatService.integer(snap.getMol0())));
+            html.append(rowHtml("MOL al cambio", FormatService.integer(fxService.mol(bases, rate))));
+        }
+        html.append("</table>");
+
+        for (FxService.ArticleFx r : rows) {
+            html.append("<hr style='border:none;border-top:1px solid #eee;margin:10px 0;' />");
+            html.append("<div><b>").append(r.article.getArticolo()).append("</b> <span style='color:#666;'>[")
+                    .append(r.article.getCat()).append("]</span></div>");
+            html.append("<table style='border-collapse:collapse;width:100%;'>");
+            html.append(rowHtml("P medio €/kg (base → cambio)", FormatService.dec3(r.pEur0) + " → " + FormatService.dec3(r.pEur1)));
+            html.append(rowHtml("CMP medio €/kg (base → cambio)", FormatService.dec3(r.cmpEur0) + " → " + FormatService.dec3(r.cmpEur1)));
+            html.append(rowHtml("POS (base → cambio)", FormatService.integer(r.pos0) + " → " + FormatService.integer(r.pos1)));
+            html.append("</table>");
+        }
+        html.append("</body></html>");
+        view.getControlsPanel().setDetails(html.toString());
+    }
+
+    private void showFxSweep(FxService.Bases bases, double[] rates) {
+        RicaviSnapshot snap = bases.getSnapshot();
+        long t0 = System.nanoTime();
+        double[][] res = fxService.sweep(bases, rates);
+        long us = (System.nanoTime() - t0) / 1000L;
+
+        DefaultCategoryDataset ds = new DefaultCategoryDataset();
+        for (int k = 0; k < rates.length; k++) {
+            String col = FormatService.plain(rates[k], 3);
+            ds.addValue(res[0][k], "POS totale", col);
+            if (snap.hasMol()) ds.addValue(res[1][k], "MOL", col);
+        }
+
+        JFreeChart chart = ChartFactory.createLineChart(
+                "Sensitività al cambio EUR/USD",
+                "Cambio ($ per 1 €)",
+                "Valore",
+                ds,
+                PlotOrientation.VERTICAL,
+                true, true, false
+        );
+        ChartStyles.configureCategoryChart(chart, true);
+        chart.getCategoryPlot().getRenderer().setDefaultItemLabelsVisible(false);
+        view.getChartsPanel().setNamedChart("Cambio €/$", "POS totale / MOL vs cambio", chart);
+
+        int iMin = 0, iMax = 0;
+        for (int k = 1; k < rates.length; k++) {
+            if (res[0][k] < res[0][iMin]) iMin = k;
+            if (res[0][k] > res[0][iMax]) iMax = k;
+        }
+
+        StringBuilder html = new StringBuilder();
+        html.append("<html><body style='font-family:SansSerif;font-size:12px;'>");
+        html.append("<div style='font-size:13px;'><b>Sweep cambio EUR/USD</b></div>");
+        html.append("<div style='color:#666;'>Punti: ").append(rates.length)
+                .append(" &nbsp; Articoli in $: ").append(bases.getUsdCount())
+                .append(" &nbsp; Tempo: ").append(us).append(" µs</div>");
+        html.append("<hr style='border:none;border-top:1px solid #ddd;margin:10px 0;' />");
+        html.append("<table style='border-collapse:collapse;width:100%;'>");
+        html.append(rowHtml("POS totale base", FormatService.integer(snap.getPosTot0())));
+        html.append(rowHtml("POS minimo", FormatService.integer(res[0][iMin]) + " @ " + FormatService.plain(rates[iMin], 4)));
+        html.append(rowHtml("POS massimo", FormatService.integer(res[0][iMax]) + " @ " + FormatService.plain(rates[iMax], 4)));
+        if (snap.hasMol()) {
+            html.append(rowHtml("MOL @ " + FormatService.plain(rates[0], 4), FormatService.integer(res[1][0])));
+            html.append(rowHtml("MOL @ " + FormatService.plain(rates[rates.length - 1], 4), FormatService.integer(res[1][rates.length - 1])));
+        }
+        html.append("</table></body></html>");
+        view.getControlsPanel().setDetails(html.toString());
+    }
+
+    // ===========================
+    // CE Budget 2022 reading: SOLO colonna J
+    // ===========================
+    private Map<String, Double> readCeBudgetSnapshot(Workbook wb, FormulaEvaluator eval) {
+        Sheet ce = ceService.findCeBudgetSheet(wb);
+        if (ce == null) {
+            throw new IllegalStateException("Foglio CE Budget 2022 non trovato (nome contenente 'CE' e 'BUDGET').");
+        }
+
+        eval.evaluateAll();
+
+        Map<String, Double> out = new HashMap<>();
+        out.put(K_RICAVI_PF,    ceService.readNumericCell(ce, eval, CE_ROW_RICAVI_PF,   CeBudgetService.CE_COL_J));
+        out.put(K_RICAVI_MP,    ceService.readNumericCell(ce, eval, CE_ROW_RICAVI_MP,   CeBudgetService.CE_COL_J));
+        out.put(K_RICAVI_CLAV,  ceService.readNumericCell(ce, eval, CE_ROW_RICAVI_CLAV, CeBudgetService.CE_COL_J));
+        out.put(K_ALTRI_RICAVI, ceService.readNumericCell(ce, eval, CE_ROW_ALTRI_RICAVI,CeBudgetService.CE_COL_J));
+        out.put(K_VAR_PF,       ceService.readNumericCell(ce, eval, CE_ROW_VAR_PF,      CeBudgetService.CE_COL_J));
+        out.put(K_ACQUISTO_MP,  ceService.readNumericCell(ce, eval, CE_ROW_ACQUISTO_MP, CeBudgetService.CE_COL_J));
+        out.put(K_VAR_SCORTE,   ceService.readNumericCell(ce, eval, CE_ROW_VAR_SCORTE,  CeBudgetService.CE_COL_J));
+
+        return out;
     }
 
     private String prettifyCeKey(String k) {
@@ -942,7 +1946,320 @@ public class MainController {
         return out;
     }
 
+    // ===========================
+    // Budget multi-periodo (anni / mesi)
+    // ===========================
+
+    private void onSimulatePeriods() {
+        if (model.getWorkingExcelCopy() == null || ricaviService == null) {
+            JOptionPane.showMessageDialog(view, "Carica prima un file Excel.", "Attenzione", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        List<SimulationControlsPanel.SimRequest> requests = view.getControlsPanel().getSimulationRequests();
+        if (requests == null || requests.isEmpty()) {
+            JOptionPane.showMessageDialog(view, "Seleziona almeno un articolo (colonna 'Sel').", "Attenzione", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        try {
+            if (cachedPeriods == null) cachedPeriods = periodService.prepare(model.getWorkingExcelCopy());
+
+            List<PeriodBudgetService.Change> changes = new ArrayList<>();
+            boolean elastic = false;
+            for (SimulationControlsPanel.SimRequest r : requests) {
+                changes.add(new PeriodBudgetService.Change(r.article.getCat(), r.article.getArticolo(),
+                        r.mode, r.percent, r.compensate));
+                elastic |= r.mode.isElastic();
+            }
+
+            PeriodMatrix m = periodService.run(cachedPeriods, changes, elastic ? getOrLoadElasticities() : null);
+            showPeriodMatrix(m, requests.size());
+
+        } catch (Exception ex) {
+            log.error("Errore simulazione multi-periodo", ex);
+            JOptionPane.showMessageDialog(view, "Errore periodi: " + ex.getMessage(), "Errore", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void showPeriodMatrix(PeriodMatrix m, int nRequests) {
+        String th = "<th style='padding:4px 6px;border-bottom:1px solid #ccc;text-align:right;'>";
+        String td = "<td style='padding:3px 6px;border-top:1px solid #eee;text-align:right;'>";
+
+        StringBuilder html = new StringBuilder();
+        html.append("<html><body style='font-family:SansSerif;font-size:12px;'>");
+        html.append("<div style='font-size:13px;'><b>Simulazione multi-periodo</b></div>");
+        html.append("<div style='color:#666;'>Periodi: ").append(m.periodCount())
+                .append(" &nbsp; Variazioni: ").append(nRequests)
+                .append(" &nbsp; Calcolo: ").append(m.getElapsedMs()).append(" ms</div>");
+        html.append("<hr style='border:none;border-top:1px solid #ddd;margin:10px 0;' />");
+
+        html.append("<table style='border-collapse:collapse;width:100%;'><tr>")
+                .append("<th style='padding:4px 6px;border-bottom:1px solid #ccc;text-align:left;'>Periodo</th>");
+        for (String line : m.getLines()) html.append(th).append(line).append("</th>").append(th).append("Δ</th>");
+        html.append("</tr>");
+
+        for (int p = 0; p < m.periodCount(); p++) {
+            html.append("<tr><td style='padding:3px 6px;border-top:1px solid #eee;'><b>")
+                    .append(m.getPeriods().get(p).getLabel()).append("</b></td>");
+            for (int l = 0; l < m.lineCount(); l++) {
+                html.append(td).append(FormatService.integer(m.getAfter(p, l))).append("</td>")
+                        .append(td).append(FormatService.integer(m.getDelta(p, l))).append("</td>");
+            }
+            html.append("</tr>");
+        }
+
+        html.append("<tr><td style='padding:3px 6px;border-top:1px solid #999;'><b>Totale</b></td>");
+        for (int l = 0; l < m.lineCount(); l++) {
+            double b = m.total(l, false), a = m.total(l, true);
+            html.append(td).append("<b>").append(FormatService.integer(a)).append("</b></td>")
+                    .append(td).append("<b>").append(FormatService.integer(a - b)).append("</b></td>");
+        }
+        html.append("</tr></table></body></html>");
+        view.getControlsPanel().setDetails(html.toString());
+
+        // ===== Grafico: MOL base vs dopo variazione per periodo =====
+        DefaultCategoryDataset ds = new DefaultCategoryDataset();
+        for (int p = 0; p < m.periodCount(); p++) {
+            String label = m.getPeriods().get(p).getLabel();
+            ds.addValue(m.getBase(p, PeriodBudgetService.L_MOL), "MOL base", label);
+            ds.addValue(m.getAfter(p, PeriodBudgetService.L_MOL), "MOL dopo variazione", label);
+        }
+
+        JFreeChart chart = ChartFactory.createLineChart(
+                "MOL per periodo",
+                "Periodo",
+                "MOL",
+                ds,
+                PlotOrientation.VERTICAL,
+                true, true, false
+        );
+        ChartStyles.configureCategoryChart(chart, true);
+        if (m.periodCount() > 6 && chart.getCategoryPlot().getRenderer() instanceof LineAndShapeRenderer) {
+            chart.getCategoryPlot().getRenderer().setDefaultItemLabelsVisible(false);
+        }
+        view.getChartsPanel().setNamedChart("Periodi", "MOL base vs dopo variazione", chart);
+    }
+
+    // ===========================
+    // Diagnostica (metriche)
+    // ===========================
+    private void onShowDiagnostics() {
+        if (metricsDialog == null) {
+            metricsDialog = new MetricsDialog(view);
+            metricsDialog.getChkTrace().addActionListener(e -> Tracing.arm(metricsDialog.getChkTrace().isSelected()));
+            metricsDialog.getBtnRefresh().addActionListener(e -> refreshDiagnostics());
+            metricsDialog.getBtnReset().addActionListener(e -> {
+                metrics.reset();
+                refreshDiagnostics();
+            });
+            metricsDialog.getBtnExport().addActionListener(e -> onExportMetrics());
+            metricsDialog.getBtnRecord().addActionListener(e -> onToggleRecording());
+        }
+        refreshDiagnostics();
+        metricsDialog.setVisible(true);
+        metricsDialog.toFront();
+    }
+
+    private void refreshDiagnostics() {
+        metricsDialog.setData(metrics.getPhaseStats(), metrics.getCounterStats());
+        metricsDialog.getChkTrace().setSelected(Tracing.isArmed());
+        metricsDialog.setRecording(flightRecorder.isRecording(), FlightRecorderService.isAvailable());
+    }
+
+    private void onExportMetrics() {
+        JFileChooser fc = new JFileChooser();
+        fc.setDialogTitle("Esporta metriche (JSON)");
+        fc.setFileFilter(new FileNameExtensionFilter("JSON (*.json)", "json"));
+        fc.setSelectedFile(new File("metriche.json"));
+        if (fc.showSaveDialog(metricsDialog) != JFileChooser.APPROVE_OPTION) return;
+
+        File out = fc.getSelectedFile();
+        if (!out.getName().toLowerCase().endsWith(".json")) {
+            out = new File(out.getParentFile(), out.getName() + ".json");
+        }
+        try {
+            metrics.writeJson(out);
+        } catch (Exception ex) {
+            log.error("Errore export metriche", ex);
+            JOptionPane.showMessageDialog(metricsDialog, "Errore export metriche: " + ex.getMessage(),
+                    "Errore", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /** Registra sessione: primo click avvia JFR, secondo click chiede dove salvare il .jfr. */
+    private void onToggleRecording() {
+        try {
+            if (!flightRecorder.isRecording()) {
+                flightRecorder.start();
+            } else {
+                JFileChooser fc = new JFileChooser();
+                fc.setDialogTitle("Salva registrazione JFR");
+                fc.setFileFilter(new FileNameExtensionFilter("Java Flight Recorder (*.jfr)", "jfr"));
+                fc.setSelectedFile(new File("sessione-progettoscg.jfr"));
+                if (fc.showSaveDialog(metricsDialog) != JFileChooser.APPROVE_OPTION) return;
+
+                File out = fc.getSelectedFile();
+                if (!out.getName().toLowerCase().endsWith(".jfr")) {
+                    out = new File(out.getParentFile(), out.getName() + ".jfr");
+                }
+                flightRecorder.stopAndDump(out);
+                JOptionPane.showMessageDialog(metricsDialog,
+                        "Registrazione salvata:\n" + out.getAbsolutePath() + "\n\nApribile con JDK Mission Control.",
+                        "Registrazione JFR", JOptionPane.INFORMATION_MESSAGE);
+            }
+        } catch (Exception ex) {
+            log.error("Errore registrazione JFR", ex);
+            JOptionPane.showMessageDialog(metricsDialog, "Errore registrazione JFR: " + ex.getMessage(),
+                    "Errore", JOptionPane.ERROR_MESSAGE);
+        }
+        refreshDiagnostics();
+    }
+
+    // ===========================
+    // Archivio risultati (ResultStore)
+    // ===========================
+
+    /** Archivio della sessione (creato al primo risultato, eliminato a nuovo caricamento / uscita). */
+    private ResultStore results() throws IOException {
+        if (resultStore == null) resultStore = ResultStore.createTemp();
+        return resultStore;
+    }
+
+    private void discardResults() {
+        if (resultStore != null) {
+            resultStore.delete();
+            resultStore = null;
+        }
+    }
+
+    private static void fillRecord(double[] r, double percent, double q0, double p0, double cmp0, double pos0,
+                                   double q1, double p1, double pos1,
+                                   double comp, double qStar, double pStar, double posStar) {
+        r[ResultStore.Col.PERCENT.ordinal()] = percent;
+        r[ResultStore.Col.Q0.ordinal()] = q0;
+        r[ResultStore.Col.P0.ordinal()] = p0;
+        r[ResultStore.Col.CMP0.ordinal()] = cmp0;
+        r[ResultStore.Col.POS0.ordinal()] = pos0;
+        r[ResultStore.Col.Q1.ordinal()] = q1;
+        r[ResultStore.Col.P1.ordinal()] = p1;
+        r[ResultStore.Col.POS1.ordinal()] = pos1;
+        r[ResultStore.Col.COMP.ordinal()] = comp;
+        r[ResultStore.Col.Q_STAR.ordinal()] = qStar;
+        r[ResultStore.Col.P_STAR.ordinal()] = pStar;
+        r[ResultStore.Col.POS_STAR.ordinal()] = posStar;
+    }
+
+    /** Riepilogo per categoria (POS1) dall'archivio + export CSV. */
+    private void onShowResults() {
+        if (resultStore == null || resultStore.size() == 0) {
+            JOptionPane.showMessageDialog(view, "Nessun risultato in archivio: esegui prima una simulazione.",
+                    "Risultati", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder(DetailsHtml.OPEN);
+        sb.append("<b>").append(FormatService.integer(resultStore.size())).append(" record, ")
+                .append(resultStore.getScenarioCount()).append(" scenari</b>");
+        sb.append(DetailsHtml.HR);
+        sb.append("<table cellspacing='0' cellpadding='2'><tr><th align='left'>Categoria</th><th>Record</th>")
+                .append("<th>Σ POS1</th><th>Min POS1</th><th>Max POS1</th></tr>");
+        for (Map.Entry<String, double[]> e : resultStore.aggregateByCategory(ResultStore.Col.POS1, -1).entrySet()) {
+            double[] a = e.getValue();
+            sb.append("<tr><td>").append(e.getKey()).append("</td>")
+                    .append("<td align='right'>").append(FormatService.integer(a[0])).append("</td>")
+                    .append("<td align='right'>").append(FormatService.integer(a[1])).append("</td>")
+                    .append("<td align='right'>").append(FormatService.integer(a[2])).append("</td>")
+                    .append("<td align='right'>").append(FormatService.integer(a[3])).append("</td></tr>");
+        }
+        double[] mm = resultStore.minMax(ResultStore.Col.POS_STAR, -1);
+        sb.append("</table>");
+        if (!Double.isNaN(mm[0])) {
+            sb.append(DetailsHtml.HR_LIGHT).append("<b>POS* min / max:</b> ")
+                    .append(FormatService.integer(mm[0])).append(" / ").append(FormatService.integer(mm[1]));
+        }
+        sb.append(DetailsHtml.CLOSE);
+
+        Object[] options = {"Esporta Excel…", "Esporta CSV…", "Chiudi"};
+        int choice = JOptionPane.showOptionDialog(view, new JLabel(sb.toString()), "Risultati della sessione",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[2]);
+        if (choice == 0) onExportResultsXlsx();
+        if (choice != 1) return;
+
+        JFileChooser fc = new JFileChooser();
+        fc.setDialogTitle("Esporta risultati (CSV)");
+        fc.setFileFilter(new FileNameExtensionFilter("CSV (*.csv)", "csv"));
+        fc.setSelectedFile(new File("risultati.csv"));
+        if (fc.showSaveDialog(view) != JFileChooser.APPROVE_OPTION) return;
+
+        File out = fc.getSelectedFile();
+        if (!out.getName().toLowerCase().endsWith(".csv")) out = new File(out.getParentFile(), out.getName() + ".csv");
+        try {
+            int n = resultStore.exportCsv(out);
+            JOptionPane.showMessageDialog(view, "Esportati " + FormatService.integer(n) + " record.\n" + out.getAbsolutePath(),
+                    "Risultati", JOptionPane.INFORMATION_MESSAGE);
+        } catch (Exception ex) {
+            log.error("Errore export risultati", ex);
+            JOptionPane.showMessageDialog(view, "Errore export risultati: " + ex.getMessage(), "Errore", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Export risultati in un nuovo .xlsx (SXSSF, in background): record dell'archivio + riepilogo
+     * + CE prima (snapshot base) / dopo (working copy).
+     */
+    private void onExportResultsXlsx() {
+        JFileChooser fc = new JFileChooser();
+        fc.setDialogTitle("Esporta risultati (Excel)");
+        fc.setFileFilter(new FileNameExtensionFilter("Excel (*.xlsx)", "xlsx"));
+        fc.setSelectedFile(new File("risultati.xlsx"));
+        if (fc.showSaveDialog(view) != JFileChooser.APPROVE_OPTION) return;
+
+        File sel = fc.getSelectedFile();
+        final File out = sel.getName().toLowerCase().endsWith(".xlsx") ? sel : new File(sel.getParentFile(), sel.getName() + ".xlsx");
+        final ResultStore store = resultStore;
+        final File before = excelRepo.getBaseSnapshotFile();
+        final File after = model.getWorkingExcelCopy();
+        view.getControlsPanel().getBtnResults().setEnabled(false);
+
+        new SwingWorker<Integer, Void>() {
+            @Override
+            protected Integer doInBackground() throws Exception {
+                try (MetricsService.Action act = metrics.begin("Esporta risultati")) {
+                    Map<String, Double> ceBefore = null, ceAfter = null;
+                    try {
+                        ceBefore = readCeValues(before, act);
+                        ceAfter = readCeValues(after, act);
+                    } catch (Exception ex) {
+                        log.warn("CE non disponibile per l'export risultati: {}", ex.getMessage());
+                    }
+                    int n = new ResultsWorkbookWriter().write(store, ceBefore, ceAfter, out);
+                    act.count("record", n);
+                    act.mark("scrittura xlsx");
+                    return n;
+                }
+            }
+
+            @Override
+            protected void done() {
+                view.getControlsPanel().getBtnResults().setEnabled(true);
+                try {
+                    int n = get();
+                    JOptionPane.showMessageDialog(view, "Esportati " + FormatService.integer(n) + " record.\n" + out.getAbsolutePath(),
+                            "Risultati", JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception ex) {
+                    Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                    log.error("Errore export risultati Excel", cause);
+                    JOptionPane.showMessageDialog(view, "Errore export risultati: " + cause.getMessage(),
+                            "Errore", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
     private void onExit() {
+        discardResults();
+        flightRecorder.discard();
         excelRepo.cleanup();
         System.exit(0);
     }
@@ -960,57 +2277,10 @@ public class MainController {
          return;
      }
 
-     try (Workbook wb = WorkbookFactory.create(working)) {
-
-         Sheet ce = findCeBudgetSheet(wb);
-         if (ce == null) throw new IllegalStateException("Foglio CE Budget 2022 non trovato.");
-
-         FormulaEvaluator eval = wb.getCreationHelper().createFormulaEvaluator();
-         DataFormatter fmt = new DataFormatter();
-
-         // ✅ Importantissimo: rivaluta le formule del file (se il CE contiene formule)
-         eval.evaluateAll();
-
-         LinkedHashMap<String, Double> v = new LinkedHashMap<>();
-
-         v.put("Ricavi PF", findValueByRowLabel(ce, eval, fmt, "RICAVI DELLE VENDITE DI PRODOTTI FINITI"));
-         v.put("Ricavi MP", findValueByRowLabel(ce, eval, fmt, "RICAVI DELLE VENDITE DI MATERIE PRIME"));
-         v.put("Ricavi C/Lav.", findValueByRowLabel(ce, eval, fmt, "RICAVI CONTO LAVORAZIONE"));
-         v.put("Altri ricavi", findValueByRowLabel(ce, eval, fmt, "ALTRI RICAVI"));
-         v.put("Var. PF", findValueByRowLabel(ce, eval, fmt, "VARIAZIONE PRODOTTI FINITI"));
-         v.put("Tot. Ricavi produzione (A)", findValueByRowLabel(ce, eval, fmt, "TOTALE RICAVI PRODUZIONE"));
-
-         v.put("Acquisto MP", findValueByRowLabel(ce, eval, fmt, "ACQUISTO MATERIE PRIME"));
-         v.put("Var. scorte", findValueByRowLabel(ce, eval, fmt, "VARIAZIONE SCORTE"));
-         v.put("Tot. Costi MP (B)", findValueByRowLabel(ce, eval, fmt, "TOTALE COSTI MATERIE PRIME"));
-
-         v.put("Costo energia", findValueByRowLabel(ce, eval, fmt, "COSTO ENERGIA"));
-         v.put("Materiali di consumo", findValueByRowLabel(ce, eval, fmt, "MATERIALI DI CONSUMO"));
-         v.put("Pulizia/smaltimento", findValueByRowLabel(ce, eval, fmt, "PULIZIA"));
-         v.put("Tot. Costi variabili prod. (C)", findValueByRowLabel(ce, eval, fmt, "COSTI VARIABILI DI PRODUZIONE"));
-
-         v.put("Trasporti/oneri vendita+acquisto", findValueByRowLabel(ce, eval, fmt, "TRASPORTI"));
-         v.put("Provvigioni/Enasarco", findValueByRowLabel(ce, eval, fmt, "PROVVIGIONI"));
-         v.put("Tot. Costi di vendita (D)", findValueByRowLabel(ce, eval, fmt, "TOTALE COSTI DI VENDITA"));
-
-         v.put("MOL (A-B-C-D)", findValueByRowLabel(ce, eval, fmt, "MARGINE OPERATIVO LORDO"));
-
-         DefaultCategoryDataset ds = new DefaultCategoryDataset();
-         for (Map.Entry<String, Double> e : v.entrySet()) {
-             ds.addValue(e.getValue(), "CE Budget 2022 (working copy)", e.getKey());
-         }
-
-         JFreeChart chart = ChartFactory.createLineChart(
-                 "CE Budget 2022 – Aggiornato (Working copy)",
-                 "Voce",
-                 "Valore",
-                 ds,
-                 PlotOrientation.VERTICAL,
-                 true,
-                 true,
-                 false
-         );
-         configureCategoryChart(chart, true);
+     try (MetricsService.Action act = metrics.begin("CE Budget")) {
+         JFreeChart chart = ChartStyles.ceBudgetChart("CE Budget 2022 – Aggiornato (Working copy)",
+                 readCeBudgetDataset(working, act));
+         act.mark("grafico");
 
          CeBudgetFrame ceFrame = new CeBudgetFrame();
          ceFrame.setChart(chart);
@@ -1030,6 +2300,7 @@ public class MainController {
          });
 
          ceFrame.setVisible(true);
+         act.mark("apertura finestra");
 
      } catch (Exception ex) {
          log.error("Errore apertura CE Budget (working copy)", ex);
@@ -1037,27 +2308,71 @@ public class MainController {
      }
  }
 
+    /** Voci principali del CE Budget 2022 della working copy (usato dal grafico CE e dall'export). */
+    private DefaultCategoryDataset readCeBudgetDataset(File working, MetricsService.Action act) throws Exception {
+        DefaultCategoryDataset ds = new DefaultCategoryDataset();
+        for (Map.Entry<String, Double> e : readCeValues(working, act).entrySet()) {
+            ds.addValue(e.getValue(), "CE Budget 2022 (working copy)", e.getKey());
+        }
+        return ds;
+    }
 
-    private double findValueByRowLabel(Sheet sh, FormulaEvaluator eval, DataFormatter fmt, String labelNeedle) {
-
-        String needle = labelNeedle.trim().toUpperCase();
-        int maxRows = Math.min(sh.getLastRowNum(), 200);
+    /**
+     * Voci CE Budget (etichetta -> valore, in ordine di conto economico). Il file si apre in sola lettura
+     * e le formule si leggono dai risultati salvati, ricalcolando solo i fogli con scritture non ricalcolate.
+     */
+    private LinkedHashMap<String, Double> readCeValues(File working, MetricsService.Action act) throws Exception {
+        JfrEvents.CeSnapshot ev = new JfrEvents.CeSnapshot();
+        ev.begin();
+        try (Workbook wb = WorkbookFactory.create(working, null, true)) {
+            act.mark("apertura workbook");
 
-        for (int r = 0; r <= maxRows; r++) {
-            Row row = sh.getRow(r);
-            if (row == null) continue;
+            Sheet ce = ceService.findCeBudgetSheet(wb);
+            if (ce == null) throw new IllegalStateException("Foglio CE Budget 2022 non trovato.");
 
-            for (int c = 0; c <= 8; c++) {
-                String txt = fmt.formatCellValue(row.getCell(c)).trim().toUpperCase();
-                if (txt.isEmpty()) continue;
+            CachedFormulaEvaluator eval = excelRepo.readEvaluator(wb, working);
+            DataFormatter fmt = new DataFormatter();
 
-                if (txt.contains(needle)) {
-                    return readNumericCell(sh, eval, r, 9);
-                }
+            eval.evaluateAll();
+            int formulaCells = eval.getEvaluatedCells();
+            act.count(C_FORMULAS, formulaCells);
+            act.mark("ricalcolo formule");
+
+            LinkedHashMap<String, Double> v = new LinkedHashMap<>();
+
+            v.put("Ricavi PF", ceService.findValueByRowLabel(ce, eval, fmt, "RICAVI DELLE VENDITE DI PRODOTTI FINITI"));
+            v.put("Ricavi MP", ceService.findValueByRowLabel(ce, eval, fmt, "RICAVI DELLE VENDITE DI MATERIE PRIME"));
+            v.put("Ricavi C/Lav.", ceService.findValueByRowLabel(ce, eval, fmt, "RICAVI CONTO LAVORAZIONE"));
+            v.put("Altri ricavi", ceService.findValueByRowLabel(ce, eval, fmt, "ALTRI RICAVI"));
+            v.put("Var. PF", ceService.findValueByRowLabel(ce, eval, fmt, "VARIAZIONE PRODOTTI FINITI"));
+            v.put("Tot. Ricavi produzione (A)", ceService.findValueByRowLabel(ce, eval, fmt, "TOTALE RICAVI PRODUZIONE"));
+
+            v.put("Acquisto MP", ceService.findValueByRowLabel(ce, eval, fmt, "ACQUISTO MATERIE PRIME"));
+            v.put("Var. scorte", ceService.findValueByRowLabel(ce, eval, fmt, "VARIAZIONE SCORTE"));
+            v.put("Tot. Costi MP (B)", ceService.findValueByRowLabel(ce, eval, fmt, "TOTALE COSTI MATERIE PRIME"));
+
+            v.put("Costo energia", ceService.findValueByRowLabel(ce, eval, fmt, "COSTO ENERGIA"));
+            v.put("Materiali di consumo", ceService.findValueByRowLabel(ce, eval, fmt, "MATERIALI DI CONSUMO"));
+            v.put("Pulizia/smaltimento", ceService.findValueByRowLabel(ce, eval, fmt, "PULIZIA"));
+            v.put("Tot. Costi variabili prod. (C)", ceService.findValueByRowLabel(ce, eval, fmt, "COSTI VARIABILI DI PRODUZIONE"));
+
+            v.put("Trasporti/oneri vendita+acquisto", ceService.findValueByRowLabel(ce, eval, fmt, "TRASPORTI"));
+            v.put("Provvigioni/Enasarco", ceService.findValueByRowLabel(ce, eval, fmt, "PROVVIGIONI"));
+            v.put("Tot. Costi di vendita (D)", ceService.findValueByRowLabel(ce, eval, fmt, "TOTALE COSTI DI VENDITA"));
+
+            v.put("MOL (A-B-C-D)", ceService.findValueByRowLabel(ce, eval, fmt, "MARGINE OPERATIVO LORDO"));
+
+            act.count("voci CE", v.size());
+            act.mark("snapshot CE");
+
+            ev.end();
+            if (ev.shouldCommit()) {
+                ev.sheet = ce.getSheetName();
+                ev.entries = v.size();
+                ev.formulas = formulaCells;
+                ev.commit();
             }
+            return v;
         }
-
-        log.warn("Voce CE non trovata nel foglio: '{}'", labelNeedle);
-        return 0.0;
     }
 }
@@ -1,8 +1,17 @@
 package controller;
 
 import model.*;
+import repository.CachedFormulaEvaluator;
 import repository.ExcelRepository;
+import repository.ResultStore;
+import service.ElasticityService;
+import service.FormatService;
+import service.JfrEvents;
+import service.MetricsService;
+import service.Tracing;
 import service.RicaviExcelService;
+import view.ChartStyles;
+import view.DetailSection;
 import view.MainFrame;
 import view.PremioCompFrame;
 
@@ -14,7 +23,6 @@ import org.apache.poi.ss.usermodel.*;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.ValueAxis;
-import org.jfree.chart.labels.StandardCategoryItemLabelGenerator;
 import org.jfree.chart.plot.CategoryPlot;
 import org.jfree.chart.renderer.category.LineAndShapeRenderer;
 import org.jfree.data.category.DefaultCategoryDataset;
@@ -23,18 +31,12 @@ import javax.swing.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.awt.BasicStroke;
-import java.awt.Color;
-import java.awt.Font;
-import org.jfree.chart.axis.CategoryAxis;
-import org.jfree.chart.axis.CategoryLabelPositions;
 import org.jfree.chart.axis.NumberAxis;
-import org.jfree.chart.renderer.category.BarRenderer;
-import org.jfree.chart.renderer.category.StandardBarPainter;
 
 public class PremioCompController {
 
@@ -43,24 +45,18 @@ public class PremioCompController {
     private final AppModel model;
     private final MainFrame mainView;
     private final ExcelRepository excelRepo;
+    private final MetricsService metrics;
+    private final Callable<ResultStore> results;
+
+    private static final String C_EVALUATE_ALL = "evaluateAll";
 
     private final PremioCompFrame premioView;
 
     private RicaviExcelService ricaviService;
+    private final ElasticityService elasticityService = new ElasticityService();
+    private ElasticityTable cachedElasticities;
     private List<ArticleRow> cachedArticles = new ArrayList<>();
 
-    private static final DecimalFormat DF_INT = new DecimalFormat("#,##0");
-    private static final DecimalFormat DF_3   = new DecimalFormat("#,##0.000");
-    private static final DecimalFormat DF_2   = new DecimalFormat("#,##0.00");
-    
-    private static String rowHtml(String k, String v) {
-        String key = (k == null) ? "" : k;
-        String val = (v == null) ? "" : v;
-        return "<tr>" +
-                "<td style='padding:4px 8px;border-top:1px solid #eee;color:#333;white-space:nowrap;'><b>" + key + "</b></td>" +
-                "<td style='padding:4px 8px;border-top:1px solid #eee;color:#111;text-align:right;'>" + val + "</td>" +
-                "</tr>";
-    }
 
     // ===========================
     // RIFERIMENTI FOGLIO "Ricavi"
@@ -78,10 +74,13 @@ public class PremioCompController {
     private static final int COL_W  = 22; // W -> index 22
     private static final int COL_X  = 23; // X -> index 23  (X66, X67)
 
-    public PremioCompController(AppModel model, MainFrame mainView, ExcelRepository excelRepo) {
+    public PremioCompController(AppModel model, MainFrame mainView, ExcelRepository excelRepo, MetricsService metrics,
+                                Callable<ResultStore> results) {
         this.model = model;
         this.mainView = mainView;
         this.excelRepo = excelRepo;
+        this.metrics = metrics;
+        this.results = results;
         this.premioView = new PremioCompFrame();
         initListeners();
     }
@@ -127,6 +126,7 @@ public class PremioCompController {
             // ✅ ricreo service e ricarico articoli
             ricaviService = new RicaviExcelService(wc);
             cachedArticles = ricaviService.loadArticles();
+            cachedElasticities = null;
             premioView.getControlsPanel().setArticles(cachedArticles);
 
             // ✅ pulisco dettagli e grafici
@@ -170,6 +170,7 @@ public class PremioCompController {
         premioView.setVisible(true);
     }
 
+    @SuppressWarnings("try") // lo scope Tracing serve solo per la sua chiusura
     private void onSimulatePremio() {
 
         if (model.getWorkingExcelCopy() == null || ricaviService == null) {
@@ -198,7 +199,10 @@ public class PremioCompController {
 
         log.info("[PREMIO] Simula articolo={} cat={} mode={} percent={}", targetArt, targetCat, mode, percent);
 
-        try (Workbook wb = WorkbookFactory.create(model.getWorkingExcelCopy())) {
+        try (Tracing.Scope trace = Tracing.begin("Simula premio");
+             MetricsService.Action act = metrics.begin("Simula premio");
+             Workbook wb = excelRepo.openWorkingCopy()) {
+            act.mark("apertura workbook");
 
             Sheet ricaviSheet = wb.getSheet("Ricavi");
             if (ricaviSheet == null) throw new IllegalStateException("Foglio 'Ricavi' non trovato.");
@@ -304,32 +308,34 @@ public class PremioCompController {
                 if (catTxt.equals(targetCat) && artTxt.equals(targetArt)) { rowIdx = r; break; }
             }
             if (rowIdx < 0) throw new IllegalStateException("Riga non trovata per Cat='" + targetCat + "' Articolo='" + targetArt + "'.");
+            act.mark("scansione layout");
 
             // =========================================================
-            // 3) Letture base (riga + premio + POS totale)
+            // 3) Letture base (riga + premio + POS totale), dai risultati salvati nel file
             // =========================================================
-            eval.evaluateAll();
+            CachedFormulaEvaluator baseEval = excelRepo.readEvaluator(wb, excelRepo.getWorkingCopyFile());
+            baseEval.evaluateAll();
 
-            double q0   = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colQty);
-            double p0   = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colPeur);
-            double cmp0 = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colCMPeur);
+            double q0   = ricaviService.readNumeric(ricaviSheet, baseEval, rowIdx, colQty);
+            double p0   = ricaviService.readNumeric(ricaviSheet, baseEval, rowIdx, colPeur);
+            double cmp0 = ricaviService.readNumeric(ricaviSheet, baseEval, rowIdx, colCMPeur);
 
             // POS riga: uso Excel per baseline, ma controllo anche formula robusta
-            double posRow0_excel = ricaviService.readNumeric(ricaviSheet, eval, rowIdx, colPos);
+            double posRow0_excel = ricaviService.readNumeric(ricaviSheet, baseEval, rowIdx, colPos);
             double posRow0_calc  = (p0 - cmp0) * q0;
 
             // Se Excel non è coerente (o non ricalcola), baseline prendo quello Excel se è “sensato”, altrimenti il calcolato
             double posRow0 = (Math.abs(posRow0_excel) > 1e-9) ? posRow0_excel : posRow0_calc;
 
-            double months = readNumericCell(ricaviSheet, eval, ROW_66, COL_P);
+            double months = readNumericCell(ricaviSheet, baseEval, ROW_66, COL_P);
             if (months <= 0) throw new IllegalStateException("Mensilità P66 non valida: " + months);
 
-            double premioMens0 = readNumericCell(ricaviSheet, eval, ROW_66, COL_Q);
-            double premioAnn0  = readNumericCell(ricaviSheet, eval, ROW_66, COL_W);
-            double x66_0        = readNumericCell(ricaviSheet, eval, ROW_66, COL_X);
+            double premioMens0 = readNumericCell(ricaviSheet, baseEval, ROW_66, COL_Q);
+            double premioAnn0  = readNumericCell(ricaviSheet, baseEval, ROW_66, COL_W);
+            double x66_0        = readNumericCell(ricaviSheet, baseEval, ROW_66, COL_X);
 
             // POS totale baseline (può non ricalcolare dopo, ma baseline la prendiamo dal file)
-            double totPos0 = readNumericCell(ricaviSheet, eval, ROW_67, COL_X);
+            double totPos0 = readNumericCell(ricaviSheet, baseEval, ROW_67, COL_X);
 
             if (q0 <= 0) throw new IllegalStateException("Q0 non valida: " + q0);
             if (p0 <= 0) throw new IllegalStateException("P0 non valido: " + p0);
@@ -338,35 +344,49 @@ public class PremioCompController {
             // segno di X66 rispetto a W66
             int signX66 = detectSignForX66(x66_0, premioAnn0);
 
+            act.mark("lettura base");
+
+            JfrEvents.SimulationStep step = new JfrEvents.SimulationStep();
+            step.begin();
+            long evalBefore = act.getCount(C_EVALUATE_ALL);
+
             // =========================================================
             // 4) Step 1: applico variazione (Q o P) - PREMIO invariato
             // =========================================================
             // reset riga
-            ricaviService.writeNumeric(ricaviSheet, rowIdx, colQty, q0);
-            ricaviService.writeNumeric(ricaviSheet, rowIdx, colPeur, p0);
+            writeNumeric(ricaviSheet, rowIdx, colQty, q0);
+            writeNumeric(ricaviSheet, rowIdx, colPeur, p0);
 
             // riallineo premio base Q66/W66/X66
-            setPremioMensile(ricaviSheet, eval, premioMens0, months, signX66);
-            eval.evaluateAll();
+            setPremioMensile(act, ricaviSheet, eval, premioMens0, months, signX66);
+            evaluateAll(act, eval);
 
             double q1 = q0;
             double p1 = p0;
 
             if (mode == SimulationMode.QUANTITY) {
                 q1 = q0 * (1.0 + percent / 100.0);
-                ricaviService.writeNumeric(ricaviSheet, rowIdx, colQty, q1);
-            } else {
+                writeNumeric(ricaviSheet, rowIdx, colQty, q1);
+            } else if (mode == SimulationMode.PRICE) {
                 p1 = p0 * (1.0 + percent / 100.0);
-                ricaviService.writeNumeric(ricaviSheet, rowIdx, colPeur, p1);
+                writeNumeric(ricaviSheet, rowIdx, colPeur, p1);
+            } else {
+                // modalità elastica: Q e P si muovono insieme
+                double eps = getOrLoadElasticities().get(ar);
+                double[] qp = ElasticityService.applyLever(mode, q0, p0, percent, eps);
+                q1 = qp[0];
+                p1 = qp[1];
+                writeNumeric(ricaviSheet, rowIdx, colQty, q1);
+                writeNumeric(ricaviSheet, rowIdx, colPeur, p1);
             }
 
-            eval.evaluateAll();
+            evaluateAll(act, eval);
 
             // ====== QUI È IL FIX: POS riga e POS totale calcolati (NO dipendenza da ricalcolo Excel) ======
             double posRow1_calc = (p1 - cmp0) * q1;
 
             // opzionale: scrivo POS della riga anche in Excel così "si vede" cambiare
-            ricaviService.writeNumeric(ricaviSheet, rowIdx, colPos, posRow1_calc);
+            writeNumeric(ricaviSheet, rowIdx, colPos, posRow1_calc);
 
             // POS totale dopo variazione: baseline + delta del POS riga selezionata
             double totPos1_calc = totPos0 + (posRow1_calc - posRow0);
@@ -391,8 +411,8 @@ public class PremioCompController {
             }
 
             // scrivo premio compensato Q66/W66/X66
-            setPremioMensile(ricaviSheet, eval, premioMensStar, months, signX66);
-            eval.evaluateAll();
+            setPremioMensile(act, ricaviSheet, eval, premioMensStar, months, signX66);
+            evaluateAll(act, eval);
 
             double premioAnnStar = readNumericCell(ricaviSheet, eval, ROW_66, COL_W);
             double x66_star1     = readNumericCell(ricaviSheet, eval, ROW_66, COL_X);
@@ -400,67 +420,77 @@ public class PremioCompController {
             // POS totale dopo compensazione: per costruzione torna a totPos0
             double totPos2_calc = totPos1_calc + (x66_star1 - x66_0);
 
+         act.mark("valutazione articolo");
+
+         // archivio risultati: la compensazione è sul premio (COMP = premio mensile*), Q/P restano quelli variati
+         ResultStore store = results.call();
+         double[] rec = new double[ResultStore.Col.values().length];
+         Arrays.fill(rec, Double.NaN);
+         rec[ResultStore.Col.PERCENT.ordinal()] = percent;
+         rec[ResultStore.Col.Q0.ordinal()] = q0;
+         rec[ResultStore.Col.P0.ordinal()] = p0;
+         rec[ResultStore.Col.CMP0.ordinal()] = cmp0;
+         rec[ResultStore.Col.POS0.ordinal()] = posRow0;
+         rec[ResultStore.Col.Q1.ordinal()] = q1;
+         rec[ResultStore.Col.P1.ordinal()] = p1;
+         rec[ResultStore.Col.POS1.ordinal()] = posRow1_calc;
+         rec[ResultStore.Col.COMP.ordinal()] = premioMensStar;
+         store.append(store.newScenario("Premio #" + (store.getScenarioCount() + 1)), ar, mode, rec);
+
+         step.end();
+         if (step.shouldCommit()) {
+             step.action = "Simula premio";
+             step.article = targetCat + "||" + targetArt;
+             step.mode = mode.name();
+             step.percent = percent;
+             step.compensate = true;
+             step.evaluateCount = (int) (act.getCount(C_EVALUATE_ALL) - evalBefore);
+             step.commit();
+         }
+
          // =========================================================
          // 6) Dettagli (HTML coerente con Main)
          // =========================================================
-         String whatChanged = (mode == SimulationMode.QUANTITY) ? "Quantità (kg)" : "Prezzo (€/kg)";
-
-         StringBuilder html = new StringBuilder();
-         html.append("<html><body style='font-family:SansSerif;font-size:12px;'>");
-
-         html.append("<div style='font-size:13px;'><b>Articolo:</b> ").append(targetArt)
-                 .append(" <span style='color:#666;'>[").append(targetCat).append("]</span></div>");
-         html.append("<div><b>Percentuale applicata:</b> ").append(DF_2.format(percent)).append("%</div>");
-         html.append("<hr style='border:none;border-top:1px solid #ddd;margin:10px 0;' />");
-
-         // --- Valori originali
-         html.append("<div style='margin-bottom:6px;'><b>Valori originali</b></div>");
-         html.append("<table style='border-collapse:collapse;width:100%;'>");
-         html.append(rowHtml("Q0", DF_INT.format(q0) + " kg"));
-         html.append(rowHtml("P0", DF_3.format(p0) + " €/kg"));
-         html.append(rowHtml("CMP0", DF_3.format(cmp0) + " €/kg"));
-         html.append(rowHtml("POS riga (baseline)", DF_INT.format(posRow0)));
-         html.append(rowHtml("POS TOTALE (baseline)", DF_INT.format(totPos0)));
-         html.append(rowHtml("Premio mensile Q66", DF_INT.format(premioMens0)));
-         html.append(rowHtml("Mensilità P66", DF_INT.format(months)));
-         html.append(rowHtml("Premio annuo W66", DF_INT.format(premioAnn0)));
-         html.append(rowHtml("Premio in somma X66", DF_INT.format(x66_0)));
-         html.append("</table>");
-
-         // --- Step 1
-         html.append("<hr style='border:none;border-top:1px solid #eee;margin:10px 0;' />");
-         html.append("<div style='margin-bottom:6px;'><b>Step 1 — Dopo variazione</b> <span style='color:#666;'>(premio invariato)</span></div>");
-         html.append("<table style='border-collapse:collapse;width:100%;'>");
-         html.append(rowHtml("Leva modificata", whatChanged));
-         html.append(rowHtml("Q1", DF_INT.format(q1) + " kg"));
-         html.append(rowHtml("P1", DF_3.format(p1) + " €/kg"));
-         html.append(rowHtml("POS riga (calcolato)", DF_INT.format(posRow1_calc)));
-         html.append(rowHtml("POS TOTALE (calcolato)", DF_INT.format(totPos1_calc)));
-         html.append("</table>");
-
-         // --- Step 2
-         html.append("<hr style='border:none;border-top:1px solid #eee;margin:10px 0;' />");
-         html.append("<div style='margin-bottom:6px;'><b>Step 2 — Compensazione PREMIO</b> <span style='color:#666;'>(mantieni POS TOTALE costante)</span></div>");
-         html.append("<table style='border-collapse:collapse;width:100%;'>");
-         html.append(rowHtml("Target POS TOTALE", DF_INT.format(totPos0)));
-         html.append(rowHtml("Premio mensile* Q66", DF_INT.format(premioMensStar)));
-         html.append(rowHtml("Premio annuo* W66", DF_INT.format(premioAnnStar)));
-         html.append(rowHtml("Premio in somma* X66", DF_INT.format(x66_star1)));
-         double deltaPremioPct = (premioMens0 == 0) ? 0 : ((premioMensStar / premioMens0) - 1.0) * 100.0;
-         html.append(rowHtml("Δ Premio %", DF_2.format(deltaPremioPct) + "%"));
-         html.append("</table>");
+         String whatChanged = mode.isElastic()
+                 ? (mode.isQuantityDriven() ? "Quantità (kg) + P elastico" : "Prezzo (€/kg) + Q elastica")
+                 : (mode == SimulationMode.QUANTITY ? "Quantità (kg)" : "Prezzo (€/kg)");
 
-         // --- Check finale
-         html.append("<hr style='border:none;border-top:1px solid #eee;margin:10px 0;' />");
-         html.append("<div style='margin-bottom:6px;'><b>Check finale</b></div>");
-         html.append("<table style='border-collapse:collapse;width:100%;'>");
-         html.append(rowHtml("POS TOTALE dopo compensazione (calc)", DF_INT.format(totPos2_calc)));
-         html.append(rowHtml("Errore |totPos2 - totPos0|", DF_INT.format(Math.abs(totPos2_calc - totPos0))));
-         html.append("</table>");
-
-         html.append("</body></html>");
+         double deltaPremioPct = (premioMens0 == 0) ? 0 : ((premioMensStar / premioMens0) - 1.0) * 100.0;
 
-         premioView.getControlsPanel().setDetails(html.toString());
+         DetailSection sec = new DetailSection("Articolo: " + targetArt, targetCat)
+                 .line("<b>Percentuale applicata:</b> " + FormatService.dec2(percent) + "%")
+                 // --- Valori originali
+                 .group("Valori originali", null)
+                 .number("Q0", q0, DetailSection.Fmt.INT, "kg")
+                 .number("P0", p0, DetailSection.Fmt.DEC3, "€/kg")
+                 .number("CMP0", cmp0, DetailSection.Fmt.DEC3, "€/kg")
+                 .number("POS riga (baseline)", posRow0, DetailSection.Fmt.INT)
+                 .number("POS TOTALE (baseline)", totPos0, DetailSection.Fmt.INT)
+                 .number("Premio mensile Q66", premioMens0, DetailSection.Fmt.INT)
+                 .number("Mensilità P66", months, DetailSection.Fmt.INT)
+                 .number("Premio annuo W66", premioAnn0, DetailSection.Fmt.INT)
+                 .number("Premio in somma X66", x66_0, DetailSection.Fmt.INT)
+                 // --- Step 1
+                 .group("Step 1 — Dopo variazione", "(premio invariato)")
+                 .text("Leva modificata", whatChanged)
+                 .number("Q1", q1, DetailSection.Fmt.INT, "kg")
+                 .number("P1", p1, DetailSection.Fmt.DEC3, "€/kg")
+                 .number("POS riga (calcolato)", posRow1_calc, DetailSection.Fmt.INT)
+                 .number("POS TOTALE (calcolato)", totPos1_calc, DetailSection.Fmt.INT)
+                 // --- Step 2
+                 .group("Step 2 — Compensazione PREMIO", "(mantieni POS TOTALE costante)")
+                 .number("Target POS TOTALE", totPos0, DetailSection.Fmt.INT)
+                 .number("Premio mensile* Q66", premioMensStar, DetailSection.Fmt.INT)
+                 .number("Premio annuo* W66", premioAnnStar, DetailSection.Fmt.INT)
+                 .number("Premio in somma* X66", x66_star1, DetailSection.Fmt.INT)
+                 .number("Δ Premio %", deltaPremioPct, DetailSection.Fmt.DEC2, "%")
+                 // --- Check finale
+                 .group("Check finale", null)
+                 .number("POS TOTALE dopo compensazione (calc)", totPos2_calc, DetailSection.Fmt.INT)
+                 .number("Errore |totPos2 - totPos0|", Math.abs(totPos2_calc - totPos0), DetailSection.Fmt.INT);
+
+         premioView.getControlsPanel().beginDetails("Compensazione premio", null);
+         premioView.getControlsPanel().appendDetails(sec);
 
             // =========================================================
             // 7) Grafico POS totale (usa valori calcolati)
@@ -476,7 +506,7 @@ public class PremioCompController {
                     "POS Totale",
                     posTotDS
             );
-            configureCategoryChart(posChart, true);
+            ChartStyles.configureCategoryChart(posChart, true);
             premioView.setPosChart(posChart);
 
          // =========================================================
@@ -487,7 +517,7 @@ public class PremioCompController {
          DefaultCategoryDataset levaDS = new DefaultCategoryDataset();
          DefaultCategoryDataset premioDS = new DefaultCategoryDataset();
 
-         if (mode == SimulationMode.QUANTITY) {
+         if (mode.isQuantityDriven()) {
              levaDS.addValue(q0, "Quantità (kg)", "Originale");
              levaDS.addValue(q1, "Quantità (kg)", "Dopo variazione");
              levaDS.addValue(q1, "Quantità (kg)", "Dopo compensazione");
@@ -507,7 +537,7 @@ public class PremioCompController {
          premioDS.addValue(premioAnnStar,  "Premio annuo (W66)", "Dopo compensazione");
 
          // Base chart: BAR per la leva
-         String yLabelLeva = (mode == SimulationMode.QUANTITY) ? "Quantità (kg)" : "Prezzo (€/kg)";
+         String yLabelLeva = mode.isQuantityDriven() ? "Quantità (kg)" : "Prezzo (€/kg)";
          JFreeChart premioChart = ChartFactory.createBarChart(
                  "Leva + Premio – " + targetArt,
                  "Scenario",
@@ -529,9 +559,7 @@ public class PremioCompController {
          LineAndShapeRenderer r2 = new LineAndShapeRenderer(true, true);
          r2.setDefaultShapesVisible(true);
          r2.setDefaultItemLabelsVisible(true);
-         r2.setDefaultItemLabelGenerator(
-                 new StandardCategoryItemLabelGenerator("{2}", new DecimalFormat("#,##0"))
-         );
+         r2.setDefaultItemLabelGenerator(ChartStyles.valueLabels(true));
          r2.setDefaultStroke(new BasicStroke(2.0f));
          plot.setRenderer(1, r2);
 
@@ -539,16 +567,20 @@ public class PremioCompController {
          plot.setDatasetRenderingOrder(org.jfree.chart.plot.DatasetRenderingOrder.FORWARD);
 
          // stile generale (griglia, font, label ecc.)
-         configureCategoryChart(premioChart, false);
+         ChartStyles.configureCategoryChart(premioChart, false);
 
          premioView.setPremioChart(premioChart);
 
 
 
+            act.mark("dettagli e grafici");
+
             // =========================================================
             // 9) Salva
             // =========================================================
             excelRepo.safeSaveWorkbook(wb);
+            act.count("bytes salvati", model.getWorkingExcelCopy().length());
+            act.mark("salvataggio");
 
         } catch (Exception ex) {
             log.error("[PREMIO] Errore simulazione", ex);
@@ -556,12 +588,20 @@ public class PremioCompController {
         }
     }
 
+    private ElasticityTable getOrLoadElasticities() throws Exception {
+        if (cachedElasticities == null) {
+            cachedElasticities = elasticityService.loadTable(model.getWorkingExcelCopy(), model.getOriginalExcel());
+        }
+        return cachedElasticities;
+    }
+
     /**
      * Imposta Q66 (premio mensile) e aggiorna coerentemente:
      * - W66 = Q66 * P66 (forzato)
      * - X66 = ±W66 (forzato)
      */
-    private void setPremioMensile(Sheet sh, FormulaEvaluator eval, double premioMensile, double months, int signX66) {
+    private void setPremioMensile(MetricsService.Action act, Sheet sh, FormulaEvaluator eval,
+                                  double premioMensile, double months, int signX66) {
         // Q66
         writeNumericCell(sh, ROW_66, COL_Q, premioMensile);
 
@@ -572,7 +612,14 @@ public class PremioCompController {
         // X66 = ±W66 (forzato)
         writeNumericCell(sh, ROW_66, COL_X, signX66 * premioAnnuo);
 
-        if (eval != null) eval.evaluateAll();
+        if (eval != null) evaluateAll(act, eval);
+    }
+
+    /** eval è del workbook aperto con openWorkingCopy: dopo il salvataggio le formule nel file sono aggiornate. */
+    private void evaluateAll(MetricsService.Action act, FormulaEvaluator eval) {
+        eval.evaluateAll();
+        excelRepo.markFullyCalculated();
+        act.increment(C_EVALUATE_ALL);
     }
 
     /**
@@ -618,6 +665,11 @@ public class PremioCompController {
         return 0.0;
     }
 
+    /** Scrittura su Ricavi registrata nel journal della working copy. */
+    private void writeNumeric(Sheet sh, int rowIdx, int colIdx, double value) {
+        excelRepo.recordCellWrite(ricaviService.writeNumeric(sh, rowIdx, colIdx, value), false);
+    }
+
     private void writeNumericCell(Sheet sh, int rowIdx, int colIdx, double value) {
         Row row = sh.getRow(rowIdx);
         if (row == null) row = sh.createRow(rowIdx);
@@ -625,77 +677,6 @@ public class PremioCompController {
         Cell c = row.getCell(colIdx, Row.MissingCellPolicy.CREATE_NULL_AS_BLANK);
         c.setCellType(CellType.NUMERIC);
         c.setCellValue(value);
+        excelRepo.recordCellWrite(c, true);
     }
-
-    private void configureCategoryChart(JFreeChart chart, boolean integerValues) {
-        CategoryPlot plot = chart.getCategoryPlot();
-
-        // --- estetica base
-        chart.setBackgroundPaint(Color.WHITE);
-        plot.setBackgroundPaint(new Color(250, 250, 250));
-        plot.setOutlineVisible(false);
-        plot.setRangeGridlinePaint(new Color(220, 220, 220));
-        plot.setDomainGridlinePaint(new Color(220, 220, 220));
-        plot.setRangeGridlinesVisible(true);
-        plot.setDomainGridlinesVisible(true);
-
-        // --- font
-        Font axisFont = new Font("SansSerif", Font.PLAIN, 12);
-        Font tickFont = new Font("SansSerif", Font.PLAIN, 11);
-
-        CategoryAxis domain = plot.getDomainAxis();
-        domain.setLabelFont(axisFont);
-        domain.setTickLabelFont(tickFont);
-
-        int cols = (plot.getDataset() != null) ? plot.getDataset().getColumnCount() : 0;
-        if (cols > 4) {
-            domain.setCategoryLabelPositions(
-                    CategoryLabelPositions.createUpRotationLabelPositions(Math.PI / 8.0)
-            );
-        } else {
-            domain.setCategoryLabelPositions(CategoryLabelPositions.STANDARD);
-        }
-
-        // --- asse Y "sensato"
-        NumberFormat fmt = integerValues
-                ? new DecimalFormat("#,##0")
-                : new DecimalFormat("#,##0.000");
-
-        if (plot.getRangeAxis() instanceof NumberAxis) {
-            NumberAxis range = (NumberAxis) plot.getRangeAxis();
-            range.setLabelFont(axisFont);
-            range.setTickLabelFont(tickFont);
-
-            range.setNumberFormatOverride(fmt);
-            range.setAutoRangeIncludesZero(true);
-
-            if (integerValues) {
-                range.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
-            }
-
-            range.setUpperMargin(0.15);
-            range.setLowerMargin(0.10);
-        }
-
-        // --- renderer: Bar chart
-        if (plot.getRenderer() instanceof BarRenderer) {
-            BarRenderer r = (BarRenderer) plot.getRenderer();
-            r.setShadowVisible(false);
-            r.setBarPainter(new StandardBarPainter());
-
-            r.setDefaultItemLabelsVisible(true);
-            r.setDefaultItemLabelGenerator(new StandardCategoryItemLabelGenerator("{2}", fmt));
-            r.setDefaultItemLabelFont(new Font("SansSerif", Font.PLAIN, 11));
-        }
-
-        // --- renderer: Line chart (se qualche grafico rimane a linee)
-        if (plot.getRenderer() instanceof LineAndShapeRenderer) {
-            LineAndShapeRenderer r = (LineAndShapeRenderer) plot.getRenderer();
-
-            r.setDefaultShapesVisible(true);
-            r.setDefaultItemLabelsVisible(true);
-            r.setDefaultItemLabelGenerator(new StandardCategoryItemLabelGenerator("{2}", fmt));
-            r.setDefaultStroke(new BasicStroke(2.0f));
-        }
-    }
-}
\ No newline at end of file
+}
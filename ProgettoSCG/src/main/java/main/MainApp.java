@@ -7,6 +7,7 @@ import view.MainFrame;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
 
 import javax.swing.SwingUtilities;
 
@@ -15,8 +16,14 @@ public class MainApp {
     private static final Logger log = LogManager.getLogger(MainApp.class);
 
     public static void main(String[] args) {
+        long t0 = System.nanoTime();
         log.info("Avvio applicazione...");
 
+        if (Boolean.getBoolean("scg.cdsTraining")) { // build: profilo Maven "cds"
+            Warmup.train();
+            return;
+        }
+
         SwingUtilities.invokeLater(() -> {
             AppModel model = new AppModel();
             MainFrame view = new MainFrame();
@@ -25,7 +32,11 @@ public class MainApp {
             new MainController(model, view, repo);
 
             view.setVisible(true);
-            log.info("GUI mostrata.");
+            log.info("GUI mostrata in {} ms.", Unbox.box((System.nanoTime() - t0) / 1_000_000L));
+
+            // POI/XMLBeans caricati mentre l'utente sceglie il file; accodato dopo il controllo
+            // della sessione del controller, che inizializza il workspace (file temporanei POI)
+            SwingUtilities.invokeLater(Warmup::startInBackground);
         });
     }
 }
@@ -0,0 +1,123 @@
+package main;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.util.TempFile;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.jfree.chart.JFreeChart;
+import org.jfree.data.category.DefaultCategoryDataset;
+
+import view.ChartStyles;
+
+/**
+ * Riscaldamento all'avvio. Il primo WorkbookFactory.create paga il caricamento delle classi di POI
+ * e l'inizializzazione degli schemi XMLBeans: lo si fa su un thread a bassa priorità mentre la
+ * finestra è già visibile (-Dscg.warmup=false per disattivarlo).
+ *
+ * Con -Dscg.cdsTraining=true è l'esecuzione di addestramento del profilo Maven "cds": carica le
+ * classi dei percorsi principali (POI, grafici, interfaccia) senza aprire finestre ed esce,
+ * così l'archivio AppCDS le contiene.
+ */
+final class Warmup {
+
+    private static final Logger log = LogManager.getLogger(Warmup.class);
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("scg.warmup", "true"));
+
+    /** Classi dell'interfaccia caricate (non inizializzate) nell'esecuzione di addestramento. */
+    private static final String[] UI_CLASSES = {
+            "view.MainFrame", "view.SimulationControlsPanel", "view.ChartsPanel", "view.ArticleDashboardPanel",
+            "view.CeBudgetFrame", "view.PremioCompFrame", "controller.MainController",
+            "controller.PremioCompController", "org.jfree.chart.ChartPanel"
+    };
+
+    private Warmup() {
+    }
+
+    static void startInBackground() {
+        if (!ENABLED) return;
+        Thread t = new Thread(Warmup::warmPoi, "scg-warmup");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /** Esecuzione di addestramento per l'archivio CDS (vedi pom.xml, profilo "cds"). */
+    static void train() {
+        warmPoi();
+        warmCharts();
+        int loaded = 0;
+        for (String name : UI_CLASSES) {
+            try {
+                Class.forName(name, false, Warmup.class.getClassLoader());
+                loaded++;
+            } catch (ClassNotFoundException | LinkageError ex) {
+                log.warn("Classe non caricata per CDS: {} ({})", name, ex.toString());
+            }
+        }
+        log.info("Addestramento CDS completato: {} classi interfaccia caricate", Unbox.box(loaded));
+    }
+
+    /**
+     * Scrive, riapre da file e ricalcola un piccolo .xlsx: stesso percorso del primo caricamento.
+     * Il file passa da TempFile di POI: proc/&lt;id&gt;/poifiles del workspace se già inizializzato
+     * (avvio normale), altrimenti la cartella predefinita di POI (addestramento CDS).
+     */
+    private static void warmPoi() {
+        long t0 = System.nanoTime();
+        File tmp = null;
+        try {
+            tmp = TempFile.createTempFile("scg-warmup_", ".xlsx");
+            try (XSSFWorkbook wb = new XSSFWorkbook()) {
+                Sheet sh = wb.createSheet("Ricavi");
+                Row r = sh.createRow(0);
+                r.createCell(0).setCellValue("Cat");
+                r.createCell(1).setCellValue(2.5);
+                r.createCell(2).setCellFormula("SUM(B1:B1)*2");
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    wb.write(out);
+                }
+            }
+            try (Workbook wb = WorkbookFactory.create(tmp, null, true)) {
+                FormulaEvaluator eval = wb.getCreationHelper().createFormulaEvaluator();
+                eval.evaluateAll();
+                new DataFormatter().formatCellValue(wb.getSheetAt(0).getRow(0).getCell(2), eval);
+            }
+            log.info("Warm-up POI completato in {} ms", Unbox.box((System.nanoTime() - t0) / 1_000_000L));
+        } catch (IOException | RuntimeException ex) {
+            log.debug("Warm-up POI non riuscito: {}", ex.toString());
+        } finally {
+            if (tmp != null && tmp.exists() && !tmp.delete()) tmp.deleteOnExit();
+        }
+    }
+
+    /** Un grafico disegnato su immagine (funziona anche headless). */
+    private static void warmCharts() {
+        DefaultCategoryDataset ds = new DefaultCategoryDataset();
+        ds.addValue(1.0, "CE", "Ricavi");
+        ds.addValue(-0.5, "CE", "Costi");
+        JFreeChart chart = ChartStyles.ceBudgetChart("CE", ds);
+        BufferedImage img = new BufferedImage(320, 200, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        try {
+            chart.draw(g, new Rectangle2D.Double(0, 0, 320, 200));
+        } finally {
+            g.dispose();
+        }
+    }
+}
@@ -17,6 +17,10 @@ public class ArticleRow {
 
     private final int colPos;
 
+    // true se il valore "vero" è in $/kg e quello in €/kg ne deriva (formula sul cambio)
+    private final boolean priceIsUSDInput;
+    private final boolean cmpIsUSDInput;
+
     public ArticleRow(String cat,
                       String articolo,
                       String categoria,
@@ -27,6 +31,23 @@ public class ArticleRow {
                       int colCMPmedioEUR,
                       int colCMPmedioUSD,
                       int colPos) {
+        this(cat, articolo, categoria, rowIndex, colQty,
+                colPmedioEUR, colPmedioUSD, colCMPmedioEUR, colCMPmedioUSD, colPos,
+                false, false);
+    }
+
+    public ArticleRow(String cat,
+                      String articolo,
+                      String categoria,
+                      int rowIndex,
+                      int colQty,
+                      int colPmedioEUR,
+                      int colPmedioUSD,
+                      int colCMPmedioEUR,
+                      int colCMPmedioUSD,
+                      int colPos,
+                      boolean priceIsUSDInput,
+                      boolean cmpIsUSDInput) {
         this.cat = cat;
         this.articolo = articolo;
         this.categoria = categoria;
@@ -37,6 +58,8 @@ public class ArticleRow {
         this.colCMPmedioEUR = colCMPmedioEUR;
         this.colCMPmedioUSD = colCMPmedioUSD;
         this.colPos = colPos;
+        this.priceIsUSDInput = priceIsUSDInput;
+        this.cmpIsUSDInput = cmpIsUSDInput;
     }
 
     public String getCat() { return cat; }
@@ -58,8 +81,9 @@ public class ArticleRow {
         return articolo + " (" + cat + ")";
     }
 
-	public boolean isPriceIsUSDInput() {
-		// TODO Auto-generated method stub
-		return false;
-	}
+    /** true se il P medio è inserito in $/kg (il P medio €/kg è una formula sul cambio). */
+    public boolean isPriceIsUSDInput() { return priceIsUSDInput; }
+
+    /** true se il CMP medio è inserito in $/kg (il CMP medio €/kg è una formula sul cambio). */
+    public boolean isCmpIsUSDInput() { return cmpIsUSDInput; }
 }
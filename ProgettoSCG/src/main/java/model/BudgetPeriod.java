@@ -0,0 +1,33 @@
+package model;
+
+/**
+ * Un periodo del budget (anno o mese): dove leggere il CE (foglio + colonna valori)
+ * e quale foglio Ricavi lo alimenta.
+ */
+public class BudgetPeriod {
+
+    private final String label;           // es. "2023" o "GEN 2023"
+    private final String year;            // "" se non riconoscibile
+    private final String ceSheetName;
+    private final int valueCol;           // colonna valori CE (0-based)
+    private final String ricaviSheetName; // null se il workbook non ha fogli Ricavi
+
+    public BudgetPeriod(String label, String year, String ceSheetName, int valueCol, String ricaviSheetName) {
+        this.label = label;
+        this.year = year;
+        this.ceSheetName = ceSheetName;
+        this.valueCol = valueCol;
+        this.ricaviSheetName = ricaviSheetName;
+    }
+
+    public String getLabel() { return label; }
+    public String getYear() { return year; }
+    public String getCeSheetName() { return ceSheetName; }
+    public int getValueCol() { return valueCol; }
+    public String getRicaviSheetName() { return ricaviSheetName; }
+
+    @Override
+    public String toString() {
+        return label + " [" + ceSheetName + " col " + (valueCol + 1) + ", " + ricaviSheetName + "]";
+    }
+}
@@ -0,0 +1,63 @@
+package model;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Elasticità prezzo-domanda (ε) per articolo / categoria.
+ * Precedenza: articolo -> Categoria (testo libero) -> Cat (MP/PFP/PFV/PFA) -> default.
+ *
+ * Il valore risolto è messo in cache per ID articolo ("CAT||ARTICOLO"),
+ * così batch e sweep non ripetono la ricerca.
+ */
+public class ElasticityTable {
+
+    private final Map<String, Double> byArticle;
+    private final Map<String, Double> byCategory;
+    private final double defaultValue; // NaN = nessun default
+
+    private final Map<String, Double> resolved = new ConcurrentHashMap<>();
+
+    public ElasticityTable(Map<String, Double> byArticle, Map<String, Double> byCategory, double defaultValue) {
+        this.byArticle = new HashMap<>(byArticle);
+        this.byCategory = new HashMap<>(byCategory);
+        this.defaultValue = defaultValue;
+    }
+
+    public static String articleId(ArticleRow a) {
+        String cat = (a.getCat() == null) ? "" : a.getCat().trim().toUpperCase();
+        String art = (a.getArticolo() == null) ? "" : a.getArticolo().trim().toUpperCase();
+        return cat + "||" + art;
+    }
+
+    /** ε dell'articolo; eccezione se non definita (né specifica né default). */
+    public double get(ArticleRow a) {
+        return resolved.computeIfAbsent(articleId(a), id -> {
+            Double v = lookup(a);
+            if (v == null) {
+                throw new IllegalStateException("Elasticità non definita per l'articolo " + a.getArticolo() + ".");
+            }
+            return v;
+        });
+    }
+
+    private Double lookup(ArticleRow a) {
+        String art = (a.getArticolo() == null) ? "" : a.getArticolo().trim().toUpperCase();
+        Double v = byArticle.get(art);
+        if (v != null) return v;
+
+        String categoria = (a.getCategoria() == null) ? "" : a.getCategoria().trim().toUpperCase();
+        v = byCategory.get(categoria);
+        if (v != null) return v;
+
+        String cat = (a.getCat() == null) ? "" : a.getCat().trim().toUpperCase();
+        v = byCategory.get(cat);
+        if (v != null) return v;
+
+        return Double.isNaN(defaultValue) ? null : defaultValue;
+    }
+
+    public int size() { return byArticle.size() + byCategory.size(); }
+    public boolean hasDefault() { return !Double.isNaN(defaultValue); }
+}
@@ -0,0 +1,96 @@
+package model;
+
+/**
+ * Esito di una simulazione Monte Carlo.
+ * Le distribuzioni di POS totale e MOL sono mantenute ordinate (crescente)
+ * così percentili e VaR si leggono direttamente per indice.
+ */
+public class MonteCarloResult {
+
+    public static final double[] PERCENTILES = {1, 5, 10, 25, 50, 75, 90, 95, 99};
+
+    private final int draws;
+    private final long seed;
+    private final long elapsedMs;
+
+    private final double posTot0;
+    private final double mol0;
+
+    private final double[] posTotSorted;
+    private final double[] molSorted;      // null se MOL base non disponibile
+
+    private final double[] articleMeanPos; // media POS per articolo
+    private final double[] articleStdPos;  // dev. std POS per articolo
+
+    public MonteCarloResult(int draws, long seed, long elapsedMs,
+                            double posTot0, double mol0,
+                            double[] posTotSorted, double[] molSorted,
+                            double[] articleMeanPos, double[] articleStdPos) {
+        this.draws = draws;
+        this.seed = seed;
+        this.elapsedMs = elapsedMs;
+        this.posTot0 = posTot0;
+        this.mol0 = mol0;
+        this.posTotSorted = posTotSorted;
+        this.molSorted = molSorted;
+        this.articleMeanPos = articleMeanPos;
+        this.articleStdPos = articleStdPos;
+    }
+
+    public int getDraws() { return draws; }
+    public long getSeed() { return seed; }
+    public long getElapsedMs() { return elapsedMs; }
+
+    public double getPosTot0() { return posTot0; }
+    public double getMol0() { return mol0; }
+    public boolean hasMol() { return molSorted != null; }
+
+    public double[] getPosTotSorted() { return posTotSorted; }
+    public double[] getMolSorted() { return molSorted; }
+
+    public double[] getArticleMeanPos() { return articleMeanPos; }
+    public double[] getArticleStdPos() { return articleStdPos; }
+
+    // ===========================
+    // Statistiche
+    // ===========================
+
+    /** Percentile (0..100) con interpolazione lineare su array ordinato. */
+    public static double percentile(double[] sorted, double pct) {
+        if (sorted == null || sorted.length == 0) return Double.NaN;
+        double pos = (pct / 100.0) * (sorted.length - 1);
+        int lo = (int) Math.floor(pos);
+        int hi = Math.min(sorted.length - 1, lo + 1);
+        double w = pos - lo;
+        return sorted[lo] * (1.0 - w) + sorted[hi] * w;
+    }
+
+    public static double mean(double[] v) {
+        if (v == null || v.length == 0) return Double.NaN;
+        double s = 0.0;
+        for (double x : v) s += x;
+        return s / v.length;
+    }
+
+    public static double std(double[] v) {
+        if (v == null || v.length < 2) return 0.0;
+        double m = mean(v);
+        double s = 0.0;
+        for (double x : v) s += (x - m) * (x - m);
+        return Math.sqrt(s / (v.length - 1));
+    }
+
+    /** VaR al livello conf (es. 95): perdita rispetto alla base al percentile (100-conf). */
+    public static double valueAtRisk(double[] sorted, double base, double conf) {
+        return base - percentile(sorted, 100.0 - conf);
+    }
+
+    /** Expected shortfall: perdita media nella coda peggiore (100-conf)%. */
+    public static double expectedShortfall(double[] sorted, double base, double conf) {
+        if (sorted == null || sorted.length == 0) return Double.NaN;
+        int tail = Math.max(1, (int) Math.floor(sorted.length * (100.0 - conf) / 100.0));
+        double s = 0.0;
+        for (int i = 0; i < tail; i++) s += sorted[i];
+        return base - (s / tail);
+    }
+}
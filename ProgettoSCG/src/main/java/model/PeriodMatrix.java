@@ -0,0 +1,47 @@
+package model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Esito di una simulazione multi-periodo: matrice periodo × voce,
+ * valori base e dopo variazione (stessi indici).
+ */
+public class PeriodMatrix {
+
+    private final List<BudgetPeriod> periods;
+    private final String[] lines;
+    private final double[][] base;   // [periodo][voce]
+    private final double[][] after;  // [periodo][voce]
+    private final long elapsedMs;
+
+    public PeriodMatrix(List<BudgetPeriod> periods, String[] lines, double[][] base, double[][] after, long elapsedMs) {
+        if (base.length != periods.size() || after.length != periods.size()) {
+            throw new IllegalArgumentException("Matrice periodi: righe diverse dal numero di periodi.");
+        }
+        this.periods = Collections.unmodifiableList(periods);
+        this.lines = lines;
+        this.base = base;
+        this.after = after;
+        this.elapsedMs = elapsedMs;
+    }
+
+    public List<BudgetPeriod> getPeriods() { return periods; }
+    public String[] getLines() { return lines; }
+    public int periodCount() { return periods.size(); }
+    public int lineCount() { return lines.length; }
+
+    public double getBase(int period, int line) { return base[period][line]; }
+    public double getAfter(int period, int line) { return after[period][line]; }
+    public double getDelta(int period, int line) { return after[period][line] - base[period][line]; }
+
+    /** Totale su tutti i periodi di una voce (base o dopo variazione). */
+    public double total(int line, boolean afterVar) {
+        double[][] m = afterVar ? after : base;
+        double s = 0.0;
+        for (double[] row : m) s += row[line];
+        return s;
+    }
+
+    public long getElapsedMs() { return elapsedMs; }
+}
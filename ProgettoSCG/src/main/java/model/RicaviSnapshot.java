@@ -0,0 +1,96 @@
+package model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fotografia in memoria dei valori base della tabella destra "Ricavi".
+ * Un indice per articolo (stesso ordine di {@link #getArticles()}), valori in array primitivi:
+ * così i calcoli massivi (Monte Carlo, sensitività, ...) girano senza toccare POI.
+ *
+ * NB: gli array sono esposti direttamente per velocità: NON modificarli.
+ */
+public class RicaviSnapshot {
+
+    private final List<ArticleRow> articles;
+
+    private final double[] q0;    // Quantità (kg)
+    private final double[] p0;    // P medio (€/kg)
+    private final double[] cmp0;  // CMP medio (€/kg)
+    private final double[] pos0;  // POS riga (valore Excel)
+    private final boolean[] mp;   // true = articolo MP (impatta Acquisto MP nel CE)
+
+    private final double[] pUsd0;   // P medio ($/kg), 0 se non presente
+    private final double[] cmpUsd0; // CMP medio ($/kg), 0 se non presente
+
+    private final double mol0;    // MOL CE Budget (NaN se non disponibile)
+
+    public RicaviSnapshot(List<ArticleRow> articles,
+                          double[] q0, double[] p0, double[] cmp0, double[] pos0,
+                          double mol0) {
+        this(articles, q0, p0, cmp0, pos0, new double[articles.size()], new double[articles.size()], mol0);
+    }
+
+    public RicaviSnapshot(List<ArticleRow> articles,
+                          double[] q0, double[] p0, double[] cmp0, double[] pos0,
+                          double[] pUsd0, double[] cmpUsd0,
+                          double mol0) {
+        int n = articles.size();
+        if (q0.length != n || p0.length != n || cmp0.length != n || pos0.length != n
+                || pUsd0.length != n || cmpUsd0.length != n) {
+            throw new IllegalArgumentException("Snapshot Ricavi: array di lunghezza diversa dal numero articoli.");
+        }
+        this.articles = Collections.unmodifiableList(articles);
+        this.q0 = q0;
+        this.p0 = p0;
+        this.cmp0 = cmp0;
+        this.pos0 = pos0;
+        this.pUsd0 = pUsd0;
+        this.cmpUsd0 = cmpUsd0;
+        this.mol0 = mol0;
+
+        this.mp = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            String cat = articles.get(i).getCat();
+            mp[i] = cat != null && cat.trim().toUpperCase().startsWith("MP");
+        }
+    }
+
+    public int size() { return articles.size(); }
+
+    public List<ArticleRow> getArticles() { return articles; }
+    public ArticleRow getArticle(int i) { return articles.get(i); }
+
+    public double[] getQ0() { return q0; }
+    public double[] getP0() { return p0; }
+    public double[] getCmp0() { return cmp0; }
+    public double[] getPos0() { return pos0; }
+    public boolean[] getMp() { return mp; }
+
+    public double[] getPUsd0() { return pUsd0; }
+    public double[] getCmpUsd0() { return cmpUsd0; }
+
+    public double getMol0() { return mol0; }
+    public boolean hasMol() { return !Double.isNaN(mol0); }
+
+    /** POS totale base calcolato come somma (p-cmp)*q sugli articoli simulabili. */
+    public double getPosTot0() {
+        double tot = 0.0;
+        for (int i = 0; i < q0.length; i++) tot += (p0[i] - cmp0[i]) * q0[i];
+        return tot;
+    }
+
+    /** Indice dell'articolo (chiave "CAT||ARTICOLO"), -1 se assente. */
+    public int indexOf(String cat, String articolo) {
+        String c = (cat == null) ? "" : cat.trim().toUpperCase();
+        String a = (articolo == null) ? "" : articolo.trim().toUpperCase();
+        for (int i = 0; i < articles.size(); i++) {
+            ArticleRow r = articles.get(i);
+            if (c.equals(r.getCat() == null ? "" : r.getCat().trim().toUpperCase())
+                    && a.equals(r.getArticolo() == null ? "" : r.getArticolo().trim().toUpperCase())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,54 @@
+package model;
+
+/**
+ * Impatto di una singola leva di un articolo per ±x% (analisi di sensitività / tornado).
+ */
+public class SensitivityEntry {
+
+    /** Leve considerate dall'analisi (CMP in più rispetto a {@link SimulationMode}). */
+    public enum Lever {
+        QUANTITY("Q"),
+        PRICE("P"),
+        CMP("CMP");
+
+        private final String label;
+
+        Lever(String label) { this.label = label; }
+
+        public String getLabel() { return label; }
+    }
+
+    private final ArticleRow article;
+    private final Lever lever;
+
+    private final double dPosDown; // ΔPOS totale con leva -x%
+    private final double dPosUp;   // ΔPOS totale con leva +x%
+    private final double dMolDown; // ΔMOL con leva -x%
+    private final double dMolUp;   // ΔMOL con leva +x%
+
+    public SensitivityEntry(ArticleRow article, Lever lever,
+                            double dPosDown, double dPosUp,
+                            double dMolDown, double dMolUp) {
+        this.article = article;
+        this.lever = lever;
+        this.dPosDown = dPosDown;
+        this.dPosUp = dPosUp;
+        this.dMolDown = dMolDown;
+        this.dMolUp = dMolUp;
+    }
+
+    public ArticleRow getArticle() { return article; }
+    public Lever getLever() { return lever; }
+
+    public double getDPosDown() { return dPosDown; }
+    public double getDPosUp() { return dPosUp; }
+    public double getDMolDown() { return dMolDown; }
+    public double getDMolUp() { return dMolUp; }
+
+    /** Ampiezza usata per l'ordinamento del tornado. */
+    public double getSwing() { return Math.max(Math.abs(dPosDown), Math.abs(dPosUp)); }
+
+    public String getLabel() {
+        return article.getArticolo() + " – " + lever.getLabel();
+    }
+}
@@ -3,5 +3,20 @@ package model;
 /** Leva modificata dall'utente. */
 public enum SimulationMode {
     QUANTITY,
-    PRICE
+    PRICE,
+
+    /** Varia il prezzo; la quantità segue l'elasticità dell'articolo. */
+    ELASTIC_PRICE,
+
+    /** Varia la quantità; il prezzo è quello implicito nell'elasticità dell'articolo. */
+    ELASTIC_QUANTITY;
+
+    /** true se la leva "primaria" è la quantità (in compensazione si agisce sul prezzo). */
+    public boolean isQuantityDriven() {
+        return this == QUANTITY || this == ELASTIC_QUANTITY;
+    }
+
+    public boolean isElastic() {
+        return this == ELASTIC_PRICE || this == ELASTIC_QUANTITY;
+    }
 }
@@ -0,0 +1,252 @@
+package repository;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+
+/**
+ * Evaluator per letture: restituisce il risultato delle formule salvato nel file
+ * (getCachedFormulaResultType) e valuta solo dove il valore salvato può essere vecchio:
+ * fogli con scritture non ancora ricalcolate, fogli che li referenziano (anche tramite nomi),
+ * formule senza risultato salvato. Su una working copy non toccata non valuta nessuna formula.
+ *
+ * Ottenuto da {@link ExcelRepository#readEvaluator}.
+ */
+public final class CachedFormulaEvaluator implements FormulaEvaluator {
+
+    private final Workbook wb;
+    private final FormulaEvaluator delegate;
+    private final Set<String> stale = new HashSet<>();   // nomi foglio in minuscolo
+    private final boolean allStale;
+    private Map<String, Set<String>> deps;               // foglio -> fogli referenziati dalle sue formule
+    private int evaluated;
+
+    CachedFormulaEvaluator(Workbook wb, Collection<String> staleSheets, boolean allStale) {
+        this.wb = wb;
+        this.delegate = wb.getCreationHelper().createFormulaEvaluator();
+        this.allStale = allStale;
+        for (String s : staleSheets) markStale(s);
+    }
+
+    /** true se tutte le formule si leggono dal file. */
+    public boolean isClean() {
+        return !allStale && stale.isEmpty();
+    }
+
+    /** Formule valutate davvero (non lette dal risultato salvato). */
+    public int getEvaluatedCells() {
+        return evaluated;
+    }
+
+    // ===========================
+    // Letture
+    // ===========================
+
+    @Override
+    public CellValue evaluate(Cell cell) {
+        if (cell == null || cell.getCellType() != CellType.FORMULA || !useCached(cell)) {
+            if (cell != null && cell.getCellType() == CellType.FORMULA) evaluated++;
+            return delegate.evaluate(cell);
+        }
+        switch (cell.getCachedFormulaResultType()) {
+            case NUMERIC:
+                return new CellValue(cell.getNumericCellValue());
+            case STRING:
+                return new CellValue(cell.getStringCellValue());
+            case BOOLEAN:
+                return CellValue.valueOf(cell.getBooleanCellValue());
+            case ERROR:
+                return CellValue.getError(cell.getErrorCellValue());
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public CellType evaluateFormulaCell(Cell cell) {
+        if (cell == null || cell.getCellType() != CellType.FORMULA) return CellType._NONE;
+        if (useCached(cell)) return cell.getCachedFormulaResultType();
+        evaluated++;
+        return delegate.evaluateFormulaCell(cell);
+    }
+
+    /** Ricalcola (in memoria) solo le formule dei fogli non puliti; poi tutto si legge dal workbook. */
+    @Override
+    public void evaluateAll() {
+        if (isClean()) return;
+        for (Sheet sh : wb) {
+            if (!allStale && !stale.contains(key(sh))) continue;
+            for (Row r : sh) {
+                for (Cell c : r) {
+                    if (c.getCellType() != CellType.FORMULA) continue;
+                    delegate.evaluateFormulaCell(c);
+                    evaluated++;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Cell evaluateInCell(Cell cell) {
+        if (cell != null && cell.getCellType() == CellType.FORMULA) {
+            if (!useCached(cell)) {
+                evaluated++;
+                return delegate.evaluateInCell(cell);
+            }
+            cell.removeFormula(); // resta il risultato salvato
+        }
+        return cell;
+    }
+
+    private boolean useCached(Cell cell) {
+        if (allStale || stale.contains(key(cell.getSheet()))) return false;
+        // formula mai calcolata (es. file scritto da POI senza ricalcolo): nessun risultato salvato
+        return !(cell instanceof XSSFCell) || ((XSSFCell) cell).getCTCell().isSetV();
+    }
+
+    // ===========================
+    // Scritture: il foglio e quelli che ne dipendono non sono più puliti
+    // ===========================
+
+    @Override
+    public void notifySetFormula(Cell cell) {
+        delegate.notifySetFormula(cell);
+        markStale(cell.getSheet().getSheetName());
+    }
+
+    @Override
+    public void notifyDeleteCell(Cell cell) {
+        delegate.notifyDeleteCell(cell);
+        markStale(cell.getSheet().getSheetName());
+    }
+
+    @Override
+    public void notifyUpdateCell(Cell cell) {
+        delegate.notifyUpdateCell(cell);
+        markStale(cell.getSheet().getSheetName());
+    }
+
+    @Override
+    public void clearAllCachedResultValues() {
+        delegate.clearAllCachedResultValues();
+    }
+
+    @Override
+    public void setupReferencedWorkbooks(Map<String, FormulaEvaluator> workbooks) {
+        delegate.setupReferencedWorkbooks(workbooks);
+    }
+
+    @Override
+    public void setIgnoreMissingWorkbooks(boolean ignore) {
+        delegate.setIgnoreMissingWorkbooks(ignore);
+    }
+
+    @Override
+    public void setDebugEvaluationOutputForNextEval(boolean value) {
+        delegate.setDebugEvaluationOutputForNextEval(value);
+    }
+
+    // ===========================
+    // Dipendenze tra fogli
+    // ===========================
+
+    /** Il foglio e, a catena, quelli con formule che lo referenziano. */
+    private void markStale(String sheetName) {
+        if (!stale.add(sheetName.toLowerCase(Locale.ROOT))) return;
+        if (deps == null) deps = sheetDependencies();
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (Map.Entry<String, Set<String>> e : deps.entrySet()) {
+                if (stale.contains(e.getKey())) continue;
+                for (String ref : e.getValue()) {
+                    if (stale.contains(ref)) {
+                        stale.add(e.getKey());
+                        grown = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fogli referenziati dalle formule di ogni foglio, cercando nel testo "Foglio!" / "'Foglio'!"
+     * e i nomi definiti. Per eccesso (un foglio di più è solo valutato, non sbagliato);
+     * INDIRECT/OFFSET o 3D possono puntare ovunque: il foglio dipende da tutti.
+     */
+    private Map<String, Set<String>> sheetDependencies() {
+        Map<String, String> tokens = new HashMap<>(); // "foglio!" / "'foglio'!" -> foglio
+        Set<String> all = new HashSet<>();
+        for (Sheet sh : wb) {
+            String k = key(sh);
+            all.add(k);
+            tokens.put(k + "!", k);
+            tokens.put("'" + k.replace("'", "''") + "'!", k);
+        }
+
+        Map<String, Set<String>> names = new HashMap<>(); // nome definito -> fogli
+        for (Name n : wb.getAllNames()) {
+            String refers = n.getRefersToFormula();
+            if (refers == null) continue;
+            names.put(n.getNameName().toLowerCase(Locale.ROOT), referenced(refers.toLowerCase(Locale.ROOT), tokens, all));
+        }
+
+        Map<String, Set<String>> out = new HashMap<>();
+        for (Sheet sh : wb) {
+            Set<String> refs = new HashSet<>();
+            for (Row r : sh) {
+                for (Cell c : r) {
+                    if (c.getCellType() != CellType.FORMULA) continue;
+                    String f = c.getCellFormula().toLowerCase(Locale.ROOT);
+                    refs.addAll(referenced(f, tokens, all));
+                    for (Map.Entry<String, Set<String>> e : names.entrySet()) {
+                        if (f.contains(e.getKey())) refs.addAll(e.getValue());
+                    }
+                }
+            }
+            out.put(key(sh), refs);
+        }
+        return out;
+    }
+
+    private static Set<String> referenced(String formula, Map<String, String> tokens, Set<String> all) {
+        if (formula.contains("indirect(") || formula.contains("offset(") || is3d(formula)) return all;
+        Set<String> refs = new HashSet<>();
+        if (formula.indexOf('!') < 0) return refs;
+        for (Map.Entry<String, String> e : tokens.entrySet()) {
+            if (formula.contains(e.getKey())) refs.add(e.getValue());
+        }
+        return refs;
+    }
+
+    /** Riferimento 3D (Foglio1:Foglio3!A1): i fogli intermedi non compaiono nel testo. */
+    private static boolean is3d(String formula) {
+        int bang = formula.indexOf('!');
+        while (bang > 0) {
+            int start = bang - 1;
+            while (start >= 0 && "(,+-*/^&=<> ".indexOf(formula.charAt(start)) < 0) start--;
+            String prefix = formula.substring(start + 1, bang);
+            if (prefix.indexOf(':') >= 0) return true;
+            bang = formula.indexOf('!', bang + 1);
+        }
+        return false;
+    }
+
+    private static String key(Sheet sh) {
+        return sh.getSheetName().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,59 @@
+package repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Primitive per file che devono sopravvivere a un crash: fsync del contenuto
+ * e rename atomico (il file di destinazione è sempre la versione vecchia o quella nuova, mai a metà).
+ */
+final class DurableFiles {
+
+    private static final Logger log = LogManager.getLogger(DurableFiles.class);
+
+    private DurableFiles() {}
+
+    /** Forza su disco contenuto e metadati del file. */
+    static void fsync(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+    }
+
+    /**
+     * Forza su disco la cartella (la voce creata da un rename). Su Windows una cartella
+     * non si apre come canale: lì il rename è già persistente e l'errore si ignora.
+     */
+    static void fsyncDir(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ex) {
+            log.trace("fsync cartella non supportato: {}", ex.toString());
+        }
+    }
+
+    /** Sostituisce dst con src con un rename atomico; se il filesystem non lo supporta, rename normale. */
+    static void moveAtomic(File src, File dst) throws IOException {
+        try {
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            log.debug("ATOMIC_MOVE non supportato per {}: rename normale", dst);
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Scrive src in dst in modo durevole: fsync del file temporaneo, rename atomico, fsync cartella. */
+    static void commit(File tmp, File dst) throws IOException {
+        fsync(tmp);
+        moveAtomic(tmp, dst);
+        fsyncDir(dst.getAbsoluteFile().getParentFile());
+    }
+}
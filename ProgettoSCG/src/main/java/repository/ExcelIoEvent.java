@@ -0,0 +1,28 @@
+package repository;
+
+/**
+ * Evento JFR per le operazioni su file della working copy (copia iniziale, salvataggio, reset).
+ * Costo trascurabile se nessuna registrazione JFR è attiva (shouldCommit() = false);
+ * senza JFR nella JVM non fa nulla (vedi {@link FlightEvent}).
+ */
+public class ExcelIoEvent extends FlightEvent {
+
+    public static final Type TYPE = type("progettoscg.ExcelIO", "Excel I/O",
+            "Copia / salvataggio della working copy Excel", new String[]{"ProgettoSCG", "Excel"},
+            field(String.class, "operation", "Operazione"),
+            field(String.class, "path", "File"),
+            bytes("bytes", "Dimensione"));
+
+    public String operation;
+    public String path;
+    public long bytes;
+
+    public ExcelIoEvent() {
+        super(TYPE);
+    }
+
+    @Override
+    protected Object[] values() {
+        return new Object[]{operation, path, bytes};
+    }
+}
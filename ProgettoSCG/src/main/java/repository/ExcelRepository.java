@@ -1,41 +1,215 @@
 package repository;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import model.RicaviSnapshot;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.util.Unbox;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaRenderer;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.SharedFormula;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 /**
  * Gestisce l'accesso al file Excel.
  * Scelta progettuale: NON tocchiamo mai l'originale. Creiamo sempre una working copy.
  *
- * In più: manteniamo uno snapshot "base" (temp) preso al caricamento,
+ * In più: manteniamo uno snapshot "base" preso al caricamento,
  * così il reset NON dipende dal file originale (che può essere lockato).
+ *
+ * Sessione durevole: snapshot base, journal delle celle scritte (WorkingCopyJournal) e checkpoint
+ * periodici stanno in una cartella fissa; se l'app termina senza "Esci", al riavvio la sessione
+ * si ricostruisce da checkpoint (o base) + journal ({@link #recoverSession}).
+ * Se la cartella è in uso da un'altra istanza si lavora come prima, solo su file temporanei.
+ *
+ * L'originale è osservato ({@link #watchOriginal}): se viene risalvato, {@link #checkOriginal} lo confronta
+ * con lo snapshot base cella per cella e {@link #applyOriginalChange} porta nella working copy solo le celle
+ * cambiate, lasciando i valori scritti dalle simulazioni; poi il file nuovo diventa lo snapshot base.
  */
 public class ExcelRepository {
 
     private static final Logger log = LogManager.getLogger(ExcelRepository.class);
+    /** Stesso marker di service.Tracing.IO (i marker sono condivisi per nome). */
+    private static final Marker IO = MarkerManager.getMarker("IO");
+
+    /** -Dscg.partialSave=false: torna al salvataggio completo (wb.write) per ogni save. */
+    private static final boolean PARTIAL_SAVE = Boolean.parseBoolean(System.getProperty("scg.partialSave", "true"));
+
+    /** Cartella della sessione durevole (-Dscg.sessionDir). */
+    private static final File SESSION_DIR = new File(System.getProperty("scg.sessionDir",
+            System.getProperty("user.home") + File.separator + ".progettoscg" + File.separator + "session"));
+    /** Checkpoint della working copy ogni N salvataggi registrati nel journal (-Dscg.checkpointEvery). */
+    private static final int CHECKPOINT_EVERY = Integer.getInteger("scg.checkpointEvery", 10);
+
+    private static final String BASE_NAME = "base.xlsx";
+    private static final String CHECKPOINT_NAME = "checkpoint.xlsx";
+    private static final String JOURNAL_NAME = "journal.log";
+    private static final String MANIFEST_NAME = "session.properties";
+    private static final String LOCK_NAME = "session.lock";
+
+    /** Sessione non chiusa trovata all'avvio (vedi {@link #findRecoverableSession}). */
+    public static final class PendingSession {
+        private final File originalFile;
+        private final long created;
+        private final int commits;
+        private final boolean checkpoint;
+
+        private PendingSession(File originalFile, long created, int commits, boolean checkpoint) {
+            this.originalFile = originalFile;
+            this.created = created;
+            this.commits = commits;
+            this.checkpoint = checkpoint;
+        }
+
+        public File getOriginalFile() { return originalFile; }
+        /** Istante di caricamento del file (ms epoch). */
+        public long getCreated() { return created; }
+        /** Salvataggi nel journal dopo l'ultimo checkpoint. */
+        public int getCommits() { return commits; }
+        public boolean hasCheckpoint() { return checkpoint; }
+    }
+
+    /**
+     * Modifiche dell'originale rispetto allo snapshot base (vedi {@link #checkOriginal}).
+     * Dopo {@link #applyOriginalChange}: righe con valori cambiati, anche per effetto delle formule.
+     */
+    public static final class OriginalChange {
+        private final File incoming;   // copia della nuova versione dell'originale
+        private final String hash;
+        private final long stamp;
+        private final WorkbookDiff.Result diff;
+        private final Map<String, Set<Integer>> affectedRows = new HashMap<>();
+        private int applied;
+        private int conflicts;
+
+        private OriginalChange(File incoming, String hash, long stamp, WorkbookDiff.Result diff) {
+            this.incoming = incoming;
+            this.hash = hash;
+            this.stamp = stamp;
+            this.diff = diff;
+        }
+
+        /** Fogli aggiunti, rimossi o rinominati: non si aggiorna cella per cella, va ricaricato il file. */
+        public boolean isStructural() { return diff.structural; }
+        /** Fogli con celle cambiate, nell'ordine del workbook. */
+        public Set<String> getSheets() { return Collections.unmodifiableSet(diff.changes.keySet()); }
+        public int getCellCount() { return diff.cellCount(); }
+
+        /** Celle cambiate (valore o formula) del foglio nell'originale. */
+        public List<CellReference> getChangedCells(String sheet) {
+            List<WorkbookDiff.Change> l = diff.changes.get(sheet);
+            if (l == null) return Collections.emptyList();
+            List<CellReference> out = new ArrayList<>(l.size());
+            for (WorkbookDiff.Change c : l) out.add(new CellReference(sheet, c.row, c.col, false, false));
+            return out;
+        }
+
+        /** Righe del foglio con un valore diverso dopo l'aggiornamento (celle applicate + formule ricalcolate). */
+        public Set<Integer> getAffectedRows(String sheet) {
+            Set<Integer> rows = affectedRows.get(sheet);
+            return (rows == null) ? Collections.<Integer>emptySet() : Collections.unmodifiableSet(rows);
+        }
+
+        /** Fogli con almeno una riga in {@link #getAffectedRows}. */
+        public Set<String> getAffectedSheets() { return Collections.unmodifiableSet(affectedRows.keySet()); }
+
+        public int getApplied() { return applied; }
+        /** Celle cambiate nell'originale ma già scritte dalle simulazioni: resta il valore simulato. */
+        public int getConflicts() { return conflicts; }
+
+        private void affect(String sheet, int row) {
+            affectedRows.computeIfAbsent(sheet, k -> new HashSet<>()).add(row);
+        }
+    }
 
     private File originalFile;
+    private long originalStamp;      // stamp dell'originale alla copia (per il watcher)
+    private OriginalWatcher watcher;
     private File baseSnapshotFile;   // ✅ snapshot base (immutabile)
     private File workingCopyFile;    // working copy modificabile
 
+    private String contentHash;      // SHA-256 del file originale (chiave della cache sessione)
+    private boolean pristine;        // true finché la working copy coincide con lo snapshot base
+    private SessionCache sessionCache;
+
+    // salvataggio parziale: impronte della working copy (valide finché il file ha lo stesso stamp)
+    // e dello snapshot base (per il reset); workbook aperto da openWorkingCopy
+    private PartialXlsxWriter.Prints workPrints;
+    private long workStamp;
+    private PartialXlsxWriter.Prints basePrints;
+    private Workbook openedWorkbook;
+
+    // letture dai risultati salvati (vedi readEvaluator): fogli della working copy con scritture salvate
+    // senza ricalcolo completo; nel workbook aperto, fogli scritti dopo l'ultimo ricalcolo.
+    // staleSheets/staleUnknown: sotto lock su staleSheets (readEvaluator è chiamato anche dai thread di export)
+    private final Set<String> staleSheets = new HashSet<>();
+    private boolean staleUnknown;
+    private final Set<String> pendingSheets = new HashSet<>();
+    private boolean pendingCalc;
+
+    // sessione durevole (journal == null: solo file temporanei)
+    private WorkingCopyJournal journal;
+    private FileChannel lockChannel;
+    private FileLock sessionLock;
+
     public File createWorkingCopy(File original) throws IOException {
+        ExcelIoEvent ev = new ExcelIoEvent();
+        ev.begin();
+        stopWatchingOriginal();
         this.originalFile = original;
+        this.originalStamp = stamp(original);
+        closeJournal();
+        boolean durable = acquireSession();
 
-        // 1) creo snapshot base (una volta) copiando l'originale
-        baseSnapshotFile = File.createTempFile("budget_base_", ".xlsx");
-        copyFileRobust(originalFile, baseSnapshotFile);
+        if (durable) clearSessionDir();
+
+        // 1) snapshot base: blob del workspace per contenuto (file già caricato e invariato = nessuna copia)
+        Workspace ws = Workspace.get();
+        String hash = ws.importBlob(originalFile);
+        ws.acquire(hash);
+        ws.release(contentHash);
+        contentHash = hash;
+        baseSnapshotFile = ws.blob(hash);
+        sessionCache = new SessionCache(ws.cacheDir());
 
         if (baseSnapshotFile.length() == 0) {
             throw new IOException("Snapshot base creato ma vuoto (0 bytes).");
         }
 
         // 2) creo working copy e la inizializzo dallo snapshot base
-        workingCopyFile = File.createTempFile("budget_work_", ".xlsx");
+        // (copia vera: POI aperto da File riscrive il file alla chiusura, il blob resta in sola lettura)
+        deleteWorkingCopy();
+        workingCopyFile = ws.newTempFile("budget_work_", ".xlsx");
         copyFileRobust(baseSnapshotFile, workingCopyFile);
 
         log.info("Snapshot base: {}", baseSnapshotFile.getAbsolutePath());
@@ -46,6 +220,12 @@ public class ExcelRepository {
             throw new IOException("Working copy creata ma vuota (0 bytes).");
         }
 
+        pristine = true;
+        workPrints = null;
+        basePrints = null;
+        markClean();
+        if (durable) startJournal();
+        commit(ev, "copia di lavoro", workingCopyFile);
         return workingCopyFile;
     }
 
@@ -57,7 +237,18 @@ public class ExcelRepository {
         if (workingCopyFile == null) throw new IllegalStateException("Working copy non creata.");
         if (baseSnapshotFile == null) throw new IllegalStateException("Snapshot base non creato.");
 
+        ExcelIoEvent ev = new ExcelIoEvent();
+        ev.begin();
         copyFileRobust(baseSnapshotFile, workingCopyFile);
+        pristine = true;
+        workPrints = basePrints;
+        markClean();
+        workStamp = stamp(workingCopyFile);
+        if (journal != null) {
+            Files.deleteIfExists(new File(SESSION_DIR, CHECKPOINT_NAME).toPath());
+            journal.rotate();
+        }
+        commit(ev, "reset", workingCopyFile);
 
         log.info("RESET completato: working copy ripristinata dallo snapshot base. Size={} bytes",
                 workingCopyFile.length());
@@ -69,28 +260,617 @@ public class ExcelRepository {
         return workingCopyFile;
     }
 
+    /**
+     * Apre la working copy. Per i .xlsx {@link #safeSaveWorkbook} riscriverà solo le parti modificate;
+     * le impronte dei fogli si calcolano alla prima apertura e poi le aggiorna il salvataggio stesso.
+     */
+    public Workbook openWorkingCopy() throws IOException {
+        if (workingCopyFile == null) throw new IllegalStateException("Working copy non creata.");
+        Workbook wb = WorkbookFactory.create(workingCopyFile);
+        openedWorkbook = null;
+        pendingSheets.clear();
+        pendingCalc = false;
+        if (journal != null) journal.discardPending();
+        if (PARTIAL_SAVE && wb instanceof XSSFWorkbook) {
+            if (workPrints == null || workStamp != stamp(workingCopyFile)) { // anche: modificata fuori dall'app
+                workPrints = PartialXlsxWriter.capture((XSSFWorkbook) wb);
+                workStamp = stamp(workingCopyFile);
+                if (pristine) basePrints = workPrints;
+            }
+            openedWorkbook = wb;
+        }
+        return wb;
+    }
+
+    /**
+     * Registra nel journal una cella appena scritta dai controller (valore numerico finale).
+     * forceNumeric = la cella è stata resa numerica anche se conteneva una formula.
+     * Le scritture diventano durevoli con il prossimo {@link #safeSaveWorkbook}.
+     */
+    public void recordCellWrite(Cell cell, boolean forceNumeric) {
+        if (journal != null) journal.record(cell, forceNumeric);
+        pendingSheets.add(cell.getSheet().getSheetName());
+    }
+
+    /**
+     * Il workbook aperto con {@link #openWorkingCopy} è stato appena ricalcolato tutto (evaluateAll riuscito):
+     * dopo il prossimo salvataggio i risultati delle formule nel file sono aggiornati.
+     */
+    public void markFullyCalculated() {
+        pendingSheets.clear();
+        pendingCalc = true;
+    }
+
+    /**
+     * Evaluator per sole letture su wb, aperto da source: le formule si leggono dai risultati salvati
+     * nel file, tranne nei fogli della working copy scritti e salvati senza ricalcolo (e in quelli che ne dipendono).
+     * Per lo snapshot base o altri file salvati da Excel tutte le formule si leggono dal file.
+     */
+    public CachedFormulaEvaluator readEvaluator(Workbook wb, File source) {
+        boolean working = source != null && source.equals(workingCopyFile);
+        if (!working) return new CachedFormulaEvaluator(wb, Collections.<String>emptySet(), false);
+        Set<String> stale;
+        boolean unknown;
+        synchronized (staleSheets) {
+            stale = new HashSet<>(staleSheets);
+            unknown = staleUnknown;
+        }
+        return new CachedFormulaEvaluator(wb, stale, unknown);
+    }
+
+    private void markClean() {
+        synchronized (staleSheets) {
+            staleSheets.clear();
+            staleUnknown = false;
+        }
+        pendingSheets.clear();
+        pendingCalc = false;
+    }
+
     /**
      * Salvataggio sicuro: scrivo su file temp, poi rimpiazzo la working copy.
+     * Se wb viene da {@link #openWorkingCopy} si riscrivono solo le parti modificate
+     * (vedi PartialXlsxWriter), altrimenti tutto il workbook.
+     *
+     * Prima del salvataggio le celle registrate con {@link #recordCellWrite} vanno nel journal (fsync);
+     * ogni {@link #CHECKPOINT_EVERY} salvataggi la working copy diventa il nuovo checkpoint.
+     *
+     * Dopo il salvataggio wb va solo chiuso: il pacchetto viene rilasciato senza riscrivere il file.
      */
     public void safeSaveWorkbook(Workbook wb) throws IOException {
         if (workingCopyFile == null) {
             throw new IllegalStateException("Working copy non creata.");
         }
 
-        File tmp = File.createTempFile("budget_save_", ".xlsx");
-        log.debug("Salvataggio sicuro su temp: {}", tmp.getAbsolutePath());
+        // write-ahead: le celle scritte sono su disco prima di riscrivere il workbook
+        long seq = (journal != null) ? journal.commit() : -1;
+        try {
+            saveToWorkingCopy(wb);
+        } catch (IOException | RuntimeException ex) {
+            try {
+                if (journal != null) journal.abort(seq);
+            } catch (IOException abortEx) {
+                ex.addSuppressed(abortEx);
+            }
+            throw ex;
+        }
 
-        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
-            wb.write(out);
-            out.flush();
+        if (journal != null && journal.getCommits() >= CHECKPOINT_EVERY) {
+            try {
+                checkpoint();
+            } catch (IOException ex) {
+                log.warn("Checkpoint sessione non riuscito (riprovo al prossimo salvataggio): {}", ex.getMessage());
+            }
+        }
+    }
+
+    private void saveToWorkingCopy(Workbook wb) throws IOException {
+        ExcelIoEvent ev = new ExcelIoEvent();
+        ev.begin();
+        pristine = false;
+        File tmp = Workspace.get().newTempFile("budget_save_", ".xlsx"); // stessa cartella: rename atomico
+        log.debug(IO, "Salvataggio sicuro su temp: {}", tmp);
+
+        PartialXlsxWriter.Prints saved = null;
+        if (wb == openedWorkbook && workPrints != null && workStamp == stamp(workingCopyFile)) {
+            saved = PartialXlsxWriter.write((XSSFWorkbook) wb, workPrints, workingCopyFile, tmp);
+        }
+        openedWorkbook = null;
+        boolean partial = saved != null;
+
+        if (!partial) {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                wb.write(out);
+                out.flush();
+            }
         }
 
         if (tmp.length() == 0) {
             throw new IOException("Salvataggio fallito: file temp vuoto (0 bytes).");
         }
 
-        Files.move(tmp.toPath(), workingCopyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        log.info("Working copy aggiornata (safe save). Size={} bytes", workingCopyFile.length());
+        // Aperto da File, il pacchetto in close() riscriverebbe l'intero zip sulla working copy:
+        // lo rilascio senza salvare (il file aggiornato è già tmp).
+        if (wb instanceof XSSFWorkbook) ((XSSFWorkbook) wb).getPackage().revert();
+
+        DurableFiles.moveAtomic(tmp, workingCopyFile);
+        synchronized (staleSheets) {
+            if (pendingCalc) {
+                staleSheets.clear();
+                staleUnknown = false;
+            }
+            staleSheets.addAll(pendingSheets);
+        }
+        pendingSheets.clear();
+        pendingCalc = false;
+        workPrints = saved; // null dopo un salvataggio completo: ricalcolate alla prossima apertura
+        workStamp = stamp(workingCopyFile);
+        commit(ev, partial ? "salvataggio parziale" : "salvataggio", workingCopyFile);
+        log.info(IO, "Working copy aggiornata (safe save{}). Size={} bytes",
+                partial ? ", parziale" : "", Unbox.box(workingCopyFile.length()));
+    }
+
+    // ===========================
+    // Sessione durevole (journal + checkpoint)
+    // ===========================
+
+    /** Copia durevole della working copy (fsync + rename atomico), poi journal vuoto. */
+    private void checkpoint() throws IOException {
+        ExcelIoEvent ev = new ExcelIoEvent();
+        ev.begin();
+        File target = new File(SESSION_DIR, CHECKPOINT_NAME);
+        File tmp = new File(SESSION_DIR, CHECKPOINT_NAME + ".tmp");
+        copyFileRobust(workingCopyFile, tmp);
+        DurableFiles.commit(tmp, target);
+        // crash qui: checkpoint nuovo + journal vecchio, rieseguirlo è innocuo (valori assoluti)
+        journal.rotate();
+        commit(ev, "checkpoint", target);
+        log.info(IO, "Checkpoint sessione: {} bytes", Unbox.box(target.length()));
+    }
+
+    /**
+     * Sessione di un avvio precedente terminato senza "Esci", o null.
+     * Null anche se la cartella sessione è in uso da un'altra istanza.
+     */
+    public PendingSession findRecoverableSession() {
+        if (journal != null) return null; // sessione di questo processo
+        Workspace.get().sweepBlobs(pinnedBlobs()); // avvio: snapshot non più usati
+        Properties p = readManifest();
+        if (p == null || !sessionBase(p).isFile() || !acquireSession()) return null;
+
+        WorkingCopyJournal.Contents c = WorkingCopyJournal.read(new File(SESSION_DIR, JOURNAL_NAME));
+        return new PendingSession(new File(p.getProperty("original", "")),
+                Long.parseLong(p.getProperty("created", "0")), c.commits,
+                new File(SESSION_DIR, CHECKPOINT_NAME).isFile());
+    }
+
+    /**
+     * Ricostruisce la working copy della sessione non chiusa: checkpoint (o snapshot base)
+     * + scritture del journal + un ricalcolo. Il costo dipende dai delta, non dalla dimensione del file
+     * (a parte la copia del checkpoint e il ricalcolo delle formule).
+     */
+    public File recoverSession() throws IOException {
+        Properties p = readManifest();
+        if (journal != null || p == null || !acquireSession()) {
+            throw new IllegalStateException("Nessuna sessione da ripristinare.");
+        }
+
+        ExcelIoEvent ev = new ExcelIoEvent();
+        ev.begin();
+        originalFile = new File(p.getProperty("original", ""));
+        originalStamp = Long.parseLong(p.getProperty("originalStamp", "0"));
+        Workspace ws = Workspace.get();
+        ws.release(contentHash);
+        contentHash = p.getProperty("hash");
+        ws.acquire(contentHash);
+        sessionCache = new SessionCache(ws.cacheDir());
+        baseSnapshotFile = sessionBase(p);
+
+        File checkpointFile = new File(SESSION_DIR, CHECKPOINT_NAME);
+        File journalFile = new File(SESSION_DIR, JOURNAL_NAME);
+        boolean fromCheckpoint = checkpointFile.isFile();
+        WorkingCopyJournal.Contents c = WorkingCopyJournal.read(journalFile);
+
+        deleteWorkingCopy();
+        workingCopyFile = ws.newTempFile("budget_work_", ".xlsx");
+        copyFileRobust(fromCheckpoint ? checkpointFile : baseSnapshotFile, workingCopyFile);
+        pristine = !fromCheckpoint && c.commits == 0;
+        workPrints = null;
+        basePrints = null;
+        markClean();
+        synchronized (staleSheets) {
+            staleUnknown = fromCheckpoint; // salvato da una sessione precedente: ricalcolo non noto
+        }
+        journal = new WorkingCopyJournal(journalFile); // non ancora aperto: il replay non si registra
+
+        if (!c.writes.isEmpty()) {
+            try (Workbook wb = openWorkingCopy()) {
+                int applied = WorkingCopyJournal.replay(c.writes, wb);
+                wb.getCreationHelper().createFormulaEvaluator().evaluateAll();
+                wb.setForceFormulaRecalculation(true);
+                markFullyCalculated();
+                safeSaveWorkbook(wb);
+                log.info("Journal rieseguito: {} record, {} celle", Unbox.box(c.commits), Unbox.box(applied));
+            }
+            checkpoint(); // compatta: il checkpoint contiene già tutto
+        } else {
+            journal.rotate();
+        }
+
+        commit(ev, "ripristino", workingCopyFile);
+        log.info("Sessione ripristinata: {} (da {}, {} salvataggi nel journal)", originalFile.getName(),
+                fromCheckpoint ? "checkpoint" : "snapshot base", Unbox.box(c.commits));
+        return workingCopyFile;
+    }
+
+    /** Scarta la sessione non chiusa (l'utente non vuole ripristinarla). */
+    public void discardRecoverableSession() {
+        if (journal != null || !acquireSession()) return;
+        clearSessionDir();
+        log.info("Sessione precedente scartata.");
+    }
+
+    /** Snapshot base della sessione: blob del workspace (o base.xlsx delle sessioni di versioni precedenti). */
+    private static File sessionBase(Properties manifest) {
+        File legacy = new File(SESSION_DIR, BASE_NAME);
+        if (legacy.isFile()) return legacy;
+        return Workspace.get().blob(manifest.getProperty("hash", ""));
+    }
+
+    /** Blob richiesto dalla sessione durevole (anche non ripristinata): le pulizie non lo eliminano. */
+    private Set<String> pinnedBlobs() {
+        Properties p = readManifest();
+        String hash = (p != null) ? p.getProperty("hash") : null;
+        return (hash == null) ? Collections.<String>emptySet() : Collections.singleton(hash);
+    }
+
+    private void startJournal() throws IOException {
+        // lo snapshot base è già durevole (blob scritto con fsync + rename dal workspace)
+        journal = new WorkingCopyJournal(new File(SESSION_DIR, JOURNAL_NAME));
+        journal.rotate();
+
+        // manifest per ultimo: senza, all'avvio la cartella non è una sessione da ripristinare
+        writeManifest(Long.toString(System.currentTimeMillis()));
+    }
+
+    private void writeManifest(String created) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("original", originalFile.getAbsolutePath());
+        p.setProperty("originalStamp", Long.toString(originalStamp));
+        p.setProperty("hash", contentHash);
+        p.setProperty("created", created);
+        File tmp = new File(SESSION_DIR, MANIFEST_NAME + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, "ProgettoSCG - sessione");
+        }
+        DurableFiles.commit(tmp, new File(SESSION_DIR, MANIFEST_NAME));
+    }
+
+    private Properties readManifest() {
+        File f = new File(SESSION_DIR, MANIFEST_NAME);
+        if (!f.isFile()) return null;
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(f)) {
+            p.load(in);
+            return p;
+        } catch (IOException ex) {
+            log.warn("Manifest sessione illeggibile: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    /** Lock sulla cartella sessione (una sola istanza la usa); false = lavorare senza journal. */
+    private boolean acquireSession() {
+        if (sessionLock != null) return true;
+        FileChannel ch = null;
+        try {
+            if (!SESSION_DIR.isDirectory() && !SESSION_DIR.mkdirs()) {
+                throw new IOException("impossibile creare " + SESSION_DIR.getAbsolutePath());
+            }
+            ch = FileChannel.open(new File(SESSION_DIR, LOCK_NAME).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = ch.tryLock();
+            if (lock == null) {
+                ch.close();
+                log.warn("Cartella sessione in uso da un'altra istanza: lavoro senza journal");
+                return false;
+            }
+            lockChannel = ch;
+            sessionLock = lock;
+            return true;
+        } catch (IOException | OverlappingFileLockException ex) {
+            log.warn("Sessione durevole non disponibile ({}): lavoro senza journal", ex.toString());
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException ignore) {
+                    // già in errore
+                }
+            }
+            return false;
+        }
+    }
+
+    private void releaseSession() {
+        if (sessionLock == null) return;
+        try {
+            sessionLock.release();
+            lockChannel.close();
+        } catch (IOException ex) {
+            log.warn("Rilascio lock sessione fallito: {}", ex.getMessage());
+        }
+        sessionLock = null;
+        lockChannel = null;
+    }
+
+    /** Svuota la cartella sessione (manifest per primo), tranne il file di lock. */
+    private void clearSessionDir() {
+        File manifest = new File(SESSION_DIR, MANIFEST_NAME);
+        if (manifest.exists() && !manifest.delete()) log.warn("Impossibile eliminare {}", manifest);
+        File[] files = SESSION_DIR.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.getName().equals(LOCK_NAME)) continue;
+            if (!f.delete()) log.warn("Impossibile eliminare {}", f);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /** Data + dimensione: cambia se la working copy viene riscritta (anche da Excel). */
+    static long stamp(File f) {
+        return f.lastModified() * 31 + f.length();
+    }
+
+    private static void commit(ExcelIoEvent ev, String operation, File f) {
+        ev.end();
+        if (!ev.shouldCommit()) return;
+        ev.operation = operation;
+        ev.path = f.getAbsolutePath();
+        ev.bytes = f.length();
+        ev.commit();
+    }
+
+    // ===========================
+    // Aggiornamento dall'originale (watcher + diff + rebase)
+    // ===========================
+
+    /**
+     * Osserva l'originale; onChange (sul thread del watcher) quando viene salvata una versione nuova,
+     * anche se era già cambiato prima della chiamata (es. sessione ripristinata).
+     */
+    public void watchOriginal(Runnable onChange) {
+        stopWatchingOriginal();
+        if (originalFile == null || !originalFile.isFile()) return;
+        try {
+            watcher = new OriginalWatcher(originalFile, originalStamp, onChange);
+        } catch (IOException ex) {
+            log.warn("Impossibile osservare {}: {}", originalFile, ex.getMessage());
+        }
+    }
+
+    public void stopWatchingOriginal() {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Confronta l'originale con lo snapshot base. null se il contenuto non è cambiato
+     * (se sono cambiati solo metadati come autore o data, lo snapshot base viene aggiornato qui).
+     * La modifica restituita va chiusa con {@link #commitOriginalChange} o {@link #discardOriginalChange}.
+     */
+    public OriginalChange checkOriginal() throws IOException {
+        if (baseSnapshotFile == null || originalFile == null || !originalFile.isFile()) return null;
+        long st = stamp(originalFile);
+        Workspace ws = Workspace.get();
+        String hash = ws.importBlob(originalFile);
+        if (hash.equals(contentHash)) {
+            originalStamp = st;
+            return null;
+        }
+        File incoming = ws.blob(hash);
+        OriginalChange ch = new OriginalChange(incoming, hash, st, WorkbookDiff.diff(baseSnapshotFile, incoming));
+        if (!ch.isStructural() && ch.getCellCount() == 0) {
+            commitOriginalChange(ch);
+            return null;
+        }
+        return ch;
+    }
+
+    /**
+     * Porta le celle cambiate nell'originale nel workbook aperto con {@link #openWorkingCopy}
+     * (poi va salvato con {@link #safeSaveWorkbook}). Le celle che le simulazioni hanno già reso
+     * numeriche con un valore diverso dallo snapshot base restano come sono (conflitti).
+     * Poi ricalcola le formule e registra nella modifica le righe con un valore cambiato.
+     */
+    public void applyOriginalChange(Workbook wb, OriginalChange ch) {
+        if (ch.isStructural()) throw new IllegalStateException("Struttura del file cambiata: ricaricare l'Excel.");
+        long t0 = System.nanoTime();
+
+        for (Map.Entry<String, List<WorkbookDiff.Change>> e : ch.diff.changes.entrySet()) {
+            Sheet sh = wb.getSheet(e.getKey());
+            if (sh == null) {
+                log.warn("Aggiornamento originale: foglio '{}' non trovato nella working copy", e.getKey());
+                continue;
+            }
+            for (WorkbookDiff.Change c : e.getValue()) {
+                Row row = sh.getRow(c.row);
+                Cell cell = (row == null) ? null : row.getCell(c.col);
+                if (isSimulatedValue(cell, c.before)) {
+                    ch.conflicts++;
+                    continue;
+                }
+                if (cell == null && c.after.kind == WorkbookDiff.BLANK) continue;
+                if (row == null) row = sh.createRow(c.row);
+                if (applyContent(wb, sh, row, cell, c)) {
+                    ch.applied++;
+                    ch.affect(e.getKey(), c.row);
+                }
+            }
+        }
+        if (ch.applied == 0) return;
+
+        // ricalcolo: le righe che cambiano valore per effetto delle formule contano come toccate
+        FormulaEvaluator eval = wb.getCreationHelper().createFormulaEvaluator();
+        int formulas = 0, failed = 0;
+        Set<String> failedSheets = new HashSet<>();
+        for (Sheet sh : wb) {
+            for (Row r : sh) {
+                for (Cell c : r) {
+                    if (c.getCellType() != CellType.FORMULA) continue;
+                    formulas++;
+                    Object before = cachedResult(c);
+                    try {
+                        eval.evaluateFormulaCell(c);
+                    } catch (RuntimeException ex) {
+                        failed++;
+                        failedSheets.add(sh.getSheetName());
+                        continue;
+                    }
+                    if (!before.equals(cachedResult(c))) ch.affect(sh.getSheetName(), r.getRowNum());
+                }
+            }
+        }
+        wb.setForceFormulaRecalculation(true);
+        markFullyCalculated();
+        pendingSheets.addAll(failedSheets); // risultati salvati non aggiornati
+        log.info("Aggiornamento originale: {} celle applicate, {} conflitti, {} formule ricalcolate ({} non valutabili) in {} ms",
+                Unbox.box(ch.applied), Unbox.box(ch.conflicts), Unbox.box(formulas), Unbox.box(failed),
+                Unbox.box((System.nanoTime() - t0) / 1_000_000L));
+    }
+
+    /** Dopo il salvataggio della working copy aggiornata: la nuova versione diventa lo snapshot base. */
+    public void commitOriginalChange(OriginalChange ch) throws IOException {
+        ExcelIoEvent ev = new ExcelIoEvent();
+        ev.begin();
+        // prima il checkpoint (working copy già aggiornata), poi la base: un crash in mezzo lascia
+        // il checkpoint nuovo con la base vecchia, e al riavvio il confronto rileva di nuovo la modifica
+        if (journal != null) checkpoint();
+        Workspace ws = Workspace.get();
+        ws.acquire(ch.hash);
+        ws.release(contentHash);
+        contentHash = ch.hash;
+        originalStamp = ch.stamp;
+        baseSnapshotFile = ch.incoming;
+        basePrints = null;
+        if (journal != null) {
+            Properties p = readManifest();
+            writeManifest((p != null) ? p.getProperty("created", "0") : Long.toString(System.currentTimeMillis()));
+            Files.deleteIfExists(new File(SESSION_DIR, BASE_NAME).toPath()); // base di una versione precedente
+        }
+        commit(ev, "aggiornamento base", baseSnapshotFile);
+        log.info("Snapshot base aggiornato da {}", originalFile.getName());
+    }
+
+    /** Modifica non applicata: si continua con lo snapshot base attuale (il blob nuovo lo elimina la pulizia). */
+    public void discardOriginalChange(OriginalChange ch) {
+        originalStamp = ch.stamp;
+    }
+
+    /** La cella è stata riscritta dalle simulazioni: numerica e diversa dal contenuto nello snapshot base. */
+    private static boolean isSimulatedValue(Cell cell, WorkbookDiff.Content base) {
+        if (cell == null || cell.getCellType() != CellType.NUMERIC) return false;
+        return base.kind != WorkbookDiff.NUMBER || Double.compare(base.number, cell.getNumericCellValue()) != 0;
+    }
+
+    /** Scrive nella cella il contenuto del file nuovo; false se non applicabile. */
+    private static boolean applyContent(Workbook wb, Sheet sh, Row row, Cell cell, WorkbookDiff.Change c) {
+        WorkbookDiff.Content a = c.after;
+        String formula = null;
+        if (a.kind == WorkbookDiff.FORMULA) {
+            formula = (a.text != null) ? a.text : sharedFormula(wb, sh, a, c.row);
+            if (formula == null) {
+                log.warn("Aggiornamento originale: formula condivisa non risolta in {}!{}",
+                        sh.getSheetName(), new CellReference(c.row, c.col).formatAsString());
+                return false;
+            }
+        }
+
+        if (cell == null) cell = row.createCell(c.col);
+        // rimossa prima: se era la master di una formula condivisa POI la passa alla cella successiva
+        if (cell.getCellType() == CellType.FORMULA) cell.removeFormula();
+
+        switch (a.kind) {
+            case WorkbookDiff.BLANK:
+                cell.setBlank();
+                break;
+            case WorkbookDiff.NUMBER:
+                cell.setCellValue(a.number);
+                break;
+            case WorkbookDiff.STRING:
+                cell.setCellValue(a.text);
+                break;
+            case WorkbookDiff.BOOLEAN:
+                cell.setCellValue(a.number != 0);
+                break;
+            case WorkbookDiff.ERROR:
+                cell.setCellErrorValue(FormulaError.forString(a.text).getCode());
+                break;
+            default:
+                cell.setCellFormula(formula);
+                break;
+        }
+        return true;
+    }
+
+    /** Testo della formula per una cella figlia di una formula condivisa (come XSSFCell.convertSharedFormula). */
+    private static String sharedFormula(Workbook wb, Sheet sh, WorkbookDiff.Content a, int rowIdx) {
+        if (!(wb instanceof XSSFWorkbook) || a.shared == null || a.shared.startsWith("?")) return null;
+        XSSFEvaluationWorkbook fpb = XSSFEvaluationWorkbook.create((XSSFWorkbook) wb);
+        Ptg[] ptgs = FormulaParser.parse(a.shared, fpb, FormulaType.CELL, wb.getSheetIndex(sh), rowIdx);
+        Ptg[] moved = new SharedFormula(SpreadsheetVersion.EXCEL2007).convertSharedFormulas(ptgs, a.sharedRow, a.sharedCol);
+        return FormulaRenderer.toFormulaString(fpb, moved);
+    }
+
+    private static Object cachedResult(Cell c) {
+        switch (c.getCachedFormulaResultType()) {
+            case NUMERIC:
+                return c.getNumericCellValue();
+            case STRING:
+                return c.getStringCellValue();
+            case BOOLEAN:
+                return c.getBooleanCellValue();
+            case ERROR:
+                return "#" + c.getErrorCellValue();
+            default:
+                return "";
+        }
+    }
+
+    // ===========================
+    // Cache sessione (vedi SessionCache)
+    // ===========================
+
+    /**
+     * Articoli + valori base dalla cache binaria, se il file caricato è già stato letto in passato
+     * (stesso hash). null = cache assente: leggere con POI e poi chiamare {@link #writeSessionCache}.
+     */
+    public RicaviSnapshot readSessionCache() {
+        if (contentHash == null || !pristine) return null;
+        RicaviSnapshot snap = sessionCache.read(contentHash);
+        if (snap != null) log.info("Cache sessione trovata per {} ({} articoli)", originalFile.getName(), snap.size());
+        return snap;
+    }
+
+    /** Salva lo snapshot base in cache; ignorato se la working copy è già stata modificata. */
+    public void writeSessionCache(RicaviSnapshot snap) {
+        if (contentHash == null || !pristine || snap == null) return;
+        try {
+            sessionCache.write(contentHash, snap);
+        } catch (IOException ex) {
+            log.warn("Impossibile scrivere la cache sessione: {}", ex.getMessage());
+        }
+    }
+
+    public String getContentHash() {
+        return contentHash;
     }
 
     private void copyFileRobust(File src, File dst) throws IOException {
@@ -106,17 +886,31 @@ public class ExcelRepository {
         }
     }
 
-    public void cleanup() {
+    private void deleteWorkingCopy() {
         if (workingCopyFile != null && workingCopyFile.exists()) {
             boolean ok = workingCopyFile.delete();
             if (ok) log.info("Working copy eliminata.");
             else log.warn("Impossibile eliminare working copy: {}", workingCopyFile.getAbsolutePath());
         }
-        if (baseSnapshotFile != null && baseSnapshotFile.exists()) {
-            boolean ok = baseSnapshotFile.delete();
-            if (ok) log.info("Snapshot base eliminato.");
-            else log.warn("Impossibile eliminare snapshot base: {}", baseSnapshotFile.getAbsolutePath());
-        }
+    }
+
+    /**
+     * Uscita normale: file temporanei e sessione durevole eliminati (niente da ripristinare).
+     * Lo snapshot base resta nel workspace per un ricaricamento veloce, entro {@code scg.workspaceKeep}.
+     */
+    public void cleanup() {
+        stopWatchingOriginal();
+        boolean durable = journal != null;
+        closeJournal();
+        deleteWorkingCopy();
+        workingCopyFile = null;
+        Workspace ws = Workspace.get();
+        ws.release(contentHash);
+        contentHash = null;
+        baseSnapshotFile = null;
+        if (durable) clearSessionDir();
+        ws.sweepBlobs(pinnedBlobs());
+        releaseSession();
     }
 
     public File getOriginalFile() { return originalFile; }
@@ -0,0 +1,187 @@
+package repository;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Evento JFR senza dipendenza da jdk.jfr a compilazione: il tipo si registra per riflessione
+ * (jdk.jfr.EventFactory) una volta, al caricamento della sottoclasse. Su una JVM senza JFR
+ * (o senza registrazione attiva) begin/end/commit non fanno nulla e shouldCommit() è false.
+ *
+ * Le sottoclassi espongono campi pubblici e li restituiscono in {@link #values()}, nello stesso
+ * ordine dei {@link Field} del loro {@link Type}.
+ */
+public abstract class FlightEvent {
+
+    private static final Logger log = LogManager.getLogger(FlightEvent.class);
+
+    /** Riflessione su jdk.jfr, risolta una volta; null se JFR non c'è. */
+    private static final Api API = Api.load();
+
+    private final Object event; // jdk.jfr.Event, o null
+
+    protected FlightEvent(Type type) {
+        this.event = (type.factory == null) ? null : API.newEvent(type.factory);
+    }
+
+    /** true se la JVM ha Java Flight Recorder (API jdk.jfr). */
+    public static boolean isAvailable() {
+        return API != null;
+    }
+
+    public final void begin() {
+        if (event != null) API.call(API.begin, event);
+    }
+
+    public final void end() {
+        if (event != null) API.call(API.end, event);
+    }
+
+    /** false senza JFR o senza una registrazione che abiliti l'evento: i campi non servono. */
+    public final boolean shouldCommit() {
+        return event != null && Boolean.TRUE.equals(API.call(API.shouldCommit, event));
+    }
+
+    public final void commit() {
+        if (event == null) return;
+        Object[] v = values();
+        for (int i = 0; i < v.length; i++) API.call(API.set, event, i, v[i]);
+        API.call(API.commit, event);
+    }
+
+    /** Valori dei campi, nell'ordine della definizione del tipo. */
+    protected abstract Object[] values();
+
+    // ===========================
+    // Definizione dei tipi
+    // ===========================
+
+    public static final class Field {
+        private final Class<?> type;
+        private final String name;
+        private final String label;
+        private final boolean bytes;
+
+        private Field(Class<?> type, String name, String label, boolean bytes) {
+            this.type = type;
+            this.name = name;
+            this.label = label;
+            this.bytes = bytes;
+        }
+    }
+
+    public static Field field(Class<?> type, String name, String label) {
+        return new Field(type, name, label, false);
+    }
+
+    /** Campo long in byte (@DataAmount). */
+    public static Field bytes(String name, String label) {
+        return new Field(long.class, name, label, true);
+    }
+
+    public static final class Type {
+        private final String name;
+        private final Object factory; // jdk.jfr.EventFactory, o null
+
+        private Type(String name, Object factory) {
+            this.name = name;
+            this.factory = factory;
+        }
+
+        /** Nome dell'evento (per Recording.enable). */
+        public String getName() {
+            return name;
+        }
+    }
+
+    /** Registra il tipo di evento (senza stack trace); senza JFR restituisce un tipo inerte. */
+    public static Type type(String name, String label, String description, String[] category, Field... fields) {
+        if (API == null) return new Type(name, null);
+        try {
+            return new Type(name, API.define(name, label, description, category, fields));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            log.warn("Evento JFR {} non registrato: {}", name, ex.toString());
+            return new Type(name, null);
+        }
+    }
+
+    // ===========================
+    // jdk.jfr per riflessione
+    // ===========================
+
+    private static final class Api {
+        private final Class<?> nameAnn, labelAnn, descriptionAnn, categoryAnn, stackTraceAnn, dataAmountAnn;
+        private final Constructor<?> annotation;     // AnnotationElement(Class, Object)
+        private final Constructor<?> descriptor;     // ValueDescriptor(Class, String, List)
+        private final Method create;                 // EventFactory.create(List, List)
+        private final Method newEvent;               // EventFactory.newEvent()
+        private final Method begin, end, shouldCommit, commit, set;
+
+        private Api() throws ReflectiveOperationException {
+            nameAnn = Class.forName("jdk.jfr.Name");
+            labelAnn = Class.forName("jdk.jfr.Label");
+            descriptionAnn = Class.forName("jdk.jfr.Description");
+            categoryAnn = Class.forName("jdk.jfr.Category");
+            stackTraceAnn = Class.forName("jdk.jfr.StackTrace");
+            dataAmountAnn = Class.forName("jdk.jfr.DataAmount");
+            annotation = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+            descriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            create = factory.getMethod("create", List.class, List.class);
+            newEvent = factory.getMethod("newEvent");
+            Class<?> ev = Class.forName("jdk.jfr.Event");
+            begin = ev.getMethod("begin");
+            end = ev.getMethod("end");
+            shouldCommit = ev.getMethod("shouldCommit");
+            commit = ev.getMethod("commit");
+            set = ev.getMethod("set", int.class, Object.class);
+        }
+
+        static Api load() {
+            try {
+                Api api = new Api();
+                Method available = Class.forName("jdk.jfr.FlightRecorder").getMethod("isAvailable");
+                return Boolean.TRUE.equals(available.invoke(null)) ? api : null;
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+                log.debug("JFR non disponibile: {}", ex.toString());
+                return null;
+            }
+        }
+
+        Object define(String name, String label, String description, String[] category, Field[] fields)
+                throws ReflectiveOperationException {
+            List<Object> ann = new ArrayList<>();
+            ann.add(annotation.newInstance(nameAnn, name));
+            ann.add(annotation.newInstance(labelAnn, label));
+            ann.add(annotation.newInstance(descriptionAnn, description));
+            ann.add(annotation.newInstance(categoryAnn, category));
+            ann.add(annotation.newInstance(stackTraceAnn, Boolean.FALSE));
+            List<Object> values = new ArrayList<>();
+            for (Field f : fields) {
+                List<Object> fa = new ArrayList<>();
+                fa.add(annotation.newInstance(labelAnn, f.label));
+                if (f.bytes) fa.add(annotation.newInstance(dataAmountAnn, "BYTES"));
+                values.add(descriptor.newInstance(f.type, f.name, Collections.unmodifiableList(fa)));
+            }
+            return create.invoke(null, ann, values);
+        }
+
+        Object newEvent(Object factory) {
+            return call(newEvent, factory);
+        }
+
+        Object call(Method m, Object target, Object... args) {
+            try {
+                return m.invoke(target, args);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("Chiamata JFR fallita: " + m.getName(), ex);
+            }
+        }
+    }
+}
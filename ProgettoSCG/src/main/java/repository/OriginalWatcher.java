@@ -0,0 +1,109 @@
+package repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Osserva il file Excel originale (WatchService sulla sua cartella) e avvisa quando è stato
+ * riscritto. Excel salva a più riprese (file temporaneo, rename, lock "~$"): si aspetta che data e
+ * dimensione restino ferme per {@link #QUIET_MS} prima di avvisare, una volta per versione del file.
+ *
+ * Il callback gira sul thread del watcher.
+ */
+final class OriginalWatcher implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(OriginalWatcher.class);
+
+    /** Millisecondi senza modifiche prima di considerare il salvataggio concluso (-Dscg.watchQuietMs). */
+    private static final long QUIET_MS = Long.getLong("scg.watchQuietMs", 1000L);
+
+    private final File file;
+    private final Runnable onChange;
+    private final WatchService ws;
+    private final Thread thread;
+    private volatile long lastStamp;
+
+    /** @param knownStamp stamp della versione già caricata: se il file è diverso avvisa subito */
+    OriginalWatcher(File file, long knownStamp, Runnable onChange) throws IOException {
+        this.file = file.getAbsoluteFile();
+        this.onChange = onChange;
+        this.lastStamp = knownStamp;
+        this.ws = FileSystems.getDefault().newWatchService();
+        this.file.getParentFile().toPath().register(ws,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this::run, "scg-watch-original");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Osservo le modifiche a {}", this.file);
+    }
+
+    private void run() {
+        try {
+            settle(); // modificato mentre l'app era chiusa / durante la copia
+            while (true) {
+                WatchKey key = ws.take();
+                boolean hit = drain(key);
+                if (hit) settle();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            log.debug("Watcher di {} terminato", file.getName());
+        } catch (RuntimeException ex) {
+            log.warn("Watcher di {} interrotto: {}", file.getName(), ex.toString());
+        }
+    }
+
+    private boolean drain(WatchKey key) {
+        boolean hit = false;
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            Object ctx = ev.context();
+            if (ev.kind() == StandardWatchEventKinds.OVERFLOW
+                    || (ctx instanceof Path && ((Path) ctx).getFileName().toString().equals(file.getName()))) {
+                hit = true;
+            }
+        }
+        key.reset();
+        return hit;
+    }
+
+    /** Attende che il file smetta di cambiare; se è una versione nuova chiama il callback. */
+    private void settle() throws InterruptedException {
+        long seen = ExcelRepository.stamp(file);
+        while (true) {
+            WatchKey key = ws.poll(QUIET_MS, TimeUnit.MILLISECONDS);
+            if (key != null) drain(key);
+            long now = ExcelRepository.stamp(file);
+            if (now == seen) break;
+            seen = now;
+        }
+        if (!file.isFile() || seen == lastStamp) return;
+        lastStamp = seen;
+        log.info("Originale modificato: {}", file.getName());
+        try {
+            onChange.run();
+        } catch (RuntimeException ex) {
+            log.warn("Notifica modifica originale fallita: {}", ex.toString());
+        }
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            ws.close();
+        } catch (IOException ex) {
+            log.debug("Chiusura WatchService: {}", ex.toString());
+        }
+    }
+}
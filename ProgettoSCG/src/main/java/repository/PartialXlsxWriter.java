@@ -0,0 +1,268 @@
+package repository;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+import org.apache.poi.ooxml.POIXMLDocumentPart;
+import org.apache.poi.ooxml.POIXMLTypeLoader;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.model.CalculationChain;
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.xmlbeans.XmlOptions;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTRow;
+
+/**
+ * Salvataggio parziale di un .xlsx (zip di parti XML): le parti non modificate vengono copiate
+ * RAW dal file di partenza (niente decompressione / ricompressione), si rigenerano solo
+ * workbook.xml, i fogli modificati, calcChain e - se cambiati - sharedStrings e styles.
+ *
+ * Un foglio è "modificato" se l'impronta delle sue celle (riferimento, tipo, stile, valore, formula)
+ * differisce da quella del file di partenza ({@link #capture}, poi aggiornata da ogni {@link #write}).
+ * Il flag sheetCalcPr di setForceFormulaRecalculation non conta: per il ricalcolo in Excel
+ * basta quello del workbook (calcPr).
+ *
+ * Se il pacchetto ha parti nuove o rimosse, o un foglio modificato ha celle fuori ordine
+ * (le riordinerebbe solo XSSFSheet.write), {@link #write} restituisce null: salvataggio completo.
+ */
+class PartialXlsxWriter {
+
+    private static final Logger log = LogManager.getLogger(PartialXlsxWriter.class);
+
+    private static final String CONTENT_TYPES = "[Content_Types].xml";
+
+    /** Impronte delle parti di un file (fogli per nome parte, sharedStrings, styles). Immutabile. */
+    static final class Prints {
+        private final Map<String, Long> sheets;
+        private final long sst;
+        private final long styles;
+
+        private Prints(Map<String, Long> sheets, long sst, long styles) {
+            this.sheets = sheets;
+            this.sst = sst;
+            this.styles = styles;
+        }
+    }
+
+    static Prints capture(XSSFWorkbook wb) {
+        long t0 = System.nanoTime();
+        Map<String, Long> sheets = new HashMap<>();
+        for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+            XSSFSheet sh = wb.getSheetAt(i);
+            sheets.put(entryName(sh), fingerprint(sh));
+        }
+        Prints p = new Prints(sheets, fingerprint(wb.getSharedStringSource()), fingerprint(wb.getStylesSource()));
+        log.debug("Impronta workbook: {} fogli in {} ms",
+                Unbox.box(sheets.size()), Unbox.box((System.nanoTime() - t0) / 1_000_000L));
+        return p;
+    }
+
+    /**
+     * Scrive in out il contenuto corrente di wb, copiando raw da source le parti invariate.
+     *
+     * @param base impronte di source
+     * @return impronte di out, oppure null se il salvataggio parziale non è applicabile (out da ignorare)
+     */
+    static Prints write(XSSFWorkbook wb, Prints base, File source, File out) throws IOException {
+        long t0 = System.nanoTime();
+
+        // parti da rigenerare: nome entry zip -> parte POI
+        Map<String, POIXMLDocumentPart> dirty = new HashMap<>();
+        Map<String, Long> sheets = new HashMap<>(base.sheets);
+        dirty.put(entryName(wb), wb);
+        for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+            XSSFSheet sh = wb.getSheetAt(i);
+            String name = entryName(sh);
+            Long before = base.sheets.get(name);
+            if (before == null) {
+                log.debug("Salvataggio parziale non applicabile: foglio nuovo {}", sh.getSheetName());
+                return null;
+            }
+            long now = fingerprint(sh);
+            if (before != now) {
+                if (!cellsInOrder(sh)) {
+                    log.debug("Salvataggio parziale non applicabile: celle fuori ordine in {}", sh.getSheetName());
+                    return null;
+                }
+                dirty.put(name, sh);
+                sheets.put(name, now);
+            }
+        }
+        CalculationChain calc = wb.getCalculationChain();
+        if (calc != null) dirty.put(entryName(calc), calc);
+        SharedStringsTable sst = wb.getSharedStringSource();
+        long sstNow = fingerprint(sst);
+        if (sst != null && sstNow != base.sst) dirty.put(entryName(sst), sst);
+        StylesTable styles = wb.getStylesSource();
+        long stylesNow = fingerprint(styles);
+        if (styles != null && stylesNow != base.styles) dirty.put(entryName(styles), styles);
+
+        int copied = 0;
+        try (ZipFile zip = new ZipFile(source)) {
+            if (!samePartSet(wb, zip)) {
+                log.debug("Salvataggio parziale non applicabile: parti del pacchetto cambiate");
+                return null;
+            }
+
+            try (ZipArchiveOutputStream zos = new ZipArchiveOutputStream(out)) {
+                Enumeration<ZipArchiveEntry> en = zip.getEntriesInPhysicalOrder();
+                while (en.hasMoreElements()) {
+                    ZipArchiveEntry e = en.nextElement();
+                    POIXMLDocumentPart part = dirty.get(e.getName());
+                    if (part == null) {
+                        try (InputStream raw = zip.getRawInputStream(e)) {
+                            zos.addRawArchiveEntry(e, raw);
+                        }
+                        copied++;
+                        continue;
+                    }
+                    ZipArchiveEntry ne = new ZipArchiveEntry(e.getName());
+                    ne.setMethod(ZipArchiveEntry.DEFLATED);
+                    zos.putArchiveEntry(ne);
+                    OutputStream os = new BufferedOutputStream(zos, 1 << 16);
+                    serialize(part, os);
+                    os.flush();
+                    zos.closeArchiveEntry();
+                }
+                zos.finish();
+            }
+        }
+
+        log.info("Salvataggio parziale: {} parti rigenerate, {} copiate raw in {} ms",
+                Unbox.box(dirty.size()), Unbox.box(copied), Unbox.box((System.nanoTime() - t0) / 1_000_000L));
+        return new Prints(sheets, sstNow, stylesNow);
+    }
+
+    // ===========================
+    // Serializzazione delle parti rigenerate
+    // ===========================
+
+    private static void serialize(POIXMLDocumentPart part, OutputStream os) throws IOException {
+        if (part instanceof XSSFSheet) {
+            ((XSSFSheet) part).getCTWorksheet().save(os, options("worksheet"));
+        } else if (part instanceof XSSFWorkbook) {
+            ((XSSFWorkbook) part).getCTWorkbook().save(os, options("workbook"));
+        } else if (part instanceof CalculationChain) {
+            ((CalculationChain) part).writeTo(os);
+        } else if (part instanceof SharedStringsTable) {
+            ((SharedStringsTable) part).writeTo(os);
+        } else if (part instanceof StylesTable) {
+            ((StylesTable) part).writeTo(os);
+        } else {
+            throw new IllegalStateException("Parte non gestita dal salvataggio parziale: " + part.getClass().getName());
+        }
+    }
+
+    /** Stesse opzioni di XSSFSheet / XSSFWorkbook.commit. */
+    private static XmlOptions options(String rootElement) {
+        XmlOptions opts = new XmlOptions(POIXMLTypeLoader.DEFAULT_XML_OPTIONS);
+        opts.setSaveSyntheticDocumentElement(new QName(XSSFRelation.NS_SPREADSHEETML, rootElement));
+        return opts;
+    }
+
+    // ===========================
+    // Impronte / controlli
+    // ===========================
+
+    private static long fingerprint(XSSFSheet sh) {
+        long h = 17;
+        for (CTRow row : sh.getCTWorksheet().getSheetData().getRowArray()) {
+            h = 31 * h + row.getR();
+            for (CTCell c : row.getCArray()) {
+                h = 31 * h + hash(c.getR());
+                h = 31 * h + (c.isSetT() ? c.getT().intValue() : 0);
+                h = 31 * h + c.getS();
+                h = 31 * h + hash(c.getV());
+                if (c.isSetF()) h = 31 * h + hash(c.getF().getStringValue());
+                if (c.isSetIs()) h = 31 * h + hash(c.getIs().xmlText());
+            }
+        }
+        return h;
+    }
+
+    private static long fingerprint(SharedStringsTable sst) {
+        return (sst == null) ? 0 : ((long) sst.getUniqueCount() << 32) ^ sst.getCount();
+    }
+
+    private static long fingerprint(StylesTable st) {
+        if (st == null) return 0;
+        long h = st.getNumCellStyles();
+        h = 31 * h + st.getFonts().size();
+        h = 31 * h + st.getFills().size();
+        h = 31 * h + st.getBorders().size();
+        h = 31 * h + st.getNumberFormats().size();
+        h = 31 * h + st.getNumDataFormats();
+        return h;
+    }
+
+    private static int hash(String s) {
+        return (s == null) ? 0 : s.hashCode();
+    }
+
+    /** Celle XML nello stesso ordine (per colonna) del modello POI: altrimenti serve XSSFSheet.write. */
+    private static boolean cellsInOrder(XSSFSheet sh) {
+        for (Row r : sh) {
+            CTCell[] ct = ((XSSFRow) r).getCTRow().getCArray();
+            if (ct.length != r.getPhysicalNumberOfCells()) return false;
+            int i = 0;
+            for (Cell c : r) {
+                if (((XSSFCell) c).getCTCell() != ct[i++]) return false;
+            }
+        }
+        return true;
+    }
+
+    /** Stesse parti nel pacchetto POI e nello zip di partenza (a parte content types e relazioni). */
+    private static boolean samePartSet(XSSFWorkbook wb, ZipFile zip) throws IOException {
+        Set<String> entries = new HashSet<>();
+        Enumeration<ZipArchiveEntry> en = zip.getEntries();
+        while (en.hasMoreElements()) {
+            String n = en.nextElement().getName();
+            if (!n.equals(CONTENT_TYPES) && !n.endsWith(".rels") && !n.endsWith("/")) entries.add(n);
+        }
+        try {
+            int parts = 0;
+            for (PackagePart p : wb.getPackage().getParts()) {
+                if (p.isRelationshipPart()) continue;
+                if (!entries.contains(entryName(p))) return false;
+                parts++;
+            }
+            return parts == entries.size();
+        } catch (InvalidFormatException ex) {
+            throw new IOException("Pacchetto xlsx non valido: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static String entryName(POIXMLDocumentPart part) {
+        return entryName(part.getPackagePart());
+    }
+
+    private static String entryName(PackagePart p) {
+        return p.getPartName().getName().substring(1); // "/xl/worksheets/sheet1.xml" -> "xl/..."
+    }
+}
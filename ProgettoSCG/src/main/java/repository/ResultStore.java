@@ -0,0 +1,305 @@
+package repository;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import model.ArticleRow;
+import model.SimulationMode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Archivio dei risultati di simulazione, a colonne: un file per campo, record a larghezza fissa,
+ * scritti e letti tramite FileChannel.map (i dati stanno nella page cache, non nello heap).
+ *
+ * Un record = un articolo in uno scenario (un click "Simula", un punto di uno sweep, ...).
+ * Scansioni e aggregazioni leggono direttamente i buffer mappati, senza creare oggetti per record.
+ * Articoli e scenari sono dizionari in memoria (pochi elementi); le colonne ne salvano l'indice.
+ *
+ * Non thread-safe: usato dal thread UI.
+ */
+public class ResultStore implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(ResultStore.class);
+
+    /** Colonne numeriche (double) di un record. */
+    public enum Col {
+        PERCENT, Q0, P0, CMP0, POS0, Q1, P1, POS1, COMP, Q_STAR, P_STAR, POS_STAR
+    }
+
+    /** Righe iniziali per colonna; poi la mappatura raddoppia. */
+    private static final int INITIAL_ROWS = 4096;
+
+    private final File dir;
+    private final Column scenarioCol;
+    private final Column articleCol;
+    private final Column modeCol;
+    private static final Col[] COLS = Col.values();
+    private final Column[] values = new Column[COLS.length];    // per Col.ordinal()
+
+    private final List<String> scenarioLabels = new ArrayList<>();
+    private final List<ArticleRow> articles = new ArrayList<>();
+    private final Map<String, Integer> articleIds = new HashMap<>();
+
+    private int rows;
+    private int capacity;
+
+    public ResultStore(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Impossibile creare la cartella risultati: " + dir.getAbsolutePath());
+        }
+        this.dir = dir;
+        this.scenarioCol = new Column(new File(dir, "scenario.i32"), 4);
+        this.articleCol = new Column(new File(dir, "article.i32"), 4);
+        this.modeCol = new Column(new File(dir, "mode.u8"), 1);
+        for (Col c : COLS) {
+            values[c.ordinal()] = new Column(new File(dir, c.name().toLowerCase() + ".f64"), 8);
+        }
+        grow(INITIAL_ROWS);
+        log.info("Archivio risultati: {}", dir.getAbsolutePath());
+    }
+
+    /** Archivio in una cartella temporanea nuova del workspace (eliminata da {@link #delete()} o all'uscita). */
+    public static ResultStore createTemp() throws IOException {
+        return new ResultStore(Workspace.get().newTempDir("scg-results_"));
+    }
+
+    // ===========================
+    // Scrittura
+    // ===========================
+
+    /** Nuovo scenario (es. "Simula #3", "Sweep ELASTIC_PRICE"): restituisce l'id da usare in append. */
+    public int newScenario(String label) {
+        scenarioLabels.add(label);
+        return scenarioLabels.size() - 1;
+    }
+
+    /**
+     * Accoda un record. values è indicizzato per {@link Col#ordinal()} (NaN = non applicabile,
+     * es. compensazione non richiesta).
+     */
+    public void append(int scenario, ArticleRow article, SimulationMode mode, double[] values) {
+        if (values.length != COLS.length) {
+            throw new IllegalArgumentException("Record risultati: attesi " + COLS.length + " valori.");
+        }
+        if (rows == capacity) grow(capacity * 2);
+
+        scenarioCol.buf.putInt(rows * 4, scenario);
+        articleCol.buf.putInt(rows * 4, articleId(article));
+        modeCol.buf.put(rows, (byte) mode.ordinal());
+        int off = rows * 8;
+        for (int c = 0; c < values.length; c++) {
+            this.values[c].buf.putDouble(off, values[c]);
+        }
+        rows++;
+    }
+
+    private int articleId(ArticleRow a) {
+        String key = a.getCat() + "||" + a.getArticolo();
+        Integer id = articleIds.get(key);
+        if (id == null) {
+            id = articles.size();
+            articles.add(a);
+            articleIds.put(key, id);
+        }
+        return id;
+    }
+
+    private void grow(int newCapacity) {
+        try {
+            scenarioCol.map(newCapacity);
+            articleCol.map(newCapacity);
+            modeCol.map(newCapacity);
+            for (Column c : values) c.map(newCapacity);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Archivio risultati: impossibile estendere i file (" + ex.getMessage() + ")", ex);
+        }
+        capacity = newCapacity;
+    }
+
+    // ===========================
+    // Lettura / aggregazioni
+    // ===========================
+
+    public int size() { return rows; }
+
+    public int getScenarioCount() { return scenarioLabels.size(); }
+
+    public String getScenarioLabel(int scenario) { return scenarioLabels.get(scenario); }
+
+    public double get(Col c, int row) {
+        return values[c.ordinal()].buf.getDouble(row * 8);
+    }
+
+    public int getScenario(int row) {
+        return scenarioCol.buf.getInt(row * 4);
+    }
+
+    public ArticleRow getArticle(int row) {
+        return articles.get(articleCol.buf.getInt(row * 4));
+    }
+
+    public SimulationMode getMode(int row) {
+        return SimulationMode.values()[modeCol.buf.get(row)];
+    }
+
+    /** {min, max} della colonna (NaN ignorati; NaN se nessun valore). scenario &lt; 0 = tutti. */
+    public double[] minMax(Col c, int scenario) {
+        MappedByteBuffer v = values[c.ordinal()].buf;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (int r = 0; r < rows; r++) {
+            if (scenario >= 0 && scenarioCol.buf.getInt(r * 4) != scenario) continue;
+            double x = v.getDouble(r * 8);
+            if (x != x) continue;
+            if (x < min) min = x;
+            if (x > max) max = x;
+        }
+        return (min > max) ? new double[]{Double.NaN, Double.NaN} : new double[]{min, max};
+    }
+
+    /**
+     * Aggregato per categoria articolo (MP / PFP / ...): categoria -> {record, somma, min, max}.
+     * NaN esclusi; scenario &lt; 0 = tutti gli scenari.
+     */
+    public Map<String, double[]> aggregateByCategory(Col c, int scenario) {
+        // categoria per id articolo (una volta), poi solo letture dai buffer
+        String[] catOf = new String[articles.size()];
+        for (int i = 0; i < catOf.length; i++) catOf[i] = articles.get(i).getCat();
+
+        MappedByteBuffer v = values[c.ordinal()].buf;
+        Map<String, double[]> out = new LinkedHashMap<>();
+        for (int r = 0; r < rows; r++) {
+            if (scenario >= 0 && scenarioCol.buf.getInt(r * 4) != scenario) continue;
+            double x = v.getDouble(r * 8);
+            if (x != x) continue;
+
+            String cat = catOf[articleCol.buf.getInt(r * 4)];
+            double[] a = out.get(cat);
+            if (a == null) out.put(cat, a = new double[]{0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY});
+            a[0]++;
+            a[1] += x;
+            if (x < a[2]) a[2] = x;
+            if (x > a[3]) a[3] = x;
+        }
+        return out;
+    }
+
+    // ===========================
+    // Export
+    // ===========================
+
+    /** CSV (separatore ',', decimali '.', celle vuote per NaN). Restituisce il numero di record scritti. */
+    public int exportCsv(File out) throws IOException {
+        try (Writer w = new BufferedWriter(Files.newBufferedWriter(out.toPath(), StandardCharsets.UTF_8), 1 << 16)) {
+            w.write("scenario,scenario_label,cat,articolo,mode");
+            for (Col c : COLS) w.write(',' + c.name().toLowerCase());
+            w.write('\n');
+
+            StringBuilder sb = new StringBuilder(256);
+            for (int r = 0; r < rows; r++) {
+                int sc = getScenario(r);
+                ArticleRow a = getArticle(r);
+                sb.setLength(0);
+                sb.append(sc).append(',');
+                csv(sb, scenarioLabels.get(sc)).append(',');
+                csv(sb, a.getCat()).append(',');
+                csv(sb, a.getArticolo()).append(',');
+                sb.append(getMode(r).name());
+                for (Col c : COLS) {
+                    double x = get(c, r);
+                    sb.append(',');
+                    if (x == x) sb.append(x);
+                }
+                sb.append('\n');
+                w.append(sb);
+            }
+        }
+        log.info("Risultati esportati: {} record -> {}", rows, out.getAbsolutePath());
+        return rows;
+    }
+
+    private static StringBuilder csv(StringBuilder sb, String s) {
+        if (s == null) return sb;
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return sb.append(s);
+        return sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+    }
+
+    // ===========================
+    // Chiusura
+    // ===========================
+
+    @Override
+    public void close() {
+        scenarioCol.close();
+        articleCol.close();
+        modeCol.close();
+        for (Column c : values) c.close();
+    }
+
+    /** Chiude ed elimina i file dell'archivio. */
+    public void delete() {
+        close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (!f.delete()) f.deleteOnExit();
+            }
+        }
+        if (!dir.delete()) dir.deleteOnExit();
+    }
+
+    /** Una colonna: file + mappatura READ_WRITE ricreata quando la capacità raddoppia. */
+    private static final class Column {
+        final File file;
+        final int width;
+        final RandomAccessFile raf;
+        final FileChannel ch;
+        MappedByteBuffer buf;
+
+        Column(File file, int width) throws IOException {
+            this.file = file;
+            this.width = width;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.ch = raf.getChannel();
+        }
+
+        void map(int rows) throws IOException {
+            long bytes = (long) rows * width;
+            if (bytes > Integer.MAX_VALUE) throw new IOException("colonna " + file.getName() + " oltre 2 GB");
+            buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+
+        /**
+         * Chiude canale e file anche se uno dei due fallisce. Non tronca: la mappatura resta viva fino
+         * al GC e su Windows un file mappato non si può accorciare; i record validi sono i primi
+         * {@code rows} dell'archivio, il resto è capacità.
+         */
+        void close() {
+            if (!ch.isOpen()) return;
+            buf = null;
+            try {
+                ch.close();
+            } catch (IOException ex) {
+                log.warn("Chiusura colonna {} fallita: {}", file.getName(), ex.getMessage());
+            } finally {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                    log.warn("Chiusura file {} fallita: {}", file.getName(), ex.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package repository;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+import model.ArticleRow;
+import model.SimulationMode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormat;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * Export dei risultati in un NUOVO file .xlsx, in streaming (SXSSF): in memoria restano solo
+ * le ultime {@link #ROW_WINDOW} righe, il resto va su file temporaneo (non compresso: il gzip
+ * raddoppiava il tempo di scrittura delle righe).
+ * La working copy non viene toccata (niente DOM completo da riserializzare).
+ *
+ * Fogli: "Risultati" (un record per riga, continua su "Risultati (2)" ... oltre il limite Excel),
+ * "Riepilogo" (per categoria) e, se forniti, "CE" (prima / dopo / delta).
+ */
+public class ResultsWorkbookWriter {
+
+    private static final Logger log = LogManager.getLogger(ResultsWorkbookWriter.class);
+
+    /** Righe tenute in memoria per foglio. */
+    private static final int ROW_WINDOW = 200;
+
+    private static final int MAX_DATA_ROWS = SpreadsheetVersion.EXCEL2007.getLastRowIndex(); // + header
+
+    private static final String[] FIXED_HEADERS = {"Scenario", "Cat", "Articolo", "Modalità"};
+
+    /** Stili creati una volta per workbook (POI ha un limite di stili per file). */
+    private static final class Styles {
+        final CellStyle header;
+        final CellStyle integer;
+        final CellStyle dec3;
+        final CellStyle pct;
+
+        Styles(SXSSFWorkbook wb) {
+            DataFormat df = wb.createDataFormat();
+            Font bold = wb.createFont();
+            bold.setBold(true);
+
+            header = wb.createCellStyle();
+            header.setFont(bold);
+
+            integer = wb.createCellStyle();
+            integer.setDataFormat(df.getFormat("#,##0"));
+
+            dec3 = wb.createCellStyle();
+            dec3.setDataFormat(df.getFormat("#,##0.000"));
+
+            pct = wb.createCellStyle();
+            pct.setDataFormat(df.getFormat("0.00"));
+        }
+
+        /**
+         * Prezzi / CMP a 3 decimali, percentuale a 2, resto intero (come nei dettagli).
+         * COMP dipende dalla modalità del record: vedi {@link #comp(SimulationMode)}.
+         */
+        CellStyle of(ResultStore.Col c) {
+            switch (c) {
+                case PERCENT: return pct;
+                case P0: case CMP0: case P1: case P_STAR: return dec3;
+                default: return integer;
+            }
+        }
+
+        /** COMP è un prezzo €/kg nelle modalità a quantità (si compensa sul prezzo), altrimenti una quantità. */
+        CellStyle comp(SimulationMode mode) {
+            return mode.isQuantityDriven() ? dec3 : integer;
+        }
+    }
+
+    /**
+     * Scrive il file (su temp + rename, così un export interrotto non lascia un .xlsx rotto).
+     *
+     * @param ceBefore voci CE prima delle simulazioni (null = niente foglio CE)
+     * @param ceAfter  voci CE dopo le simulazioni (stesse chiavi di ceBefore)
+     * @return numero di record scritti
+     */
+    public int write(ResultStore store, Map<String, Double> ceBefore, Map<String, Double> ceAfter, File out)
+            throws IOException {
+        long t0 = System.nanoTime();
+        int rows = store.size(); // solo i record presenti adesso
+
+        SXSSFWorkbook wb = new SXSSFWorkbook(ROW_WINDOW);
+        wb.setCompressTempFiles(false);
+        try {
+            Styles st = new Styles(wb);
+            writeRecords(wb, st, store, rows);
+            writeSummary(wb, st, store);
+            if (ceBefore != null && ceAfter != null) writeCe(wb, st, ceBefore, ceAfter);
+
+            File tmp = File.createTempFile("scg-export_", ".xlsx", out.getAbsoluteFile().getParentFile());
+            try {
+                try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), 1 << 16)) {
+                    wb.write(os);
+                }
+                Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } finally {
+            wb.dispose(); // elimina i file temporanei SXSSF
+            wb.close();
+        }
+
+        log.info("Export risultati XLSX: {} record in {} ms -> {}",
+                rows, (System.nanoTime() - t0) / 1_000_000L, out.getAbsolutePath());
+        return rows;
+    }
+
+    private static void writeRecords(SXSSFWorkbook wb, Styles st, ResultStore store, int rows) {
+        ResultStore.Col[] cols = ResultStore.Col.values();
+        CellStyle[] colStyle = new CellStyle[cols.length];
+        for (ResultStore.Col c : cols) colStyle[c.ordinal()] = st.of(c);
+
+        Sheet sh = null;
+        int sheetNo = 0;
+        int r = 0;
+        for (int i = 0; i < rows; i++) {
+            if (sh == null || r > MAX_DATA_ROWS) {
+                sheetNo++;
+                sh = newRecordSheet(wb, st, sheetNo == 1 ? "Risultati" : "Risultati (" + sheetNo + ")", cols);
+                r = 1;
+            }
+
+            ArticleRow a = store.getArticle(i);
+            Row row = sh.createRow(r++);
+            row.createCell(0).setCellValue(store.getScenarioLabel(store.getScenario(i)));
+            row.createCell(1).setCellValue(a.getCat());
+            row.createCell(2).setCellValue(a.getArticolo());
+            SimulationMode mode = store.getMode(i);
+            row.createCell(3).setCellValue(mode.name());
+
+            int cIdx = FIXED_HEADERS.length;
+            for (ResultStore.Col c : cols) {
+                double v = store.get(c, i);
+                if (v == v) { // NaN -> cella vuota
+                    Cell cell = row.createCell(cIdx);
+                    cell.setCellValue(v);
+                    cell.setCellStyle(c == ResultStore.Col.COMP ? st.comp(mode) : colStyle[c.ordinal()]);
+                }
+                cIdx++;
+            }
+        }
+        if (sh == null) newRecordSheet(wb, st, "Risultati", cols);
+    }
+
+    private static Sheet newRecordSheet(SXSSFWorkbook wb, Styles st, String name, ResultStore.Col[] cols) {
+        SXSSFSheet sh = wb.createSheet(name);
+        Row h = sh.createRow(0);
+        int c = 0;
+        for (String s : FIXED_HEADERS) header(h, c++, s, st);
+        for (ResultStore.Col col : cols) header(h, c++, col.name(), st);
+        sh.createFreezePane(0, 1);
+
+        // larghezze fisse: autoSize in streaming vedrebbe solo la finestra di righe
+        sh.setColumnWidth(0, 16 * 256);
+        sh.setColumnWidth(2, 22 * 256);
+        sh.setColumnWidth(3, 18 * 256);
+        for (int i = FIXED_HEADERS.length; i < c; i++) sh.setColumnWidth(i, 14 * 256);
+        return sh;
+    }
+
+    private static void writeSummary(SXSSFWorkbook wb, Styles st, ResultStore store) {
+        SXSSFSheet sh = wb.createSheet("Riepilogo");
+        Row h = sh.createRow(0);
+        String[] headers = {"Valore", "Categoria", "Record", "Somma", "Min", "Max"};
+        for (int i = 0; i < headers.length; i++) header(h, i, headers[i], st);
+
+        int r = 1;
+        for (ResultStore.Col c : new ResultStore.Col[]{ResultStore.Col.POS0, ResultStore.Col.POS1, ResultStore.Col.POS_STAR}) {
+            for (Map.Entry<String, double[]> e : store.aggregateByCategory(c, -1).entrySet()) {
+                double[] a = e.getValue();
+                Row row = sh.createRow(r++);
+                row.createCell(0).setCellValue(c.name());
+                row.createCell(1).setCellValue(e.getKey());
+                for (int k = 0; k < 4; k++) {
+                    Cell cell = row.createCell(2 + k);
+                    cell.setCellValue(a[k]);
+                    cell.setCellStyle(st.integer);
+                }
+            }
+        }
+        for (int i = 0; i < headers.length; i++) sh.setColumnWidth(i, 16 * 256);
+    }
+
+    private static void writeCe(SXSSFWorkbook wb, Styles st, Map<String, Double> before, Map<String, Double> after) {
+        SXSSFSheet sh = wb.createSheet("CE");
+        Row h = sh.createRow(0);
+        String[] headers = {"Voce", "Prima", "Dopo", "Delta"};
+        for (int i = 0; i < headers.length; i++) header(h, i, headers[i], st);
+
+        int r = 1;
+        for (Map.Entry<String, Double> e : before.entrySet()) {
+            double b = (e.getValue() == null) ? 0.0 : e.getValue();
+            Double av = after.get(e.getKey());
+            double a = (av == null) ? 0.0 : av;
+
+            Row row = sh.createRow(r++);
+            row.createCell(0).setCellValue(e.getKey());
+            double[] v = {b, a, a - b};
+            for (int k = 0; k < v.length; k++) {
+                Cell cell = row.createCell(1 + k);
+                cell.setCellValue(v[k]);
+                cell.setCellStyle(st.integer);
+            }
+        }
+        sh.setColumnWidth(0, 34 * 256);
+        for (int i = 1; i < headers.length; i++) sh.setColumnWidth(i, 16 * 256);
+    }
+
+    private static void header(Row h, int col, String text, Styles st) {
+        Cell c = h.createCell(col);
+        c.setCellValue(text);
+        c.setCellStyle(st.header);
+    }
+}
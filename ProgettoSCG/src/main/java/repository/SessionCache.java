@@ -0,0 +1,164 @@
+package repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import model.ArticleRow;
+import model.RicaviSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cache binaria della sessione: articoli + valori base (snapshot Ricavi, MOL CE) di un workbook,
+ * in un file per hash SHA-256 del contenuto ("scg-&lt;hash&gt;.cache").
+ *
+ * Riaprendo lo stesso file Excel i dati si leggono dal file mappato in memoria (niente POI);
+ * se l'hash è diverso il file semplicemente non esiste e si torna a POI.
+ *
+ * Formato (big endian):
+ * <pre>
+ * MAGIC, VERSION, n, mol0
+ * n x { cat, articolo, categoria (UTF-8 con lunghezza), 7 indici (row + colonne), flag $ }
+ * q0[n], p0[n], cmp0[n], pos0[n], pUsd0[n], cmpUsd0[n]   (colonne double contigue)
+ * </pre>
+ */
+class SessionCache {
+
+    private static final Logger log = LogManager.getLogger(SessionCache.class);
+
+    private static final int MAGIC = 0x53434743; // "SCGC"
+    /** Da incrementare quando cambia il formato o la logica di lettura degli articoli. */
+    private static final int VERSION = 1;
+
+    private static final int FLAG_PRICE_USD = 1;
+    private static final int FLAG_CMP_USD = 2;
+
+    private final File dir;
+
+    SessionCache(File dir) {
+        this.dir = dir;
+    }
+
+    File fileFor(String hash) {
+        return new File(dir, "scg-" + hash + ".cache");
+    }
+
+    /** Snapshot dalla cache, null se assente o non valida (in quel caso il file viene eliminato). */
+    RicaviSnapshot read(String hash) {
+        File f = fileFor(hash);
+        if (!f.isFile()) return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+             FileChannel ch = raf.getChannel()) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            buf.order(ByteOrder.BIG_ENDIAN);
+
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException("intestazione non riconosciuta");
+            }
+            int n = buf.getInt();
+            double mol0 = buf.getDouble();
+
+            List<ArticleRow> articles = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                String cat = readString(buf);
+                String articolo = readString(buf);
+                String categoria = readString(buf);
+                int row = buf.getInt();
+                int colQty = buf.getInt();
+                int colPeur = buf.getInt();
+                int colPusd = buf.getInt();
+                int colCmpEur = buf.getInt();
+                int colCmpUsd = buf.getInt();
+                int colPos = buf.getInt();
+                int flags = buf.get();
+                articles.add(new ArticleRow(cat, articolo, categoria, row, colQty,
+                        colPeur, colPusd, colCmpEur, colCmpUsd, colPos,
+                        (flags & FLAG_PRICE_USD) != 0, (flags & FLAG_CMP_USD) != 0));
+            }
+
+            double[] q0 = readDoubles(buf, n);
+            double[] p0 = readDoubles(buf, n);
+            double[] cmp0 = readDoubles(buf, n);
+            double[] pos0 = readDoubles(buf, n);
+            double[] pUsd0 = readDoubles(buf, n);
+            double[] cmpUsd0 = readDoubles(buf, n);
+
+            return new RicaviSnapshot(articles, q0, p0, cmp0, pos0, pUsd0, cmpUsd0, mol0);
+        } catch (Exception ex) {
+            log.warn("Cache sessione non valida ({}): la elimino e rileggo l'Excel", ex.toString());
+            if (!f.delete()) f.deleteOnExit();
+            return null;
+        }
+    }
+
+    /** Scrive la cache (file temp + rename atomico: un lettore non vede mai un file a metà). */
+    void write(String hash, RicaviSnapshot snap) throws IOException {
+        int n = snap.size();
+
+        List<byte[][]> names = new ArrayList<>(n);
+        int size = 4 + 4 + 4 + 8;
+        for (int i = 0; i < n; i++) {
+            ArticleRow a = snap.getArticle(i);
+            byte[][] s = {utf8(a.getCat()), utf8(a.getArticolo()), utf8(a.getCategoria())};
+            names.add(s);
+            size += 3 * 4 + s[0].length + s[1].length + s[2].length + 7 * 4 + 1;
+        }
+        size += 6 * 8 * n;
+
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(n).putDouble(snap.getMol0());
+        for (int i = 0; i < n; i++) {
+            ArticleRow a = snap.getArticle(i);
+            for (byte[] s : names.get(i)) buf.putInt(s.length).put(s);
+            buf.putInt(a.getRowIndex())
+                    .putInt(a.getColQty())
+                    .putInt(a.getColPmedioEUR())
+                    .putInt(a.getColPmedioUSD() == null ? -1 : a.getColPmedioUSD())
+                    .putInt(a.getColCMPmedioEUR())
+                    .putInt(a.getColCMPmedioUSD() == null ? -1 : a.getColCMPmedioUSD())
+                    .putInt(a.getColPos());
+            int flags = (a.isPriceIsUSDInput() ? FLAG_PRICE_USD : 0) | (a.isCmpIsUSDInput() ? FLAG_CMP_USD : 0);
+            buf.put((byte) flags);
+        }
+        buf.asDoubleBuffer().put(snap.getQ0()).put(snap.getP0()).put(snap.getCmp0())
+                .put(snap.getPos0()).put(snap.getPUsd0()).put(snap.getCmpUsd0());
+
+        File target = fileFor(hash);
+        File tmp = File.createTempFile("scg-cache_", ".tmp", dir);
+        try {
+            Files.write(tmp.toPath(), buf.array());
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        log.info("Cache sessione scritta: {} ({} articoli, {} bytes)", target.getName(), n, size);
+    }
+
+    private static byte[] utf8(String s) {
+        return (s == null) ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static double[] readDoubles(ByteBuffer buf, int n) {
+        double[] out = new double[n];
+        buf.asDoubleBuffer().get(out);
+        buf.position(buf.position() + 8 * n);
+        return out;
+    }
+}
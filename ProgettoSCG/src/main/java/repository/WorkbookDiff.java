@@ -0,0 +1,342 @@
+package repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagingURIHelper;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Differenze cella per cella tra due versioni dello stesso .xlsx (snapshot base e originale aggiornato).
+ *
+ * Costo proporzionale alle modifiche: i fogli la cui parte zip ha lo stesso CRC non vengono letti,
+ * quelli cambiati si leggono in streaming (SAX) senza costruire il workbook POI.
+ * Si confrontano solo contenuti (valore o testo della formula, non il risultato in cache né lo stile).
+ * Fogli aggiunti, rimossi, rinominati o spostati = modifica "strutturale": niente diff, serve ricaricare.
+ */
+final class WorkbookDiff {
+
+    private static final Logger log = LogManager.getLogger(WorkbookDiff.class);
+
+    static final byte BLANK = 0;
+    static final byte NUMBER = 1;
+    static final byte STRING = 2;
+    static final byte BOOLEAN = 3;
+    static final byte FORMULA = 4;
+    static final byte ERROR = 5;
+
+    private static final Content EMPTY = new Content(BLANK, null, 0.0, null, -1, -1);
+
+    /** Contenuto di una cella nel file. Formule condivise: testo e posizione della cella master. */
+    static final class Content {
+        final byte kind;
+        final String text;     // stringa, errore, formula (null per le figlie di una formula condivisa)
+        final double number;   // NUMBER / BOOLEAN (1 = TRUE)
+        final String shared;   // FORMULA condivisa: testo della master
+        final int sharedRow;
+        final int sharedCol;
+
+        Content(byte kind, String text, double number, String shared, int sharedRow, int sharedCol) {
+            this.kind = kind;
+            this.text = text;
+            this.number = number;
+            this.shared = shared;
+            this.sharedRow = sharedRow;
+            this.sharedCol = sharedCol;
+        }
+
+        boolean sameAs(Content o) {
+            if (kind != o.kind) return false;
+            switch (kind) {
+                case BLANK:
+                    return true;
+                case NUMBER:
+                case BOOLEAN:
+                    return Double.compare(number, o.number) == 0;
+                case FORMULA:
+                    if (text != null || o.text != null) return eq(text, o.text) && eq(shared, o.shared);
+                    // figlie: stessa formula master e stessa distanza dalla master
+                    return eq(shared, o.shared) && sharedRow == o.sharedRow && sharedCol == o.sharedCol;
+                default:
+                    return eq(text, o.text);
+            }
+        }
+    }
+
+    /** Una cella cambiata: contenuto nello snapshot base e nel file nuovo. */
+    static final class Change {
+        final int row;
+        final int col;
+        final Content before;
+        final Content after;
+
+        Change(int row, int col, Content before, Content after) {
+            this.row = row;
+            this.col = col;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    static final class Result {
+        final boolean structural;
+        /** Foglio -> celle cambiate (ordine dei fogli nel workbook). */
+        final Map<String, List<Change>> changes;
+
+        Result(boolean structural, Map<String, List<Change>> changes) {
+            this.structural = structural;
+            this.changes = changes;
+        }
+
+        int cellCount() {
+            int n = 0;
+            for (List<Change> l : changes.values()) n += l.size();
+            return n;
+        }
+    }
+
+    private WorkbookDiff() {}
+
+    static Result diff(File before, File after) throws IOException {
+        long t0 = System.nanoTime();
+        Map<String, Long> crcBefore = crcs(before);
+        Map<String, Long> crcAfter = crcs(after);
+
+        try (OPCPackage pb = OPCPackage.open(before, PackageAccess.READ);
+             OPCPackage pa = OPCPackage.open(after, PackageAccess.READ)) {
+
+            Map<String, String> sheetsBefore = sheetParts(pb);
+            Map<String, String> sheetsAfter = sheetParts(pa);
+            if (!new ArrayList<>(sheetsBefore.keySet()).equals(new ArrayList<>(sheetsAfter.keySet()))) {
+                log.info("Diff workbook: fogli diversi {} -> {}", sheetsBefore.keySet(), sheetsAfter.keySet());
+                return new Result(true, new LinkedHashMap<>());
+            }
+
+            Map<String, List<Change>> changes = new LinkedHashMap<>();
+            ReadOnlySharedStringsTable sstBefore = null, sstAfter = null;
+            int parsed = 0;
+            for (Map.Entry<String, String> e : sheetsAfter.entrySet()) {
+                String partB = sheetsBefore.get(e.getKey());
+                String partA = e.getValue();
+                Long cb = crcBefore.get(partB);
+                if (cb != null && cb.equals(crcAfter.get(partA))) continue; // foglio identico nello zip
+
+                if (sstBefore == null) {
+                    sstBefore = new ReadOnlySharedStringsTable(pb, false);
+                    sstAfter = new ReadOnlySharedStringsTable(pa, false);
+                }
+                Map<Long, Content> cellsB = readSheet(pb, partB, sstBefore);
+                Map<Long, Content> cellsA = readSheet(pa, partA, sstAfter);
+                parsed++;
+
+                List<Change> list = compare(cellsB, cellsA);
+                if (!list.isEmpty()) changes.put(e.getKey(), list);
+            }
+
+            Result r = new Result(false, changes);
+            log.info("Diff workbook: {} fogli riletti su {}, {} celle cambiate in {} ({} ms)",
+                    Unbox.box(parsed), Unbox.box(sheetsAfter.size()), Unbox.box(r.cellCount()), changes.keySet(),
+                    Unbox.box((System.nanoTime() - t0) / 1_000_000L));
+            return r;
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException ex) {
+            throw new IOException("Confronto workbook non riuscito: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static List<Change> compare(Map<Long, Content> before, Map<Long, Content> after) {
+        TreeSet<Long> keys = new TreeSet<>(before.keySet());
+        keys.addAll(after.keySet());
+        List<Change> out = new ArrayList<>();
+        for (Long k : keys) {
+            Content b = before.getOrDefault(k, EMPTY);
+            Content a = after.getOrDefault(k, EMPTY);
+            if (!b.sameAs(a)) out.add(new Change((int) (k >>> 16), (int) (k & 0xFFFF), b, a));
+        }
+        return out;
+    }
+
+    // ===========================
+    // Lettura
+    // ===========================
+
+    /** CRC delle entry zip (dalla directory centrale: niente decompressione). Chiave = nome parte "/xl/...". */
+    private static Map<String, Long> crcs(File f) throws IOException {
+        Map<String, Long> out = new HashMap<>();
+        try (ZipFile zip = new ZipFile(f)) {
+            Enumeration<ZipArchiveEntry> en = zip.getEntries();
+            while (en.hasMoreElements()) {
+                ZipArchiveEntry e = en.nextElement();
+                out.put("/" + e.getName(), (e.getSize() << 32) ^ e.getCrc());
+            }
+        }
+        return out;
+    }
+
+    /** Nome foglio -> nome parte, nell'ordine del workbook. */
+    private static Map<String, String> sheetParts(OPCPackage pkg) throws IOException, OpenXML4JException {
+        Map<String, String> out = new LinkedHashMap<>();
+        XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) new XSSFReader(pkg).getSheetsData();
+        while (it.hasNext()) {
+            it.next().close();
+            out.put(it.getSheetName(), it.getSheetPart().getPartName().getName());
+        }
+        return out;
+    }
+
+    private static Map<Long, Content> readSheet(OPCPackage pkg, String partName, ReadOnlySharedStringsTable sst)
+            throws IOException, SAXException, ParserConfigurationException, OpenXML4JException {
+        SheetHandler h = new SheetHandler(sst);
+        XMLReader reader = XMLHelper.newXMLReader();
+        reader.setContentHandler(h);
+        try (InputStream in = pkg.getPart(PackagingURIHelper.createPartName(partName)).getInputStream()) {
+            reader.parse(new InputSource(in));
+        }
+        return h.cells;
+    }
+
+    /** Celle non vuote di un foglio: riga &lt;&lt; 16 | colonna -> contenuto. */
+    private static final class SheetHandler extends DefaultHandler {
+        final Map<Long, Content> cells = new HashMap<>();
+        private final ReadOnlySharedStringsTable sst;
+        /** Formule condivise: si -> { testo, riga, colonna } della master. */
+        private final Map<String, Object[]> masters = new HashMap<>();
+
+        private final StringBuilder chars = new StringBuilder();
+        private boolean collect;
+        private int row, col;
+        private int rowNum = -1, nextCol; // per le celle senza attributo r
+        private String type;
+        private String value, formula, inline, sharedIndex;
+
+        SheetHandler(ReadOnlySharedStringsTable sst) {
+            this.sst = sst;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            switch (localName) {
+                case "row": {
+                    String r = atts.getValue("r");
+                    rowNum = (r != null) ? Integer.parseInt(r) - 1 : rowNum + 1;
+                    nextCol = 0;
+                    break;
+                }
+                case "c": {
+                    String r = atts.getValue("r");
+                    if (r != null) {
+                        CellReference ref = new CellReference(r);
+                        row = ref.getRow();
+                        col = ref.getCol();
+                    } else {
+                        row = rowNum;
+                        col = nextCol;
+                    }
+                    nextCol = col + 1;
+                    type = atts.getValue("t");
+                    value = formula = inline = sharedIndex = null;
+                    break;
+                }
+                case "f":
+                    if ("shared".equals(atts.getValue("t"))) sharedIndex = atts.getValue("si");
+                    startChars();
+                    break;
+                case "v":
+                case "t":
+                    startChars();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (collect) chars.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "f":
+                    formula = chars.toString();
+                    collect = false;
+                    break;
+                case "v":
+                    value = chars.toString();
+                    collect = false;
+                    break;
+                case "t":
+                    inline = (inline == null) ? chars.toString() : inline + chars;
+                    collect = false;
+                    break;
+                case "c":
+                    Content c = content();
+                    if (c.kind != BLANK) cells.put(((long) row << 16) | col, c);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void startChars() {
+            chars.setLength(0);
+            collect = true;
+        }
+
+        private Content content() {
+            if (formula != null) {
+                if (sharedIndex == null) return new Content(FORMULA, formula, 0.0, null, -1, -1);
+                if (!formula.isEmpty()) { // master
+                    masters.put(sharedIndex, new Object[]{formula, row, col});
+                    return new Content(FORMULA, formula, 0.0, formula, -1, -1);
+                }
+                Object[] m = masters.get(sharedIndex);
+                if (m == null) return new Content(FORMULA, null, 0.0, "?" + sharedIndex, row, col);
+                return new Content(FORMULA, null, 0.0, (String) m[0], row - (Integer) m[1], col - (Integer) m[2]);
+            }
+            if ("inlineStr".equals(type)) return new Content(STRING, inline == null ? "" : inline, 0.0, null, -1, -1);
+            if (value == null) return EMPTY;
+            if ("s".equals(type)) {
+                return new Content(STRING, sst.getItemAt(Integer.parseInt(value)).getString(), 0.0, null, -1, -1);
+            }
+            if ("str".equals(type)) return new Content(STRING, value, 0.0, null, -1, -1);
+            if ("b".equals(type)) return new Content(BOOLEAN, null, "1".equals(value) ? 1.0 : 0.0, null, -1, -1);
+            if ("e".equals(type)) return new Content(ERROR, value, 0.0, null, -1, -1);
+            try {
+                return new Content(NUMBER, null, Double.parseDouble(value), null, -1, -1);
+            } catch (NumberFormatException ex) {
+                return new Content(STRING, value, 0.0, null, -1, -1);
+            }
+        }
+    }
+
+    private static boolean eq(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,266 @@
+package repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * Journal write-ahead della working copy: per ogni salvataggio un record con le celle scritte
+ * (valore finale assoluto), accodato e forzato su disco PRIMA di riscrivere il workbook.
+ *
+ * Rieseguire i record è idempotente (ogni cella prende il suo ultimo valore), quindi il ripristino
+ * può applicarli sullo snapshot base o su un checkpoint che ne contiene già una parte.
+ *
+ * Formato (big endian):
+ * <pre>
+ * MAGIC, VERSION
+ * record: lunghezza, CRC32, { tipo, seq, [n x { foglio (UTF), riga, colonna, forza numerico, valore }] }
+ * </pre>
+ * Un record troncato o con CRC errato (crash durante la scrittura) chiude la lettura.
+ */
+class WorkingCopyJournal implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(WorkingCopyJournal.class);
+
+    private static final int MAGIC = 0x5343474A; // "SCGJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+
+    private static final byte COMMIT = 1;
+    private static final byte ABORT = 2;
+
+    /** Una cella scritta: valore finale; force = la cella diventa numerica anche se era una formula. */
+    static final class CellWrite {
+        final String sheet;
+        final int row;
+        final int col;
+        final boolean force;
+        final double value;
+
+        CellWrite(String sheet, int row, int col, boolean force, double value) {
+            this.sheet = sheet;
+            this.row = row;
+            this.col = col;
+            this.force = force;
+            this.value = value;
+        }
+    }
+
+    private final File file;
+    private FileChannel ch;
+    private long seq;
+    private int commits;
+
+    /** Scritture dell'azione in corso: foglio!riga!colonna -> ultimo valore. */
+    private final Map<String, CellWrite> pending = new LinkedHashMap<>();
+
+    WorkingCopyJournal(File file) {
+        this.file = file;
+    }
+
+    // ===========================
+    // Scrittura
+    // ===========================
+
+    /** Ricomincia da un journal vuoto (nuova sessione, reset, dopo un checkpoint). */
+    void rotate() throws IOException {
+        closeChannel();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(tmp.toPath(), ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).array());
+        DurableFiles.commit(tmp, file);
+        ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        commits = 0;
+        pending.clear();
+    }
+
+    void record(Cell cell, boolean force) {
+        String sheet = cell.getSheet().getSheetName();
+        String key = sheet + '!' + cell.getRowIndex() + '!' + cell.getColumnIndex();
+        CellWrite prev = pending.get(key);
+        pending.put(key, new CellWrite(sheet, cell.getRowIndex(), cell.getColumnIndex(),
+                force || (prev != null && prev.force), cell.getNumericCellValue()));
+    }
+
+    void discardPending() {
+        pending.clear();
+    }
+
+    /**
+     * Accoda le scritture in sospeso e le forza su disco.
+     *
+     * @return numero di sequenza del record, -1 se non c'era niente da scrivere
+     */
+    long commit() throws IOException {
+        if (ch == null || pending.isEmpty()) {
+            pending.clear();
+            return -1;
+        }
+        long s = ++seq;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + pending.size() * 32);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(COMMIT);
+        out.writeLong(s);
+        out.writeInt(pending.size());
+        for (CellWrite w : pending.values()) {
+            out.writeUTF(w.sheet);
+            out.writeInt(w.row);
+            out.writeInt(w.col);
+            out.writeBoolean(w.force);
+            out.writeDouble(w.value);
+        }
+        int n = pending.size();
+        pending.clear();
+        append(bos.toByteArray());
+        commits++;
+        log.debug("Journal: record {} ({} celle)", Unbox.box(s), Unbox.box(n));
+        return s;
+    }
+
+    /** Annulla un record già scritto (salvataggio della working copy fallito). */
+    void abort(long s) throws IOException {
+        if (ch == null || s < 0) return;
+        ByteBuffer b = ByteBuffer.allocate(9).put(ABORT).putLong(s);
+        append(b.array());
+        commits--;
+    }
+
+    private void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buf = ByteBuffer.allocate(8 + payload.length);
+        buf.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        while (buf.hasRemaining()) ch.write(buf);
+        ch.force(false);
+    }
+
+    /** Record validi dall'ultimo rotate (checkpoint / reset). */
+    int getCommits() {
+        return commits;
+    }
+
+    // ===========================
+    // Lettura (ripristino)
+    // ===========================
+
+    /** Contenuto valido di un journal: scritture dei record non annullati, nell'ordine. */
+    static final class Contents {
+        final List<CellWrite> writes;
+        final int commits;
+
+        private Contents(List<CellWrite> writes, int commits) {
+            this.writes = writes;
+            this.commits = commits;
+        }
+    }
+
+    /** Legge il journal fino al primo record troncato o con CRC errato (crash durante l'append). */
+    static Contents read(File file) {
+        Map<Long, List<CellWrite>> records = new LinkedHashMap<>();
+        Set<Long> aborted = new HashSet<>();
+        if (file.isFile()) {
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                if (buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                    throw new IOException("intestazione non riconosciuta");
+                }
+                while (buf.remaining() >= 8) {
+                    int len = buf.getInt();
+                    int crcValue = buf.getInt();
+                    if (len <= 0 || len > buf.remaining()) break;
+                    CRC32 crc = new CRC32();
+                    crc.update(buf.array(), buf.position(), len);
+                    if ((int) crc.getValue() != crcValue) break;
+
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array(), buf.position(), len));
+                    buf.position(buf.position() + len);
+                    byte type = in.readByte();
+                    long s = in.readLong();
+                    if (type == ABORT) {
+                        aborted.add(s);
+                        continue;
+                    }
+                    int n = in.readInt();
+                    List<CellWrite> writes = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        writes.add(new CellWrite(in.readUTF(), in.readInt(), in.readInt(), in.readBoolean(), in.readDouble()));
+                    }
+                    records.put(s, writes);
+                }
+            } catch (IOException ex) {
+                log.warn("Journal {} letto solo in parte: {}", file.getName(), ex.toString());
+            }
+        }
+
+        List<CellWrite> out = new ArrayList<>();
+        int commits = 0;
+        for (Map.Entry<Long, List<CellWrite>> e : records.entrySet()) {
+            if (aborted.contains(e.getKey())) continue;
+            out.addAll(e.getValue());
+            commits++;
+        }
+        return new Contents(out, commits);
+    }
+
+    /** Applica le scritture al workbook, come le avevano fatte i controller. */
+    static int replay(List<CellWrite> writes, Workbook wb) {
+        int applied = 0;
+        for (CellWrite w : writes) {
+            Sheet sh = wb.getSheet(w.sheet);
+            if (sh == null) {
+                log.warn("Journal: foglio '{}' non trovato, scrittura ignorata", w.sheet);
+                continue;
+            }
+            Row row = sh.getRow(w.row);
+            if (row == null) row = sh.createRow(w.row);
+            Cell c = row.getCell(w.col, Row.MissingCellPolicy.CREATE_NULL_AS_BLANK);
+            if (w.force && c.getCellType() == CellType.FORMULA) c.removeFormula();
+            c.setCellValue(w.value);
+            applied++;
+        }
+        return applied;
+    }
+
+    // ===========================
+    // Chiusura
+    // ===========================
+
+    private void closeChannel() throws IOException {
+        if (ch != null) {
+            ch.close();
+            ch = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            closeChannel();
+        } catch (IOException ex) {
+            log.warn("Chiusura journal fallita: {}", ex.getMessage());
+        }
+        pending.clear();
+    }
+}
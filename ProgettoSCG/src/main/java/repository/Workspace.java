@@ -0,0 +1,389 @@
+package repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+import org.apache.poi.util.DefaultTempFileCreationStrategy;
+import org.apache.poi.util.TempFile;
+
+/**
+ * Cartella di lavoro gestita (-Dscg.workspaceDir, default ~/.progettoscg/workspace):
+ * <pre>
+ * blobs/&lt;sha256&gt;.xlsx   snapshot base per contenuto, condivisi tra caricamenti e istanze (sola lettura)
+ * cache/                  cache sessione (SessionCache), stessi hash dei blob
+ * index.properties        file originale -&gt; stamp + hash: ricaricare un file invariato non lo rilegge
+ * proc/&lt;id&gt;/             file temporanei di questo processo (working copy, salvataggi, risultati)
+ * proc/&lt;id&gt;/owner.lock   lock tenuto finché il processo è vivo; &lt;hash&gt;.ref = blob in uso
+ * </pre>
+ * Un blob si elimina solo se nessun processo vivo lo usa, nessuna sessione durevole lo richiede e
+ * non è tra gli ultimi {@link #KEEP_BLOBS} usati. All'avvio le cartelle proc dei processi terminati
+ * (crash, kill) vengono eliminate; all'uscita normale o con shutdown hook, la propria.
+ * Anche i file temporanei di POI (SXSSF) finiscono nella cartella proc.
+ */
+final class Workspace {
+
+    private static final Logger log = LogManager.getLogger(Workspace.class);
+
+    private static final File ROOT = new File(System.getProperty("scg.workspaceDir",
+            System.getProperty("user.home") + File.separator + ".progettoscg" + File.separator + "workspace"));
+    /** Blob non in uso conservati per ricaricamenti veloci (-Dscg.workspaceKeep). */
+    private static final int KEEP_BLOBS = Integer.getInteger("scg.workspaceKeep", 3);
+    /** File temporanei "vecchio stile" in java.io.tmpdir più vecchi di così vengono eliminati all'avvio. */
+    private static final long LEGACY_MAX_AGE_MS = 12L * 60 * 60 * 1000;
+
+    private static final String LOCK_NAME = "owner.lock";
+    private static final String REF_SUFFIX = ".ref";
+    private static final String BLOB_SUFFIX = ".xlsx";
+
+    private static Workspace instance;
+
+    private final File blobs;
+    private final File cache;
+    private final File procRoot;
+    private final File proc;
+    private final File indexFile;
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    /** Riferimenti di questo processo ai blob (hash -&gt; contatore). */
+    private final Map<String, Integer> refs = new HashMap<>();
+
+    /** Workspace del processo: creato al primo uso (pulizia dei residui + shutdown hook). */
+    static synchronized Workspace get() {
+        if (instance == null) {
+            instance = new Workspace();
+            Runtime.getRuntime().addShutdownHook(new Thread(instance::close, "scg-workspace-cleanup"));
+        }
+        return instance;
+    }
+
+    private Workspace() {
+        blobs = new File(ROOT, "blobs");
+        cache = new File(ROOT, "cache");
+        procRoot = new File(ROOT, "proc");
+        indexFile = new File(ROOT, "index.properties");
+        mkdirs(blobs);
+        mkdirs(cache);
+        mkdirs(procRoot);
+
+        sweepProcesses();
+        proc = createProcessDir();
+        sweepLegacyTemp();
+        // anche i file temporanei di POI (SXSSF) nella cartella del processo: eliminati se il processo muore
+        File poiTemp = new File(proc, "poifiles");
+        mkdirs(poiTemp);
+        TempFile.setTempFileCreationStrategy(new DefaultTempFileCreationStrategy(poiTemp));
+        log.info("Workspace: {}", proc.getAbsolutePath());
+    }
+
+    // ===========================
+    // Blob (snapshot base per contenuto)
+    // ===========================
+
+    File blob(String hash) {
+        return new File(blobs, hash + BLOB_SUFFIX);
+    }
+
+    File cacheDir() {
+        return cache;
+    }
+
+    /**
+     * Hash del contenuto di original: dall'indice se il file non è cambiato (stamp uguale) e il blob esiste,
+     * altrimenti copiandolo (una sola lettura) in un blob nuovo. In entrambi i casi il blob esiste al ritorno.
+     */
+    synchronized String importBlob(File original) throws IOException {
+        long stamp = ExcelRepository.stamp(original);
+        String key = original.getAbsolutePath();
+        Properties index = readIndex();
+        String entry = index.getProperty(key);
+        if (entry != null) {
+            int sep = entry.indexOf(';');
+            String hash = entry.substring(sep + 1);
+            if (Long.parseLong(entry.substring(0, sep)) == stamp && blob(hash).isFile()) {
+                touch(blob(hash));
+                log.info("Workspace: {} invariato, riuso lo snapshot {}", original.getName(), hash.substring(0, 12));
+                return hash;
+            }
+        }
+
+        long t0 = System.nanoTime();
+        File tmp = newTempFile("import_", ".tmp");
+        String hash;
+        try {
+            MessageDigest sha = sha256();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(original));
+                 OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), sha)) {
+                byte[] buf = new byte[1 << 16];
+                int len;
+                while ((len = in.read(buf)) > 0) out.write(buf, 0, len);
+            }
+            hash = hex(sha.digest());
+            File target = blob(hash);
+            if (target.isFile()) {
+                touch(target);
+            } else {
+                DurableFiles.commit(tmp, target);
+                if (!target.setReadOnly()) log.debug("Blob {} non impostato in sola lettura", target.getName());
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+
+        index.setProperty(key, stamp + ";" + hash);
+        writeIndex(index);
+        log.info("Workspace: snapshot {} da {} ({} bytes, {} ms)", hash.substring(0, 12), original.getName(),
+                Unbox.box(original.length()), Unbox.box((System.nanoTime() - t0) / 1_000_000L));
+        return hash;
+    }
+
+    /** Il blob è in uso da questo processo (non eliminabile dalle pulizie di altre istanze). */
+    synchronized void acquire(String hash) throws IOException {
+        Integer n = refs.get(hash);
+        if (n == null) {
+            Files.write(new File(proc, hash + REF_SUFFIX).toPath(), new byte[0]);
+            n = 0;
+        }
+        refs.put(hash, n + 1);
+    }
+
+    synchronized void release(String hash) {
+        if (hash == null) return;
+        Integer n = refs.get(hash);
+        if (n == null) return;
+        if (n > 1) {
+            refs.put(hash, n - 1);
+            return;
+        }
+        refs.remove(hash);
+        File ref = new File(proc, hash + REF_SUFFIX);
+        if (ref.exists() && !ref.delete()) log.warn("Impossibile eliminare {}", ref);
+    }
+
+    // ===========================
+    // File temporanei del processo
+    // ===========================
+
+    File newTempFile(String prefix, String suffix) throws IOException {
+        return File.createTempFile(prefix, suffix, proc);
+    }
+
+    File newTempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(proc.toPath(), prefix).toFile();
+    }
+
+    // ===========================
+    // Pulizia
+    // ===========================
+
+    /**
+     * Elimina i blob non usati da nessun processo vivo né dalle sessioni indicate, tenendo i
+     * {@link #KEEP_BLOBS} usati più di recente. Anche le voci di cache e di indice dei blob eliminati.
+     */
+    synchronized void sweepBlobs(Collection<String> pinned) {
+        Set<String> keep = new HashSet<>(pinned);
+        keep.addAll(refs.keySet());
+        File[] procs = procRoot.listFiles();
+        if (procs != null) {
+            for (File p : procs) {
+                File[] files = p.listFiles((d, n) -> n.endsWith(REF_SUFFIX));
+                if (files == null) continue;
+                for (File f : files) keep.add(f.getName().substring(0, f.getName().length() - REF_SUFFIX.length()));
+            }
+        }
+
+        File[] all = blobs.listFiles((d, n) -> n.endsWith(BLOB_SUFFIX));
+        if (all == null) return;
+        List<File> unused = new ArrayList<>();
+        for (File f : all) {
+            if (!keep.contains(hashOf(f))) unused.add(f);
+        }
+        unused.sort((a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+
+        Set<String> removed = new HashSet<>();
+        long bytes = 0;
+        for (int i = KEEP_BLOBS; i < unused.size(); i++) {
+            File f = unused.get(i);
+            long len = f.length();
+            if (!f.setWritable(true) || !f.delete()) {
+                log.warn("Impossibile eliminare {}", f);
+                continue;
+            }
+            String hash = hashOf(f);
+            removed.add(hash);
+            bytes += len;
+            File c = new File(cache, "scg-" + hash + ".cache");
+            if (c.exists() && !c.delete()) log.warn("Impossibile eliminare {}", c);
+        }
+        if (removed.isEmpty()) return;
+
+        Properties index = readIndex();
+        index.values().removeIf(v -> removed.contains(((String) v).substring(((String) v).indexOf(';') + 1)));
+        writeIndex(index);
+        log.info("Workspace: {} snapshot non usati eliminati ({} bytes)", Unbox.box(removed.size()), Unbox.box(bytes));
+    }
+
+    /** Cartelle proc dei processi terminati: il loro lock è libero. */
+    private void sweepProcesses() {
+        File[] procs = procRoot.listFiles(File::isDirectory);
+        if (procs == null) return;
+        int removed = 0;
+        for (File p : procs) {
+            try (FileChannel ch = FileChannel.open(new File(p, LOCK_NAME).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock l = ch.tryLock();
+                if (l == null) continue; // processo vivo
+                l.release();
+            } catch (IOException | OverlappingFileLockException ex) {
+                continue;
+            }
+            deleteTree(p);
+            removed++;
+        }
+        if (removed > 0) log.info("Workspace: eliminati i file temporanei di {} sessioni terminate", Unbox.box(removed));
+    }
+
+    /** Residui delle versioni che usavano java.io.tmpdir (non hanno lock: solo se vecchi). */
+    private void sweepLegacyTemp() {
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        long limit = System.currentTimeMillis() - LEGACY_MAX_AGE_MS;
+        File[] files = tmp.listFiles((d, n) -> n.startsWith("budget_") || n.startsWith("scg-"));
+        if (files == null) return;
+        for (File f : files) {
+            if (f.lastModified() < limit) deleteTree(f);
+        }
+    }
+
+    private File createProcessDir() {
+        for (int attempt = 0; ; attempt++) {
+            File dir = new File(procRoot, processId() + "-" + Long.toString(System.nanoTime(), 36));
+            if (!dir.mkdir()) {
+                if (attempt < 3) continue;
+                throw new IllegalStateException("Impossibile creare la cartella di lavoro: " + dir.getAbsolutePath());
+            }
+            try {
+                lockChannel = FileChannel.open(new File(dir, LOCK_NAME).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                lock = lockChannel.tryLock();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Lock della cartella di lavoro non riuscito: " + ex.getMessage(), ex);
+            }
+            return dir;
+        }
+    }
+
+    /** Pid dal nome della JVM ("pid@host", Java 8): solo leggibilità, l'unicità la danno suffisso e lock. */
+    private static String processId() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        return (at > 0) ? name.substring(0, at) : "jvm";
+    }
+
+    /** Uscita (anche da shutdown hook): elimina i file temporanei di questo processo. */
+    synchronized void close() {
+        if (lock == null) return;
+        refs.clear();
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException ex) {
+            log.debug("Rilascio lock workspace: {}", ex.toString());
+        }
+        lock = null;
+        deleteTree(proc);
+    }
+
+    // ===========================
+    // Utilità
+    // ===========================
+
+    private Properties readIndex() {
+        Properties p = new Properties();
+        if (!indexFile.isFile()) return p;
+        try (InputStream in = new FileInputStream(indexFile)) {
+            p.load(in);
+        } catch (IOException | IllegalArgumentException ex) {
+            log.warn("Indice workspace illeggibile, lo ricreo: {}", ex.toString());
+            p.clear();
+        }
+        return p;
+    }
+
+    private void writeIndex(Properties p) {
+        try {
+            File tmp = newTempFile("index_", ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                p.store(out, "ProgettoSCG - file originali -> snapshot");
+            }
+            DurableFiles.moveAtomic(tmp, indexFile);
+        } catch (IOException ex) {
+            log.warn("Indice workspace non aggiornato: {}", ex.getMessage());
+        }
+    }
+
+    private static String hashOf(File blob) {
+        String n = blob.getName();
+        return n.substring(0, n.length() - BLOB_SUFFIX.length());
+    }
+
+    private static void touch(File f) {
+        if (!f.setLastModified(System.currentTimeMillis())) log.debug("Impossibile aggiornare la data di {}", f);
+    }
+
+    private static void mkdirs(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Impossibile creare la cartella: " + dir.getAbsolutePath());
+        }
+    }
+
+    /** Elimina file e sottocartelle; quelli bloccati (es. mappati su Windows) restano per la prossima pulizia. */
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteTree(c);
+        }
+        if (!f.exists()) return;
+        if (!f.canWrite() && !f.setWritable(true)) log.debug("Permessi non modificabili: {}", f);
+        if (!f.delete()) log.debug("Non eliminato: {}", f);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 non disponibile", ex);
+        }
+    }
+
+    static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b) sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,347 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import model.BudgetPeriod;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.ss.usermodel.*;
+
+/**
+ * Lettura dei fogli "CE Budget" (default 2022).
+ * Raccoglie la logica prima duplicata nel MainController (ricerca foglio,
+ * ricerca voce per etichetta, lettura numerica robusta) così da poterla
+ * riusare anche nei calcoli in memoria (es. MOL base per il Monte Carlo).
+ *
+ * Budget multi-periodo: {@link #discoverPeriods(Workbook)} trova tutti i fogli CE (un anno ciascuno)
+ * e, dentro ogni foglio, le eventuali colonne mensili/annuali oltre la colonna etichette.
+ */
+public class CeBudgetService {
+
+    private static final Logger log = LogManager.getLogger(CeBudgetService.class);
+
+    /** Colonna valori CE (J = index 9, 0-based). */
+    public static final int CE_COL_J = 9;
+
+    public static final String LABEL_MOL = "MARGINE OPERATIVO LORDO";
+    public static final String LABEL_RICAVI_PF = "RICAVI DELLE VENDITE DI PRODOTTI FINITI";
+    public static final String LABEL_RICAVI_MP = "RICAVI DELLE VENDITE DI MATERIE PRIME";
+    public static final String LABEL_ACQUISTO_MP = "ACQUISTO MATERIE PRIME";
+
+    /** Anno del CE "storico" (quello aperto da findCeBudgetSheet). */
+    public static final String DEFAULT_YEAR = "2022";
+
+    /** Ultima colonna delle etichette (A..I): i valori stanno dalla J in poi. */
+    private static final int LAST_LABEL_COL = 8;
+
+    private static final Pattern YEAR = Pattern.compile("(?<!\\d)((?:19|20)\\d{2})(?!\\d)");
+    private static final String[] MONTHS = {"GEN", "FEB", "MAR", "APR", "MAG", "GIU", "LUG", "AGO", "SET", "OTT", "NOV", "DIC"};
+    private static final String[] MONTH_NAMES = {"GENNAIO", "FEBBRAIO", "MARZO", "APRILE", "MAGGIO", "GIUGNO",
+            "LUGLIO", "AGOSTO", "SETTEMBRE", "OTTOBRE", "NOVEMBRE", "DICEMBRE"};
+
+    /**
+     * Indice etichette di un foglio CE: testi delle colonne A..I per riga, letti una volta.
+     * Le ricerche per voce sono in cache (thread-safe: utilizzabile dai calcoli paralleli per periodo).
+     */
+    public static class LabelIndex {
+        private final String[][] rows;
+        private final Map<String, Integer> cache = new ConcurrentHashMap<>();
+
+        LabelIndex(String[][] rows) { this.rows = rows; }
+
+        /** Prima riga che contiene la voce (case-insensitive), -1 se assente. */
+        public int rowOf(String labelNeedle) {
+            String needle = labelNeedle.trim().toUpperCase();
+            return cache.computeIfAbsent(needle, k -> {
+                for (int r = 0; r < rows.length; r++) {
+                    if (rows[r] == null) continue;
+                    for (String txt : rows[r]) {
+                        if (txt.contains(k)) return r;
+                    }
+                }
+                return -1;
+            });
+        }
+    }
+
+    // ===========================
+    // Ricerca foglio
+    // ===========================
+
+    public Sheet findCeBudgetSheet(Workbook wb) {
+
+        String[] candidates = {
+                "CE-Budget-2022",
+                "CE BUDGET 2022",
+                "CE_BUDGET_2022",
+                "CE Budget 2022",
+                "CE BUDGET2022",
+                "CEBudget2022"
+        };
+        for (String n : candidates) {
+            Sheet s = wb.getSheet(n);
+            if (s != null) return s;
+        }
+
+        DataFormatter fmt = new DataFormatter();
+        Sheet anyYear = null;
+        for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+            Sheet s = wb.getSheetAt(i);
+            String year = ceBudgetYear(s, fmt);
+            if (DEFAULT_YEAR.equals(year)) return s;
+            if (year != null && anyYear == null) anyYear = s;
+        }
+
+        // budget senza 2022: primo CE Budget disponibile
+        return anyYear;
+    }
+
+    /**
+     * Anno del foglio se sembra un "CE Budget" (nome foglio o titolo nelle prime righe), altrimenti null.
+     * "" = CE Budget senza anno riconoscibile.
+     */
+    public String ceBudgetYear(Sheet s, DataFormatter fmt) {
+        String name = s.getSheetName().toUpperCase().replaceAll("[\\s_\\-]+", "");
+        if (name.startsWith("CEBUDGET")) {
+            Matcher m = YEAR.matcher(name);
+            if (m.find()) return m.group(1);
+        }
+
+        int maxRows = Math.min(s.getLastRowNum(), 40);
+        int maxCols = 25;
+
+        for (int r = 0; r <= maxRows; r++) {
+            Row row = s.getRow(r);
+            if (row == null) continue;
+
+            int last = Math.min(row.getLastCellNum(), maxCols);
+            for (int c = 0; c < last; c++) {
+                String txt = fmt.formatCellValue(row.getCell(c)).trim().toUpperCase();
+                if (txt.isEmpty()) continue;
+
+                String norm = txt.replaceAll("\\s+", " ");
+                if (norm.contains("CE") && norm.contains("BUDGET")) {
+                    Matcher m = YEAR.matcher(norm);
+                    if (m.find()) return m.group(1);
+                }
+            }
+        }
+        return name.startsWith("CEBUDGET") ? "" : null;
+    }
+
+    // ===========================
+    // Periodi (multi-anno / mensili)
+    // ===========================
+
+    /**
+     * Tutti i periodi del budget, in ordine di foglio e colonna.
+     * Per ogni foglio CE: se nelle prime righe c'è un'intestazione con almeno 2 mesi (GEN..DIC)
+     * o anni oltre la colonna I, ogni colonna è un periodo; altrimenti il foglio è un periodo unico in colonna J.
+     * Il foglio Ricavi del periodo è "Ricavi <anno>" / "Ricavi <mese> <anno>" se presente, altrimenti "Ricavi".
+     */
+    public List<BudgetPeriod> discoverPeriods(Workbook wb) {
+        DataFormatter fmt = new DataFormatter();
+        List<BudgetPeriod> out = new ArrayList<>();
+
+        for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+            Sheet s = wb.getSheetAt(i);
+            String year = ceBudgetYear(s, fmt);
+            if (year == null) continue;
+
+            List<int[]> cols = new ArrayList<>();     // {colonna, mese 0..11 o -1}
+            List<String> labels = new ArrayList<>();
+            findPeriodColumns(s, fmt, year, cols, labels);
+
+            if (cols.isEmpty()) {
+                String label = year.isEmpty() ? s.getSheetName() : year;
+                out.add(new BudgetPeriod(label, year, s.getSheetName(), CE_COL_J,
+                        findRicaviSheetName(wb, year, -1)));
+                continue;
+            }
+            for (int k = 0; k < cols.size(); k++) {
+                int[] c = cols.get(k);
+                String y = c[1] < 0 ? labels.get(k) : year;
+                out.add(new BudgetPeriod(labels.get(k), y, s.getSheetName(), c[0],
+                        findRicaviSheetName(wb, y, c[1])));
+            }
+        }
+
+        log.info("Periodi budget trovati: {}", out.size());
+        return out;
+    }
+
+    /** Riga d'intestazione con più colonne "periodo" (mesi o anni), cercata nelle prime 10 righe. */
+    private void findPeriodColumns(Sheet s, DataFormatter fmt, String year, List<int[]> cols, List<String> labels) {
+        int maxRows = Math.min(s.getLastRowNum(), 10);
+
+        for (int r = 0; r <= maxRows; r++) {
+            Row row = s.getRow(r);
+            if (row == null) continue;
+
+            List<int[]> rc = new ArrayList<>();
+            List<String> rl = new ArrayList<>();
+            for (int c = LAST_LABEL_COL + 1; c < row.getLastCellNum(); c++) {
+                Cell cell = row.getCell(c, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
+                if (cell == null) continue;
+
+                int month = monthOf(cell, fmt);
+                if (month >= 0) {
+                    rc.add(new int[]{c, month});
+                    rl.add(MONTHS[month] + (year.isEmpty() ? "" : " " + year));
+                    continue;
+                }
+                String txt = fmt.formatCellValue(cell).trim();
+                Matcher m = YEAR.matcher(txt);
+                if (m.find() && txt.length() <= 16) {
+                    rc.add(new int[]{c, -1});
+                    rl.add(m.group(1));
+                }
+            }
+
+            if (rc.size() >= 2 && rc.size() > cols.size()) {
+                cols.clear();
+                labels.clear();
+                cols.addAll(rc);
+                labels.addAll(rl);
+            }
+        }
+    }
+
+    /** Mese 0..11 di un'intestazione ("GEN", "Gennaio", "gen-23" o data), -1 se non è un mese. */
+    private static int monthOf(Cell cell, DataFormatter fmt) {
+        if (cell.getCellType() == CellType.NUMERIC && DateUtil.isCellDateFormatted(cell)) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(cell.getDateCellValue());
+            return cal.get(Calendar.MONTH);
+        }
+        String txt = fmt.formatCellValue(cell).trim().toUpperCase();
+        String letters = txt.replaceAll("[^A-Z]", "");
+        for (int m = 0; m < MONTHS.length; m++) {
+            if (letters.equals(MONTHS[m]) || letters.equals(MONTH_NAMES[m])) return m;
+        }
+        return -1;
+    }
+
+    private String findRicaviSheetName(Workbook wb, String year, int month) {
+        String best = null;
+        int bestScore = 0;
+        for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+            String name = wb.getSheetName(i);
+            String up = name.toUpperCase();
+            if (!up.startsWith("RICAVI")) continue;
+
+            int score = 1;
+            if (!year.isEmpty() && up.contains(year)) score += 2;
+            if (month >= 0 && up.contains(MONTHS[month])) score += 2;
+            if (up.trim().equals("RICAVI")) score += 1;   // a parità, il foglio storico
+            if (score > bestScore) {
+                bestScore = score;
+                best = name;
+            }
+        }
+        return best;
+    }
+
+    // ===========================
+    // Lettura voci
+    // ===========================
+
+    /**
+     * Cerca la voce (colonne A..I) che contiene labelNeedle e restituisce il valore in colonna J.
+     */
+    public double findValueByRowLabel(Sheet sh, FormulaEvaluator eval, DataFormatter fmt, String labelNeedle) {
+
+        String needle = labelNeedle.trim().toUpperCase();
+        int maxRows = Math.min(sh.getLastRowNum(), 200);
+
+        for (int r = 0; r <= maxRows; r++) {
+            Row row = sh.getRow(r);
+            if (row == null) continue;
+
+            for (int c = 0; c <= LAST_LABEL_COL; c++) {
+                String txt = fmt.formatCellValue(row.getCell(c)).trim().toUpperCase();
+                if (txt.isEmpty()) continue;
+
+                if (txt.contains(needle)) {
+                    return readNumericCell(sh, eval, r, CE_COL_J);
+                }
+            }
+        }
+
+        log.warn("Voce CE non trovata nel foglio: '{}'", labelNeedle);
+        return 0.0;
+    }
+
+    /** Indice etichette (colonne A..I, prime 200 righe) da riusare per più voci e periodi. */
+    public LabelIndex buildIndex(Sheet sh, DataFormatter fmt) {
+        int maxRows = Math.min(sh.getLastRowNum(), 200);
+        String[][] rows = new String[maxRows + 1][];
+
+        for (int r = 0; r <= maxRows; r++) {
+            Row row = sh.getRow(r);
+            if (row == null) continue;
+
+            List<String> txts = new ArrayList<>();
+            for (int c = 0; c <= LAST_LABEL_COL; c++) {
+                String txt = fmt.formatCellValue(row.getCell(c)).trim().toUpperCase();
+                if (!txt.isEmpty()) txts.add(txt);
+            }
+            if (!txts.isEmpty()) rows[r] = txts.toArray(new String[0]);
+        }
+        return new LabelIndex(rows);
+    }
+
+    /** Valore della voce nella colonna indicata (0 se la voce non c'è). */
+    public double readLine(Sheet sh, FormulaEvaluator eval, LabelIndex idx, String labelNeedle, int col) {
+        int r = idx.rowOf(labelNeedle);
+        if (r < 0) {
+            log.warn("Voce CE non trovata nel foglio '{}': '{}'", sh.getSheetName(), labelNeedle);
+            return 0.0;
+        }
+        return readNumericCell(sh, eval, r, col);
+    }
+
+    /**
+     * MOL base del CE (NaN se il foglio CE non esiste: il chiamante decide se è bloccante).
+     */
+    public double readMol(Workbook wb, FormulaEvaluator eval) {
+        Sheet ce = findCeBudgetSheet(wb);
+        if (ce == null) {
+            log.warn("Foglio CE Budget 2022 non trovato: MOL base non disponibile.");
+            return Double.NaN;
+        }
+        return findValueByRowLabel(ce, eval, new DataFormatter(), LABEL_MOL);
+    }
+
+    public double readNumericCell(Sheet sh, FormulaEvaluator eval, int rowIdx, int colIdx) {
+        Row row = sh.getRow(rowIdx);
+        if (row == null) return 0.0;
+
+        Cell c = row.getCell(colIdx, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
+        if (c == null) return 0.0;
+
+        if (c.getCellType() == CellType.NUMERIC) return c.getNumericCellValue();
+
+        if (c.getCellType() == CellType.FORMULA) {
+            CellValue cv = eval.evaluate(c);
+            if (cv != null && cv.getCellType() == CellType.NUMERIC) return cv.getNumberValue();
+            return 0.0;
+        }
+
+        if (c.getCellType() == CellType.STRING) {
+            try {
+                return Double.parseDouble(c.getStringCellValue().trim().replace(".", "").replace(",", "."));
+            } catch (Exception ignore) {
+                return 0.0;
+            }
+        }
+
+        return 0.0;
+    }
+}
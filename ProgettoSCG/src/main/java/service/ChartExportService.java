@@ -0,0 +1,188 @@
+package service;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jfree.chart.JFreeChart;
+import org.jfree.graphics2d.svg.SVGGraphics2D;
+import org.jfree.graphics2d.svg.SVGUtils;
+
+/**
+ * Export dei grafici su file (PNG o SVG) senza passare da ChartPanel.
+ *
+ * Ogni job è una factory: il grafico viene costruito e disegnato direttamente sul thread del pool
+ * (un grafico per thread, nessuna risorsa Swing), poi scartato. Il pool ha un thread per core.
+ */
+public class ChartExportService {
+
+    private static final Logger log = LogManager.getLogger(ChartExportService.class);
+
+    public static final int DEFAULT_WIDTH = 1200;
+    public static final int DEFAULT_HEIGHT = 700;
+
+    public enum Format {
+        PNG("png"), SVG("svg");
+
+        private final String ext;
+
+        Format(String ext) { this.ext = ext; }
+
+        public String getExtension() { return ext; }
+    }
+
+    /** Un grafico da esportare: nome file (senza estensione) + come costruirlo. */
+    public static class Job {
+        final String name;
+        final Supplier<JFreeChart> chart;
+
+        public Job(String name, Supplier<JFreeChart> chart) {
+            this.name = name;
+            this.chart = chart;
+        }
+
+        public String getName() { return name; }
+    }
+
+    public static class Report {
+        private final List<File> files;
+        private final List<String> errors;
+        private final long elapsedMs;
+
+        Report(List<File> files, List<String> errors, long elapsedMs) {
+            this.files = Collections.unmodifiableList(files);
+            this.errors = Collections.unmodifiableList(errors);
+            this.elapsedMs = elapsedMs;
+        }
+
+        public List<File> getFiles() { return files; }
+        public List<String> getErrors() { return errors; }
+        public long getElapsedMs() { return elapsedMs; }
+    }
+
+    public Report export(List<Job> jobs, File dir, Format format) throws InterruptedException {
+        return export(jobs, dir, format, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+    }
+
+    public Report export(List<Job> jobs, File dir, Format format, int width, int height) throws InterruptedException {
+        if (dir == null) throw new IllegalArgumentException("Cartella di export non indicata.");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Impossibile creare la cartella di export: " + dir.getAbsolutePath());
+        }
+
+        long t0 = System.nanoTime();
+
+        // nomi file univoci e "puliti", decisi prima di partire (ordine stabile)
+        List<File> targets = new ArrayList<>(jobs.size());
+        Set<String> used = new HashSet<>();
+        for (Job j : jobs) {
+            String base = sanitize(j.name);
+            String name = base;
+            for (int k = 2; !used.add(name.toLowerCase()); k++) name = base + "_" + k;
+            targets.add(new File(dir, name + "." + format.getExtension()));
+        }
+
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), jobs.size()));
+        AtomicInteger seq = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "chart-export-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        List<File> done = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        try {
+            List<Callable<File>> tasks = new ArrayList<>(jobs.size());
+            for (int i = 0; i < jobs.size(); i++) {
+                final Job job = jobs.get(i);
+                final File out = targets.get(i);
+                tasks.add(() -> {
+                    write(job.chart.get(), out, format, width, height);
+                    return out;
+                });
+            }
+
+            List<Future<File>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    done.add(results.get(i).get());
+                } catch (ExecutionException ex) {
+                    log.error("Export grafico '{}' fallito", jobs.get(i).name, ex.getCause());
+                    errors.add(jobs.get(i).name + ": " + ex.getCause().getMessage());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long elapsedMs = (System.nanoTime() - t0) / 1_000_000L;
+        log.info("Export grafici: {} file {} in {} ms ({} thread, {} errori) -> {}",
+                done.size(), format, elapsedMs, threads, errors.size(), dir.getAbsolutePath());
+        return new Report(done, errors, elapsedMs);
+    }
+
+    private static void write(JFreeChart chart, File out, Format format, int width, int height) throws Exception {
+        if (chart == null) throw new IllegalStateException("Grafico non disponibile.");
+
+        if (format == Format.PNG) {
+            // RGB senza alpha: sfondo bianco comunque, meno byte da comprimere
+            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = img.createGraphics();
+            try {
+                chart.draw(g2, new Rectangle(0, 0, width, height));
+            } finally {
+                g2.dispose();
+            }
+            writePng(img, out);
+            return;
+        }
+
+        SVGGraphics2D g2 = new SVGGraphics2D(width, height);
+        chart.draw(g2, new Rectangle(0, 0, width, height));
+        SVGUtils.writeToSVG(out, g2.getSVGElement());
+    }
+
+    /** ImageWriter dedicato per file (non è thread-safe). */
+    private static void writePng(BufferedImage img, File out) throws IOException {
+        ImageWriter w = ImageIO.getImageWritersByFormatName("png").next();
+        // FileOutputStream: tronca un eventuale file esistente (ImageIO su File non lo fa)
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(out));
+             ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+            w.setOutput(ios);
+            w.write(null, new IIOImage(img, null, null), null);
+        } finally {
+            w.dispose();
+        }
+    }
+
+    private static String sanitize(String name) {
+        String s = (name == null) ? "" : name.trim().replaceAll("[^A-Za-z0-9._-]+", "_");
+        s = s.replaceAll("_+", "_").replaceAll("^_|_$", "");
+        return s.isEmpty() ? "grafico" : s;
+    }
+}
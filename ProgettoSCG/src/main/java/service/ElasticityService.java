@@ -0,0 +1,228 @@
+package service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import model.ArticleRow;
+import model.ElasticityTable;
+import model.RicaviSnapshot;
+import model.SimulationMode;
+import model.SimulationPoint;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.ss.usermodel.*;
+
+/**
+ * Modalità "elastica": prezzo e quantità legati da un'elasticità costante.
+ *
+ * Fonti dell'elasticità (la seconda sovrascrive la prima):
+ * 1) file "elasticita.properties" accanto all'Excel originale
+ *    (chiavi: ARTICOLO=ε, categoria.NOME=ε, default=ε)
+ * 2) foglio "Elasticità" del workbook (colonne Articolo e/o Categoria + colonna "Elasticità")
+ *
+ * Tutti i valori (batch e sweep) sono calcolati in forma chiusa sui valori base.
+ */
+public class ElasticityService {
+
+    private static final Logger log = LogManager.getLogger(ElasticityService.class);
+
+    public static final String CONFIG_FILE_NAME = "elasticita.properties";
+
+    /** Esito della simulazione elastica di un articolo. */
+    public static class Outcome {
+        public final double q1, p1, pos1;
+        public final double compValue; // NaN se non compensato
+        public final double posStar;   // NaN se non compensato
+
+        Outcome(double q1, double p1, double pos1, double compValue, double posStar) {
+            this.q1 = q1;
+            this.p1 = p1;
+            this.pos1 = pos1;
+            this.compValue = compValue;
+            this.posStar = posStar;
+        }
+    }
+
+    // ===========================
+    // Caricamento tabella
+    // ===========================
+
+    public ElasticityTable loadTable(File workbook, File originalExcel) throws Exception {
+        Map<String, Double> byArticle = new HashMap<>();
+        Map<String, Double> byCategory = new HashMap<>();
+        double[] def = {Double.NaN};
+
+        File cfg = (originalExcel == null) ? null : new File(originalExcel.getParentFile(), CONFIG_FILE_NAME);
+        if (cfg != null && cfg.isFile()) {
+            readProperties(cfg, byArticle, byCategory, def);
+        }
+
+        if (workbook != null) {
+            try (Workbook wb = WorkbookFactory.create(workbook, null, true)) {
+                readSheet(wb, byArticle, byCategory, def);
+            }
+        }
+
+        ElasticityTable t = new ElasticityTable(byArticle, byCategory, def[0]);
+        log.info("Elasticità caricate: {} articoli, {} categorie, default={}", byArticle.size(), byCategory.size(), def[0]);
+        return t;
+    }
+
+    private void readProperties(File f, Map<String, Double> byArticle, Map<String, Double> byCategory, double[] def)
+            throws Exception {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(f)) {
+            p.load(in);
+        }
+        for (String k : p.stringPropertyNames()) {
+            double v = Double.parseDouble(p.getProperty(k).trim().replace(",", "."));
+            String key = k.trim();
+            if (key.equalsIgnoreCase("default")) def[0] = v;
+            else if (key.toLowerCase().startsWith("categoria.")) byCategory.put(key.substring(10).trim().toUpperCase(), v);
+            else byArticle.put(key.replace('_', ' ').toUpperCase(), v);
+        }
+        log.info("Elasticità da file: {}", f.getAbsolutePath());
+    }
+
+    private void readSheet(Workbook wb, Map<String, Double> byArticle, Map<String, Double> byCategory, double[] def) {
+        Sheet sh = null;
+        for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+            String n = wb.getSheetName(i).trim().toUpperCase();
+            if (n.startsWith("ELASTICIT")) { sh = wb.getSheetAt(i); break; }
+        }
+        if (sh == null) return;
+
+        DataFormatter fmt = new DataFormatter();
+        FormulaEvaluator eval = wb.getCreationHelper().createFormulaEvaluator();
+
+        int header = -1, colArt = -1, colCatg = -1, colEps = -1;
+        for (int r = 0; r <= Math.min(sh.getLastRowNum(), 20) && header < 0; r++) {
+            Row row = sh.getRow(r);
+            if (row == null) continue;
+            for (int c = 0; c < row.getLastCellNum(); c++) {
+                String v = fmt.formatCellValue(row.getCell(c)).trim().toLowerCase();
+                if (v.equals("articolo")) colArt = c;
+                else if (v.equals("categoria") || v.equals("cat")) colCatg = c;
+                else if (v.startsWith("elasticit")) colEps = c;
+            }
+            if (colEps >= 0 && (colArt >= 0 || colCatg >= 0)) header = r;
+        }
+        if (header < 0) {
+            log.warn("Foglio '{}' presente ma senza intestazioni Articolo/Categoria/Elasticità.", sh.getSheetName());
+            return;
+        }
+
+        for (int r = header + 1; r <= sh.getLastRowNum(); r++) {
+            Row row = sh.getRow(r);
+            if (row == null) continue;
+
+            String eps = fmt.formatCellValue(row.getCell(colEps), eval).trim().replace(",", ".");
+            if (eps.isEmpty()) continue;
+            double v;
+            try { v = Double.parseDouble(eps); } catch (NumberFormatException e) { continue; }
+
+            String art = (colArt >= 0) ? fmt.formatCellValue(row.getCell(colArt)).trim().replaceAll("\\s+", " ") : "";
+            String catg = (colCatg >= 0) ? fmt.formatCellValue(row.getCell(colCatg)).trim() : "";
+
+            if (!art.isEmpty()) byArticle.put(art.toUpperCase(), v);
+            else if (catg.equalsIgnoreCase("default") || catg.equals("*")) def[0] = v;
+            else if (!catg.isEmpty()) byCategory.put(catg.toUpperCase(), v);
+        }
+        log.info("Elasticità da foglio '{}'", sh.getSheetName());
+    }
+
+    // ===========================
+    // Calcolo
+    // ===========================
+
+    /** Step 1 per tutte le modalità: restituisce {Q1, P1}. eps è ignorata per le modalità non elastiche. */
+    public static double[] applyLever(SimulationMode mode, double q0, double p0, double percent, double eps) {
+        switch (mode) {
+            case QUANTITY:
+                return new double[]{SimulationKernel.applyPercent(q0, percent), p0};
+            case PRICE:
+                return new double[]{q0, SimulationKernel.applyPercent(p0, percent)};
+            case ELASTIC_PRICE: {
+                double p1 = SimulationKernel.applyPercent(p0, percent);
+                return new double[]{SimulationKernel.elasticQuantity(q0, p0, p1, eps), p1};
+            }
+            case ELASTIC_QUANTITY: {
+                double q1 = SimulationKernel.applyPercent(q0, percent);
+                return new double[]{q1, SimulationKernel.elasticPrice(q0, p0, q1, eps)};
+            }
+            default:
+                throw new IllegalArgumentException("Modalità non gestita: " + mode);
+        }
+    }
+
+    public Outcome evaluate(double q0, double p0, double cmp0, SimulationMode mode, double percent, double eps,
+                            boolean compensate) {
+        double[] qp = applyLever(mode, q0, p0, percent, eps);
+        double q1 = qp[0], p1 = qp[1];
+        double pos1 = SimulationKernel.pos(q1, p1, cmp0);
+
+        if (!compensate) return new Outcome(q1, p1, pos1, Double.NaN, Double.NaN);
+
+        double pos0 = SimulationKernel.pos(q0, p0, cmp0);
+        double comp;
+        double posStar;
+        if (mode.isQuantityDriven()) {
+            comp = SimulationKernel.compensatePrice(cmp0, pos0, q1);
+            posStar = SimulationKernel.pos(q1, comp, cmp0);
+        } else {
+            comp = SimulationKernel.compensateQuantity(cmp0, pos0, p1);
+            posStar = SimulationKernel.pos(comp, p1, cmp0);
+        }
+        return new Outcome(q1, p1, pos1, comp, posStar);
+    }
+
+    /** Batch: stessa modalità/percentuale su tutti gli articoli dello snapshot. */
+    public Outcome[] evaluateAll(RicaviSnapshot snap, ElasticityTable table, SimulationMode mode, double percent,
+                                 boolean compensate) {
+        int n = snap.size();
+        Outcome[] out = new Outcome[n];
+        for (int i = 0; i < n; i++) {
+            double eps = mode.isElastic() ? table.get(snap.getArticle(i)) : 0.0;
+            out[i] = evaluate(snap.getQ0()[i], snap.getP0()[i], snap.getCmp0()[i], mode, percent, eps, compensate);
+        }
+        return out;
+    }
+
+    /**
+     * Sweep su un insieme di articoli: per ogni percentuale in [from, to] (passo step)
+     * restituisce il POS complessivo degli articoli (posNoFix) contro il POS base (posTarget).
+     */
+    public List<SimulationPoint> sweep(RicaviSnapshot snap, ElasticityTable table, int[] indices,
+                                       SimulationMode mode, double from, double to, double step) {
+        if (!(step > 0)) throw new IllegalArgumentException("Passo sweep non valido: " + step);
+
+        double[] eps = new double[indices.length];
+        double posBase = 0.0;
+        for (int k = 0; k < indices.length; k++) {
+            int i = indices[k];
+            ArticleRow a = snap.getArticle(i);
+            eps[k] = mode.isElastic() ? table.get(a) : 0.0;
+            posBase += SimulationKernel.pos(snap.getQ0()[i], snap.getP0()[i], snap.getCmp0()[i]);
+        }
+
+        List<SimulationPoint> out = new ArrayList<>();
+        int steps = (int) Math.floor((to - from) / step + 1e-9);
+        for (int s = 0; s <= steps; s++) {
+            double pct = from + s * step;
+            double tot = 0.0;
+            for (int k = 0; k < indices.length; k++) {
+                int i = indices[k];
+                double[] qp = applyLever(mode, snap.getQ0()[i], snap.getP0()[i], pct, eps[k]);
+                tot += SimulationKernel.pos(qp[0], qp[1], snap.getCmp0()[i]);
+            }
+            out.add(new SimulationPoint(pct, tot, posBase, null));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,104 @@
+package service;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import repository.ExcelIoEvent;
+import repository.FlightEvent;
+
+/**
+ * "Registra sessione": una registrazione JFR in-process (profilo "profile" del JDK + eventi ProgettoSCG),
+ * salvata su file .jfr alla fine. Nessun profiler esterno da collegare.
+ *
+ * jdk.jfr si usa per riflessione: l'applicazione compila e gira anche su JVM senza JFR
+ * (Java 8 senza backport), dove {@link #isAvailable()} è false e il pulsante resta disattivato.
+ */
+public class FlightRecorderService {
+
+    private static final Logger log = LogManager.getLogger(FlightRecorderService.class);
+
+    private static final String SETTINGS = "profile";
+
+    private Object recording; // jdk.jfr.Recording
+
+    public static boolean isAvailable() {
+        return FlightEvent.isAvailable();
+    }
+
+    public synchronized boolean isRecording() {
+        return recording != null;
+    }
+
+    public synchronized void start() throws IOException, ParseException {
+        if (recording != null) throw new IllegalStateException("Registrazione JFR già in corso.");
+        if (!isAvailable()) throw new IllegalStateException("Java Flight Recorder non disponibile in questa JVM.");
+
+        try {
+            Class<?> confClass = Class.forName("jdk.jfr.Configuration");
+            Object conf = confClass.getMethod("getConfiguration", String.class).invoke(null, SETTINGS);
+            Class<?> recClass = Class.forName("jdk.jfr.Recording");
+            Object r = recClass.getConstructor(confClass).newInstance(conf);
+            recClass.getMethod("setName", String.class).invoke(r, "ProgettoSCG");
+            recClass.getMethod("setToDisk", boolean.class).invoke(r, true);
+            Method enable = recClass.getMethod("enable", String.class);
+            for (FlightEvent.Type t : new FlightEvent.Type[]{JfrEvents.LoadArticles.TYPE, JfrEvents.SimulationStep.TYPE,
+                    JfrEvents.CeSnapshot.TYPE, ExcelIoEvent.TYPE}) {
+                enable.invoke(r, t.getName());
+            }
+            recClass.getMethod("start").invoke(r);
+            recording = r;
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof ParseException) throw (ParseException) cause;
+            throw new IllegalStateException("Avvio registrazione JFR fallito: " + cause, cause);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Avvio registrazione JFR fallito: " + ex, ex);
+        }
+        log.info("Registrazione JFR avviata (impostazioni '{}')", SETTINGS);
+    }
+
+    /** Ferma la registrazione e la scrive su out (.jfr). */
+    public synchronized File stopAndDump(File out) throws IOException {
+        if (recording == null) throw new IllegalStateException("Nessuna registrazione JFR in corso.");
+        Object r = recording;
+        recording = null;
+        try {
+            invoke(r, "stop");
+            try {
+                r.getClass().getMethod("dump", Path.class).invoke(r, out.toPath());
+            } catch (InvocationTargetException ex) {
+                if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+                throw new IllegalStateException("Salvataggio registrazione JFR fallito: " + ex.getCause(), ex.getCause());
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("Salvataggio registrazione JFR fallito: " + ex, ex);
+            }
+        } finally {
+            invoke(r, "close");
+        }
+        log.info("Registrazione JFR salvata: {} ({} bytes)", out.getAbsolutePath(), out.length());
+        return out;
+    }
+
+    /** Ferma senza salvare (uscita dall'applicazione). */
+    public synchronized void discard() {
+        if (recording == null) return;
+        invoke(recording, "close");
+        recording = null;
+        log.info("Registrazione JFR scartata");
+    }
+
+    private static void invoke(Object recording, String method) {
+        try {
+            recording.getClass().getMethod(method).invoke(recording);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Chiamata JFR fallita: " + method, ex);
+        }
+    }
+}
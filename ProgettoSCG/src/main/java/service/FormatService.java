@@ -0,0 +1,160 @@
+package service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Formattazione numeri per dettagli, tabelle e grafici: thread-safe e senza DecimalFormat condivisi.
+ *
+ * Stessi risultati dei pattern usati finora ("#,##0", "#,##0.00", "#,##0.000", separatori del locale
+ * di default, arrotondamento HALF_EVEN), ma i valori con |v| * 10^decimali &lt; 10^13 (es. fino a
+ * ~10^13 per gli interi, ~10^10 con 3 decimali) sono scritti in virgola fissa direttamente in un
+ * buffer per thread, senza DecimalFormat né String.format.
+ * NaN/infiniti e valori oltre la soglia passano da un DecimalFormat per thread.
+ */
+public final class FormatService {
+
+    private FormatService() {}
+
+    public static final int MAX_DECIMALS = 6;
+
+    private static final long[] POW10 = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L};
+
+    /** Oltre questa soglia (valore scalato) l'errore del prodotto in double diventa rilevante: fallback su DecimalFormat. */
+    private static final double FAST_LIMIT = 1.0e13;
+
+    private static final char GROUPING;
+    private static final char DECIMAL;
+    private static final char MINUS;
+    static {
+        DecimalFormatSymbols sym = DecimalFormatSymbols.getInstance();
+        GROUPING = sym.getGroupingSeparator();
+        DECIMAL = sym.getDecimalSeparator();
+        MINUS = sym.getMinusSign();
+    }
+
+    private static final ThreadLocal<StringBuilder> BUF = ThreadLocal.withInitial(() -> new StringBuilder(32));
+
+    private static final ThreadLocal<DecimalFormat[]> FALLBACK = ThreadLocal.withInitial(() -> {
+        DecimalFormat[] f = new DecimalFormat[MAX_DECIMALS + 1];
+        for (int d = 0; d <= MAX_DECIMALS; d++) {
+            StringBuilder p = new StringBuilder("#,##0");
+            if (d > 0) p.append('.');
+            for (int k = 0; k < d; k++) p.append('0');
+            f[d] = new DecimalFormat(p.toString());
+        }
+        return f;
+    });
+
+    // ===========================
+    // API
+    // ===========================
+
+    /** "#,##0" (quantità kg, POS, MOL, ...). */
+    public static String integer(double v) { return fixed(v, 0); }
+
+    /** "#,##0.00" (percentuali). */
+    public static String dec2(double v) { return fixed(v, 2); }
+
+    /** "#,##0.000" (prezzi e CMP €/kg). */
+    public static String dec3(double v) { return fixed(v, 3); }
+
+    /** Virgola fissa con separatore migliaia del locale: decimals in [0, {@value #MAX_DECIMALS}]. */
+    public static String fixed(double v, int decimals) {
+        return write(v, decimals, true, GROUPING, DECIMAL, MINUS, false);
+    }
+
+    /** Come "#,##0.###": al più maxDecimals decimali, senza zeri finali. */
+    public static String compact(double v, int maxDecimals) {
+        return write(v, maxDecimals, true, GROUPING, DECIMAL, MINUS, true);
+    }
+
+    /** Punto decimale e nessun separatore migliaia (es. cambi "1.1000"), indipendente dal locale. */
+    public static String plain(double v, int decimals) {
+        return write(v, decimals, false, ',', '.', '-', false);
+    }
+
+    // ===========================
+    // Implementazione
+    // ===========================
+
+    private static String write(double v, int decimals, boolean grouping, char groupSep, char decSep, char minus,
+                                boolean stripZeros) {
+        if (decimals < 0 || decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("Decimali non supportati: " + decimals);
+        }
+        double abs = Math.abs(v);
+        if (Double.isNaN(v) || Double.isInfinite(v) || abs * POW10[decimals] >= FAST_LIMIT) {
+            return fallback(v, decimals, grouping, stripZeros);
+        }
+
+        long scaled = roundHalfEven(abs, decimals);
+        long intPart = scaled / POW10[decimals];
+        long frac = scaled % POW10[decimals];
+
+        StringBuilder sb = BUF.get();
+        sb.setLength(0);
+        // come DecimalFormat: il segno resta anche se il valore arrotondato è 0 ("-0")
+        if (v < 0 || (v == 0.0 && 1.0 / v < 0)) sb.append(minus);
+
+        appendGrouped(sb, intPart, grouping, groupSep);
+
+        if (decimals > 0) {
+            int digits = decimals;
+            if (stripZeros) {
+                while (digits > 0 && frac % 10 == 0) {
+                    frac /= 10;
+                    digits--;
+                }
+            }
+            if (digits > 0) {
+                sb.append(decSep);
+                for (long p = POW10[digits - 1]; p > 0; p /= 10) sb.append((char) ('0' + (frac / p) % 10));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Arrotonda abs * 10^decimals HALF_EVEN. Vicino a ".5" il prodotto in double non basta
+     * (es. 0,955 vale in realtà 0,95499...): lì decide il valore esatto del double, come DecimalFormat.
+     */
+    private static long roundHalfEven(double abs, int decimals) {
+        double x = abs * POW10[decimals];
+        double fl = Math.floor(x);
+        double diff = x - fl;
+        if (Math.abs(diff - 0.5) <= Math.max(1e-9, 4 * Math.ulp(x))) {
+            return new BigDecimal(abs).setScale(decimals, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+        }
+        long r = (long) fl;
+        if (diff > 0.5) r++;
+        return r;
+    }
+
+    private static void appendGrouped(StringBuilder sb, long n, boolean grouping, char sep) {
+        if (n < 1000 || !grouping) {
+            sb.append(n);
+            return;
+        }
+        appendGrouped(sb, n / 1000, true, sep);
+        sb.append(sep);
+        long g = n % 1000;
+        if (g < 100) sb.append('0');
+        if (g < 10) sb.append('0');
+        sb.append(g);
+    }
+
+    private static String fallback(double v, int decimals, boolean grouping, boolean stripZeros) {
+        DecimalFormat df = FALLBACK.get()[decimals];
+        if (grouping && !stripZeros) return df.format(v);
+
+        // varianti: caso raro, copia locale configurata al volo
+        df = (DecimalFormat) df.clone();
+        df.setGroupingUsed(grouping);
+        if (stripZeros) df.setMinimumFractionDigits(0);
+        if (!grouping) df.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(java.util.Locale.US));
+        return df.format(v);
+    }
+}
@@ -0,0 +1,185 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import model.ArticleRow;
+import model.RicaviSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Simulazione sul cambio EUR/USD per gli articoli prezzati in dollari.
+ *
+ * Convenzione: rate = dollari per 1 euro (es. 1,10) => P€ = P$ / rate.
+ * Solo P e CMP degli articoli "in $" (vedi {@link ArticleRow#isPriceIsUSDInput()}) dipendono dal cambio;
+ * Q e gli articoli in € restano fissi.
+ *
+ * Le basi in $ vengono preparate una volta per snapshot ({@link Bases}) e ridotte a pochi aggregati:
+ * POS totale e MOL sono lineari in 1/rate, quindi ogni punto di uno sweep costa O(1).
+ */
+public class FxService {
+
+    private static final Logger log = LogManager.getLogger(FxService.class);
+
+    /** Basi per-articolo in $ (preparate una volta, riusate per tutti i cambi). */
+    public static class Bases {
+        final RicaviSnapshot snap;
+
+        // indici articoli con almeno una leva in $
+        final int[] usdIdx;
+
+        // aggregati: POS(r) = posFixed + posUsd / r ; MOL(r) = mol0 + molUsd / r - molEur
+        final double posFixed;
+        final double posUsd;
+        final double molUsd;
+        final double molEur;
+
+        final double impliedRate; // cambio implicito nel file (mediana P$/P€), NaN se non ricavabile
+
+        Bases(RicaviSnapshot snap, int[] usdIdx, double posFixed, double posUsd,
+              double molUsd, double molEur, double impliedRate) {
+            this.snap = snap;
+            this.usdIdx = usdIdx;
+            this.posFixed = posFixed;
+            this.posUsd = posUsd;
+            this.molUsd = molUsd;
+            this.molEur = molEur;
+            this.impliedRate = impliedRate;
+        }
+
+        public int getUsdCount() { return usdIdx.length; }
+        public double getImpliedRate() { return impliedRate; }
+        public RicaviSnapshot getSnapshot() { return snap; }
+    }
+
+    /** Dettaglio di un singolo articolo a un dato cambio. */
+    public static class ArticleFx {
+        public final ArticleRow article;
+        public final double pEur0, pEur1;
+        public final double cmpEur0, cmpEur1;
+        public final double pos0, pos1;
+
+        ArticleFx(ArticleRow article, double pEur0, double pEur1, double cmpEur0, double cmpEur1,
+                  double pos0, double pos1) {
+            this.article = article;
+            this.pEur0 = pEur0;
+            this.pEur1 = pEur1;
+            this.cmpEur0 = cmpEur0;
+            this.cmpEur1 = cmpEur1;
+            this.pos0 = pos0;
+            this.pos1 = pos1;
+        }
+    }
+
+    private Bases cached;
+
+    /** Basi in $ per lo snapshot (in cache finché lo snapshot non cambia). */
+    public synchronized Bases prepare(RicaviSnapshot snap) {
+        if (cached != null && cached.snap == snap) return cached;
+
+        final int n = snap.size();
+        final double[] q = snap.getQ0();
+        final double[] p0 = snap.getP0();
+        final double[] c0 = snap.getCmp0();
+        final double[] pU = snap.getPUsd0();
+        final double[] cU = snap.getCmpUsd0();
+        final boolean[] mp = snap.getMp();
+
+        List<Integer> idx = new ArrayList<>();
+        List<Double> ratios = new ArrayList<>();
+
+        double posFixed = 0.0, posUsd = 0.0, molUsd = 0.0, molEur = 0.0;
+
+        for (int i = 0; i < n; i++) {
+            ArticleRow a = snap.getArticle(i);
+            boolean pIsUsd = a.isPriceIsUSDInput() && pU[i] > 0;
+            boolean cIsUsd = a.isCmpIsUSDInput() && cU[i] > 0;
+
+            if (!pIsUsd && !cIsUsd) {
+                posFixed += (p0[i] - c0[i]) * q[i];
+                continue;
+            }
+            idx.add(i);
+
+            if (pIsUsd) {
+                posUsd += q[i] * pU[i];
+                molUsd += q[i] * pU[i];          // ΔFatt = q * (P$/r - P€0)
+                molEur += q[i] * p0[i];
+                if (p0[i] > 0) ratios.add(pU[i] / p0[i]);
+            } else {
+                posFixed += q[i] * p0[i];
+            }
+
+            if (cIsUsd) {
+                posUsd -= q[i] * cU[i];
+                if (mp[i]) {                      // ΔCogs pesa sul MOL solo per MP
+                    molUsd -= q[i] * cU[i];
+                    molEur -= q[i] * c0[i];
+                }
+                if (c0[i] > 0) ratios.add(cU[i] / c0[i]);
+            } else {
+                posFixed -= q[i] * c0[i];
+            }
+        }
+
+        int[] usdIdx = new int[idx.size()];
+        for (int k = 0; k < usdIdx.length; k++) usdIdx[k] = idx.get(k);
+
+        double implied = Double.NaN;
+        if (!ratios.isEmpty()) {
+            double[] r = new double[ratios.size()];
+            for (int k = 0; k < r.length; k++) r[k] = ratios.get(k);
+            Arrays.sort(r);
+            implied = r[r.length / 2];
+        }
+
+        cached = new Bases(snap, usdIdx, posFixed, posUsd, molUsd, molEur, implied);
+        log.info("FX: {} articoli in $ su {}, cambio implicito={}", usdIdx.length, n, implied);
+        return cached;
+    }
+
+    public double posTotal(Bases b, double rate) {
+        checkRate(rate);
+        return b.posFixed + b.posUsd / rate;
+    }
+
+    /** MOL al cambio indicato (NaN se lo snapshot non ha il MOL base). */
+    public double mol(Bases b, double rate) {
+        checkRate(rate);
+        return b.snap.getMol0() + b.molUsd / rate - b.molEur;
+    }
+
+    /** Sweep: per ogni cambio restituisce {POS totale, MOL}. */
+    public double[][] sweep(Bases b, double[] rates) {
+        double[][] out = new double[2][rates.length];
+        for (int k = 0; k < rates.length; k++) {
+            out[0][k] = posTotal(b, rates[k]);
+            out[1][k] = mol(b, rates[k]);
+        }
+        return out;
+    }
+
+    /** Dettaglio per articolo in $ a un cambio singolo. */
+    public List<ArticleFx> details(Bases b, double rate) {
+        checkRate(rate);
+        RicaviSnapshot s = b.snap;
+        List<ArticleFx> out = new ArrayList<>(b.usdIdx.length);
+        for (int i : b.usdIdx) {
+            ArticleRow a = s.getArticle(i);
+            double p1 = a.isPriceIsUSDInput() && s.getPUsd0()[i] > 0 ? s.getPUsd0()[i] / rate : s.getP0()[i];
+            double c1 = a.isCmpIsUSDInput() && s.getCmpUsd0()[i] > 0 ? s.getCmpUsd0()[i] / rate : s.getCmp0()[i];
+            out.add(new ArticleFx(a,
+                    s.getP0()[i], p1,
+                    s.getCmp0()[i], c1,
+                    SimulationKernel.pos(s.getQ0()[i], s.getP0()[i], s.getCmp0()[i]),
+                    SimulationKernel.pos(s.getQ0()[i], p1, c1)));
+        }
+        return out;
+    }
+
+    private static void checkRate(double rate) {
+        if (!(rate > 0)) throw new IllegalArgumentException("Cambio EUR/USD non valido: " + rate);
+    }
+}
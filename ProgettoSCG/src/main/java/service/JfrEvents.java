@@ -0,0 +1,88 @@
+package service;
+
+import repository.FlightEvent;
+
+/**
+ * Eventi JFR (Java Flight Recorder) dei percorsi caldi: apribili in JDK Mission Control.
+ *
+ * Uso: begin() prima del lavoro, poi end() + campi + commit() solo se shouldCommit():
+ * senza una registrazione attiva il costo è un controllo booleano; senza JFR nella JVM
+ * gli eventi non fanno nulla (vedi {@link FlightEvent}).
+ * Le operazioni su file stanno in {@link repository.ExcelIoEvent}.
+ */
+public final class JfrEvents {
+
+    private JfrEvents() {}
+
+    private static final String[] EXCEL = {"ProgettoSCG", "Excel"};
+    private static final String[] SIMULAZIONE = {"ProgettoSCG", "Simulazione"};
+
+    public static class LoadArticles extends FlightEvent {
+        public static final Type TYPE = type("progettoscg.LoadArticles", "Lettura articoli",
+                "Scansione della tabella Ricavi", EXCEL,
+                field(String.class, "sheet", "Foglio"),
+                field(int.class, "rowsScanned", "Righe scansionate"),
+                field(int.class, "articlesFound", "Articoli trovati"));
+
+        public String sheet;
+        public int rowsScanned;
+        public int articlesFound;
+
+        public LoadArticles() {
+            super(TYPE);
+        }
+
+        @Override
+        protected Object[] values() {
+            return new Object[]{sheet, rowsScanned, articlesFound};
+        }
+    }
+
+    public static class SimulationStep extends FlightEvent {
+        public static final Type TYPE = type("progettoscg.SimulationStep", "Simulazione articolo",
+                "Variazione (ed eventuale compensazione) di un articolo sulla working copy", SIMULAZIONE,
+                field(String.class, "action", "Azione"),
+                field(String.class, "article", "Articolo"),
+                field(String.class, "mode", "Modalità"),
+                field(double.class, "percent", "Variazione %"),
+                field(boolean.class, "compensate", "Compensazione"),
+                field(int.class, "evaluateCount", "evaluateAll"));
+
+        public String action;
+        public String article;
+        public String mode;
+        public double percent;
+        public boolean compensate;
+        public int evaluateCount;
+
+        public SimulationStep() {
+            super(TYPE);
+        }
+
+        @Override
+        protected Object[] values() {
+            return new Object[]{action, article, mode, percent, compensate, evaluateCount};
+        }
+    }
+
+    public static class CeSnapshot extends FlightEvent {
+        public static final Type TYPE = type("progettoscg.CeSnapshot", "Lettura CE Budget",
+                "Ricalcolo e lettura delle voci CE Budget dalla working copy", EXCEL,
+                field(String.class, "sheet", "Foglio"),
+                field(int.class, "entries", "Voci lette"),
+                field(int.class, "formulas", "Formule ricalcolate"));
+
+        public String sheet;
+        public int entries;
+        public int formulas;
+
+        public CeSnapshot() {
+            super(TYPE);
+        }
+
+        @Override
+        protected Object[] values() {
+            return new Object[]{sheet, entries, formulas};
+        }
+    }
+}
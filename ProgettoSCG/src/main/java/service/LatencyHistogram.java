@@ -0,0 +1,74 @@
+package service;
+
+/**
+ * Istogramma di latenze log-lineare (stessa idea di HdrHistogram, senza dipendenze):
+ * 64 sotto-bucket per ogni potenza di 2, quindi errore relativo sui percentili < 1,6%
+ * con memoria fissa (~21 KB) indipendente dal numero di campioni.
+ *
+ * Valori in microsecondi. Non thread-safe: la sincronizzazione è di {@link MetricsService}.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;                 // 128 valori esatti, poi 64 bucket per ottava
+    private static final int SUB_COUNT = 1 << SUB_BITS;    // 128
+    private static final int HALF = SUB_COUNT / 2;         // 64
+    private static final int MAX_SHIFT = 40;               // fino a ~2^47 µs (anni): abbondante
+
+    private final long[] counts = new long[SUB_COUNT + MAX_SHIFT * HALF];
+    private long total;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long micros) {
+        long v = Math.max(0L, micros);
+        counts[indexOf(v)]++;
+        total++;
+        sum += v;
+        if (v < min) min = v;
+        if (v > max) max = v;
+    }
+
+    public long getCount() { return total; }
+    public long getMin() { return total == 0 ? 0 : min; }
+    public long getMax() { return max; }
+
+    public double getMean() {
+        return total == 0 ? 0.0 : (double) sum / total;
+    }
+
+    /** Percentile (0..100): limite superiore del bucket che lo contiene (mai oltre il massimo visto). */
+    public long percentile(double p) {
+        if (total == 0) return 0;
+        long rank = Math.max(1L, (long) Math.ceil(p / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, upperBound(i));
+        }
+        return max;
+    }
+
+    public void reset() {
+        java.util.Arrays.fill(counts, 0L);
+        total = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    private static int indexOf(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1); // >= 1
+        if (shift > MAX_SHIFT) shift = MAX_SHIFT;
+        long sub = Math.min(SUB_COUNT - 1, v >>> shift);                // 64..127
+        return SUB_COUNT + (shift - 1) * HALF + (int) (sub - HALF);
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index - SUB_COUNT) / HALF + 1;
+        long sub = (index - SUB_COUNT) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,248 @@
+package service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+/**
+ * Metriche delle azioni utente (un "click" = una {@link Action}).
+ *
+ * Ogni azione registra tempi per fase ({@link Action#mark}) e contatori ({@link Action#count});
+ * alla chiusura i tempi confluiscono in istogrammi per "azione / fase" e i contatori nei totali.
+ * Una riga di log per azione riassume dove è andato il tempo.
+ *
+ * Le Action sono usate da un solo thread; gli aggregati sono sincronizzati.
+ */
+public class MetricsService {
+
+    private static final Logger log = LogManager.getLogger(MetricsService.class);
+
+    public static final String PHASE_TOTAL = "totale";
+
+    /** Latenze per "azione" -> "fase" (ordine di prima apparizione). */
+    private final Map<String, Map<String, LatencyHistogram>> histograms = new LinkedHashMap<>();
+    /** Contatori per "azione" -> "contatore": {totale, ultimo valore, azioni}. */
+    private final Map<String, Map<String, long[]>> counters = new LinkedHashMap<>();
+
+    private final long startedAt = System.currentTimeMillis();
+
+    // ===========================
+    // Azione (un click)
+    // ===========================
+
+    public final class Action implements AutoCloseable {
+        private final String name;
+        private final long t0 = System.nanoTime();
+        private long last = t0;
+        private final Map<String, long[]> phases = new LinkedHashMap<>();   // fase -> {nanos, campioni}
+        private final Map<String, Long> counts = new LinkedHashMap<>();
+        private boolean closed;
+
+        private Action(String name) {
+            this.name = name;
+        }
+
+        /** Chiude la fase corrente: il tempo dall'ultimo mark (o dall'inizio) va alla fase indicata. */
+        public void mark(String phase) {
+            long now = System.nanoTime();
+            long nanos = now - last;
+            last = now;
+            long[] p = phases.get(phase);
+            if (p == null) phases.put(phase, p = new long[2]);
+            p[0] += nanos;
+            p[1]++;
+            recordSample(name, phase, nanos);
+        }
+
+        /** Riparte da adesso senza attribuire il tempo trascorso (es. attesa di un dialog). */
+        public void skip() {
+            last = System.nanoTime();
+        }
+
+        public void count(String counter, long delta) {
+            Long v = counts.get(counter);
+            counts.put(counter, (v == null) ? delta : v + delta);
+        }
+
+        public void increment(String counter) {
+            count(counter, 1L);
+        }
+
+        /** Valore corrente di un contatore di questa azione (0 se mai incrementato). */
+        public long getCount(String counter) {
+            Long v = counts.get(counter);
+            return (v == null) ? 0L : v;
+        }
+
+        public long elapsedMs() {
+            return (System.nanoTime() - t0) / 1_000_000L;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            long nanos = System.nanoTime() - t0;
+            recordSample(name, PHASE_TOTAL, nanos);
+            mergeCounters(name, counts);
+
+            if (log.isInfoEnabled()) {
+                StringBuilder sb = new StringBuilder();
+                for (Map.Entry<String, long[]> e : phases.entrySet()) {
+                    if (sb.length() > 0) sb.append(", ");
+                    sb.append(e.getKey()).append('=').append(e.getValue()[0] / 1_000_000L).append(" ms");
+                    if (e.getValue()[1] > 1) sb.append(" (x").append(e.getValue()[1]).append(')');
+                }
+                log.info(Tracing.METRICS, "{} {} ms [{}] {}", name, Unbox.box(nanos / 1_000_000L), sb, counts);
+            }
+        }
+    }
+
+    public Action begin(String action) {
+        return new Action(action);
+    }
+
+    // ===========================
+    // Aggregati
+    // ===========================
+
+    private synchronized void recordSample(String action, String phase, long nanos) {
+        Map<String, LatencyHistogram> byPhase = histograms.get(action);
+        if (byPhase == null) histograms.put(action, byPhase = new LinkedHashMap<>());
+        LatencyHistogram h = byPhase.get(phase);
+        if (h == null) byPhase.put(phase, h = new LatencyHistogram());
+        h.record(nanos / 1_000L);
+    }
+
+    private synchronized void mergeCounters(String action, Map<String, Long> values) {
+        if (values.isEmpty()) return;
+        Map<String, long[]> byName = counters.get(action);
+        if (byName == null) counters.put(action, byName = new LinkedHashMap<>());
+        for (Map.Entry<String, Long> e : values.entrySet()) {
+            long[] c = byName.get(e.getKey());
+            if (c == null) byName.put(e.getKey(), c = new long[3]);
+            c[0] += e.getValue();
+            c[1] = e.getValue();
+            c[2]++;
+        }
+    }
+
+    public synchronized void reset() {
+        histograms.clear();
+        counters.clear();
+    }
+
+    /** Riga della tabella latenze (tempi in ms). */
+    public static class PhaseStats {
+        public final String action, phase;
+        public final long count;
+        public final double meanMs, p50Ms, p90Ms, p99Ms, maxMs;
+
+        PhaseStats(String action, String phase, LatencyHistogram h) {
+            this.action = action;
+            this.phase = phase;
+            this.count = h.getCount();
+            this.meanMs = h.getMean() / 1000.0;
+            this.p50Ms = h.percentile(50) / 1000.0;
+            this.p90Ms = h.percentile(90) / 1000.0;
+            this.p99Ms = h.percentile(99) / 1000.0;
+            this.maxMs = h.getMax() / 1000.0;
+        }
+    }
+
+    /** Riga della tabella contatori. */
+    public static class CounterStats {
+        public final String action, counter;
+        public final long total, last, actions;
+
+        CounterStats(String action, String counter, long[] c) {
+            this.action = action;
+            this.counter = counter;
+            this.total = c[0];
+            this.last = c[1];
+            this.actions = c[2];
+        }
+    }
+
+    public synchronized List<PhaseStats> getPhaseStats() {
+        List<PhaseStats> out = new ArrayList<>();
+        for (Map.Entry<String, Map<String, LatencyHistogram>> a : histograms.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> p : a.getValue().entrySet()) {
+                out.add(new PhaseStats(a.getKey(), p.getKey(), p.getValue()));
+            }
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    public synchronized List<CounterStats> getCounterStats() {
+        List<CounterStats> out = new ArrayList<>();
+        for (Map.Entry<String, Map<String, long[]>> a : counters.entrySet()) {
+            for (Map.Entry<String, long[]> c : a.getValue().entrySet()) {
+                out.add(new CounterStats(a.getKey(), c.getKey(), c.getValue()));
+            }
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    // ===========================
+    // Export JSON
+    // ===========================
+
+    public String toJson() {
+        List<PhaseStats> phases = getPhaseStats();
+        List<CounterStats> ctrs = getCounterStats();
+
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\n  \"startedAt\": ").append(startedAt)
+                .append(",\n  \"exportedAt\": ").append(System.currentTimeMillis())
+                .append(",\n  \"phases\": [");
+        for (int i = 0; i < phases.size(); i++) {
+            PhaseStats p = phases.get(i);
+            sb.append(i == 0 ? "\n" : ",\n").append("    {\"action\": ").append(quote(p.action))
+                    .append(", \"phase\": ").append(quote(p.phase))
+                    .append(", \"count\": ").append(p.count)
+                    .append(", \"meanMs\": ").append(FormatService.plain(p.meanMs, 3))
+                    .append(", \"p50Ms\": ").append(FormatService.plain(p.p50Ms, 3))
+                    .append(", \"p90Ms\": ").append(FormatService.plain(p.p90Ms, 3))
+                    .append(", \"p99Ms\": ").append(FormatService.plain(p.p99Ms, 3))
+                    .append(", \"maxMs\": ").append(FormatService.plain(p.maxMs, 3)).append('}');
+        }
+        sb.append(phases.isEmpty() ? "]" : "\n  ]").append(",\n  \"counters\": [");
+        for (int i = 0; i < ctrs.size(); i++) {
+            CounterStats c = ctrs.get(i);
+            sb.append(i == 0 ? "\n" : ",\n").append("    {\"action\": ").append(quote(c.action))
+                    .append(", \"counter\": ").append(quote(c.counter))
+                    .append(", \"total\": ").append(c.total)
+                    .append(", \"last\": ").append(c.last)
+                    .append(", \"actions\": ").append(c.actions).append('}');
+        }
+        sb.append(ctrs.isEmpty() ? "]" : "\n  ]").append("\n}\n");
+        return sb.toString();
+    }
+
+    public void writeJson(File out) throws IOException {
+        Files.write(out.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+        log.info("Metriche esportate in {}", out.getAbsolutePath());
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '"' || ch == '\\') sb.append('\\').append(ch);
+            else if (ch < 0x20) sb.append(String.format("\\u%04x", (int) ch));
+            else sb.append(ch);
+        }
+        return sb.append('"').toString();
+    }
+}
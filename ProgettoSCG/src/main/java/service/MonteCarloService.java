@@ -0,0 +1,207 @@
+package service;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import model.MonteCarloResult;
+import model.RicaviSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Motore Monte Carlo sui valori base della tabella "Ricavi".
+ *
+ * Per ogni estrazione e per ogni articolo campiona tre shock percentuali (Q, P, CMP)
+ * normali e correlati tra loro (Cholesky 3x3). La correlazione tra articoli è data da
+ * un fattore comune: z = sqrt(rhoArt) * comune + sqrt(1 - rhoArt) * idiosincratico.
+ *
+ * Esecuzione: le estrazioni sono divise in un numero FISSO di blocchi, ognuno con il suo
+ * SplittableRandom ottenuto con split() dal seme radice. I blocchi girano in parallelo
+ * ma il risultato dipende solo dal seme (non dal numero di core).
+ */
+public class MonteCarloService {
+
+    private static final Logger log = LogManager.getLogger(MonteCarloService.class);
+
+    /** Numero di blocchi fisso: garantisce riproducibilità a parità di seme. */
+    private static final int CHUNKS = 64;
+
+    public static class Config {
+        public int draws = 100_000;
+        public long seed = 42L;
+
+        // deviazioni standard degli shock, in punti percentuali
+        public double sigmaQ = 5.0;
+        public double sigmaP = 3.0;
+        public double sigmaCmp = 3.0;
+
+        // correlazioni tra leve (stesso articolo)
+        public double rhoQP = -0.3;
+        public double rhoQCmp = 0.0;
+        public double rhoPCmp = 0.5;
+
+        // correlazione tra articoli (fattore comune)
+        public double rhoArticles = 0.5;
+    }
+
+    public MonteCarloResult run(RicaviSnapshot snap, Config cfg) {
+        if (snap == null || snap.size() == 0) throw new IllegalStateException("Nessun articolo da simulare.");
+        if (cfg.draws <= 0) throw new IllegalArgumentException("Numero estrazioni non valido: " + cfg.draws);
+        if (cfg.rhoArticles < 0 || cfg.rhoArticles > 1) {
+            throw new IllegalArgumentException("Correlazione tra articoli fuori da [0,1]: " + cfg.rhoArticles);
+        }
+
+        final double[] L = cholesky3(cfg.rhoQP, cfg.rhoQCmp, cfg.rhoPCmp);
+
+        final int n = snap.size();
+        final int draws = cfg.draws;
+        final double[] q0 = snap.getQ0();
+        final double[] p0 = snap.getP0();
+        final double[] cmp0 = snap.getCmp0();
+        final boolean[] mp = snap.getMp();
+        final boolean withMol = snap.hasMol();
+        final double mol0 = snap.getMol0();
+
+        final double sq = cfg.sigmaQ / 100.0;
+        final double sp = cfg.sigmaP / 100.0;
+        final double sc = cfg.sigmaCmp / 100.0;
+        final double wCommon = Math.sqrt(cfg.rhoArticles);
+        final double wIdio = Math.sqrt(1.0 - cfg.rhoArticles);
+
+        final double[] posTot = new double[draws];
+        final double[] mol = withMol ? new double[draws] : null;
+
+        // statistiche per articolo: somma e somma quadrati, per blocco (merge a fine run)
+        final double[][] sum = new double[CHUNKS][n];
+        final double[][] sumSq = new double[CHUNKS][n];
+
+        // un generatore per blocco, derivato in sequenza dal seme -> riproducibile
+        final SplittableRandom[] rngs = new SplittableRandom[CHUNKS];
+        SplittableRandom root = new SplittableRandom(cfg.seed);
+        for (int c = 0; c < CHUNKS; c++) rngs[c] = root.split();
+
+        long t0 = System.nanoTime();
+
+        IntStream.range(0, CHUNKS).parallel().forEach(c -> {
+            int from = (int) ((long) draws * c / CHUNKS);
+            int to = (int) ((long) draws * (c + 1) / CHUNKS);
+
+            SplittableRandom rnd = rngs[c];
+            Gaussian g = new Gaussian(rnd);
+            double[] zc = new double[3];
+            double[] zi = new double[3];
+            double[] s = sum[c];
+            double[] s2 = sumSq[c];
+
+            for (int d = from; d < to; d++) {
+                correlated(g, L, zc);
+
+                double tot = 0.0;
+                double dMol = 0.0;
+
+                for (int i = 0; i < n; i++) {
+                    correlated(g, L, zi);
+
+                    double q = q0[i] * Math.max(0.0, 1.0 + sq * (wCommon * zc[0] + wIdio * zi[0]));
+                    double p = p0[i] * Math.max(0.0, 1.0 + sp * (wCommon * zc[1] + wIdio * zi[1]));
+                    double cmp = cmp0[i] * Math.max(0.0, 1.0 + sc * (wCommon * zc[2] + wIdio * zi[2]));
+
+                    double pos = (p - cmp) * q;
+                    tot += pos;
+                    s[i] += pos;
+                    s2[i] += pos * pos;
+
+                    if (withMol) {
+                        double dFatt = q * p - q0[i] * p0[i];
+                        double dCogs = q * cmp - q0[i] * cmp0[i];
+                        dMol += SimulationKernel.molDelta(mp[i], dFatt, dCogs);
+                    }
+                }
+
+                posTot[d] = tot;
+                if (withMol) mol[d] = mol0 + dMol;
+            }
+        });
+
+        double[] mean = new double[n];
+        double[] std = new double[n];
+        for (int i = 0; i < n; i++) {
+            double s = 0.0, s2 = 0.0;
+            for (int c = 0; c < CHUNKS; c++) {
+                s += sum[c][i];
+                s2 += sumSq[c][i];
+            }
+            double m = s / draws;
+            mean[i] = m;
+            std[i] = (draws > 1) ? Math.sqrt(Math.max(0.0, (s2 - draws * m * m) / (draws - 1))) : 0.0;
+        }
+
+        Arrays.parallelSort(posTot);
+        if (withMol) Arrays.parallelSort(mol);
+
+        long elapsedMs = (System.nanoTime() - t0) / 1_000_000L;
+        log.info("Monte Carlo: {} estrazioni x {} articoli in {} ms (seed={})", draws, n, elapsedMs, cfg.seed);
+
+        return new MonteCarloResult(draws, cfg.seed, elapsedMs,
+                snap.getPosTot0(), mol0,
+                posTot, mol, mean, std);
+    }
+
+    // ===========================
+    // Helper numerici
+    // ===========================
+
+    /**
+     * Cholesky della matrice di correlazione 3x3 (Q, P, CMP).
+     * Restituisce la triangolare inferiore in forma compatta [l00, l10, l11, l20, l21, l22].
+     */
+    static double[] cholesky3(double rQP, double rQC, double rPC) {
+        double l00 = 1.0;
+        double l10 = rQP;
+        double a11 = 1.0 - l10 * l10;
+        if (a11 <= 0) throw new IllegalArgumentException("Matrice di correlazione non definita positiva (Q-P).");
+        double l11 = Math.sqrt(a11);
+        double l20 = rQC;
+        double l21 = (rPC - l20 * l10) / l11;
+        double a22 = 1.0 - l20 * l20 - l21 * l21;
+        if (a22 <= 0) throw new IllegalArgumentException("Matrice di correlazione non definita positiva.");
+        double l22 = Math.sqrt(a22);
+        return new double[]{l00, l10, l11, l20, l21, l22};
+    }
+
+    private static void correlated(Gaussian g, double[] L, double[] out) {
+        double a = g.next();
+        double b = g.next();
+        double c = g.next();
+        out[0] = L[0] * a;
+        out[1] = L[1] * a + L[2] * b;
+        out[2] = L[3] * a + L[4] * b + L[5] * c;
+    }
+
+    /** Normale standard (metodo polare di Marsaglia) su SplittableRandom, senza allocazioni. */
+    private static final class Gaussian {
+        private final SplittableRandom rnd;
+        private double spare;
+        private boolean hasSpare;
+
+        Gaussian(SplittableRandom rnd) { this.rnd = rnd; }
+
+        double next() {
+            if (hasSpare) {
+                hasSpare = false;
+                return spare;
+            }
+            double u, v, s;
+            do {
+                u = rnd.nextDouble() * 2.0 - 1.0;
+                v = rnd.nextDouble() * 2.0 - 1.0;
+                s = u * u + v * v;
+            } while (s >= 1.0 || s == 0.0);
+            double m = Math.sqrt(-2.0 * Math.log(s) / s);
+            spare = v * m;
+            hasSpare = true;
+            return u * m;
+        }
+    }
+}
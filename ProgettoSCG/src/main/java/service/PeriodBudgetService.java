@@ -0,0 +1,216 @@
+package service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import model.ArticleRow;
+import model.BudgetPeriod;
+import model.ElasticityTable;
+import model.PeriodMatrix;
+import model.RicaviSnapshot;
+import model.SimulationMode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.ss.usermodel.*;
+
+/**
+ * Simulazione su budget multi-periodo (più anni e/o colonne mensili).
+ *
+ * Due fasi:
+ * 1) {@link #prepare(File)}: UNA lettura POI del workbook. Per ogni periodo legge le voci CE
+ *    (indice etichette costruito una volta per foglio) e lo snapshot del suo foglio Ricavi
+ *    (letto una volta anche se alimenta 12 colonne mensili).
+ * 2) {@link #run(List, List, ElasticityTable)}: calcolo in memoria, un periodo per task, in parallelo.
+ *
+ * Se più periodi dello stesso anno condividono un foglio Ricavi (es. CE mensile + Ricavi annuale),
+ * le variazioni sono ripartite tra loro in proporzione ai ricavi (PF + MP) di ciascun periodo.
+ * Anni diversi sullo stesso foglio Ricavi ricevono invece la variazione intera, anche se stanno
+ * in colonne dello stesso foglio CE (gruppi per foglio Ricavi + anno; anno non riconoscibile =
+ * gruppo per foglio CE).
+ */
+public class PeriodBudgetService {
+
+    private static final Logger log = LogManager.getLogger(PeriodBudgetService.class);
+
+    public static final String[] LINES = {"Ricavi PF", "Ricavi MP", "Acquisto MP", "MOL", "POS articoli"};
+    public static final int L_RICAVI_PF = 0;
+    public static final int L_RICAVI_MP = 1;
+    public static final int L_ACQUISTO_MP = 2;
+    public static final int L_MOL = 3;
+    public static final int L_POS = 4;
+
+    /** Variazione richiesta su un articolo (stessa semantica della tabella simulazione). */
+    public static class Change {
+        public final String cat;
+        public final String articolo;
+        public final SimulationMode mode;
+        public final double percent;
+        public final boolean compensate;
+
+        public Change(String cat, String articolo, SimulationMode mode, double percent, boolean compensate) {
+            this.cat = cat;
+            this.articolo = articolo;
+            this.mode = mode;
+            this.percent = percent;
+            this.compensate = compensate;
+        }
+    }
+
+    /** Valori base di un periodo, pronti per il calcolo in memoria. */
+    public static class PeriodBase {
+        final BudgetPeriod period;
+        final RicaviSnapshot snap;  // null se il periodo non ha un foglio Ricavi
+        final double[] ce;          // voci LINES (POS escluso: viene dallo snapshot)
+        double weight = 1.0;        // quota del foglio Ricavi attribuita al periodo
+
+        PeriodBase(BudgetPeriod period, RicaviSnapshot snap, double[] ce) {
+            this.period = period;
+            this.snap = snap;
+            this.ce = ce;
+        }
+
+        public BudgetPeriod getPeriod() { return period; }
+        public double getWeight() { return weight; }
+    }
+
+    private final ElasticityService elasticityService = new ElasticityService();
+    private final CeBudgetService ceService = new CeBudgetService();
+
+    /** Fase 1: lettura di tutti i periodi (solo lettura, un'unica apertura del file). */
+    public List<PeriodBase> prepare(File workingCopy) throws Exception {
+        long t0 = System.nanoTime();
+
+        try (Workbook wb = WorkbookFactory.create(workingCopy, null, true)) {
+            List<BudgetPeriod> periods = ceService.discoverPeriods(wb);
+            if (periods.isEmpty()) throw new IllegalStateException("Nessun foglio CE Budget trovato nel file.");
+
+            FormulaEvaluator eval = wb.getCreationHelper().createFormulaEvaluator();
+            DataFormatter fmt = new DataFormatter();
+            RicaviExcelService ricavi = new RicaviExcelService(workingCopy);
+
+            Map<String, CeBudgetService.LabelIndex> indexBySheet = new HashMap<>();
+            Map<String, RicaviSnapshot> snapBySheet = new HashMap<>();
+            Map<String, List<PeriodBase>> bySnapSheet = new HashMap<>();
+            List<PeriodBase> out = new ArrayList<>(periods.size());
+
+            for (BudgetPeriod p : periods) {
+                Sheet ce = wb.getSheet(p.getCeSheetName());
+                CeBudgetService.LabelIndex idx = indexBySheet.get(p.getCeSheetName());
+                if (idx == null) {
+                    idx = ceService.buildIndex(ce, fmt);
+                    indexBySheet.put(p.getCeSheetName(), idx);
+                }
+
+                double[] v = new double[LINES.length];
+                v[L_RICAVI_PF] = ceService.readLine(ce, eval, idx, CeBudgetService.LABEL_RICAVI_PF, p.getValueCol());
+                v[L_RICAVI_MP] = ceService.readLine(ce, eval, idx, CeBudgetService.LABEL_RICAVI_MP, p.getValueCol());
+                v[L_ACQUISTO_MP] = ceService.readLine(ce, eval, idx, CeBudgetService.LABEL_ACQUISTO_MP, p.getValueCol());
+                v[L_MOL] = ceService.readLine(ce, eval, idx, CeBudgetService.LABEL_MOL, p.getValueCol());
+
+                RicaviSnapshot snap = null;
+                String rs = p.getRicaviSheetName();
+                if (rs != null) {
+                    snap = snapBySheet.get(rs);
+                    if (snap == null) {
+                        Sheet sheet = wb.getSheet(rs);
+                        List<ArticleRow> arts = ricavi.loadArticles(sheet);
+                        snap = ricavi.readSnapshot(sheet, eval, arts, Double.NaN);
+                        snapBySheet.put(rs, snap);
+                    }
+                } else {
+                    log.warn("Periodo {}: nessun foglio Ricavi, solo valori CE.", p.getLabel());
+                }
+
+                PeriodBase pb = new PeriodBase(p, snap, v);
+                out.add(pb);
+                if (rs != null) bySnapSheet.computeIfAbsent(shareKey(p), k -> new ArrayList<>()).add(pb);
+            }
+
+            // ripartizione dei fogli Ricavi condivisi tra più periodi dello stesso anno (es. i mesi)
+            for (List<PeriodBase> group : bySnapSheet.values()) {
+                if (group.size() < 2) continue;
+                double tot = 0.0;
+                for (PeriodBase pb : group) tot += pb.ce[L_RICAVI_PF] + pb.ce[L_RICAVI_MP];
+                for (PeriodBase pb : group) {
+                    pb.weight = Math.abs(tot) > 1e-9
+                            ? (pb.ce[L_RICAVI_PF] + pb.ce[L_RICAVI_MP]) / tot
+                            : 1.0 / group.size();
+                }
+            }
+
+            log.info("Periodi preparati: {} (fogli CE={}, fogli Ricavi={}) in {} ms",
+                    out.size(), indexBySheet.size(), snapBySheet.size(), (System.nanoTime() - t0) / 1_000_000L);
+            return out;
+        }
+    }
+
+    /** Gruppo di ripartizione: foglio Ricavi + anno (o foglio CE se l'anno non è riconoscibile). */
+    private static String shareKey(BudgetPeriod p) {
+        String scope = p.getYear().isEmpty() ? "CE:" + p.getCeSheetName() : p.getYear();
+        return p.getRicaviSheetName() + "|" + scope;
+    }
+
+    /** Fase 2: applica le variazioni a ogni periodo in parallelo (nessun accesso a POI). */
+    public PeriodMatrix run(List<PeriodBase> bases, List<Change> changes, ElasticityTable table) {
+        long t0 = System.nanoTime();
+        int np = bases.size();
+        double[][] base = new double[np][];
+        double[][] after = new double[np][];
+
+        IntStream.range(0, np).parallel().forEach(k -> {
+            PeriodBase pb = bases.get(k);
+            double[] b = new double[LINES.length];
+            System.arraycopy(pb.ce, 0, b, 0, pb.ce.length);
+            b[L_POS] = (pb.snap == null) ? 0.0 : pb.snap.getPosTot0() * pb.weight;
+
+            base[k] = b;
+            after[k] = (pb.snap == null) ? b.clone() : apply(pb, b, changes, table);
+        });
+
+        List<BudgetPeriod> periods = new ArrayList<>(np);
+        for (PeriodBase pb : bases) periods.add(pb.period);
+
+        long elapsedMs = (System.nanoTime() - t0) / 1_000_000L;
+        log.info("Simulazione multi-periodo: {} periodi x {} variazioni in {} ms", np, changes.size(), elapsedMs);
+        return new PeriodMatrix(periods, LINES, base, after, elapsedMs);
+    }
+
+    private double[] apply(PeriodBase pb, double[] b, List<Change> changes, ElasticityTable table) {
+        RicaviSnapshot s = pb.snap;
+        double w = pb.weight;
+        double[] a = b.clone();
+
+        for (Change c : changes) {
+            int i = s.indexOf(c.cat, c.articolo);
+            if (i < 0) continue; // articolo non presente nel foglio Ricavi del periodo
+
+            double q0 = s.getQ0()[i], p0 = s.getP0()[i], cmp0 = s.getCmp0()[i];
+            double eps = c.mode.isElastic() ? table.get(s.getArticle(i)) : 0.0;
+
+            ElasticityService.Outcome o = elasticityService.evaluate(q0, p0, cmp0, c.mode, c.percent, eps, c.compensate);
+            double q1 = o.q1, p1 = o.p1;
+            if (c.compensate) {
+                if (c.mode.isQuantityDriven()) p1 = o.compValue;
+                else q1 = o.compValue;
+            }
+
+            double dFatt = (q1 * p1 - q0 * p0) * w;
+            double dCogs = (q1 - q0) * cmp0 * w;
+            boolean mp = s.getMp()[i];
+
+            if (mp) {
+                a[L_RICAVI_MP] += dFatt;
+                a[L_ACQUISTO_MP] -= dCogs;   // costi negativi nel CE (come computeCeAfterVar)
+            } else {
+                a[L_RICAVI_PF] += dFatt;
+            }
+            a[L_MOL] += SimulationKernel.molDelta(mp, dFatt, dCogs);
+            a[L_POS] += (SimulationKernel.pos(q1, p1, cmp0) - SimulationKernel.pos(q0, p0, cmp0)) * w;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,437 @@
+package service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import model.ArticleRow;
+import model.RicaviSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+/**
+ * Import della tabella Ricavi da un estratto CSV (ERP), senza passare da Excel/POI.
+ * Stesse colonne della tabella destra di "Ricavi": Cat, Articolo, Categoria, Quantità,
+ * P medio (€/kg) / ($/kg), CMP medio (€/kg) / ($/kg), POS. Produce lo stesso {@link RicaviSnapshot}
+ * di {@link RicaviExcelService#loadBaseSnapshot()} (senza CE: MOL base = NaN).
+ *
+ * Il file è mappato in memoria (FileChannel.map) e letto byte per byte: i campi sono posizioni nel
+ * buffer e i numeri si convertono direttamente dai byte; si creano String solo per i testi degli articoli.
+ *
+ * Formato: separatore ';' ',' o TAB (dall'header), virgolette CSV, UTF-8 (anche con BOM) o Windows-1252,
+ * decimali con ',' o '.' (dedotti dalle prime righe; l'altro segno è il separatore delle migliaia).
+ * Differenze rispetto a Excel: Cat viene dal file (niente filtro sui codici MP1..PFA19), Categoria e
+ * POS sono facoltative (POS mancante = (P - CMP) x Q), un prezzo è "in $" se la colonna $/kg è &gt; 0.
+ */
+public class RicaviCsvService {
+
+    private static final Logger log = LogManager.getLogger(RicaviCsvService.class);
+
+    /** Righe di dati esaminate per capire il separatore decimale. */
+    private static final int SNIFF_ROWS = 200;
+    /** Byte esaminati per capire la codifica. */
+    private static final int SNIFF_BYTES = 1 << 16;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    /** Indici delle colonne nel CSV (-1 = assente). */
+    private static final class Cols {
+        int cat = -1, articolo = -1, categoria = -1, qty = -1;
+        int pEur = -1, pUsd = -1, cmpEur = -1, cmpUsd = -1, pos = -1;
+
+        int max() {
+            int m = 0;
+            for (int c : new int[]{cat, articolo, categoria, qty, pEur, pUsd, cmpEur, cmpUsd, pos}) m = Math.max(m, c);
+            return m;
+        }
+    }
+
+    /** Campi della riga corrente: posizioni [start, end) nel buffer mappato. */
+    private static final class Line {
+        int[] start = new int[32];
+        int[] end = new int[32];
+        boolean[] quoted = new boolean[32];
+        int count;
+
+        void add(int s, int e, boolean q) {
+            if (count == start.length) {
+                start = Arrays.copyOf(start, count * 2);
+                end = Arrays.copyOf(end, count * 2);
+                quoted = Arrays.copyOf(quoted, count * 2);
+            }
+            start[count] = s;
+            end[count] = e;
+            quoted[count] = q;
+            count++;
+        }
+    }
+
+    public RicaviSnapshot load(File csv) throws IOException {
+        JfrEvents.LoadArticles ev = new JfrEvents.LoadArticles();
+        ev.begin();
+        long t0 = System.nanoTime();
+
+        try (FileChannel ch = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IllegalStateException("File CSV oltre 2 GB: non supportato.");
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int limit = (int) size;
+
+            int pos = 0;
+            Charset cs;
+            if (limit >= 3 && (buf.get(0) & 0xFF) == 0xEF && (buf.get(1) & 0xFF) == 0xBB && (buf.get(2) & 0xFF) == 0xBF) {
+                cs = StandardCharsets.UTF_8;
+                pos = 3;
+            } else {
+                cs = detectCharset(buf, limit);
+            }
+
+            // header: separatore = carattere più frequente tra ; , TAB
+            int headerEnd = lineEnd(buf, pos, limit);
+            byte delim = detectDelimiter(buf, pos, headerEnd);
+            Line line = new Line();
+            int next = nextLine(buf, pos, limit, delim, line);
+            Cols cols = mapHeader(buf, line, cs);
+            pos = next;
+
+            byte decimal = detectDecimal(buf, pos, limit, delim, cols);
+            int dataStart = pos;
+
+            int cap = Math.max(16, limit / 48);
+            List<ArticleRow> articles = new ArrayList<>(cap);
+            double[][] v = new double[6][cap]; // q, p, cmp, pos, pUsd, cmpUsd
+            int rows = 0, skipped = 0, posComputed = 0;
+            int minFields = cols.max() + 1;
+
+            while (pos < limit) {
+                int lineNo = rows + skipped;
+                pos = nextLine(buf, pos, limit, delim, line);
+                if (line.count == 1 && line.end[0] == line.start[0]) continue; // riga vuota
+                if (line.count < minFields) {
+                    skipped++;
+                    continue;
+                }
+
+                String articolo = normalizeSpaces(text(buf, line, cols.articolo, cs));
+                String cat = normalizeSpaces(text(buf, line, cols.cat, cs)).toUpperCase();
+                if (articolo.isEmpty() || cat.isEmpty() || articolo.toUpperCase().startsWith("PCL")) {
+                    skipped++;
+                    continue;
+                }
+                String categoria = (cols.categoria >= 0) ? text(buf, line, cols.categoria, cs).trim() : "";
+
+                int n = articles.size();
+                if (n == v[0].length) {
+                    for (int k = 0; k < v.length; k++) v[k] = Arrays.copyOf(v[k], n * 2);
+                }
+                double q = number(buf, line, cols.qty, decimal);
+                double p = number(buf, line, cols.pEur, decimal);
+                double cmp = number(buf, line, cols.cmpEur, decimal);
+                double pUsd = number(buf, line, cols.pUsd, decimal);
+                double cmpUsd = number(buf, line, cols.cmpUsd, decimal);
+                double posRow = number(buf, line, cols.pos, decimal);
+                if (cols.pos < 0) {
+                    posRow = (p - cmp) * q;
+                    posComputed++;
+                }
+                v[0][n] = q;
+                v[1][n] = p;
+                v[2][n] = cmp;
+                v[3][n] = posRow;
+                v[4][n] = pUsd;
+                v[5][n] = cmpUsd;
+
+                articles.add(new ArticleRow(cat, articolo, categoria, lineNo,
+                        cols.qty, cols.pEur, cols.pUsd, cols.cmpEur, cols.cmpUsd, cols.pos,
+                        pUsd > 0, cmpUsd > 0));
+                rows++;
+            }
+
+            RicaviSnapshot snap = sorted(articles, v);
+
+            log.info("CSV {}: {} articoli, {} righe scartate, separatore '{}', decimali '{}', {} ({} ms)",
+                    csv.getName(), Unbox.box(rows), Unbox.box(skipped), delim == '\t' ? "TAB" : String.valueOf((char) delim),
+                    String.valueOf((char) decimal), cs.name(), Unbox.box((System.nanoTime() - t0) / 1_000_000L));
+            if (posComputed > 0) log.info("CSV {}: colonna POS assente, calcolata come (P - CMP) x Q", csv.getName());
+
+            ev.end();
+            if (ev.shouldCommit()) {
+                ev.sheet = csv.getName();
+                ev.rowsScanned = rows + skipped;
+                ev.articlesFound = rows;
+                ev.commit();
+            }
+            if (dataStart >= limit || rows == 0) {
+                throw new IllegalStateException("Nessun articolo valido nel file CSV.");
+            }
+            return snap;
+        }
+    }
+
+    // ===========================
+    // Header / formato
+    // ===========================
+
+    private static Cols mapHeader(ByteBuffer buf, Line header, Charset cs) {
+        Cols c = new Cols();
+        for (int i = 0; i < header.count; i++) {
+            String h = headerKey(text(buf, header, i, cs));
+            if (h.equals("cat") && c.cat < 0) c.cat = i;
+            else if (h.equals("articolo") && c.articolo < 0) c.articolo = i;
+            else if (h.equals("categoria") && c.categoria < 0) c.categoria = i;
+            else if (h.startsWith("quantit") && c.qty < 0) c.qty = i;
+            else if (h.startsWith("pmedioeur") && c.pEur < 0) c.pEur = i;
+            else if (h.startsWith("pmediousd") && c.pUsd < 0) c.pUsd = i;
+            else if (h.startsWith("cmpmedioeur") && c.cmpEur < 0) c.cmpEur = i;
+            else if (h.startsWith("cmpmediousd") && c.cmpUsd < 0) c.cmpUsd = i;
+            else if (h.equals("pos")) c.pos = i; // l'ultima, come in Excel
+        }
+        if (c.cat < 0 || c.articolo < 0 || c.qty < 0 || (c.pEur < 0 && c.cmpEur < 0)) {
+            throw new IllegalStateException(
+                    "Header CSV: servono almeno Cat, Articolo, Quantità e P medio (€/kg) o CMP medio (€/kg).");
+        }
+        return c;
+    }
+
+    /** "P medio (€/kg)" -> "pmedioeur/kg": minuscolo, senza spazi/parentesi, valute per esteso. */
+    private static String headerKey(String h) {
+        StringBuilder sb = new StringBuilder(h.length() + 4);
+        for (char ch : h.toLowerCase().toCharArray()) {
+            if (ch == '€') sb.append("eur");
+            else if (ch == '$') sb.append("usd");
+            else if (ch != ' ' && ch != '(' && ch != ')' && ch != '\u00A0') sb.append(ch);
+        }
+        return sb.toString();
+    }
+
+    /** UTF-8 se l'inizio del file è UTF-8 valido, altrimenti Windows-1252 (export Excel/ERP su Windows). */
+    private static Charset detectCharset(ByteBuffer buf, int limit) {
+        ByteBuffer head = buf.duplicate();
+        head.position(0).limit(Math.min(limit, SNIFF_BYTES));
+        try {
+            StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(head);
+            return StandardCharsets.UTF_8;
+        } catch (CharacterCodingException ex) {
+            // può capitare anche troncando un carattere multi-byte a SNIFF_BYTES: in quel caso resta corretto
+            // per i caratteri ASCII (header e numeri), si perdono solo gli accenti
+            return Charset.isSupported("windows-1252") ? Charset.forName("windows-1252") : StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    private static byte detectDelimiter(ByteBuffer buf, int from, int to) {
+        int semi = 0, comma = 0, tab = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buf.get(i);
+            if (b == ';') semi++;
+            else if (b == ',') comma++;
+            else if (b == '\t') tab++;
+        }
+        if (tab > semi && tab > comma) return '\t';
+        return (comma > semi) ? (byte) ',' : (byte) ';';
+    }
+
+    /** ',' se nelle prime righe un campo numerico contiene una virgola (e il separatore non è ','). */
+    private static byte detectDecimal(ByteBuffer buf, int pos, int limit, byte delim, Cols cols) {
+        if (delim == ',') return '.';
+        int[] numeric = {cols.qty, cols.pEur, cols.pUsd, cols.cmpEur, cols.cmpUsd, cols.pos};
+        Line line = new Line();
+        for (int r = 0; r < SNIFF_ROWS && pos < limit; r++) {
+            pos = nextLine(buf, pos, limit, delim, line);
+            for (int c : numeric) {
+                if (c < 0 || c >= line.count) continue;
+                for (int i = line.start[c]; i < line.end[c]; i++) {
+                    if (buf.get(i) == ',') return ',';
+                }
+            }
+        }
+        return '.';
+    }
+
+    // ===========================
+    // Righe / campi
+    // ===========================
+
+    private static int lineEnd(ByteBuffer buf, int pos, int limit) {
+        while (pos < limit && buf.get(pos) != '\n' && buf.get(pos) != '\r') pos++;
+        return pos;
+    }
+
+    /**
+     * Divide la riga che inizia in pos nei suoi campi (rispettando le virgolette, anche su più righe).
+     * Restituisce la posizione dell'inizio della riga successiva.
+     */
+    private static int nextLine(ByteBuffer buf, int pos, int limit, byte delim, Line line) {
+        line.count = 0;
+        int i = pos;
+        while (true) {
+            if (i < limit && buf.get(i) == '"') {
+                int s = ++i;
+                while (i < limit) {
+                    if (buf.get(i) == '"') {
+                        if (i + 1 < limit && buf.get(i + 1) == '"') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                line.add(s, i, true);
+                if (i < limit) i++; // virgolette di chiusura
+                while (i < limit && buf.get(i) != delim && buf.get(i) != '\n' && buf.get(i) != '\r') i++;
+            } else {
+                int s = i;
+                while (i < limit && buf.get(i) != delim && buf.get(i) != '\n' && buf.get(i) != '\r') i++;
+                line.add(s, i, false);
+            }
+            if (i >= limit) return limit;
+            byte b = buf.get(i);
+            if (b == delim) {
+                i++;
+                continue;
+            }
+            // fine riga: \n, \r o \r\n
+            i++;
+            if (b == '\r' && i < limit && buf.get(i) == '\n') i++;
+            return i;
+        }
+    }
+
+    private static String text(ByteBuffer buf, Line line, int col, Charset cs) {
+        if (col < 0 || col >= line.count) return "";
+        int s = line.start[col], e = line.end[col];
+        byte[] b = new byte[e - s];
+        for (int i = 0; i < b.length; i++) b[i] = buf.get(s + i);
+        String out = new String(b, cs);
+        return line.quoted[col] ? out.replace("\"\"", "\"") : out;
+    }
+
+    /** Campo numerico; vuoto o non numerico = 0 (come readNumeric sul foglio). */
+    private static double number(ByteBuffer buf, Line line, int col, byte decimal) {
+        if (col < 0 || col >= line.count) return 0.0;
+        double v = parseNumber(buf, line.start[col], line.end[col], decimal);
+        return (v == v) ? v : 0.0;
+    }
+
+    /**
+     * Numero direttamente dai byte: segno, cifre, separatore decimale, migliaia ignorate.
+     * Fino a 15 cifre significative: mantissa intera / 10^decimali, entrambi esatti in double, quindi
+     * stesso risultato di Double.parseDouble;
+     * oltre, o con esponente, si passa da String. NaN se vuoto o non numerico.
+     */
+    static double parseNumber(ByteBuffer buf, int s, int e, byte decimal) {
+        while (s < e && isBlank(buf.get(s))) s++;
+        while (e > s && isBlank(buf.get(e - 1))) e--;
+        if (s == e) return Double.NaN;
+
+        byte thousands = (decimal == ',') ? (byte) '.' : (byte) ',';
+        boolean neg = false;
+        int i = s;
+        if (buf.get(i) == '-' || buf.get(i) == '+') {
+            neg = buf.get(i) == '-';
+            i++;
+        }
+        long m = 0;
+        int digits = 0, scale = 0;
+        boolean frac = false;
+        for (; i < e; i++) {
+            byte b = buf.get(i);
+            if (b >= '0' && b <= '9') {
+                if (digits == 15) return parseSlow(buf, s, e, decimal);
+                m = m * 10 + (b - '0');
+                if (m > 0 || frac) digits++;
+                if (frac) scale++;
+            } else if (b == decimal && !frac) {
+                frac = true;
+            } else if ((b == thousands || b == '\'') && !frac) {
+                // separatore migliaia
+            } else {
+                return parseSlow(buf, s, e, decimal);
+            }
+        }
+        if (m == 0 && !hasDigit(buf, s, e)) return Double.NaN;
+        double v = (scale == 0) ? m : m / POW10[scale];
+        return neg ? -v : v;
+    }
+
+    private static double parseSlow(ByteBuffer buf, int s, int e, byte decimal) {
+        StringBuilder sb = new StringBuilder(e - s);
+        for (int i = s; i < e; i++) {
+            char c = (char) (buf.get(i) & 0xFF);
+            if (c == decimal) sb.append('.');
+            else if (c == '.' || c == ',' || c == '\'') continue; // migliaia
+            else sb.append(c);
+        }
+        try {
+            return Double.parseDouble(sb.toString());
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private static boolean hasDigit(ByteBuffer buf, int s, int e) {
+        for (int i = s; i < e; i++) {
+            byte b = buf.get(i);
+            if (b >= '0' && b <= '9') return true;
+        }
+        return false;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /** Come RicaviExcelService: spazi multipli ridotti a uno (regex solo se serve, è per riga). */
+    private static String normalizeSpaces(String s) {
+        String t = s.trim();
+        for (int i = 1; i < t.length(); i++) {
+            char c = t.charAt(i);
+            if (Character.isWhitespace(c) && (c != ' ' || Character.isWhitespace(t.charAt(i - 1)))) {
+                return t.replaceAll("\\s+", " ");
+            }
+        }
+        return t;
+    }
+
+    // ===========================
+    // Ordinamento (come RicaviExcelService)
+    // ===========================
+
+    private static RicaviSnapshot sorted(List<ArticleRow> articles, double[][] v) {
+        int n = articles.size();
+        String[] keys = new String[n];
+        Integer[] idx = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            idx[i] = i;
+            keys[i] = RicaviExcelService.naturalKey(articles.get(i).getArticolo());
+        }
+        Arrays.sort(idx, Comparator.<Integer, String>comparing(i -> articles.get(i).getCat()).thenComparing(i -> keys[i]));
+
+        List<ArticleRow> outArticles = new ArrayList<>(n);
+        double[][] out = new double[v.length][n];
+        for (int k = 0; k < n; k++) {
+            int i = idx[k];
+            outArticles.add(articles.get(i));
+            for (int c = 0; c < v.length; c++) out[c][k] = v[c][i];
+        }
+        return new RicaviSnapshot(outArticles, out[0], out[1], out[2], out[3], out[4], out[5], Double.NaN);
+    }
+}
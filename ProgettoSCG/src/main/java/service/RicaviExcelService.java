@@ -6,6 +6,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import model.ArticleRow;
+import model.RicaviSnapshot;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.poi.ss.usermodel.*;
@@ -51,73 +52,190 @@ public class RicaviExcelService {
     }
 
     public List<ArticleRow> loadArticles() throws Exception {
-        try (Workbook wb = WorkbookFactory.create(workingCopy)) {
+        try (Workbook wb = WorkbookFactory.create(workingCopy, null, true)) {
 
             Sheet sheet = wb.getSheet("Ricavi");
             if (sheet == null) throw new IllegalStateException("Foglio 'Ricavi' non trovato.");
 
-            DataFormatter fmt = new DataFormatter();
+            return loadArticles(sheet);
+        }
+    }
 
-            int headerRowIdx = findHeaderRow(sheet, fmt);
-            if (headerRowIdx < 0) {
-                throw new IllegalStateException("Header tabella destra non trovato (Cat/Articolo/Quantità/P medio/POS).");
-            }
+    /** Come {@link #loadArticles()} ma su un foglio Ricavi qualsiasi (es. "Ricavi 2023" in un budget multi-periodo). */
+    public List<ArticleRow> loadArticles(Sheet sheet) {
+        JfrEvents.LoadArticles ev = new JfrEvents.LoadArticles();
+        ev.begin();
+        DataFormatter fmt = new DataFormatter();
 
-            Row header = sheet.getRow(headerRowIdx);
-            TableCols cols = detectRightTableColumns(header, fmt);
+        int headerRowIdx = findHeaderRow(sheet, fmt);
+        if (headerRowIdx < 0) {
+            throw new IllegalStateException("Header tabella destra non trovato (Cat/Articolo/Quantità/P medio/POS).");
+        }
 
-            log.info("Tabella DESTRA: riga {} Cat={} Articolo={} Categoria={} Qty={} P€={} P$={} POS={}",
-                    headerRowIdx + 1,
-                    cols.colCat, cols.colArticolo, cols.colCategoria, cols.colQty,
-                    cols.colPmedioEUR, cols.colPmedioUSD, cols.colPos);
+        Row header = sheet.getRow(headerRowIdx);
+        TableCols cols = detectRightTableColumns(header, fmt);
 
-            List<ArticleRow> out = new ArrayList<>();
+        log.info("Tabella DESTRA: riga {} Cat={} Articolo={} Categoria={} Qty={} P€={} P$={} POS={}",
+                headerRowIdx + 1,
+                cols.colCat, cols.colArticolo, cols.colCategoria, cols.colQty,
+                cols.colPmedioEUR, cols.colPmedioUSD, cols.colPos);
 
-            for (int r = headerRowIdx + 1; r <= sheet.getLastRowNum(); r++) {
-                Row row = sheet.getRow(r);
-                if (row == null) continue;
+        List<ArticleRow> out = new ArrayList<>();
 
-                String articoloRaw = fmt.formatCellValue(row.getCell(cols.colArticolo)).trim();
-                if (articoloRaw.isEmpty()) continue;
+        for (int r = headerRowIdx + 1; r <= sheet.getLastRowNum(); r++) {
+            Row row = sheet.getRow(r);
+            if (row == null) continue;
 
-                String articoloNorm = normalizeSpaces(articoloRaw);
-                String up = articoloNorm.toUpperCase();
+            String articoloRaw = fmt.formatCellValue(row.getCell(cols.colArticolo)).trim();
+            if (articoloRaw.isEmpty()) continue;
 
-                // Escludo PCL sempre
-                if (up.startsWith("PCL")) continue;
+            String articoloNorm = normalizeSpaces(articoloRaw);
+            String up = articoloNorm.toUpperCase();
 
-                // Classifico SOLO in base all'articolo (robusto)
-                String exposedCat = classifyExposedCat(articoloNorm);
-                if (exposedCat == null) continue;
+            // Escludo PCL sempre
+            if (up.startsWith("PCL")) continue;
 
-                String categoria = fmt.formatCellValue(row.getCell(cols.colCategoria)).trim();
+            // Classifico SOLO in base all'articolo (robusto)
+            String exposedCat = classifyExposedCat(articoloNorm);
+            if (exposedCat == null) continue;
 
-                out.add(new ArticleRow(
-                        exposedCat,
-                        articoloNorm,
-                        categoria,
-                        r,
-                        cols.colQty,
-                        cols.colPmedioEUR,
-                        cols.colPmedioUSD,
-                        cols.colCMPmedioEUR,
-                        cols.colCMPmedioUSD,
-                        cols.colPos
-                ));
+            String categoria = fmt.formatCellValue(row.getCell(cols.colCategoria)).trim();
 
-            }
+            boolean priceUSD = isUsdInput(row, cols.colPmedioUSD, cols.colPmedioEUR);
+            boolean cmpUSD = isUsdInput(row, cols.colCMPmedioUSD, cols.colCMPmedioEUR);
+
+            out.add(new ArticleRow(
+                    exposedCat,
+                    articoloNorm,
+                    categoria,
+                    r,
+                    cols.colQty,
+                    cols.colPmedioEUR,
+                    cols.colPmedioUSD,
+                    cols.colCMPmedioEUR,
+                    cols.colCMPmedioUSD,
+                    cols.colPos,
+                    priceUSD,
+                    cmpUSD
+            ));
+
+        }
+
+        // Ordine naturale: MP -> PFP -> PFV -> PFA, poi numerico
+        out.sort(Comparator
+                .comparing(ArticleRow::getCat)
+                .thenComparing(a -> naturalKey(a.getArticolo()))
+        );
 
-            // Ordine naturale: MP -> PFP -> PFV -> PFA, poi numerico
-            out.sort(Comparator
-                    .comparing(ArticleRow::getCat)
-                    .thenComparing(a -> naturalKey(a.getArticolo()))
-            );
+        log.info("Articoli caricati (filtrati): {}", out.size());
+
+        ev.end();
+        if (ev.shouldCommit()) {
+            ev.sheet = sheet.getSheetName();
+            ev.rowsScanned = Math.max(0, sheet.getLastRowNum() - headerRowIdx);
+            ev.articlesFound = out.size();
+            ev.commit();
+        }
+        return out;
+    }
+
+    /**
+     * Legge in un colpo solo i valori base (Q, P€, CMP€, POS) degli articoli indicati
+     * + MOL del CE Budget, e li restituisce come snapshot in memoria.
+     * Solo lettura: la working copy non viene modificata. Le letture aprono il file read-only: aperto
+     * READ_WRITE, POI alla chiusura lo riscriverebbe (non in modo atomico), anche da un thread in background.
+     */
+    public RicaviSnapshot loadSnapshot(List<ArticleRow> articles) throws Exception {
+        try (Workbook wb = WorkbookFactory.create(workingCopy, null, true)) {
+
+            Sheet sheet = wb.getSheet("Ricavi");
+            if (sheet == null) throw new IllegalStateException("Foglio 'Ricavi' non trovato.");
+
+            FormulaEvaluator eval = wb.getCreationHelper().createFormulaEvaluator();
+            double mol0 = new CeBudgetService().readMol(wb, eval);
+
+            return readSnapshot(sheet, eval, articles, mol0);
+        }
+    }
 
-            log.info("Articoli caricati (filtrati): {}", out.size());
-            return out;
+    /**
+     * Articoli + valori base in una sola apertura del workbook (caricamento iniziale / reset).
+     * Gli articoli sono in {@link RicaviSnapshot#getArticles()}.
+     */
+    public RicaviSnapshot loadBaseSnapshot() throws Exception {
+        try (Workbook wb = WorkbookFactory.create(workingCopy, null, true)) {
+            return readBaseSnapshot(wb);
         }
     }
 
+    /** Come {@link #loadBaseSnapshot()} su un workbook già aperto (es. working copy appena aggiornata). */
+    public RicaviSnapshot readBaseSnapshot(Workbook wb) throws Exception {
+        Sheet sheet = wb.getSheet("Ricavi");
+        if (sheet == null) throw new IllegalStateException("Foglio 'Ricavi' non trovato.");
+
+        List<ArticleRow> articles = loadArticles(sheet);
+        FormulaEvaluator eval = wb.getCreationHelper().createFormulaEvaluator();
+        double mol0 = new CeBudgetService().readMol(wb, eval);
+
+        return readSnapshot(sheet, eval, articles, mol0);
+    }
+
+    /** Snapshot da un foglio Ricavi già aperto (il chiamante gestisce workbook e MOL base). */
+    public RicaviSnapshot readSnapshot(Sheet sheet, FormulaEvaluator eval, List<ArticleRow> articles, double mol0) {
+        int n = articles.size();
+        double[] q0 = new double[n];
+        double[] p0 = new double[n];
+        double[] cmp0 = new double[n];
+        double[] pos0 = new double[n];
+        double[] pUsd0 = new double[n];
+        double[] cmpUsd0 = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            ArticleRow a = articles.get(i);
+            int r = a.getRowIndex();
+            q0[i] = readNumeric(sheet, eval, r, a.getColQty());
+            p0[i] = (a.getColPmedioEUR() >= 0) ? readNumeric(sheet, eval, r, a.getColPmedioEUR()) : 0.0;
+            cmp0[i] = (a.getColCMPmedioEUR() >= 0) ? readNumeric(sheet, eval, r, a.getColCMPmedioEUR()) : 0.0;
+            pos0[i] = readNumeric(sheet, eval, r, a.getColPos());
+            if (a.getColPmedioUSD() != null) pUsd0[i] = readNumeric(sheet, eval, r, a.getColPmedioUSD());
+            if (a.getColCMPmedioUSD() != null) cmpUsd0[i] = readNumeric(sheet, eval, r, a.getColCMPmedioUSD());
+        }
+
+        log.info("Snapshot '{}': {} articoli, MOL base={}", sheet.getSheetName(), n, mol0);
+        return new RicaviSnapshot(new ArrayList<>(articles), q0, p0, cmp0, pos0, pUsd0, cmpUsd0, mol0);
+    }
+
+    /**
+     * Snapshot con gli stessi articoli di snap, rileggendo solo quelli sulle righe indicate
+     * (aggiornamento dall'originale: il resto non è cambiato).
+     */
+    public RicaviSnapshot refreshRows(Sheet sheet, FormulaEvaluator eval, RicaviSnapshot snap, Set<Integer> rows, double mol0) {
+        int n = snap.size();
+        double[] q0 = snap.getQ0().clone();
+        double[] p0 = snap.getP0().clone();
+        double[] cmp0 = snap.getCmp0().clone();
+        double[] pos0 = snap.getPos0().clone();
+        double[] pUsd0 = snap.getPUsd0().clone();
+        double[] cmpUsd0 = snap.getCmpUsd0().clone();
+
+        int read = 0;
+        for (int i = 0; i < n; i++) {
+            ArticleRow a = snap.getArticle(i);
+            int r = a.getRowIndex();
+            if (!rows.contains(r)) continue;
+            q0[i] = readNumeric(sheet, eval, r, a.getColQty());
+            p0[i] = (a.getColPmedioEUR() >= 0) ? readNumeric(sheet, eval, r, a.getColPmedioEUR()) : 0.0;
+            cmp0[i] = (a.getColCMPmedioEUR() >= 0) ? readNumeric(sheet, eval, r, a.getColCMPmedioEUR()) : 0.0;
+            pos0[i] = readNumeric(sheet, eval, r, a.getColPos());
+            pUsd0[i] = (a.getColPmedioUSD() != null) ? readNumeric(sheet, eval, r, a.getColPmedioUSD()) : 0.0;
+            cmpUsd0[i] = (a.getColCMPmedioUSD() != null) ? readNumeric(sheet, eval, r, a.getColCMPmedioUSD()) : 0.0;
+            read++;
+        }
+
+        log.info("Snapshot '{}': {} articoli su {} riletti, MOL base={}", sheet.getSheetName(), read, n, mol0);
+        return new RicaviSnapshot(new ArrayList<>(snap.getArticles()), q0, p0, cmp0, pos0, pUsd0, cmpUsd0, mol0);
+    }
+
     // ===========================
     // Lettura/scrittura numerica
     // ===========================
@@ -145,12 +263,43 @@ public class RicaviExcelService {
         return 0.0;
     }
 
-    public void writeNumeric(Sheet sheet, int rowIdx, int colIdx, double value) {
+    /** Numero di celle formula del workbook (= formule ricalcolate da ogni evaluateAll). */
+    public static int countFormulaCells(Workbook wb) {
+        int n = 0;
+        for (int i = 0; i < wb.getNumberOfSheets(); i++) {
+            for (Row row : wb.getSheetAt(i)) {
+                for (Cell cell : row) {
+                    if (cell.getCellType() == CellType.FORMULA) n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /** Scrive un valore numerico (riga/cella create se mancano) e restituisce la cella scritta. */
+    public Cell writeNumeric(Sheet sheet, int rowIdx, int colIdx, double value) {
         Row row = sheet.getRow(rowIdx);
         if (row == null) row = sheet.createRow(rowIdx);
 
         Cell c = row.getCell(colIdx, Row.MissingCellPolicy.CREATE_NULL_AS_BLANK);
         c.setCellValue(value);
+        return c;
+    }
+
+    /**
+     * Un articolo è "in dollari" se la colonna $/kg contiene un numero inserito a mano (> 0)
+     * e la colonna €/kg corrispondente è una formula (cioè deriva dal $ tramite il cambio).
+     */
+    private boolean isUsdInput(Row row, int colUsd, int colEur) {
+        if (colUsd < 0 || colEur < 0) return false;
+
+        Cell usd = row.getCell(colUsd, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
+        Cell eur = row.getCell(colEur, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
+        if (usd == null || eur == null) return false;
+
+        return usd.getCellType() == CellType.NUMERIC
+                && usd.getNumericCellValue() > 0
+                && eur.getCellType() == CellType.FORMULA;
     }
 
     // ===========================
@@ -285,7 +434,7 @@ public class RicaviExcelService {
         return s.trim().replaceAll("\\s+", " ");
     }
 
-    private String naturalKey(String articolo) {
+    static String naturalKey(String articolo) {
         String up = articolo.toUpperCase().trim();
 
         Matcher m = MP_PATTERN.matcher(up);
@@ -0,0 +1,67 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import model.RicaviSnapshot;
+import model.SensitivityEntry;
+import model.SensitivityEntry.Lever;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Analisi di sensitività: per ogni articolo e per ogni leva (Q, P, CMP) calcola
+ * l'impatto di ±x% su POS totale e MOL, in un solo passaggio sui valori base.
+ *
+ * Essendo POS = (P - CMP) * Q lineare in ciascuna leva (a parità delle altre),
+ * l'impatto è in forma chiusa: nessun workbook da aprire o riscrivere.
+ */
+public class SensitivityService {
+
+    private static final Logger log = LogManager.getLogger(SensitivityService.class);
+
+    /** Restituisce tutte le voci (articoli x leve) ordinate per impatto decrescente sul POS. */
+    public List<SensitivityEntry> run(RicaviSnapshot snap, double percent) {
+        if (snap == null || snap.size() == 0) throw new IllegalStateException("Nessun articolo da analizzare.");
+        if (!(percent > 0)) throw new IllegalArgumentException("Percentuale non valida: " + percent);
+
+        long t0 = System.nanoTime();
+
+        final int n = snap.size();
+        final double x = percent / 100.0;
+        final double[] q0 = snap.getQ0();
+        final double[] p0 = snap.getP0();
+        final double[] cmp0 = snap.getCmp0();
+        final boolean[] mp = snap.getMp();
+
+        List<SensitivityEntry> out = new ArrayList<>(n * 3);
+
+        for (int i = 0; i < n; i++) {
+            double fatt = q0[i] * p0[i];
+            double cogs = q0[i] * cmp0[i];
+            double pos = fatt - cogs;
+
+            // Q ±x: fatturato e costo scalano insieme
+            double dPosQ = pos * x;
+            double dMolQ = SimulationKernel.molDelta(mp[i], fatt * x, cogs * x);
+
+            // P ±x: cambia solo il fatturato
+            double dPosP = fatt * x;
+            double dMolP = SimulationKernel.molDelta(mp[i], fatt * x, 0.0);
+
+            // CMP ±x: cambia solo il costo
+            double dPosC = -cogs * x;
+            double dMolC = SimulationKernel.molDelta(mp[i], 0.0, cogs * x);
+
+            out.add(new SensitivityEntry(snap.getArticle(i), Lever.QUANTITY, -dPosQ, dPosQ, -dMolQ, dMolQ));
+            out.add(new SensitivityEntry(snap.getArticle(i), Lever.PRICE, -dPosP, dPosP, -dMolP, dMolP));
+            out.add(new SensitivityEntry(snap.getArticle(i), Lever.CMP, -dPosC, dPosC, -dMolC, dMolC));
+        }
+
+        out.sort(Comparator.comparingDouble(SensitivityEntry::getSwing).reversed());
+
+        log.info("Sensitività ±{}%: {} voci in {} µs", percent, out.size(), (System.nanoTime() - t0) / 1000L);
+        return out;
+    }
+}
@@ -0,0 +1,56 @@
+package service;
+
+/**
+ * Formule "pure" della simulazione (nessun accesso a Excel).
+ * Stesse regole usate dal MainController sulla working copy:
+ * - POS = (P - CMP) * Q
+ * - Compensazione QUANTITÀ: P* = CMP0 + POS0 / Q1
+ * - Compensazione PREZZO:   Q* = POS0 / (P1 - CMP0)
+ * - Impatto CE: articoli MP muovono Ricavi MP e Acquisto MP, gli altri solo Ricavi PF
+ * - Elasticità costante: Q1 = Q0 * (P1 / P0)^ε
+ */
+public final class SimulationKernel {
+
+    private SimulationKernel() {}
+
+    public static double pos(double q, double p, double cmp) {
+        return (p - cmp) * q;
+    }
+
+    public static double applyPercent(double base, double percent) {
+        return base * (1.0 + percent / 100.0);
+    }
+
+    /** Delta MOL generato dalla variazione di fatturato/costo di un articolo. */
+    public static double molDelta(boolean mp, double dFatt, double dCogs) {
+        return mp ? (dFatt - dCogs) : dFatt;
+    }
+
+    /** Prezzo che riporta il POS a pos0 con quantità q1 (leva QUANTITÀ). */
+    public static double compensatePrice(double cmp0, double pos0, double q1) {
+        if (Math.abs(q1) < 1e-12) throw new IllegalStateException("Compensazione impossibile: Q1 = 0.");
+        return cmp0 + (pos0 / q1);
+    }
+
+    /** Quantità che riporta il POS a pos0 con prezzo p1 (leva PREZZO). */
+    public static double compensateQuantity(double cmp0, double pos0, double p1) {
+        double denom = (p1 - cmp0);
+        if (Math.abs(denom) < 1e-12) throw new IllegalStateException("Compensazione impossibile: P1 - CMP0 = 0.");
+        return pos0 / denom;
+    }
+
+    /** Quantità implicita nel nuovo prezzo p1 con elasticità costante eps. */
+    public static double elasticQuantity(double q0, double p0, double p1, double eps) {
+        if (!(p0 > 0)) throw new IllegalStateException("Elasticità: P0 non valido (" + p0 + ").");
+        if (p1 < 0) throw new IllegalStateException("Elasticità: P1 negativo (" + p1 + ").");
+        return q0 * Math.pow(p1 / p0, eps);
+    }
+
+    /** Prezzo implicito nella nuova quantità q1 con elasticità costante eps (inversa della precedente). */
+    public static double elasticPrice(double q0, double p0, double q1, double eps) {
+        if (Math.abs(eps) < 1e-12) throw new IllegalStateException("Elasticità nulla: il prezzo non è determinabile dalla quantità.");
+        if (!(q0 > 0)) throw new IllegalStateException("Elasticità: Q0 non valida (" + q0 + ").");
+        if (q1 < 0) throw new IllegalStateException("Elasticità: Q1 negativa (" + q1 + ").");
+        return p0 * Math.pow(q1 / q0, 1.0 / eps);
+    }
+}
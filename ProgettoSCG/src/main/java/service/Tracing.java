@@ -0,0 +1,81 @@
+package service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.ThreadContext;
+
+/**
+ * Marker di log comuni + traccia dettagliata "a richiesta" per una singola simulazione.
+ *
+ * La traccia non cambia i livelli dei logger: mette {@link #CONTEXT_KEY} nel ThreadContext del thread
+ * che simula e il DynamicThresholdFilter di log4j2.xml lascia passare TRACE/DEBUG solo per quel thread
+ * e solo finché lo {@link Scope} è aperto. Fuori dallo scope i log di dettaglio costano un confronto.
+ */
+public final class Tracing {
+
+    private static final Logger log = LogManager.getLogger(Tracing.class);
+
+    private Tracing() {}
+
+    /** Chiave del ThreadContext letta dal filtro in log4j2.xml. */
+    public static final String CONTEXT_KEY = "scg.trace";
+    private static final String CONTEXT_ON = "on";
+
+    // ===========================
+    // Marker
+    // ===========================
+
+    /** Dettaglio per articolo/riga nei cicli di simulazione (mai su console). */
+    public static final Marker ROW = MarkerManager.getMarker("RIGA");
+    /** Apertura/salvataggio file. */
+    public static final Marker IO = MarkerManager.getMarker("IO");
+    /** Riepiloghi tempi/contatori (vedi MetricsService). */
+    public static final Marker METRICS = MarkerManager.getMarker("METRICHE");
+
+    // ===========================
+    // Traccia dettagliata
+    // ===========================
+
+    private static final AtomicBoolean armed = new AtomicBoolean();
+
+    /** Prenota (o annulla) la traccia dettagliata per la prossima simulazione. */
+    public static void arm(boolean on) {
+        armed.set(on);
+        log.info("Traccia dettagliata {}", on ? "prenotata per la prossima simulazione" : "annullata");
+    }
+
+    public static boolean isArmed() {
+        return armed.get();
+    }
+
+    /** Scope di una simulazione: se la traccia era prenotata la consuma e la attiva sul thread corrente. */
+    public static Scope begin(String action) {
+        if (!armed.getAndSet(false)) return Scope.NONE;
+        ThreadContext.put(CONTEXT_KEY, CONTEXT_ON);
+        log.info("Traccia dettagliata attiva per '{}'", action);
+        return new Scope(true);
+    }
+
+    public static final class Scope implements AutoCloseable {
+        static final Scope NONE = new Scope(false);
+
+        private final boolean active;
+
+        private Scope(boolean active) {
+            this.active = active;
+        }
+
+        public boolean isActive() { return active; }
+
+        @Override
+        public void close() {
+            if (!active) return;
+            ThreadContext.remove(CONTEXT_KEY);
+            log.info("Traccia dettagliata terminata");
+        }
+    }
+}
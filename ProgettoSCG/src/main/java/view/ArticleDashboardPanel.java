@@ -0,0 +1,188 @@
+package view;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartPanel;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.renderer.category.BarRenderer;
+import org.jfree.chart.renderer.category.StandardBarPainter;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.jfree.data.category.SlidingCategoryDataset;
+
+import javax.swing.*;
+import java.awt.*;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dashboard: tutti gli articoli simulati in un solo grafico (POS0 / POS1 / POS* a barre raggruppate).
+ *
+ * Un unico dataset condiviso, aggiornato sul posto (nessun grafico ricreato).
+ * Il grafico mostra una pagina di {@link #PAGE_SIZE} articoli alla volta
+ * (SlidingCategoryDataset) e la scrollbar sposta la finestra: il costo di repaint
+ * dipende dalla pagina, non dal numero di articoli.
+ */
+public class ArticleDashboardPanel extends JPanel {
+
+    public static final String S_POS0 = "POS0";
+    public static final String S_POS1 = "POS1";
+    public static final String S_POS_STAR = "POS*";
+
+    /** Articoli visibili per pagina. */
+    private static final int PAGE_SIZE = 40;
+
+    private final DefaultCategoryDataset data = new DefaultCategoryDataset();
+    private final SlidingCategoryDataset window = new SlidingCategoryDataset(data, 0, PAGE_SIZE);
+
+    private final JScrollBar pager = new JScrollBar(JScrollBar.HORIZONTAL, 0, PAGE_SIZE, 0, PAGE_SIZE);
+    private final JLabel pageInfo = new JLabel(" ");
+
+    public ArticleDashboardPanel() {
+        super(new BorderLayout());
+
+        JFreeChart chart = ChartFactory.createBarChart(
+                "POS per articolo",
+                "Articolo",
+                "POS",
+                window,
+                PlotOrientation.VERTICAL,
+                true, true, false
+        );
+        configure(chart);
+
+        ChartPanel cp = new ChartPanel(chart, true);
+        cp.setPreferredSize(new Dimension(760, 420));
+        cp.setMouseWheelEnabled(false);
+        cp.setMouseZoomable(false);
+        cp.setPopupMenu(null);
+        cp.setMinimumDrawWidth(0);
+        cp.setMinimumDrawHeight(0);
+        cp.setMaximumDrawWidth(4000);
+        cp.setMaximumDrawHeight(3000);
+
+        pager.setUnitIncrement(1);
+        pager.setBlockIncrement(PAGE_SIZE);
+        pager.addAdjustmentListener(e -> {
+            if (window.getFirstCategoryIndex() != e.getValue()) {
+                window.setFirstCategoryIndex(e.getValue());
+                updatePageInfo();
+            }
+        });
+
+        JPanel south = new JPanel(new BorderLayout(8, 0));
+        south.setBorder(BorderFactory.createEmptyBorder(4, 6, 4, 6));
+        south.add(pager, BorderLayout.CENTER);
+        south.add(pageInfo, BorderLayout.EAST);
+
+        add(cp, BorderLayout.CENTER);
+        add(south, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Aggiorna (o aggiunge) i valori degli articoli indicati: chiave articolo -> {POS0, POS1, POS*}.
+     * POS* = NaN se l'articolo non è compensato. Un solo evento di modifica per tutto il batch.
+     */
+    public void update(Map<String, double[]> values) {
+        data.setNotify(false);
+        try {
+            for (Map.Entry<String, double[]> e : values.entrySet()) {
+                double[] v = e.getValue();
+                data.setValue(v[0], S_POS0, e.getKey());
+                data.setValue(v[1], S_POS1, e.getKey());
+                data.setValue(Double.isNaN(v[2]) ? null : v[2], S_POS_STAR, e.getKey());
+            }
+        } finally {
+            data.setNotify(true);
+        }
+        refreshWindow();
+    }
+
+    /** Rimuove gli articoli non presenti in keep (un solo evento di modifica). */
+    public void retain(Set<String> keep) {
+        data.setNotify(false);
+        try {
+            List<?> keys = data.getColumnKeys();
+            for (Object col : new ArrayList<>(keys)) {   // copia: removeColumn modifica le chiavi
+                if (!keep.contains(col.toString())) data.removeColumn((Comparable<?>) col);
+            }
+        } finally {
+            data.setNotify(true);
+        }
+        refreshWindow();
+    }
+
+    public void clear() {
+        data.clear();
+        refreshWindow();
+    }
+
+    public int getArticleCount() {
+        return data.getColumnCount();
+    }
+
+    /** Porta la pagina sull'articolo indicato (se presente). */
+    public void showArticle(String key) {
+        int idx = data.getColumnIndex(key);
+        if (idx >= 0) pager.setValue(Math.max(0, idx - PAGE_SIZE / 2));
+    }
+
+    private void refreshWindow() {
+        int n = data.getColumnCount();
+        int first = Math.min(window.getFirstCategoryIndex(), Math.max(0, n - PAGE_SIZE));
+
+        pager.setValues(first, Math.min(PAGE_SIZE, Math.max(n, 1)), 0, Math.max(n, 1));
+        pager.setVisible(n > PAGE_SIZE);
+
+        // SlidingCategoryDataset non ascolta il dataset sottostante: forzo l'evento sulla finestra
+        window.setFirstCategoryIndex(first);
+        updatePageInfo();
+    }
+
+    private void updatePageInfo() {
+        int n = data.getColumnCount();
+        if (n == 0) {
+            pageInfo.setText(" ");
+            return;
+        }
+        int from = window.getFirstCategoryIndex() + 1;
+        int to = Math.min(n, window.getFirstCategoryIndex() + PAGE_SIZE);
+        pageInfo.setText("Articoli " + from + "–" + to + " di " + n);
+    }
+
+    private static void configure(JFreeChart chart) {
+        chart.setBackgroundPaint(Color.WHITE);
+
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setRangeGridlinePaint(new Color(220, 220, 220));
+        plot.setRangeGridlinesVisible(true);
+        plot.setDomainGridlinesVisible(false);
+
+        CategoryAxis domain = plot.getDomainAxis();
+        domain.setTickLabelFont(new Font("SansSerif", Font.PLAIN, 10));
+        domain.setCategoryLabelPositions(CategoryLabelPositions.createUpRotationLabelPositions(Math.PI / 4.0));
+        domain.setMaximumCategoryLabelWidthRatio(0.6f);
+        domain.setCategoryMargin(0.15);
+
+        NumberAxis range = (NumberAxis) plot.getRangeAxis();
+        range.setNumberFormatOverride(new DecimalFormat("#,##0"));
+        range.setAutoRangeIncludesZero(true);
+
+        // niente etichette sulle barre: con 40 articoli x 3 serie sarebbero illeggibili (e costose)
+        BarRenderer r = (BarRenderer) plot.getRenderer();
+        r.setShadowVisible(false);
+        r.setBarPainter(new StandardBarPainter());
+        r.setDefaultItemLabelsVisible(false);
+        r.setItemMargin(0.0);
+        r.setSeriesPaint(0, new Color(120, 144, 156));
+        r.setSeriesPaint(1, new Color(30, 136, 229));
+        r.setSeriesPaint(2, new Color(67, 160, 71));
+    }
+}
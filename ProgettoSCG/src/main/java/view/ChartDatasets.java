@@ -0,0 +1,35 @@
+package view;
+
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.data.category.DefaultCategoryDataset;
+
+/**
+ * Aggiornamento "sul posto" dei dataset dei grafici: il grafico resta lo stesso
+ * e riceve un solo evento di modifica per batch (quindi un solo ridisegno).
+ */
+public final class ChartDatasets {
+
+    private ChartDatasets() {}
+
+    /**
+     * Copia in target tutti i valori di source (stesse serie/categorie).
+     * Se la struttura cambia (es. compensazione attivata/disattivata) target viene svuotato e ricaricato,
+     * sempre dentro lo stesso batch.
+     */
+    public static void replaceValues(DefaultCategoryDataset target, CategoryDataset source) {
+        target.setNotify(false);
+        try {
+            if (!target.getRowKeys().equals(source.getRowKeys())
+                    || !target.getColumnKeys().equals(source.getColumnKeys())) {
+                target.clear();
+            }
+            for (int r = 0; r < source.getRowCount(); r++) {
+                for (int c = 0; c < source.getColumnCount(); c++) {
+                    target.setValue(source.getValue(r, c), source.getRowKey(r), source.getColumnKey(c));
+                }
+            }
+        } finally {
+            target.setNotify(true); // un solo DatasetChangeEvent
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package view;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.labels.CategoryItemLabelGenerator;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.renderer.category.BarPainter;
+import org.jfree.chart.renderer.category.BarRenderer;
+import org.jfree.chart.renderer.category.LineAndShapeRenderer;
+import org.jfree.chart.renderer.category.StandardBarPainter;
+import org.jfree.data.category.CategoryDataset;
+import service.FormatService;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Stroke;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+
+/**
+ * Stile comune dei grafici a categorie (prima duplicato in MainController e PremioCompController)
+ * + costruzione dei grafici articolo / CE usati sia a video sia nell'export su file.
+ *
+ * Font, colori, stroke e painter sono immutabili e condivisi; il formato dell'asse
+ * (DecimalFormat, non thread-safe) e i generatori di etichette sono creati per grafico,
+ * così grafici diversi possono essere renderizzati in parallelo.
+ */
+public final class ChartStyles {
+
+    private ChartStyles() {}
+
+    private static final Color GRID = new Color(220, 220, 220);
+    private static final Color PLOT_BG = new Color(250, 250, 250);
+
+    private static final Font AXIS_FONT = new Font("SansSerif", Font.PLAIN, 12);
+    private static final Font TICK_FONT = new Font("SansSerif", Font.PLAIN, 11);
+    private static final Font ITEM_FONT = new Font("SansSerif", Font.PLAIN, 11);
+
+    private static final Stroke LINE_STROKE = new BasicStroke(2.0f);
+    private static final BarPainter BAR_PAINTER = new StandardBarPainter();
+
+    private static final CategoryLabelPositions ROTATED =
+            CategoryLabelPositions.createUpRotationLabelPositions(Math.PI / 8.0);
+
+    // ===========================
+    // Costruzione grafici
+    // ===========================
+
+    /** Grafico a barre della tab articolo (POS o variazione Q/P). */
+    public static JFreeChart articleChart(String title, String valueAxis, CategoryDataset ds, boolean integerValues) {
+        JFreeChart chart = ChartFactory.createBarChart(title, "Scenario", valueAxis, ds);
+        configureCategoryChart(chart, integerValues);
+        applySeriesLabelFormatting(chart);
+        return chart;
+    }
+
+    /** Grafico a linee delle voci CE Budget. */
+    public static JFreeChart ceBudgetChart(String title, CategoryDataset ds) {
+        JFreeChart chart = ChartFactory.createLineChart(
+                title,
+                "Voce",
+                "Valore",
+                ds,
+                PlotOrientation.VERTICAL,
+                true,
+                true,
+                false
+        );
+        configureCategoryChart(chart, true);
+        return chart;
+    }
+
+    // ===========================
+    // Stile
+    // ===========================
+
+    public static void configureCategoryChart(JFreeChart chart, boolean integerValues) {
+        CategoryPlot plot = chart.getCategoryPlot();
+
+        // --- estetica base
+        chart.setBackgroundPaint(Color.WHITE);
+        plot.setBackgroundPaint(PLOT_BG);
+        plot.setOutlineVisible(false);
+        plot.setRangeGridlinePaint(GRID);
+        plot.setDomainGridlinePaint(GRID);
+        plot.setRangeGridlinesVisible(true);
+        plot.setDomainGridlinesVisible(true);
+
+        // --- font
+        CategoryAxis domain = plot.getDomainAxis();
+        domain.setLabelFont(AXIS_FONT);
+        domain.setTickLabelFont(TICK_FONT);
+
+        int cols = (plot.getDataset() != null) ? plot.getDataset().getColumnCount() : 0;
+        domain.setCategoryLabelPositions(cols > 4 ? ROTATED : CategoryLabelPositions.STANDARD);
+
+        // ✅ niente ".000": interi "#,##0", altrimenti max 3 decimali senza zeri finali
+        NumberFormat fmt = valueFormat(integerValues);
+
+        // --- asse Y
+        if (plot.getRangeAxis() instanceof NumberAxis) {
+            NumberAxis range = (NumberAxis) plot.getRangeAxis();
+            range.setLabelFont(AXIS_FONT);
+            range.setTickLabelFont(TICK_FONT);
+
+            range.setNumberFormatOverride(fmt);
+            range.setAutoRangeIncludesZero(true);
+
+            if (integerValues) {
+                range.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
+            }
+
+            range.setUpperMargin(0.15);
+            range.setLowerMargin(0.10);
+        }
+
+        // --- renderer: Bar chart
+        if (plot.getRenderer() instanceof BarRenderer) {
+            BarRenderer r = (BarRenderer) plot.getRenderer();
+            r.setShadowVisible(false);
+            r.setBarPainter(BAR_PAINTER);
+
+            r.setDefaultItemLabelsVisible(true);
+            r.setDefaultItemLabelGenerator(valueLabels(integerValues));
+            r.setDefaultItemLabelFont(ITEM_FONT);
+        }
+
+        // --- renderer: Line chart
+        if (plot.getRenderer() instanceof LineAndShapeRenderer) {
+            LineAndShapeRenderer r = (LineAndShapeRenderer) plot.getRenderer();
+
+            r.setDefaultShapesVisible(true);
+            r.setDefaultItemLabelsVisible(true);
+            r.setDefaultItemLabelGenerator(valueLabels(integerValues));
+            r.setDefaultStroke(LINE_STROKE);
+        }
+    }
+
+    /**
+     * Etichette per serie: quantità intere, prezzi/CMP con 3 decimali (come nei dettagli), resto intero.
+     */
+    public static void applySeriesLabelFormatting(JFreeChart chart) {
+        if (chart == null) return;
+        if (!(chart.getPlot() instanceof CategoryPlot)) return;
+
+        CategoryPlot plot = (CategoryPlot) chart.getPlot();
+        if (plot.getRenderer() == null) return;
+
+        plot.getRenderer().setDefaultItemLabelsVisible(true);
+        plot.getRenderer().setDefaultItemLabelGenerator(new CachedLabelGenerator() {
+            @Override
+            String format(Comparable<?> rowKey, double v) {
+                String series = (rowKey == null) ? "" : rowKey.toString().toLowerCase();
+
+                // Prezzi / CMP -> 3 decimali fissi (come nei dettagli: 1,640)
+                if (!series.contains("quant") && !series.contains("(kg)")
+                        && (series.contains("p medio") || series.contains("€/kg") || series.contains("cmp"))) {
+                    return FormatService.dec3(v);
+                }
+
+                // Quantità, POS, fatturato, cogs, ecc. -> intero
+                return FormatService.integer(v);
+            }
+        });
+    }
+
+    /** Etichette valore ("#,##0" oppure max 3 decimali senza zeri finali); un'istanza per grafico. */
+    public static CategoryItemLabelGenerator valueLabels(boolean integerValues) {
+        return new CachedLabelGenerator() {
+            @Override
+            String format(Comparable<?> rowKey, double v) {
+                return integerValues ? FormatService.integer(v) : FormatService.compact(v, 3);
+            }
+        };
+    }
+
+    private static NumberFormat valueFormat(boolean integerValues) {
+        if (integerValues) return new DecimalFormat("#,##0");
+
+        DecimalFormat df = new DecimalFormat("#,##0.###");
+        df.setMinimumFractionDigits(0);
+        df.setMaximumFractionDigits(3);
+        return df;
+    }
+
+    /**
+     * Generatore con cache per cella (riga, colonna): a ogni repaint la stringa viene riformattata
+     * solo se valore o serie sono cambiati. Un'istanza per grafico (disegnato da un thread alla volta).
+     */
+    private abstract static class CachedLabelGenerator implements CategoryItemLabelGenerator {
+
+        private static final class Cell {
+            Comparable<?> rowKey;
+            double value;
+            String label;
+        }
+
+        private Cell[][] cells = new Cell[0][];
+
+        abstract String format(Comparable<?> rowKey, double v);
+
+        @Override
+        public String generateLabel(CategoryDataset dataset, int row, int column) {
+            if (dataset == null) return "";
+            Number n = dataset.getValue(row, column);
+            if (n == null) return "";
+
+            Comparable<?> rowKey = dataset.getRowKey(row);
+            double v = n.doubleValue();
+            Cell c = cell(row, column);
+            if (c.label == null || Double.compare(c.value, v) != 0 || !java.util.Objects.equals(c.rowKey, rowKey)) {
+                c.rowKey = rowKey;
+                c.value = v;
+                c.label = format(rowKey, v);
+            }
+            return c.label;
+        }
+
+        private Cell cell(int row, int column) {
+            if (row >= cells.length) cells = java.util.Arrays.copyOf(cells, row + 1);
+            Cell[] r = cells[row];
+            if (r == null || column >= r.length) {
+                r = (r == null) ? new Cell[column + 1] : java.util.Arrays.copyOf(r, column + 1);
+                cells[row] = r;
+            }
+            if (r[column] == null) r[column] = new Cell();
+            return r[column];
+        }
+
+        @Override
+        public String generateRowLabel(CategoryDataset dataset, int row) {
+            return dataset.getRowKey(row).toString();
+        }
+
+        @Override
+        public String generateColumnLabel(CategoryDataset dataset, int column) {
+            return dataset.getColumnKey(column).toString();
+        }
+    }
+}
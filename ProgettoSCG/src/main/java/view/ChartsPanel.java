@@ -5,9 +5,23 @@ import org.jfree.chart.JFreeChart;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Pannello grafici a tab.
+ *
+ * Le tab sono "pigre": ognuna conserva solo come costruire il grafico (di norma un dataset leggero
+ * + una factory). Il grafico viene costruito la prima volta che la tab è mostrata e poi riusato;
+ * al massimo {@link #MAX_RENDERED} tab restano renderizzate (LRU), le altre rilasciano ChartPanel
+ * e back-buffer. Ricostruire il grafico a ogni render lascerebbe i grafici vecchi registrati come
+ * listener sul dataset (che vive quanto la tab).
+ */
 public class ChartsPanel extends JPanel {
 
     /** Tab per articolo (MP||MP1, MP||MP1 - VAR, ...). */
@@ -22,10 +36,25 @@ public class ChartsPanel extends JPanel {
     // --- tuning “zoom”/scroll: più piccoli = meno scroll su schermi normali
     private static final Dimension CHART_PREF = new Dimension(760, 420);
 
+    /** Numero massimo di tab con ChartPanel vivo. */
+    private static final int MAX_RENDERED = 6;
+
+    /** Tab renderizzate, in ordine di ultimo accesso (la più vecchia viene rilasciata). */
+    private final LinkedHashMap<String, TabState> rendered = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean renderPending = false;
+
+    /**
+     * Dashboard unica per tutti gli articoli (tab fissa, fuori dall'LRU).
+     * Creata al primo aggiornamento: all'avvio nessun grafico JFreeChart.
+     */
+    private static final String DASHBOARD_KEY = "Dashboard";
+    private ArticleDashboardPanel dashboard;
+
 
     public ChartsPanel() {
         super(new BorderLayout());
         tabs.setBorder(BorderFactory.createTitledBorder("Grafici"));
+        tabs.addChangeListener(e -> scheduleRender());
         add(tabs, BorderLayout.CENTER);
     }
 
@@ -35,12 +64,15 @@ public class ChartsPanel extends JPanel {
 
     /** Imposta il grafico POS nella tab "<articleKey>" */
     public void setPosChart(String articleKey, JFreeChart chart) {
+        setPosChart(articleKey, () -> chart);
+    }
+
+    /** Come sopra, ma il grafico viene costruito solo quando la tab è mostrata. */
+    public void setPosChart(String articleKey, Supplier<JFreeChart> chartFactory) {
         final String key = normalizeKey(articleKey);
         SwingUtilities.invokeLater(() -> {
             TabState t = getOrCreateTab(key, "POS");
-            t.chartPanel.setChart(chart);
-            t.chartPanel.revalidate();
-            t.chartPanel.repaint();
+            setFactory(key, t, chartFactory);
             setActiveTab(key);
         });
     }
@@ -50,13 +82,16 @@ public class ChartsPanel extends JPanel {
      * (variazione quantità/prezzo)
      */
     public void setCompChart(String articleKey, JFreeChart chart) {
+        setCompChart(articleKey, () -> chart);
+    }
+
+    /** Come sopra, ma il grafico viene costruito solo quando la tab è mostrata. */
+    public void setCompChart(String articleKey, Supplier<JFreeChart> chartFactory) {
         final String base = normalizeKey(articleKey);
         final String key = base + " - VAR";
         SwingUtilities.invokeLater(() -> {
             TabState t = getOrCreateTab(key, "Variazione (Quantità / Prezzo)");
-            t.chartPanel.setChart(chart);
-            t.chartPanel.revalidate();
-            t.chartPanel.repaint();
+            setFactory(key, t, chartFactory);
             // NON cambio tab automaticamente se vuoi restare su POS:
             // se invece vuoi andare sulla VAR appena simuli, scommenta:
             // setActiveTab(key);
@@ -68,6 +103,19 @@ public class ChartsPanel extends JPanel {
         SwingUtilities.invokeLater(() -> setActiveTab(key));
     }
 
+    /**
+     * Grafico in una tab con chiave libera (es. "Monte Carlo – POS").
+     * Usato per analisi non legate a un singolo articolo.
+     */
+    public void setNamedChart(String tabKey, String titleBorder, JFreeChart chart) {
+        final String key = normalizeKey(tabKey);
+        SwingUtilities.invokeLater(() -> {
+            TabState t = getOrCreateTab(key, titleBorder);
+            setFactory(key, t, () -> chart);
+            setActiveTab(key);
+        });
+    }
+
     // ============================================================
     // API "vecchia" (compatibilità) usata dal MainController
     // ============================================================
@@ -84,6 +132,61 @@ public class ChartsPanel extends JPanel {
         setCompChart(labelTab, compChart);
     }
 
+    /**
+     * Tab articolo (POS + VAR) con grafici costruiti on-demand:
+     * finché la tab non viene aperta resta in memoria solo ciò che le factory catturano (i dataset).
+     */
+    public void setArticleCharts(String labelTab, Supplier<JFreeChart> posChart, Supplier<JFreeChart> compChart) {
+        setPosChart(labelTab, posChart);
+        setCompChart(labelTab, compChart);
+    }
+
+    /**
+     * Aggiorna sul posto la dashboard articoli (chiave -> {POS0, POS1, POS*}) e la porta
+     * in prima posizione tra le tab; select = true la rende anche la tab attiva.
+     */
+    public void updateDashboard(Map<String, double[]> values, boolean select) {
+        SwingUtilities.invokeLater(() -> {
+            if (dashboard == null) dashboard = new ArticleDashboardPanel();
+            dashboard.update(values);
+            int idx = tabs.indexOfComponent(dashboard);
+            if (idx < 0) {
+                tabs.insertTab(DASHBOARD_KEY, null, dashboard, "Tutti gli articoli simulati", 0);
+                idx = 0;
+            }
+            if (select) {
+                tabs.setSelectedIndex(idx);
+                lastActiveKey = null;
+            }
+        });
+    }
+
+    /**
+     * Tiene solo le tab degli articoli indicati (POS e VAR) e la dashboard, ridotta agli stessi articoli;
+     * le altre tab (articoli non più simulati, analisi precedenti) vengono chiuse.
+     */
+    public void retainArticleCharts(Collection<String> articleKeys) {
+        final Set<String> keep = new HashSet<>();
+        for (String k : articleKeys) {
+            String key = normalizeKey(k);
+            keep.add(key);
+            keep.add(key + " - VAR");
+        }
+        SwingUtilities.invokeLater(() -> {
+            Iterator<Map.Entry<String, TabState>> it = byKey.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, TabState> e = it.next();
+                if (keep.contains(e.getKey())) continue;
+                release(e.getValue());
+                rendered.remove(e.getKey());
+                tabs.remove(e.getValue().root);
+                it.remove();
+            }
+            if (dashboard != null) dashboard.retain(keep);
+            if (lastActiveKey != null && !byKey.containsKey(lastActiveKey)) lastActiveKey = null;
+        });
+    }
+
     /** Vecchia API: pulisce tutte le tab articolo. */
     public void clearArticleCharts() {
         clearAll();
@@ -93,9 +196,7 @@ public class ChartsPanel extends JPanel {
     public void setPosChart(JFreeChart chart) {
         SwingUtilities.invokeLater(() -> {
             TabState t = getOrCreateActiveTab();
-            t.chartPanel.setChart(chart);
-            t.chartPanel.revalidate();
-            t.chartPanel.repaint();
+            setFactory(lastActiveKey, t, () -> chart);
         });
     }
 
@@ -103,9 +204,7 @@ public class ChartsPanel extends JPanel {
     public void setCompChart(JFreeChart chart) {
         SwingUtilities.invokeLater(() -> {
             TabState t = getOrCreateActiveTab();
-            t.chartPanel.setChart(chart);
-            t.chartPanel.revalidate();
-            t.chartPanel.repaint();
+            setFactory(lastActiveKey, t, () -> chart);
         });
     }
 
@@ -123,7 +222,10 @@ public class ChartsPanel extends JPanel {
 
     public void clearAll() {
         SwingUtilities.invokeLater(() -> {
+            for (TabState t : rendered.values()) release(t);
+            rendered.clear();
             byKey.clear();
+            if (dashboard != null) dashboard.clear();
             tabs.removeAll();
             lastActiveKey = null;
             revalidate();
@@ -137,6 +239,80 @@ public class ChartsPanel extends JPanel {
         int idx = tabs.indexOfComponent(t.root);
         if (idx >= 0) tabs.setSelectedIndex(idx);
         lastActiveKey = key;
+        scheduleRender();
+    }
+
+    // ============================================================
+    // Rendering pigro + LRU
+    // ============================================================
+
+    /** Nuova factory per la tab: se la tab è già renderizzata il grafico viene aggiornato subito. */
+    private void setFactory(String key, TabState t, Supplier<JFreeChart> factory) {
+        t.chartFactory = factory;
+        t.chart = null;
+        if (t.chartPanel != null) {
+            t.chartPanel.setChart(chartOf(t));
+            t.chartPanel.revalidate();
+            t.chartPanel.repaint();
+        } else if (tabs.getSelectedComponent() == t.root) {
+            scheduleRender();
+        }
+    }
+
+    /**
+     * Render della tab selezionata al giro successivo dell'EDT: durante un batch
+     * (es. 56 articoli) le selezioni intermedie non costruiscono grafici.
+     */
+    private void scheduleRender() {
+        if (renderPending) return;
+        renderPending = true;
+        SwingUtilities.invokeLater(() -> {
+            renderPending = false;
+            renderSelectedTab();
+        });
+    }
+
+    private void renderSelectedTab() {
+        Component comp = tabs.getSelectedComponent();
+        if (comp == null) return;
+        for (Map.Entry<String, TabState> e : byKey.entrySet()) {
+            if (e.getValue().root == comp) {
+                render(e.getKey(), e.getValue());
+                return;
+            }
+        }
+    }
+
+    private void render(String key, TabState t) {
+        if (t.chartPanel == null) {
+            ChartPanel cp = new ChartPanel(chartOf(t), false);
+            setupChartPanel(cp);
+            t.chartPanel = cp;
+            t.scroll.setViewportView(cp);
+        }
+        rendered.put(key, t);
+
+        Iterator<Map.Entry<String, TabState>> it = rendered.entrySet().iterator();
+        while (rendered.size() > MAX_RENDERED && it.hasNext()) {
+            TabState eldest = it.next().getValue();
+            if (eldest == t) continue;
+            release(eldest);
+            it.remove();
+        }
+    }
+
+    /** Grafico della tab: costruito dalla factory una volta sola, poi riusato. */
+    private static JFreeChart chartOf(TabState t) {
+        if (t.chart == null && t.chartFactory != null) t.chart = t.chartFactory.get();
+        return t.chart;
+    }
+
+    /** Rilascia ChartPanel e back-buffer (il grafico resta nella tab, senza ChartPanel in ascolto). */
+    private void release(TabState t) {
+        if (t.chartPanel == null) return;
+        t.chartPanel.setChart(null);
+        t.scroll.setViewportView(new JPanel());
+        t.chartPanel = null;
     }
 
     private TabState getOrCreateActiveTab() {
@@ -164,10 +340,13 @@ public class ChartsPanel extends JPanel {
 
         TabState existing = byKey.get(key);
         if (existing != null) {
-            // ✅ difensivo: se per qualche motivo chartPanel è null, ricreo UI
-            if (existing.chartPanel == null || existing.root == null) {
+            // ✅ difensivo: se per qualche motivo la UI della tab manca, la ricreo
+            if (existing.root == null || existing.scroll == null) {
                 TabState rebuilt = buildTab(key, titleBorder);
+                rebuilt.chartFactory = existing.chartFactory;
+                rebuilt.chart = existing.chart;
                 byKey.put(key, rebuilt);
+                rendered.remove(key);
 
                 int oldIdx = tabs.indexOfTab(key);
                 if (oldIdx >= 0) tabs.setComponentAt(oldIdx, rebuilt.root);
@@ -191,13 +370,9 @@ public class ChartsPanel extends JPanel {
     private TabState buildTab(String key, String titleBorder) {
         TabState t = new TabState();
 
-        // ChartPanel
-        ChartPanel cp = new ChartPanel(null, false);
-        setupChartPanel(cp);
-        t.chartPanel = cp;
-
         // ScrollPane che permette sia orizzontale sia verticale “as needed”
-        JScrollPane sp = new JScrollPane(cp,
+        // (il ChartPanel entra nel viewport solo quando la tab viene mostrata)
+        JScrollPane sp = new JScrollPane(new JPanel(),
                 ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED,
                 ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         sp.getVerticalScrollBar().setUnitIncrement(16);
@@ -208,6 +383,7 @@ public class ChartsPanel extends JPanel {
         root.add(sp, BorderLayout.CENTER);
 
         t.root = root;
+        t.scroll = sp;
         return t;
     }
 
@@ -242,6 +418,9 @@ public class ChartsPanel extends JPanel {
 
     private static class TabState {
         JComponent root;
-        ChartPanel chartPanel;
+        JScrollPane scroll;
+        ChartPanel chartPanel;               // null = tab non renderizzata
+        Supplier<JFreeChart> chartFactory;   // come costruire il grafico
+        JFreeChart chart;                    // null = non ancora costruito
     }
 }
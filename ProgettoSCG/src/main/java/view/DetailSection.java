@@ -0,0 +1,79 @@
+package view;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Una sezione della vista "Dettagli" come dati strutturati (titolo + righe etichetta/valore).
+ * I numeri restano double: la formattazione avviene solo quando la sezione viene mostrata
+ * (vedi {@link DetailsHtml}), quindi le sezioni fuori pagina non costano nulla.
+ */
+public class DetailSection {
+
+    /** Formato numerico di una riga. */
+    public enum Fmt { INT, DEC2, DEC3 }
+
+    /** Riga: valore numerico (fmt + unità) oppure testo/HTML già pronto. */
+    static final class Item {
+        final String label;
+        final double value;
+        final Fmt fmt;
+        final String unit;
+        final String text;   // != null: riga di testo
+        final boolean group; // true: sotto-titolo (label) con nota (text)
+        final boolean line;  // true: riga HTML libera (text) sopra la tabella
+
+        Item(String label, double value, Fmt fmt, String unit, String text, boolean group, boolean line) {
+            this.label = label;
+            this.value = value;
+            this.fmt = fmt;
+            this.unit = unit;
+            this.text = text;
+            this.group = group;
+            this.line = line;
+        }
+    }
+
+    private final String title;
+    private final String tag;
+    private final List<Item> items = new ArrayList<>();
+
+    /** tag (es. categoria) è mostrato tra parentesi quadre accanto al titolo; può essere null. */
+    public DetailSection(String title, String tag) {
+        this.title = title;
+        this.tag = tag;
+    }
+
+    public String getTitle() { return title; }
+    public String getTag() { return tag; }
+
+    List<Item> items() { return Collections.unmodifiableList(items); }
+
+    /** Riga HTML libera sotto il titolo (es. leva/percentuale). */
+    public DetailSection line(String html) {
+        items.add(new Item(null, Double.NaN, null, null, html, false, true));
+        return this;
+    }
+
+    /** Sotto-titolo: chiude la tabella corrente e ne apre una nuova. note può essere null. */
+    public DetailSection group(String title, String note) {
+        items.add(new Item(title, Double.NaN, null, null, note, true, false));
+        return this;
+    }
+
+    public DetailSection number(String label, double value, Fmt fmt) {
+        return number(label, value, fmt, null);
+    }
+
+    /** Riga numerica; unit (es. "kg", "€/kg", "%") viene aggiunta dopo il valore. */
+    public DetailSection number(String label, double value, Fmt fmt, String unit) {
+        items.add(new Item(label, value, fmt, unit, null, false, false));
+        return this;
+    }
+
+    public DetailSection text(String label, String text) {
+        items.add(new Item(label, Double.NaN, null, null, (text == null) ? "" : text, false, false));
+        return this;
+    }
+}
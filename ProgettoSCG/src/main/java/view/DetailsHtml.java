@@ -0,0 +1,81 @@
+package view;
+
+import service.FormatService;
+
+/**
+ * Template HTML della vista "Dettagli" (prima duplicato in MainController e PremioCompController).
+ * I numeri passano da {@link FormatService}: nessun DecimalFormat condiviso.
+ */
+public final class DetailsHtml {
+
+    private DetailsHtml() {}
+
+    public static final String OPEN = "<html><body style='font-family:SansSerif;font-size:12px;'>";
+    public static final String CLOSE = "</body></html>";
+    public static final String HR = "<hr style='border:none;border-top:1px solid #ddd;margin:10px 0;' />";
+    public static final String HR_LIGHT = "<hr style='border:none;border-top:1px solid #eee;margin:10px 0;' />";
+
+    private static final String TABLE_OPEN = "<table style='border-collapse:collapse;width:100%;margin-top:6px;'>";
+    private static final String TABLE_CLOSE = "</table>";
+
+    /** Riga standard etichetta / valore (allineato a destra). */
+    public static String row(String k, String v) {
+        StringBuilder sb = new StringBuilder(160);
+        appendRow(sb, k, v);
+        return sb.toString();
+    }
+
+    public static String format(double v, DetailSection.Fmt fmt) {
+        if (Double.isNaN(v)) return "–";
+        switch (fmt) {
+            case DEC2: return FormatService.dec2(v);
+            case DEC3: return FormatService.dec3(v);
+            default: return FormatService.integer(v);
+        }
+    }
+
+    /** Titolo di pagina + eventuale sottotitolo grigio. */
+    static void appendHeader(StringBuilder sb, String title, String subtitle) {
+        if (title != null) sb.append("<div style='font-size:13px;'><b>").append(title).append("</b></div>");
+        if (subtitle != null) sb.append("<div style='color:#666;'>").append(subtitle).append("</div>");
+        sb.append(HR);
+    }
+
+    static void appendSection(StringBuilder sb, DetailSection s) {
+        sb.append("<div style='font-size:13px;'><b>").append(s.getTitle()).append("</b>");
+        if (s.getTag() != null) sb.append(" <span style='color:#666;'>[").append(s.getTag()).append("]</span>");
+        sb.append("</div>");
+
+        boolean tableOpen = false;
+        for (DetailSection.Item it : s.items()) {
+            if (it.line) {
+                if (tableOpen) { sb.append(TABLE_CLOSE); tableOpen = false; }
+                sb.append("<div>").append(it.text).append("</div>");
+            } else if (it.group) {
+                if (tableOpen) { sb.append(TABLE_CLOSE); tableOpen = false; }
+                sb.append("<div style='margin-top:8px;'><b>").append(it.label).append("</b>");
+                if (it.text != null) sb.append(" <span style='color:#666;'>").append(it.text).append("</span>");
+                sb.append("</div>");
+            } else {
+                if (!tableOpen) { sb.append(TABLE_OPEN); tableOpen = true; }
+                if (it.text != null) {
+                    appendRow(sb, it.label, it.text);
+                } else {
+                    String v = format(it.value, it.fmt);
+                    if (it.unit != null && !Double.isNaN(it.value)) v = "%".equals(it.unit) ? v + "%" : v + " " + it.unit;
+                    appendRow(sb, it.label, v);
+                }
+            }
+        }
+        if (tableOpen) sb.append(TABLE_CLOSE);
+        sb.append(HR_LIGHT);
+    }
+
+    private static void appendRow(StringBuilder sb, String k, String v) {
+        sb.append("<tr><td style='padding:4px 8px;border-top:1px solid #eee;color:#333;white-space:nowrap;'><b>")
+                .append(k == null ? "" : k)
+                .append("</b></td><td style='padding:4px 8px;border-top:1px solid #eee;color:#111;text-align:right;'>")
+                .append(v == null ? "" : v)
+                .append("</td></tr>");
+    }
+}
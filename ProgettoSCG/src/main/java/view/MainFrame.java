@@ -8,10 +8,12 @@ import javax.swing.*;
 public class MainFrame extends JFrame {
 
     private JButton btnLoadExcel;
+    private JButton btnImportCsv;
     private JButton btnExit;
     private JButton btnOpenWorkingCopy;
     private JButton btnShowCeBudget;
     private JButton btnResetExcel;
+    private JButton btnDiagnostics;
 
     private JLabel lblStatus;
     private JLabel lblFileName;
@@ -57,6 +59,7 @@ public class MainFrame extends JFrame {
         JPanel statusRight = new JPanel();
 
         btnLoadExcel = new JButton("Carica Excel");
+        btnImportCsv = new JButton("Importa CSV");
         btnOpenWorkingCopy = new JButton("Apri copia");
         btnOpenWorkingCopy.setEnabled(false);
 
@@ -66,13 +69,17 @@ public class MainFrame extends JFrame {
         btnShowCeBudget = new JButton("CE Budget 2022");
         btnShowCeBudget.setEnabled(false);
 
+        btnDiagnostics = new JButton("Diagnostica");
+
         btnExit = new JButton("Esci");
 
         // ✅ qui NON c'è più "Compensa Premio"
         statusRight.add(btnLoadExcel);
+        statusRight.add(btnImportCsv);
         statusRight.add(btnOpenWorkingCopy);
         statusRight.add(btnResetExcel);
         statusRight.add(btnShowCeBudget);
+        statusRight.add(btnDiagnostics);
         statusRight.add(btnExit);
 
         status.add(statusLeft, BorderLayout.CENTER);
@@ -105,9 +112,11 @@ public class MainFrame extends JFrame {
 
     public JButton getBtnResetExcel() { return btnResetExcel; }
     public JButton getBtnLoadExcel() { return btnLoadExcel; }
+    public JButton getBtnImportCsv() { return btnImportCsv; }
     public JButton getBtnExit() { return btnExit; }
     public JButton getBtnOpenWorkingCopy() { return btnOpenWorkingCopy; }
     public JButton getBtnShowCeBudget() { return btnShowCeBudget; }
+    public JButton getBtnDiagnostics() { return btnDiagnostics; }
 
     public SimulationControlsPanel getControlsPanel() { return controlsPanel; }
     public ChartsPanel getChartsPanel() { return chartsPanel; }
@@ -121,6 +130,16 @@ public class MainFrame extends JFrame {
         btnResetExcel.setEnabled(true);
     }
 
+    /** Articoli importati da CSV: solo in memoria, niente working copy né CE. */
+    public void setCsvImported(String fileName) {
+        lblStatus.setText("Dati importati da CSV (solo in memoria)");
+        lblFileName.setText("File: " + fileName);
+
+        btnOpenWorkingCopy.setEnabled(false);
+        btnShowCeBudget.setEnabled(false);
+        btnResetExcel.setEnabled(false);
+    }
+
     public void setExcelNotLoaded() {
         lblStatus.setText("Excel non caricato");
         lblFileName.setText("Seleziona un file .xlsx per iniziare");
@@ -0,0 +1,120 @@
+package view;
+
+import service.FormatService;
+import service.MetricsService;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Diagnostica: latenze per azione/fase (media, percentili, massimo) e contatori.
+ * Solo vista: i pulsanti sono collegati dal controller.
+ */
+public class MetricsDialog extends JDialog {
+
+    private static final String[] PHASE_COLS = {"Azione", "Fase", "N", "Media ms", "P50 ms", "P90 ms", "P99 ms", "Max ms"};
+    private static final String[] COUNTER_COLS = {"Azione", "Contatore", "Totale", "Ultimo", "Azioni"};
+
+    private final DefaultTableModel phaseModel = readOnlyModel(PHASE_COLS);
+    private final DefaultTableModel counterModel = readOnlyModel(COUNTER_COLS);
+
+    private final JButton btnRefresh = new JButton("Aggiorna");
+    private final JButton btnReset = new JButton("Azzera");
+    private final JButton btnExport = new JButton("Esporta JSON…");
+    private final JButton btnClose = new JButton("Chiudi");
+    private final JButton btnRecord = new JButton();
+    private final JCheckBox chkTrace = new JCheckBox("Traccia dettagliata alla prossima simulazione (file di log)");
+
+    public MetricsDialog(Window owner) {
+        super(owner, "Diagnostica – tempi e contatori", ModalityType.MODELESS);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        setLayout(new BorderLayout(8, 8));
+
+        JTable phases = table(phaseModel, 2);
+        JTable counts = table(counterModel, 2);
+
+        JScrollPane phaseScroll = new JScrollPane(phases);
+        phaseScroll.setBorder(BorderFactory.createTitledBorder("Tempi per fase"));
+        JScrollPane counterScroll = new JScrollPane(counts);
+        counterScroll.setBorder(BorderFactory.createTitledBorder("Contatori"));
+
+        JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, phaseScroll, counterScroll);
+        split.setResizeWeight(0.65);
+        split.setBorder(BorderFactory.createEmptyBorder(8, 8, 0, 8));
+
+        btnClose.addActionListener(e -> dispose());
+
+        JPanel actions = new JPanel(new FlowLayout(FlowLayout.RIGHT, 8, 6));
+        actions.add(btnRecord);
+        actions.add(btnRefresh);
+        actions.add(btnReset);
+        actions.add(btnExport);
+        actions.add(btnClose);
+
+        JPanel south = new JPanel(new BorderLayout());
+        chkTrace.setBorder(BorderFactory.createEmptyBorder(0, 8, 0, 0));
+        south.add(chkTrace, BorderLayout.WEST);
+        south.add(actions, BorderLayout.EAST);
+
+        add(split, BorderLayout.CENTER);
+        add(south, BorderLayout.SOUTH);
+
+        setSize(900, 560);
+        setLocationRelativeTo(owner);
+    }
+
+    public JButton getBtnRefresh() { return btnRefresh; }
+    public JButton getBtnReset() { return btnReset; }
+    public JButton getBtnExport() { return btnExport; }
+    public JCheckBox getChkTrace() { return chkTrace; }
+    public JButton getBtnRecord() { return btnRecord; }
+
+    /** Stato del pulsante di registrazione JFR (avvia / ferma e salva). */
+    public void setRecording(boolean recording, boolean available) {
+        btnRecord.setText(recording ? "Ferma e salva .jfr…" : "Registra sessione (JFR)");
+        btnRecord.setEnabled(available);
+        if (!available) btnRecord.setToolTipText("Java Flight Recorder non disponibile in questa JVM");
+    }
+
+    public void setData(List<MetricsService.PhaseStats> phases, List<MetricsService.CounterStats> counters) {
+        phaseModel.setRowCount(0);
+        for (MetricsService.PhaseStats p : phases) {
+            phaseModel.addRow(new Object[]{p.action, p.phase, FormatService.integer(p.count),
+                    ms(p.meanMs), ms(p.p50Ms), ms(p.p90Ms), ms(p.p99Ms), ms(p.maxMs)});
+        }
+        counterModel.setRowCount(0);
+        for (MetricsService.CounterStats c : counters) {
+            counterModel.addRow(new Object[]{c.action, c.counter, FormatService.integer(c.total),
+                    FormatService.integer(c.last), FormatService.integer(c.actions)});
+        }
+    }
+
+    private static String ms(double v) {
+        return v < 10 ? FormatService.dec2(v) : FormatService.integer(v);
+    }
+
+    private static DefaultTableModel readOnlyModel(String[] cols) {
+        return new DefaultTableModel(cols, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+    }
+
+    /** Tabella con le colonne numeriche (da firstNumeric in poi) allineate a destra. */
+    private static JTable table(DefaultTableModel model, int firstNumeric) {
+        JTable t = new JTable(model);
+        t.setRowHeight(22);
+        t.setFillsViewportHeight(true);
+        DefaultTableCellRenderer right = new DefaultTableCellRenderer();
+        right.setHorizontalAlignment(SwingConstants.RIGHT);
+        for (int c = firstNumeric; c < model.getColumnCount(); c++) {
+            t.getColumnModel().getColumn(c).setCellRenderer(right);
+        }
+        return t;
+    }
+}
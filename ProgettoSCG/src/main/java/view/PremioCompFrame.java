@@ -32,6 +32,13 @@ public class PremioCompFrame extends JFrame {
 
         // ===== Left: controlli =====
         controlsPanel = new SimulationControlsPanel();
+        // analisi Monte Carlo / sensitività solo nella finestra principale
+        controlsPanel.getBtnMonteCarlo().setVisible(false);
+        controlsPanel.getBtnSensitivity().setVisible(false);
+        controlsPanel.getBtnFx().setVisible(false);
+        controlsPanel.getBtnPeriods().setVisible(false);
+        controlsPanel.getBtnExportCharts().setVisible(false);
+        controlsPanel.getChkLive().setVisible(false);
         controlsPanel.setPreferredSize(new Dimension(560, 0));
         controlsPanel.setMinimumSize(new Dimension(520, 0));
 
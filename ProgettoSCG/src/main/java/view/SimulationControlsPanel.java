@@ -5,12 +5,16 @@ import model.SimulationMode;
 
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.TableColumn;
 import java.awt.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 public class SimulationControlsPanel extends JPanel {
 
@@ -28,15 +32,55 @@ public class SimulationControlsPanel extends JPanel {
         }
     }
 
+    /** Etichette leva (stesso ordine di {@link SimulationMode}). */
+    private static final String[] MODE_LABELS = {"QUANTITA", "PREZZO", "PREZZO (elastico)", "QUANTITA (elastica)"};
+
+    static String modeLabel(SimulationMode m) {
+        return MODE_LABELS[m.ordinal()];
+    }
+
+    static SimulationMode modeFromLabel(String label) {
+        String s = String.valueOf(label).trim();
+        for (SimulationMode m : SimulationMode.values()) {
+            if (MODE_LABELS[m.ordinal()].equalsIgnoreCase(s)) return m;
+        }
+        return s.toUpperCase().contains("PREZZ") ? SimulationMode.PRICE : SimulationMode.QUANTITY;
+    }
+
     private JTable table;
     private ArticlesTableModel tableModel;
 
     private JButton btnSelectAll;
     private JButton btnSelectNone;
     private JButton btnSimulate;
+    private JButton btnMonteCarlo;
+    private JButton btnSensitivity;
+    private JButton btnFx;
+    private JButton btnPeriods;
+    private JButton btnExportCharts;
+    private JButton btnResults;
+    private JCheckBox chkLive;
+
+    /** Ascoltatori delle modifiche Leva/%/Compensa (anche a ogni tasto nella cella %). */
+    private final List<Consumer<SimRequest>> liveEditListeners = new CopyOnWriteArrayList<Consumer<SimRequest>>();
 
     private JEditorPane detailsPane;
 
+    /** Sezioni per pagina nei dettagli strutturati: il layout HTML di Swing cresce male col numero di righe. */
+    private static final int DETAILS_PAGE_SIZE = 10;
+
+    private final List<DetailSection> detailSections = new ArrayList<DetailSection>();
+    private String detailsTitle;
+    private String detailsSubtitle;
+    private int detailsPage;
+    private boolean detailsRenderPending;
+    private boolean structuredDetails; // false = HTML libero da setDetails
+
+    private JPanel detailsPager;
+    private JButton btnDetailsPrev;
+    private JButton btnDetailsNext;
+    private JLabel lblDetailsPage;
+
     public SimulationControlsPanel() {
         super(new BorderLayout(10, 10));
         setBorder(BorderFactory.createTitledBorder(
@@ -55,7 +99,7 @@ public class SimulationControlsPanel extends JPanel {
         JPanel tableBlock = new JPanel(new BorderLayout(8, 8));
         tableBlock.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
 
-        tableModel = new ArticlesTableModel();
+        tableModel = new ArticlesTableModel(this::fireLiveEdit);
         table = new JTable(tableModel);
         table.setRowHeight(22);
         table.setFillsViewportHeight(true);
@@ -65,8 +109,18 @@ public class SimulationControlsPanel extends JPanel {
         right.setHorizontalAlignment(SwingConstants.RIGHT);
         table.getColumnModel().getColumn(4).setCellRenderer(right);
 
+        // editor % "live": ogni tasto pubblica il valore provvisorio (la cella si aggiorna solo a fine editing)
+        final JTextField percentField = new JTextField();
+        percentField.setHorizontalAlignment(SwingConstants.RIGHT);
+        percentField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override public void insertUpdate(DocumentEvent e) { onPercentTyped(percentField.getText()); }
+            @Override public void removeUpdate(DocumentEvent e) { onPercentTyped(percentField.getText()); }
+            @Override public void changedUpdate(DocumentEvent e) { }
+        });
+        table.getColumnModel().getColumn(4).setCellEditor(new DefaultCellEditor(percentField));
+
         TableColumn modeCol = table.getColumnModel().getColumn(3);
-        JComboBox<String> modeBox = new JComboBox<String>(new String[]{"QUANTITA", "PREZZO"});
+        JComboBox<String> modeBox = new JComboBox<String>(MODE_LABELS);
         modeCol.setCellEditor(new DefaultCellEditor(modeBox));
 
         JScrollPane tableScroll = new JScrollPane(table,
@@ -81,10 +135,26 @@ public class SimulationControlsPanel extends JPanel {
         btnSelectAll = new JButton("Seleziona tutti");
         btnSelectNone = new JButton("Deseleziona tutti");
         btnSimulate = new JButton("Simula");
+        btnMonteCarlo = new JButton("Monte Carlo…");
+        btnSensitivity = new JButton("Sensitività…");
+        btnFx = new JButton("Cambio €/$…");
+        btnPeriods = new JButton("Periodi…");
+        btnExportCharts = new JButton("Esporta grafici…");
+        btnResults = new JButton("Risultati…");
+        btnResults.setToolTipText("Riepilogo per categoria dei risultati della sessione + export CSV");
+        chkLive = new JCheckBox("Anteprima live");
+        chkLive.setToolTipText("Ricalcola in memoria l'articolo modificato (nessun salvataggio: per salvare premi Simula)");
 
         actions.add(btnSelectAll);
         actions.add(btnSelectNone);
         actions.add(btnSimulate);
+        actions.add(btnMonteCarlo);
+        actions.add(btnSensitivity);
+        actions.add(btnFx);
+        actions.add(btnPeriods);
+        actions.add(btnExportCharts);
+        actions.add(btnResults);
+        actions.add(chkLive);
 
         tableBlock.add(tableScroll, BorderLayout.CENTER);
         tableBlock.add(actions, BorderLayout.SOUTH);
@@ -115,6 +185,18 @@ public class SimulationControlsPanel extends JPanel {
 
         detailsOuter.add(detailsScroll, BorderLayout.CENTER);
 
+        btnDetailsPrev = new JButton("◀");
+        btnDetailsNext = new JButton("▶");
+        lblDetailsPage = new JLabel(" ");
+        btnDetailsPrev.addActionListener(e -> showDetailsPage(detailsPage - 1));
+        btnDetailsNext.addActionListener(e -> showDetailsPage(detailsPage + 1));
+        detailsPager = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 0));
+        detailsPager.add(lblDetailsPage);
+        detailsPager.add(btnDetailsPrev);
+        detailsPager.add(btnDetailsNext);
+        detailsPager.setVisible(false);
+        detailsOuter.add(detailsPager, BorderLayout.SOUTH);
+
         // ====== split verticale ======
         JSplitPane vSplit = new JSplitPane(JSplitPane.VERTICAL_SPLIT, tableBlock, detailsOuter);
         vSplit.setResizeWeight(0.25);   // ✅ 25% tabella / 75% dettagli
@@ -131,6 +213,39 @@ public class SimulationControlsPanel extends JPanel {
     // ===== API =====
 
     public JButton getBtnSimulate() { return btnSimulate; }
+    public JButton getBtnMonteCarlo() { return btnMonteCarlo; }
+    public JButton getBtnSensitivity() { return btnSensitivity; }
+    public JButton getBtnFx() { return btnFx; }
+    public JButton getBtnPeriods() { return btnPeriods; }
+    public JButton getBtnExportCharts() { return btnExportCharts; }
+    public JButton getBtnResults() { return btnResults; }
+    public JCheckBox getChkLive() { return chkLive; }
+
+    public boolean isLiveEnabled() { return chkLive.isSelected(); }
+
+    /** Registra un ascoltatore delle modifiche Leva/%/Compensa (chiamato sull'EDT). */
+    public void addLiveEditListener(Consumer<SimRequest> l) {
+        if (l != null) liveEditListeners.add(l);
+    }
+
+    private void fireLiveEdit(SimRequest req) {
+        for (Consumer<SimRequest> l : liveEditListeners) l.accept(req);
+    }
+
+    /** Testo provvisorio della cella % in editing: se è un numero valido lo pubblico. */
+    private void onPercentTyped(String text) {
+        int viewRow = table.getEditingRow();
+        if (viewRow < 0 || liveEditListeners.isEmpty()) return;
+        String s = (text == null) ? "" : text.trim().replace(",", ".");
+        if (s.isEmpty() || s.equals("-") || s.equals("+")) return;
+        double percent;
+        try {
+            percent = Double.parseDouble(s);
+        } catch (NumberFormatException ex) {
+            return;
+        }
+        fireLiveEdit(tableModel.requestAt(table.convertRowIndexToModel(viewRow), percent));
+    }
 
     public void setArticles(List<ArticleRow> articles) {
         tableModel.setArticles(articles);
@@ -162,12 +277,84 @@ public class SimulationControlsPanel extends JPanel {
         return false;
     }
 
+    /** Dettagli come HTML libero (analisi singole: Monte Carlo, sensitività, ...). */
     public void setDetails(String html) {
         if (html == null) html = "";
+        detailSections.clear();
+        structuredDetails = false;
+        detailsPager.setVisible(false);
         detailsPane.setText(html);
         detailsPane.setCaretPosition(0);
     }
 
+    /** Inizia dettagli strutturati (una sezione per articolo, vedi {@link #appendDetails}). */
+    public void beginDetails(String title, String subtitle) {
+        detailSections.clear();
+        detailsTitle = title;
+        detailsSubtitle = subtitle;
+        detailsPage = 0;
+        structuredDetails = true;
+        scheduleDetailsRender();
+    }
+
+    /**
+     * Aggiunge una sezione man mano che i risultati arrivano: la pagina viene ridisegnata
+     * (al più una volta per giro dell'EDT) solo se la sezione cade nella pagina visibile.
+     */
+    public void appendDetails(DetailSection section) {
+        detailSections.add(section);
+        if ((detailSections.size() - 1) / DETAILS_PAGE_SIZE == detailsPage) {
+            scheduleDetailsRender();
+        } else {
+            updateDetailsPager();
+        }
+    }
+
+    private void scheduleDetailsRender() {
+        if (detailsRenderPending) return;
+        detailsRenderPending = true;
+        SwingUtilities.invokeLater(() -> {
+            detailsRenderPending = false;
+            if (structuredDetails) renderDetailsPage();
+        });
+    }
+
+    private void showDetailsPage(int page) {
+        int pages = detailsPageCount();
+        detailsPage = Math.max(0, Math.min(page, pages - 1));
+        renderDetailsPage();
+    }
+
+    private int detailsPageCount() {
+        return Math.max(1, (detailSections.size() + DETAILS_PAGE_SIZE - 1) / DETAILS_PAGE_SIZE);
+    }
+
+    private void renderDetailsPage() {
+        int from = detailsPage * DETAILS_PAGE_SIZE;
+        int to = Math.min(detailSections.size(), from + DETAILS_PAGE_SIZE);
+
+        StringBuilder html = new StringBuilder(4096);
+        html.append(DetailsHtml.OPEN);
+        DetailsHtml.appendHeader(html, detailsTitle, detailsSubtitle);
+        for (int i = from; i < to; i++) DetailsHtml.appendSection(html, detailSections.get(i));
+        html.append(DetailsHtml.CLOSE);
+
+        detailsPane.setText(html.toString());
+        detailsPane.setCaretPosition(0);
+        updateDetailsPager();
+    }
+
+    private void updateDetailsPager() {
+        int pages = detailsPageCount();
+        detailsPager.setVisible(pages > 1);
+        btnDetailsPrev.setEnabled(detailsPage > 0);
+        btnDetailsNext.setEnabled(detailsPage < pages - 1);
+        int from = detailsPage * DETAILS_PAGE_SIZE + 1;
+        int to = Math.min(detailSections.size(), from + DETAILS_PAGE_SIZE - 1);
+        lblDetailsPage.setText("Sezioni " + from + "–" + to + " di " + detailSections.size()
+                + "  (pagina " + (detailsPage + 1) + "/" + pages + ")");
+    }
+
     // ===== TableModel =====
 
     private static class ArticlesTableModel extends AbstractTableModel {
@@ -183,6 +370,16 @@ public class SimulationControlsPanel extends JPanel {
         }
 
         private final List<RowState> rows = new ArrayList<RowState>();
+        private final Consumer<SimRequest> onEdit;
+
+        ArticlesTableModel(Consumer<SimRequest> onEdit) {
+            this.onEdit = onEdit;
+        }
+
+        SimRequest requestAt(int rowIndex, double percent) {
+            RowState r = rows.get(rowIndex);
+            return new SimRequest(r.article, r.mode, percent, r.compensate);
+        }
 
         public void setArticles(List<ArticleRow> articles) {
             rows.clear();
@@ -234,7 +431,7 @@ public class SimulationControlsPanel extends JPanel {
                 case 0: return r.selected;
                 case 1: return (r.article.getCat() == null ? "" : r.article.getCat());
                 case 2: return (r.article.getArticolo() == null ? "" : r.article.getArticolo());
-                case 3: return (r.mode == SimulationMode.QUANTITY ? "QUANTITA" : "PREZZO");
+                case 3: return modeLabel(r.mode);
                 case 4: return r.percent;
                 case 5: return r.compensate;
                 default: return "";
@@ -250,8 +447,7 @@ public class SimulationControlsPanel extends JPanel {
                         r.selected = (aValue instanceof Boolean) ? (Boolean) aValue : false;
                         break;
                     case 3:
-                        String s = String.valueOf(aValue).toUpperCase().trim();
-                        r.mode = s.contains("PREZZ") ? SimulationMode.PRICE : SimulationMode.QUANTITY;
+                        r.mode = modeFromLabel(String.valueOf(aValue));
                         break;
                     case 4:
                         if (aValue instanceof Double) r.percent = (Double) aValue;
@@ -263,6 +459,7 @@ public class SimulationControlsPanel extends JPanel {
                 }
             } catch (Exception ignore) { }
             fireTableCellUpdated(rowIndex, columnIndex);
+            if (columnIndex >= 3) onEdit.accept(requestAt(rowIndex, r.percent));
         }
     }
 }